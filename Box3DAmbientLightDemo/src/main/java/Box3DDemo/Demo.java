@@ -1,12 +1,9 @@
 package Box3DDemo;
 
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
-
-import javax.imageio.ImageIO;
+import java.util.Arrays;
 
 import org.joml.Matrix4f;
 import org.joml.Vector3f;
@@ -19,6 +16,7 @@ import org.lwjgl.opengl.GL13;
 import org.lwjgl.opengl.GL15;
 import org.lwjgl.opengl.GL20;
 import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL31;
 import org.lwjgl.opengl.GL32;
 import org.lwjgl.system.MemoryUtil;
 
@@ -40,6 +38,18 @@ public class Demo
 	// The initial height of the window.
 	public static int HEIGHT = 600;
 	
+	// If true the mipmaps of the texture are computed on the cpu and cached on disk, otherwise the driver generates them.
+	public static boolean CPU_MIPMAPS = true;
+	
+	// The directory the computed mipmaps are cached in.
+	public static String MIPMAP_CACHE_DIRECTORY = "mipmapcache";
+	
+	// The number of cubes. The first ten are placed by hand, the others fill a grid behind them.
+	public static int CUBE_COUNT = 10;
+	
+	// If true all cubes are drawn with a single instanced draw call per pass, otherwise every cube is drawn on its own.
+	public static boolean INSTANCED_RENDERING = true;
+	
 	public static void main(String[] args) { new Demo().run(); }
 
 	public void run()
@@ -193,7 +203,8 @@ public class Demo
 				+ "out vec2 pass_texCoords;\n"
 				+ "uniform mat4 T_projection;\n"
 				+ "uniform mat4 T_view;\n"
-				+ "uniform mat4 T_model;\n"
+				// With instanced rendering the model matrix is a vertex attribute that changes per instance instead of a uniform.
+				+ (INSTANCED_RENDERING ? "in mat4 T_model;\n" : "uniform mat4 T_model;\n")
 				+ "void main()\n"
 				+ "{\n"
 				+ "	gl_Position = T_projection * T_view * T_model * vec4(coords, 1.0);\n"
@@ -244,6 +255,10 @@ public class Demo
 		// Bind the VAO pointer for vertex texture coordinates to the shader input variable "texCoords".
 		GL20.glBindAttribLocation(ambientLightShaderProgramId, 1, "texCoords");
 		
+		// Bind the instance buffer pointers for the model matrices to the shader input variable "T_model".
+		// A matrix takes one location per column, so it uses the locations 2 to 5.
+		GL20.glBindAttribLocation(ambientLightShaderProgramId, 2, "T_model");
+		
 		// Link the shader program together.
 		GL20.glLinkProgram(ambientLightShaderProgramId);
 		
@@ -258,49 +273,61 @@ public class Demo
 		int ambientLightColorUniformLocation =  GL20.glGetUniformLocation(ambientLightShaderProgramId, "ambientLightColor");
 		int ambientLightIntensityUniformLocation =  GL20.glGetUniformLocation(ambientLightShaderProgramId, "ambientLightIntensity");
 		
-		// Read the pixel data of an image manually.
-		BufferedImage texture = null;
-		try
-		{
-			texture = ImageIO.read(new File("test.png"));
-		} catch (IOException e)
-		{
-			e.printStackTrace();
-			System.exit(-1);
-		}
-
-		int textureWidth = texture.getWidth();
-		int textureHeight = texture.getHeight();
-		
-		int[] pixels = new int[textureWidth * textureHeight];
-		texture.getRGB(0, 0, textureWidth, textureHeight, pixels, 0, textureWidth);
-
-		ByteBuffer buffer = MemoryUtil.memAlloc(textureWidth * textureHeight * 4);
-
-		for(int y = 0; y < textureHeight; y++)
-			for(int x = 0; x < textureWidth; x++)
-			{
-				int pixel = pixels[y * textureWidth + x];
-				buffer.put((byte)((pixel >> 16) & 0xFF)); // Red component
-				buffer.put((byte)((pixel >> 8) & 0xFF)); // Green component
-				buffer.put((byte)(pixel & 0xFF)); // Blue component
-				buffer.put((byte)((pixel >> 24) & 0xFF)); //Alpha component
-			}
-
-		buffer.flip();
-		
 		int textureId = GL11.glGenTextures();
 		
 		GL11.glBindTexture(GL11.GL_TEXTURE_2D, textureId);
 
-		GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_LINEAR);
+		// Use the mipmaps when the texture gets minified. Mipmaps are smaller versions of the texture. Boxes far away are textured
+		// with the level matching their size on the screen, which avoids aliasing and reads far less texels than the full size texture.
+		GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_LINEAR_MIPMAP_LINEAR);
 		GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_LINEAR);
 		
-		GL11.glTexImage2D(GL11.GL_TEXTURE_2D, 0, GL11.GL_RGBA8, textureWidth, textureHeight, 0, GL11.GL_RGBA, GL11.GL_UNSIGNED_BYTE, buffer);		
-		
-		MemoryUtil.memFree(buffer);
+		if(CPU_MIPMAPS)
+		{
+			// Read the image together with all its mipmap levels. The levels are computed once and
+			// read from the cache directory on later launches, as long as the image doesn't change.
+			MipmapCache mipmapCache = new MipmapCache(new File(MIPMAP_CACHE_DIRECTORY));
+			
+			TextureData[] textureLevels = null;
+			try
+			{
+				textureLevels = mipmapCache.load(new File("test.png"));
+			} catch (IOException e)
+			{
+				e.printStackTrace();
+				System.exit(-1);
+			}
+			
+			for(int level = 0; level < textureLevels.length; level++)
+			{
+				textureLevels[level].upload2D(GL11.GL_TEXTURE_2D, level, GL11.GL_RGBA8);
+				textureLevels[level].free();
+			}
+		}
+		else
+		{
+			// Read the pixel data of the image into an off-heap buffer.
+			// The loader keeps the component order of the decoded image and tells OpenGL how to read it,
+			// so the pixels don't have to be converted one by one.
+			TextureData texture = null;
+			try
+			{
+				texture = TextureLoader.load(new File("test.png"));
+			} catch (IOException e)
+			{
+				e.printStackTrace();
+				System.exit(-1);
+			}
+			
+			texture.upload2D(GL11.GL_TEXTURE_2D, 0, GL11.GL_RGBA8);
+			
+			texture.free();
+			
+			// Let the driver compute the mipmap levels from the base level.
+			GL30.glGenerateMipmap(GL11.GL_TEXTURE_2D);
+		}
 
-		Vector3f[] cubePositions = new Vector3f[] {
+		Vector3f[] cubePositions = Arrays.copyOf(new Vector3f[] {
 		        new Vector3f( 0.0f,  0.0f,  0.0f),
 		        new Vector3f( 2.0f,  5.0f, -15.0f),
 		        new Vector3f(-1.5f, -2.2f, -2.5f),
@@ -311,7 +338,32 @@ public class Demo
 		        new Vector3f( 1.5f,  2.0f, -2.5f),
 		        new Vector3f( 1.5f,  0.2f, -1.5f),
 		        new Vector3f(-1.3f,  1.0f, -1.5f)
-		    };
+		    }, CUBE_COUNT);
+		
+		// The additional cubes are placed 1.5 units apart in a cube shaped grid starting 20 units away from the camera.
+		int gridSize = (int)Math.ceil(Math.cbrt(CUBE_COUNT));
+		for(int i = 10; i < CUBE_COUNT; i++)
+		{
+			cubePositions[i] = new Vector3f(
+					(i % gridSize - gridSize / 2) * 1.5f,
+					(i / gridSize % gridSize - gridSize / 2) * 1.5f,
+					-20.0f - i / (gridSize * gridSize) * 1.5f);
+		}
+		
+		InstanceBuffer instanceBuffer = null;
+		if(INSTANCED_RENDERING)
+		{
+			// The model matrices of all cubes are stored in the instance buffer and read by the "T_model" attribute of the shader.
+			// The cubes don't move, so the matrices are uploaded once.
+			instanceBuffer = new InstanceBuffer(cubePositions.length);
+			instanceBuffer.attach(boxVAOId, 2);
+			
+			Matrix4f modelMatrix = new Matrix4f();
+			for(int i = 0; i < cubePositions.length; i++)
+				instanceBuffer.put(modelMatrix.translation(cubePositions[i]));
+			
+			instanceBuffer.upload();
+		}
 		
 		FloatBuffer matrixCarrierBuffer = MemoryUtil.memAllocFloat(16);
 		
@@ -387,15 +439,23 @@ public class Demo
 			matrixCarrierBuffer.clear();
 			GL20.glUniformMatrix4fv(viewMatrixUniformLocation, false, viewMatrix.get(matrixCarrierBuffer));
 
-			for(int i = 0; i < cubePositions.length; i++)
+			if(INSTANCED_RENDERING)
 			{
-				Matrix4f modelMatrix = new Matrix4f().translation(cubePositions[i]);
-				
-				matrixCarrierBuffer.clear();
-				GL20.glUniformMatrix4fv(modelMatrixUniformLocation, false, modelMatrix.get(matrixCarrierBuffer));
+				// Drawing all boxes at once, each with the model matrix of its instance.
+				GL31.glDrawArraysInstanced(GL11.GL_TRIANGLES, 0, 36, instanceBuffer.getCount());
+			}
+			else
+			{
+				for(int i = 0; i < cubePositions.length; i++)
+				{
+					Matrix4f modelMatrix = new Matrix4f().translation(cubePositions[i]);
 					
-				// Drawing the box.
-				GL11.glDrawArrays(GL11.GL_TRIANGLES, 0, 36);
+					matrixCarrierBuffer.clear();
+					GL20.glUniformMatrix4fv(modelMatrixUniformLocation, false, modelMatrix.get(matrixCarrierBuffer));
+						
+					// Drawing the box.
+					GL11.glDrawArrays(GL11.GL_TRIANGLES, 0, 36);
+				}
 			}
 				
 			// Stopping the running shader.
@@ -412,6 +472,8 @@ public class Demo
 		
 		GL30.glDeleteVertexArrays(boxVAOId);
 		GL30.glDeleteBuffers(boxVertexVBOId);
+		
+		if(instanceBuffer != null) instanceBuffer.delete();
 		GL20.glDeleteProgram(ambientLightShaderProgramId);
 		GL20.glDeleteShader(ambientLightVertexShaderId);
 		GL20.glDeleteShader(ambientLightFragmentShaderId);
@@ -0,0 +1,122 @@
+package Box3DDemo;
+
+import java.nio.ByteBuffer;
+
+import org.joml.Matrix4fc;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL33;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * A vertex buffer holding one model matrix per instance of a mesh.
+ *
+ * The matrices are read by a mat4 vertex attribute, which takes four consecutive attribute locations, one per column.
+ * With a divisor of 1 the attribute advances once per instance instead of once per vertex, so all instances of the mesh
+ * are drawn by a single glDrawArraysInstanced call instead of one uniform upload and one draw call per instance.
+ *
+ * The matrices are collected in an off-heap buffer and uploaded together. Buffers that change every frame are uploaded
+ * into new storage each time, so the driver doesn't have to wait for the draws still reading the previous matrices.
+ */
+public class InstanceBuffer
+{
+	// The size of a matrix in bytes.
+	private static final int MATRIX_SIZE = 16 * 4;
+
+	private final int bufferId;
+
+	// The matrices of the instances, written by put() and uploaded by upload().
+	private ByteBuffer data;
+
+	// The number of matrices put since the last clear.
+	private int count;
+
+	// The number of matrices uploaded, which is the number of instances to draw.
+	private int uploadedCount;
+
+	/**
+	 * Creates an empty instance buffer. The capacity is the expected number of instances, the buffer grows if necessary.
+	 */
+	public InstanceBuffer(int capacity)
+	{
+		this.bufferId = GL15.glGenBuffers();
+		this.data = MemoryUtil.memAlloc(Math.max(capacity, 1) * MATRIX_SIZE);
+	}
+
+	/**
+	 * Sets the pointers of the mat4 attribute starting at the location to this buffer in the VAO.
+	 */
+	public void attach(int vaoId, int attribute)
+	{
+		GL30.glBindVertexArray(vaoId);
+		GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, this.bufferId);
+
+		for(int column = 0; column < 4; column++)
+		{
+			GL20.glVertexAttribPointer(attribute + column, 4, GL11.GL_FLOAT, false, MATRIX_SIZE, column * 4 * 4);
+
+			// Advance the attribute once per instance.
+			GL33.glVertexAttribDivisor(attribute + column, 1);
+
+			// The instance attributes are always used, so they are enabled once here.
+			GL20.glEnableVertexAttribArray(attribute + column);
+		}
+
+		GL30.glBindVertexArray(0);
+		GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+	}
+
+	/**
+	 * Removes all matrices put so far. The uploaded matrices stay in use until the next upload.
+	 */
+	public void clear()
+	{
+		this.count = 0;
+	}
+
+	/**
+	 * Adds the model matrix of the next instance.
+	 */
+	public void put(Matrix4fc matrix)
+	{
+		if((this.count + 1) * MATRIX_SIZE > this.data.capacity())
+			this.data = MemoryUtil.memRealloc(this.data, this.data.capacity() * 2);
+
+		matrix.get(this.count * MATRIX_SIZE, this.data);
+
+		this.count++;
+	}
+
+	/**
+	 * Uploads the matrices put since the last clear.
+	 */
+	public void upload()
+	{
+		this.data.limit(this.count * MATRIX_SIZE);
+
+		GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, this.bufferId);
+		GL15.glBufferData(GL15.GL_ARRAY_BUFFER, this.data, GL15.GL_STREAM_DRAW);
+		GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+
+		this.data.clear();
+
+		this.uploadedCount = this.count;
+	}
+
+	/**
+	 * Returns the number of uploaded instances.
+	 */
+	public int getCount()
+	{
+		return this.uploadedCount;
+	}
+
+	public void delete()
+	{
+		GL15.glDeleteBuffers(this.bufferId);
+
+		MemoryUtil.memFree(this.data);
+	}
+}
@@ -0,0 +1,555 @@
+package Box3DDemo;
+
+import java.nio.ByteBuffer;
+import java.util.stream.IntStream;
+
+import org.lwjgl.opengl.EXTTextureCompressionS3TC;
+import org.lwjgl.opengl.GL42;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * Compresses textures into the block compressed formats BC1, BC3 and BC7 on the cpu.
+ *
+ * All three formats split the image into blocks of 4x4 pixels. Every block stores two endpoint colors and for every pixel
+ * an index selecting a color interpolated between them. The gpu decompresses the blocks while sampling, so the texture
+ * needs 4 (BC3, BC7) to 8 (BC1) times less memory and bandwidth than GL_RGBA8.
+ *
+ * BC1 stores RGB colors with 4 bits per pixel. BC3 adds a separate alpha block and needs 8 bits per pixel.
+ * BC7 needs 8 bits per pixel as well but has a much higher quality. This encoder only uses mode 6 of BC7,
+ * which stores a single pair of RGBA endpoints with 7 bits per component and 4-bit indices.
+ *
+ * The encoder is meant for an offline bake step. The block rows are compressed in parallel on all cpu cores.
+ */
+public class BlockCompressor
+{
+	// No compression.
+	public static final int NONE = 0;
+
+	// BC1 (also known as DXT1). 8 bytes per block, no alpha.
+	public static final int BC1 = 1;
+
+	// BC3 (also known as DXT5). 16 bytes per block.
+	public static final int BC3 = 2;
+
+	// BC7 (also known as BPTC). 16 bytes per block.
+	public static final int BC7 = 3;
+
+	// The interpolation weights of BC7 for 4-bit indices in 1/64.
+	static final int[] BC7_WEIGHTS = { 0, 4, 9, 13, 17, 21, 26, 30, 34, 38, 43, 47, 51, 55, 60, 64 };
+
+	/**
+	 * Returns the OpenGL internal format of the compression.
+	 */
+	public static int getGLInternalFormat(int compression)
+	{
+		switch(compression)
+		{
+			case BC1: return EXTTextureCompressionS3TC.GL_COMPRESSED_RGB_S3TC_DXT1_EXT;
+			case BC3: return EXTTextureCompressionS3TC.GL_COMPRESSED_RGBA_S3TC_DXT5_EXT;
+			case BC7: return GL42.GL_COMPRESSED_RGBA_BPTC_UNORM;
+			default: throw new IllegalArgumentException("Unknown compression " + compression + ".");
+		}
+	}
+
+	/**
+	 * Returns the name of the compression, e.g. for file names.
+	 */
+	public static String getName(int compression)
+	{
+		switch(compression)
+		{
+			case NONE: return "rgba8";
+			case BC1: return "bc1";
+			case BC3: return "bc3";
+			case BC7: return "bc7";
+			default: throw new IllegalArgumentException("Unknown compression " + compression + ".");
+		}
+	}
+
+	/**
+	 * Returns the size of a single block in bytes.
+	 */
+	public static int getBlockSize(int compression)
+	{
+		return compression == BC1 ? 8 : 16;
+	}
+
+	/**
+	 * Returns the size of the compressed image in bytes. Images with a size that is not a multiple of 4 are padded.
+	 */
+	public static int getSize(int width, int height, int compression)
+	{
+		return ((width + 3) / 4) * ((height + 3) / 4) * getBlockSize(compression);
+	}
+
+	/**
+	 * Compresses the texture data. The returned texture data holds the blocks and the OpenGL internal format as format.
+	 * Its buffer is allocated with MemoryUtil and has to be freed.
+	 */
+	public static TextureData compress(TextureData data, int compression)
+	{
+		int[] pixels = toARGB(data);
+
+		byte[] blocks = compress(pixels, data.width, data.height, compression);
+
+		ByteBuffer buffer = MemoryUtil.memAlloc(blocks.length);
+		buffer.put(blocks).flip();
+
+		return new TextureData(data.width, data.height, getGLInternalFormat(compression), 0, 1, buffer);
+	}
+
+	/**
+	 * Compresses an image given as packed ARGB integers.
+	 */
+	public static byte[] compress(int[] pixels, int width, int height, int compression)
+	{
+		int blocksX = (width + 3) / 4;
+		int blocksY = (height + 3) / 4;
+		int blockSize = getBlockSize(compression);
+
+		byte[] blocks = new byte[blocksX * blocksY * blockSize];
+
+		// Every block row writes into its own part of the output, so they can be compressed in parallel.
+		IntStream.range(0, blocksY).parallel().forEach(blockY -> {
+			int[] block = new int[16];
+
+			for(int blockX = 0; blockX < blocksX; blockX++)
+			{
+				readBlock(pixels, width, height, blockX * 4, blockY * 4, block);
+
+				int offset = (blockY * blocksX + blockX) * blockSize;
+
+				switch(compression)
+				{
+					case BC1:
+						encodeColorBlock(block, blocks, offset);
+						break;
+					case BC3:
+						encodeAlphaBlock(block, blocks, offset);
+						encodeColorBlock(block, blocks, offset + 8);
+						break;
+					case BC7:
+						encodeBC7Mode6Block(block, blocks, offset);
+						break;
+					default:
+						throw new IllegalArgumentException("Unknown compression " + compression + ".");
+				}
+			}
+		});
+
+		return blocks;
+	}
+
+	/**
+	 * Converts the texture data into packed ARGB integers.
+	 */
+	public static int[] toARGB(TextureData data)
+	{
+		int format = TextureFile.getFormat(data);
+		int pixelCount = data.width * data.height;
+		int bytesPerPixel = format == TextureFile.FORMAT_BGR8 ? 3 : 4;
+
+		ByteBuffer buffer = data.pixels;
+
+		int[] pixels = new int[pixelCount];
+		for(int i = 0; i < pixelCount; i++)
+		{
+			int index = i * bytesPerPixel;
+
+			int b0 = buffer.get(index) & 0xFF;
+			int b1 = buffer.get(index + 1) & 0xFF;
+			int b2 = buffer.get(index + 2) & 0xFF;
+			int b3 = bytesPerPixel == 4 ? buffer.get(index + 3) & 0xFF : 0xFF;
+
+			switch(format)
+			{
+				case TextureFile.FORMAT_ABGR8: pixels[i] = b0 << 24 | b3 << 16 | b2 << 8 | b1; break;
+				case TextureFile.FORMAT_BGRA8: pixels[i] = b3 << 24 | b2 << 16 | b1 << 8 | b0; break;
+				case TextureFile.FORMAT_ARGB8: pixels[i] = b0 << 24 | b1 << 16 | b2 << 8 | b3; break;
+				case TextureFile.FORMAT_BGR8: pixels[i] = 0xFF << 24 | b2 << 16 | b1 << 8 | b0; break;
+				default: throw new IllegalArgumentException("Compressed texture data can't be converted.");
+			}
+		}
+
+		return pixels;
+	}
+
+	/**
+	 * Copies the 4x4 pixels of a block. Pixels outside the image repeat the last row or column.
+	 */
+	private static void readBlock(int[] pixels, int width, int height, int x, int y, int[] block)
+	{
+		for(int by = 0; by < 4; by++)
+			for(int bx = 0; bx < 4; bx++)
+				block[by * 4 + bx] = pixels[Math.min(y + by, height - 1) * width + Math.min(x + bx, width - 1)];
+	}
+
+	/**
+	 * Encodes the colors of the block as a BC1 block. The endpoints are the two pixels furthest apart along the principal axis
+	 * of the colors, as this is the direction the colors of the block vary the most in.
+	 */
+	private static void encodeColorBlock(int[] block, byte[] output, int offset)
+	{
+		float[] axis = principalAxis(block, 3);
+
+		int min = 0;
+		int max = 0;
+		float minProjection = Float.MAX_VALUE;
+		float maxProjection = -Float.MAX_VALUE;
+
+		for(int i = 0; i < 16; i++)
+		{
+			float projection = component(block[i], 0) * axis[0] + component(block[i], 1) * axis[1] + component(block[i], 2) * axis[2];
+
+			if(projection < minProjection) { minProjection = projection; min = i; }
+			if(projection > maxProjection) { maxProjection = projection; max = i; }
+		}
+
+		int color0 = toRGB565(block[max]);
+		int color1 = toRGB565(block[min]);
+
+		// The block only uses four colors if the first endpoint is larger than the second one.
+		// Otherwise it would switch to three colors plus transparent black.
+		if(color0 < color1)
+		{
+			int temp = color0;
+			color0 = color1;
+			color1 = temp;
+		}
+
+		int indices = 0;
+
+		if(color0 != color1)
+		{
+			int[][] palette = colorPalette(color0, color1);
+
+			for(int i = 0; i < 16; i++)
+				indices |= nearest(block[i], palette, 3) << (i * 2);
+		}
+
+		output[offset] = (byte)color0;
+		output[offset + 1] = (byte)(color0 >> 8);
+		output[offset + 2] = (byte)color1;
+		output[offset + 3] = (byte)(color1 >> 8);
+		output[offset + 4] = (byte)indices;
+		output[offset + 5] = (byte)(indices >> 8);
+		output[offset + 6] = (byte)(indices >> 16);
+		output[offset + 7] = (byte)(indices >> 24);
+	}
+
+	/**
+	 * Encodes the alpha values of the block as the alpha block of BC3 with the minimum and maximum alpha as endpoints.
+	 */
+	private static void encodeAlphaBlock(int[] block, byte[] output, int offset)
+	{
+		int alpha0 = 0;
+		int alpha1 = 255;
+
+		for(int i = 0; i < 16; i++)
+		{
+			int alpha = block[i] >>> 24;
+
+			alpha0 = Math.max(alpha0, alpha);
+			alpha1 = Math.min(alpha1, alpha);
+		}
+
+		long indices = 0;
+
+		if(alpha0 != alpha1)
+		{
+			int[] palette = alphaPalette(alpha0, alpha1);
+
+			for(int i = 0; i < 16; i++)
+			{
+				int alpha = block[i] >>> 24;
+
+				int best = 0;
+				for(int j = 1; j < 8; j++)
+					if(Math.abs(palette[j] - alpha) < Math.abs(palette[best] - alpha)) best = j;
+
+				indices |= (long)best << (i * 3);
+			}
+		}
+
+		output[offset] = (byte)alpha0;
+		output[offset + 1] = (byte)alpha1;
+
+		for(int i = 0; i < 6; i++)
+			output[offset + 2 + i] = (byte)(indices >> (i * 8));
+	}
+
+	/**
+	 * Encodes the block as a BC7 mode 6 block. The endpoints are the two pixels furthest apart along the principal axis
+	 * of the colors including alpha.
+	 */
+	private static void encodeBC7Mode6Block(int[] block, byte[] output, int offset)
+	{
+		float[] axis = principalAxis(block, 4);
+
+		int min = 0;
+		int max = 0;
+		float minProjection = Float.MAX_VALUE;
+		float maxProjection = -Float.MAX_VALUE;
+
+		for(int i = 0; i < 16; i++)
+		{
+			float projection = 0;
+			for(int c = 0; c < 4; c++)
+				projection += component(block[i], c) * axis[c];
+
+			if(projection < minProjection) { minProjection = projection; min = i; }
+			if(projection > maxProjection) { maxProjection = projection; max = i; }
+		}
+
+		// Every endpoint is stored with 7 bits per component and a shared lowest bit (p-bit).
+		// The p-bit is chosen to keep the quantized endpoint as close as possible to the original one.
+		int[] endpoint0 = new int[4];
+		int[] endpoint1 = new int[4];
+		int pBit0 = quantizeBC7Endpoint(block[min], endpoint0);
+		int pBit1 = quantizeBC7Endpoint(block[max], endpoint1);
+
+		int[][] palette = new int[16][4];
+		for(int i = 0; i < 16; i++)
+			for(int c = 0; c < 4; c++)
+			{
+				int e0 = endpoint0[c] << 1 | pBit0;
+				int e1 = endpoint1[c] << 1 | pBit1;
+
+				palette[i][c] = ((64 - BC7_WEIGHTS[i]) * e0 + BC7_WEIGHTS[i] * e1 + 32) >> 6;
+			}
+
+		int[] indices = new int[16];
+		for(int i = 0; i < 16; i++)
+			indices[i] = nearest(block[i], palette, 4);
+
+		// The highest bit of the index of the first pixel is not stored and therefore has to be 0.
+		// If it isn't, swapping the endpoints inverts all indices.
+		if(indices[0] >= 8)
+		{
+			int[] temp = endpoint0;
+			endpoint0 = endpoint1;
+			endpoint1 = temp;
+
+			int tempPBit = pBit0;
+			pBit0 = pBit1;
+			pBit1 = tempPBit;
+
+			for(int i = 0; i < 16; i++)
+				indices[i] = 15 - indices[i];
+		}
+
+		BitWriter writer = new BitWriter(output, offset);
+
+		// Mode 6 is identified by six 0-bits followed by a 1-bit.
+		writer.write(1 << 6, 7);
+
+		for(int c = 0; c < 4; c++)
+		{
+			writer.write(endpoint0[c], 7);
+			writer.write(endpoint1[c], 7);
+		}
+
+		writer.write(pBit0, 1);
+		writer.write(pBit1, 1);
+
+		writer.write(indices[0], 3);
+		for(int i = 1; i < 16; i++)
+			writer.write(indices[i], 4);
+	}
+
+	/**
+	 * Quantizes the color to 7 bits per component and returns the p-bit with the lower error.
+	 */
+	private static int quantizeBC7Endpoint(int color, int[] endpoint)
+	{
+		int bestPBit = 0;
+		int bestError = Integer.MAX_VALUE;
+
+		for(int pBit = 0; pBit < 2; pBit++)
+		{
+			int error = 0;
+			for(int c = 0; c < 4; c++)
+			{
+				int value = component(color, c);
+				int quantized = Math.min(127, Math.max(0, (value - pBit + 1) >> 1));
+				int difference = value - (quantized << 1 | pBit);
+
+				error += difference * difference;
+			}
+
+			if(error < bestError)
+			{
+				bestError = error;
+				bestPBit = pBit;
+			}
+		}
+
+		for(int c = 0; c < 4; c++)
+			endpoint[c] = Math.min(127, Math.max(0, (component(color, c) - bestPBit + 1) >> 1));
+
+		return bestPBit;
+	}
+
+	/**
+	 * Calculates the direction the colors of the block vary the most in with the power iteration method
+	 * on the covariance matrix of the colors.
+	 */
+	private static float[] principalAxis(int[] block, int componentCount)
+	{
+		float[] mean = new float[componentCount];
+		for(int i = 0; i < 16; i++)
+			for(int c = 0; c < componentCount; c++)
+				mean[c] += component(block[i], c) / 16.0f;
+
+		float[][] covariance = new float[componentCount][componentCount];
+		for(int i = 0; i < 16; i++)
+			for(int a = 0; a < componentCount; a++)
+				for(int b = 0; b < componentCount; b++)
+					covariance[a][b] += (component(block[i], a) - mean[a]) * (component(block[i], b) - mean[b]);
+
+		float[] axis = new float[componentCount];
+		for(int c = 0; c < componentCount; c++)
+			axis[c] = 1.0f;
+
+		for(int iteration = 0; iteration < 8; iteration++)
+		{
+			float[] next = new float[componentCount];
+			float length = 0;
+
+			for(int a = 0; a < componentCount; a++)
+			{
+				for(int b = 0; b < componentCount; b++)
+					next[a] += covariance[a][b] * axis[b];
+
+				length += next[a] * next[a];
+			}
+
+			// All colors of the block are equal, any axis works.
+			if(length == 0) break;
+
+			length = (float)Math.sqrt(length);
+			for(int c = 0; c < componentCount; c++)
+				axis[c] = next[c] / length;
+		}
+
+		return axis;
+	}
+
+	/**
+	 * Returns the four colors of a BC1 block in four color mode as RGB components.
+	 */
+	static int[][] colorPalette(int color0, int color1)
+	{
+		int[] c0 = fromRGB565(color0);
+		int[] c1 = fromRGB565(color1);
+
+		int[][] palette = new int[4][3];
+		for(int c = 0; c < 3; c++)
+		{
+			palette[0][c] = c0[c];
+			palette[1][c] = c1[c];
+			palette[2][c] = (2 * c0[c] + c1[c]) / 3;
+			palette[3][c] = (c0[c] + 2 * c1[c]) / 3;
+		}
+
+		return palette;
+	}
+
+	/**
+	 * Returns the eight alpha values of a BC3 alpha block with alpha0 larger than alpha1.
+	 */
+	static int[] alphaPalette(int alpha0, int alpha1)
+	{
+		int[] palette = new int[8];
+		palette[0] = alpha0;
+		palette[1] = alpha1;
+
+		for(int i = 1; i < 7; i++)
+			palette[i + 1] = ((7 - i) * alpha0 + i * alpha1) / 7;
+
+		return palette;
+	}
+
+	/**
+	 * Returns the index of the palette entry closest to the color.
+	 */
+	private static int nearest(int color, int[][] palette, int componentCount)
+	{
+		int best = 0;
+		int bestError = Integer.MAX_VALUE;
+
+		for(int i = 0; i < palette.length; i++)
+		{
+			int error = 0;
+			for(int c = 0; c < componentCount; c++)
+			{
+				int difference = component(color, c) - palette[i][c];
+				error += difference * difference;
+			}
+
+			if(error < bestError)
+			{
+				bestError = error;
+				best = i;
+			}
+		}
+
+		return best;
+	}
+
+	/**
+	 * Returns the component of the packed ARGB color in the order red, green, blue, alpha.
+	 */
+	static int component(int color, int component)
+	{
+		switch(component)
+		{
+			case 0: return (color >> 16) & 0xFF;
+			case 1: return (color >> 8) & 0xFF;
+			case 2: return color & 0xFF;
+			default: return color >>> 24;
+		}
+	}
+
+	private static int toRGB565(int color)
+	{
+		int r = (component(color, 0) * 31 + 127) / 255;
+		int g = (component(color, 1) * 63 + 127) / 255;
+		int b = (component(color, 2) * 31 + 127) / 255;
+
+		return r << 11 | g << 5 | b;
+	}
+
+	static int[] fromRGB565(int color)
+	{
+		int r = (color >> 11) & 0x1F;
+		int g = (color >> 5) & 0x3F;
+		int b = color & 0x1F;
+
+		// Replicating the highest bits into the lowest ones maps the maximum value to 255.
+		return new int[] { r << 3 | r >> 2, g << 2 | g >> 4, b << 3 | b >> 2 };
+	}
+
+	/**
+	 * Writes values bit by bit into a block, starting with the lowest bit of the first byte.
+	 */
+	private static class BitWriter
+	{
+		private final byte[] output;
+		private final int offset;
+		private int position;
+
+		public BitWriter(byte[] output, int offset)
+		{
+			this.output = output;
+			this.offset = offset;
+		}
+
+		public void write(int value, int bitCount)
+		{
+			for(int i = 0; i < bitCount; i++, this.position++)
+				if(((value >> i) & 1) != 0)
+					this.output[this.offset + this.position / 8] |= 1 << (this.position % 8);
+		}
+	}
+}
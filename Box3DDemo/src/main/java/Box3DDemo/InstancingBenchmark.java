@@ -0,0 +1,272 @@
+package Box3DDemo;
+
+import java.nio.FloatBuffer;
+
+import org.joml.Matrix4f;
+import org.lwjgl.glfw.GLFW;
+import org.lwjgl.glfw.GLFWErrorCallback;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL31;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * Compares drawing a field of cubes one by one against drawing it with a single instanced draw call.
+ *
+ * Usage: InstancingBenchmark [cube count...]
+ *
+ * Every cube count is drawn in three ways:
+ * - per cube: one glUniformMatrix4fv and one glDrawArrays per cube, like the demo without instanced rendering.
+ * - instanced, streamed: all model matrices are written into the instance buffer and uploaded every frame, as if the cubes moved.
+ * - instanced, static: the matrices are uploaded once and every frame only issues the draw call, like the demo.
+ *
+ * The cpu time is the time needed to submit a frame. The frame time additionally waits for the gpu with glFinish.
+ * The window is hidden and the cubes are drawn with a single color, so the results show the cost of the submission
+ * rather than the cost of texturing.
+ */
+public class InstancingBenchmark
+{
+	// The frames drawn before measuring, so the JIT compiler and the driver are warmed up.
+	private static final int WARMUP_FRAMES = 10;
+
+	// The frames measured per cube count and path.
+	private static final int FRAMES = 100;
+
+	public static void main(String[] args)
+	{
+		int[] cubeCounts = args.length > 0 ? new int[args.length] : new int[] { 1000, 10000, 100000 };
+		for(int i = 0; i < args.length; i++)
+			cubeCounts[i] = Integer.parseInt(args[i]);
+
+		GLFWErrorCallback errorCallback = GLFWErrorCallback.createPrint(System.out);
+		GLFW.glfwInit();
+		GLFW.glfwSetErrorCallback(errorCallback);
+
+		GLFW.glfwWindowHint(GLFW.GLFW_CONTEXT_VERSION_MAJOR, 4);
+		GLFW.glfwWindowHint(GLFW.GLFW_CONTEXT_VERSION_MINOR, 2);
+		GLFW.glfwWindowHint(GLFW.GLFW_OPENGL_PROFILE, GLFW.GLFW_OPENGL_CORE_PROFILE);
+		GLFW.glfwWindowHint(GLFW.GLFW_VISIBLE, GLFW.GLFW_FALSE);
+
+		long windowId = GLFW.glfwCreateWindow(800, 600, "InstancingBenchmark", 0, 0);
+		if(windowId == 0)
+		{
+			System.err.println("Cannot create window.");
+			System.exit(-1);
+		}
+
+		GLFW.glfwMakeContextCurrent(windowId);
+		GL.createCapabilities();
+
+		int vaoId = GL30.glGenVertexArrays();
+		int vboId = createCube(vaoId);
+
+		int perCubeProgramId = createProgram("uniform mat4 T_model;\n");
+		int instancedProgramId = createProgram("in mat4 T_model;\n");
+
+		Matrix4f viewProjectionMatrix = new Matrix4f().setPerspective((float)Math.toRadians(45.0), 800.0f / 600.0f, 0.1f, 100.0f).translate(0.0f, 0.0f, -3.0f);
+		float[] matrixValues = new float[16];
+
+		for(int programId : new int[] { perCubeProgramId, instancedProgramId })
+		{
+			GL20.glUseProgram(programId);
+			GL20.glUniformMatrix4fv(GL20.glGetUniformLocation(programId, "T_viewProjection"), false, viewProjectionMatrix.get(matrixValues));
+		}
+
+		GL11.glEnable(GL11.GL_DEPTH_TEST);
+
+		System.out.printf("%8s  %-20s %12s %12s %12s%n", "cubes", "path", "draw calls", "cpu time", "frame time");
+
+		for(int cubeCount : cubeCounts)
+		{
+			float[] positions = createCubeField(cubeCount);
+
+			Matrix4f modelMatrix = new Matrix4f();
+
+			// The instance buffer is filled before the first draw, so the pointers of the VAO always point to valid storage.
+			InstanceBuffer instanceBuffer = new InstanceBuffer(cubeCount);
+			instanceBuffer.attach(vaoId, 1);
+
+			for(int i = 0; i < cubeCount; i++)
+				instanceBuffer.put(modelMatrix.translation(positions[i * 3], positions[i * 3 + 1], positions[i * 3 + 2]));
+			instanceBuffer.upload();
+
+			GL30.glBindVertexArray(vaoId);
+
+			// Per cube.
+			GL20.glUseProgram(perCubeProgramId);
+			int modelLocation = GL20.glGetUniformLocation(perCubeProgramId, "T_model");
+
+			measure(cubeCount, "per cube", cubeCount, () -> {
+				for(int i = 0; i < cubeCount; i++)
+				{
+					modelMatrix.translation(positions[i * 3], positions[i * 3 + 1], positions[i * 3 + 2]);
+					GL20.glUniformMatrix4fv(modelLocation, false, modelMatrix.get(matrixValues));
+					GL11.glDrawArrays(GL11.GL_TRIANGLES, 0, 36);
+				}
+			});
+
+			// Instanced, streamed.
+			GL20.glUseProgram(instancedProgramId);
+
+			measure(cubeCount, "instanced, streamed", 1, () -> {
+				instanceBuffer.clear();
+				for(int i = 0; i < cubeCount; i++)
+					instanceBuffer.put(modelMatrix.translation(positions[i * 3], positions[i * 3 + 1], positions[i * 3 + 2]));
+				instanceBuffer.upload();
+
+				GL31.glDrawArraysInstanced(GL11.GL_TRIANGLES, 0, 36, instanceBuffer.getCount());
+			});
+
+			// Instanced, static.
+			measure(cubeCount, "instanced, static", 1, () -> {
+				GL31.glDrawArraysInstanced(GL11.GL_TRIANGLES, 0, 36, instanceBuffer.getCount());
+			});
+
+			instanceBuffer.delete();
+		}
+
+		GL20.glUseProgram(0);
+		GL30.glBindVertexArray(0);
+
+		GL20.glDeleteProgram(perCubeProgramId);
+		GL20.glDeleteProgram(instancedProgramId);
+		GL15.glDeleteBuffers(vboId);
+		GL30.glDeleteVertexArrays(vaoId);
+
+		GLFW.glfwDestroyWindow(windowId);
+		GLFW.glfwTerminate();
+	}
+
+	private static void measure(int cubeCount, String path, int drawCalls, Runnable frame)
+	{
+		long cpuTime = 0;
+		long frameTime = 0;
+
+		for(int i = 0; i < WARMUP_FRAMES + FRAMES; i++)
+		{
+			GL11.glClear(GL11.GL_COLOR_BUFFER_BIT | GL11.GL_DEPTH_BUFFER_BIT);
+
+			long start = System.nanoTime();
+
+			frame.run();
+
+			long submitted = System.nanoTime();
+
+			GL11.glFinish();
+
+			long finished = System.nanoTime();
+
+			if(i >= WARMUP_FRAMES)
+			{
+				cpuTime += submitted - start;
+				frameTime += finished - start;
+			}
+		}
+
+		System.out.printf("%8d  %-20s %12d %9.3f ms %9.3f ms%n", cubeCount, path, drawCalls, cpuTime / 1e6 / FRAMES, frameTime / 1e6 / FRAMES);
+	}
+
+	/**
+	 * Places the cubes like the demo does with a large cube count, in a grid starting 20 units away from the camera.
+	 */
+	private static float[] createCubeField(int cubeCount)
+	{
+		float[] positions = new float[cubeCount * 3];
+
+		int gridSize = (int)Math.ceil(Math.cbrt(cubeCount));
+		for(int i = 0; i < cubeCount; i++)
+		{
+			positions[i * 3] = (i % gridSize - gridSize / 2) * 1.5f;
+			positions[i * 3 + 1] = (i / gridSize % gridSize - gridSize / 2) * 1.5f;
+			positions[i * 3 + 2] = -20.0f - i / (gridSize * gridSize) * 1.5f;
+		}
+
+		return positions;
+	}
+
+	/**
+	 * Creates the vertex buffer with the positions of the 36 vertices of a cube and sets the pointer "0" of the VAO to it.
+	 */
+	private static int createCube(int vaoId)
+	{
+		FloatBuffer vertexBuffer = MemoryUtil.memAllocFloat(36 * 3);
+
+		// The corners of the faces, two triangles per face.
+		int[][] faces = {
+			{ 0, 1, 3, 2 }, { 4, 6, 7, 5 }, { 0, 4, 5, 1 }, { 2, 3, 7, 6 }, { 0, 2, 6, 4 }, { 1, 5, 7, 3 }
+		};
+
+		for(int[] face : faces)
+			for(int corner : new int[] { face[0], face[1], face[2], face[2], face[3], face[0] })
+				vertexBuffer.put((corner & 1) - 0.5f).put(((corner >> 1) & 1) - 0.5f).put(((corner >> 2) & 1) - 0.5f);
+
+		vertexBuffer.flip();
+
+		GL30.glBindVertexArray(vaoId);
+
+		int vboId = GL15.glGenBuffers();
+		GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, vboId);
+		GL15.glBufferData(GL15.GL_ARRAY_BUFFER, vertexBuffer, GL15.GL_STATIC_DRAW);
+
+		GL20.glVertexAttribPointer(0, 3, GL11.GL_FLOAT, false, 3 * 4, 0);
+		GL20.glEnableVertexAttribArray(0);
+
+		GL30.glBindVertexArray(0);
+
+		MemoryUtil.memFree(vertexBuffer);
+
+		return vboId;
+	}
+
+	/**
+	 * Creates a program drawing the cubes in a single color. The declaration of the model matrix decides between
+	 * a uniform and an instance attribute.
+	 */
+	private static int createProgram(String modelMatrixDeclaration)
+	{
+		int vertexShaderId = GL20.glCreateShader(GL20.GL_VERTEX_SHADER);
+		GL20.glShaderSource(vertexShaderId, ""
+				+ "#version 400\n"
+				+ "in vec3 coords;\n"
+				+ modelMatrixDeclaration
+				+ "uniform mat4 T_viewProjection;\n"
+				+ "void main()\n"
+				+ "{\n"
+				+ "	gl_Position = T_viewProjection * T_model * vec4(coords, 1.0);\n"
+				+ "}"
+				);
+		GL20.glCompileShader(vertexShaderId);
+
+		int fragmentShaderId = GL20.glCreateShader(GL20.GL_FRAGMENT_SHADER);
+		GL20.glShaderSource(fragmentShaderId, ""
+				+ "#version 400\n"
+				+ "layout(location=0) out vec4 out_Color;\n"
+				+ "void main()\n"
+				+ "{\n"
+				+ "	out_Color = vec4(1.0);\n"
+				+ "}"
+				);
+		GL20.glCompileShader(fragmentShaderId);
+
+		int programId = GL20.glCreateProgram();
+		GL20.glAttachShader(programId, vertexShaderId);
+		GL20.glAttachShader(programId, fragmentShaderId);
+		GL20.glBindAttribLocation(programId, 0, "coords");
+		GL20.glBindAttribLocation(programId, 1, "T_model");
+		GL20.glLinkProgram(programId);
+
+		if(GL20.glGetProgrami(programId, GL20.GL_LINK_STATUS) == GL11.GL_FALSE)
+		{
+			System.err.println(GL20.glGetProgramInfoLog(programId, 1000));
+			System.exit(-1);
+		}
+
+		GL20.glDeleteShader(vertexShaderId);
+		GL20.glDeleteShader(fragmentShaderId);
+
+		return programId;
+	}
+}
@@ -0,0 +1,225 @@
+package Box3DDemo;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * Loads textures together with their complete mipmap chain and keeps the computed chains in a cache directory on disk.
+ *
+ * The cache files are named after the SHA-256 hash of the content of the image file. If the image didn't change since the
+ * last launch, the already converted and downsampled levels are read from the cache, so neither decoding nor downsampling is necessary.
+ */
+public class MipmapCache
+{
+	// Identifies a cache file. These are the ASCII characters "MIPC".
+	private static final int MAGIC = 0x4D495043;
+
+	// Has to be increased whenever the layout of the cache files or the results of the conversion change.
+	private static final int VERSION = 1;
+
+	// The size of the file header: magic, version, format, type, alignment and level count.
+	private static final int HEADER_SIZE = 6 * 4;
+
+	// The size of the header of a single level: width, height and size in bytes.
+	private static final int LEVEL_HEADER_SIZE = 3 * 4;
+
+	// The directory the cache files are stored in.
+	private final File directory;
+
+	// Statistics. They are atomic, so the cache can be used by a loader thread while another thread reads them.
+	private final AtomicInteger hitCount = new AtomicInteger();
+	private final AtomicInteger missCount = new AtomicInteger();
+
+	public MipmapCache(File directory)
+	{
+		this.directory = directory;
+	}
+
+	/**
+	 * Returns all mipmap levels of the image, starting with the base level. Every level has to be freed.
+	 */
+	public TextureData[] load(File file) throws IOException
+	{
+		byte[] content = Files.readAllBytes(file.toPath());
+
+		File cacheFile = new File(this.directory, hash(content) + ".mips");
+
+		if(cacheFile.isFile())
+		{
+			TextureData[] levels = read(cacheFile);
+			if(levels != null)
+			{
+				this.hitCount.incrementAndGet();
+				return levels;
+			}
+		}
+
+		this.missCount.incrementAndGet();
+
+		BufferedImage image = ImageIO.read(new ByteArrayInputStream(content));
+
+		// ImageIO returns null instead of throwing an exception if no decoder is able to read the file.
+		if(image == null) throw new IOException("Unsupported image format: " + file);
+
+		TextureData[] levels = MipmapGenerator.generate(TextureLoader.load(image));
+
+		// A cache that can't be written only costs time on the next launch, so the texture is still returned.
+		try
+		{
+			write(cacheFile, levels);
+		} catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+
+		return levels;
+	}
+
+	/**
+	 * Returns how often the mipmap chain was found in the cache.
+	 */
+	public int getHitCount()
+	{
+		return this.hitCount.get();
+	}
+
+	/**
+	 * Returns how often the mipmap chain had to be computed.
+	 */
+	public int getMissCount()
+	{
+		return this.missCount.get();
+	}
+
+	/**
+	 * Reads the levels from the cache file. Returns null if the file is outdated or broken.
+	 */
+	private static TextureData[] read(File cacheFile) throws IOException
+	{
+		try(FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ))
+		{
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			if(!readFully(channel, header) || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) return null;
+
+			int format = header.getInt(8);
+			int type = header.getInt(12);
+			int alignment = header.getInt(16);
+			int levelCount = header.getInt(20);
+
+			TextureData[] levels = new TextureData[levelCount];
+
+			ByteBuffer levelHeader = ByteBuffer.allocate(LEVEL_HEADER_SIZE);
+
+			for(int i = 0; i < levelCount; i++)
+			{
+				levelHeader.clear();
+
+				ByteBuffer pixels = null;
+				if(readFully(channel, levelHeader))
+				{
+					pixels = MemoryUtil.memAlloc(levelHeader.getInt(8));
+					if(!readFully(channel, pixels))
+					{
+						MemoryUtil.memFree(pixels);
+						pixels = null;
+					}
+				}
+
+				if(pixels == null)
+				{
+					for(int j = 0; j < i; j++)
+						levels[j].free();
+
+					return null;
+				}
+
+				pixels.flip();
+
+				levels[i] = new TextureData(levelHeader.getInt(0), levelHeader.getInt(4), format, type, alignment, pixels);
+			}
+
+			return levels;
+		}
+	}
+
+	/**
+	 * Writes the levels into the cache file. The data is written into a temporary file first,
+	 * so an interrupted write never leaves a broken cache file behind.
+	 */
+	private void write(File cacheFile, TextureData[] levels) throws IOException
+	{
+		Files.createDirectories(this.directory.toPath());
+
+		Path temporaryFile = Files.createTempFile(this.directory.toPath(), cacheFile.getName(), ".tmp");
+
+		try(FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.WRITE))
+		{
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putInt(VERSION).putInt(levels[0].format).putInt(levels[0].type).putInt(levels[0].alignment).putInt(levels.length);
+			header.flip();
+			writeFully(channel, header);
+
+			ByteBuffer levelHeader = ByteBuffer.allocate(LEVEL_HEADER_SIZE);
+
+			for(TextureData level : levels)
+			{
+				levelHeader.clear();
+				levelHeader.putInt(level.width).putInt(level.height).putInt(level.pixels.remaining());
+				levelHeader.flip();
+				writeFully(channel, levelHeader);
+
+				// Writing a duplicate leaves the position of the pixel buffer untouched.
+				writeFully(channel, level.pixels.duplicate());
+			}
+		}
+
+		Files.move(temporaryFile, cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static boolean readFully(FileChannel channel, ByteBuffer buffer) throws IOException
+	{
+		while(buffer.hasRemaining())
+			if(channel.read(buffer) < 0) return false;
+
+		return true;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException
+	{
+		while(buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	private static String hash(byte[] content)
+	{
+		try
+		{
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+
+			StringBuilder builder = new StringBuilder(digest.length * 2);
+			for(byte b : digest)
+				builder.append(String.format("%02x", b));
+
+			return builder.toString();
+		} catch (NoSuchAlgorithmException e)
+		{
+			// Every java platform is required to support SHA-256.
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,375 @@
+package Box3DDemo;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.joml.Matrix4fc;
+import org.lwjgl.opengl.ARBMultiDrawIndirect;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL40;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * Draws many static meshes with a few draw calls.
+ *
+ * All meshes are packed into one shared vertex buffer and one shared index buffer behind a single VAO, so switching between
+ * meshes doesn't need any binds. Every draw is recorded as a DrawElementsIndirectCommand in an off-heap buffer, sorted into
+ * the bucket of its material. Each bucket is then submitted with one glMultiDrawElementsIndirect call.
+ *
+ * The model matrix of a draw is stored in an InstanceBuffer. The base instance of its command points to the matrix, so the
+ * mat4 attribute following the vertex attributes reads the right matrix for every draw. This needs no gl_DrawID, which the
+ * OpenGL 4.2 context doesn't have. Without GL_ARB_multi_draw_indirect the commands of a bucket are submitted one by one
+ * with glDrawElementsIndirect, which still saves the binds and uniform uploads between the draws.
+ */
+public class MultiDrawRenderer
+{
+	// The size of a DrawElementsIndirectCommand: count, instanceCount, firstIndex, baseVertex and baseInstance.
+	private static final int COMMAND_SIZE = 5 * 4;
+
+	// The number of floats per attribute, e.g. 3 for the positions and 2 for the texture coordinates.
+	private final int[] attributeSizes;
+
+	// The number of floats per vertex.
+	private final int vertexSize;
+
+	// The meshes added before build(): the vertex data and the indices.
+	private final List<float[]> meshVertices = new ArrayList<>();
+	private final List<int[]> meshIndices = new ArrayList<>();
+
+	// The index count, the first index and the base vertex of each mesh in the shared buffers.
+	private int[] meshIndexCounts;
+	private int[] meshFirstIndices;
+	private int[] meshBaseVertices;
+
+	private int vaoId;
+	private int vertexBufferId;
+	private int indexBufferId;
+	private int commandBufferId;
+
+	private InstanceBuffer instanceBuffer;
+
+	// The recorded commands of each bucket, COMMAND_SIZE / 4 ints per command.
+	private final int[][] bucketCommands;
+	private final int[] bucketCommandCounts;
+
+	// The position of the first command of each bucket in the command buffer after upload().
+	private final int[] bucketOffsets;
+
+	// The commands of all buckets, written into the command buffer by upload().
+	private ByteBuffer commands;
+
+	// The number of draws recorded since begin(), which is also the base instance of the next draw.
+	private int drawCount;
+
+	private final boolean multiDrawIndirect;
+
+	// Statistics.
+	private int drawCallCount;
+
+	/**
+	 * Creates an empty renderer with the vertex format and the number of material buckets. The vertex attributes get the
+	 * locations 0 to attributeSizes.length - 1, the model matrix takes the four locations after them.
+	 */
+	public MultiDrawRenderer(int[] attributeSizes, int bucketCount)
+	{
+		this.attributeSizes = attributeSizes;
+		this.vertexSize = Arrays.stream(attributeSizes).sum();
+
+		this.bucketCommands = new int[bucketCount][16 * 5];
+		this.bucketCommandCounts = new int[bucketCount];
+		this.bucketOffsets = new int[bucketCount];
+
+		this.multiDrawIndirect = GL.getCapabilities().GL_ARB_multi_draw_indirect;
+	}
+
+	/**
+	 * Adds a mesh given as triangle list without indices. Vertices with the same data are merged, so every corner is only stored once.
+	 *
+	 * @return The id of the mesh.
+	 */
+	public int addMesh(float[] vertices)
+	{
+		int vertexCount = vertices.length / this.vertexSize;
+
+		float[] packedVertices = new float[vertices.length];
+		int[] indices = new int[vertexCount];
+		int uniqueCount = 0;
+
+		// An open addressing hash table holding the indices of the unique vertices, -1 for empty slots.
+		// The vertices are hashed and compared by the bits of their floats, so nothing is boxed.
+		int[] table = new int[Integer.highestOneBit(Math.max(vertexCount, 1)) * 4];
+		Arrays.fill(table, -1);
+
+		for(int i = 0; i < vertexCount; i++)
+		{
+			int offset = i * this.vertexSize;
+
+			int hash = 1;
+			for(int j = 0; j < this.vertexSize; j++)
+				hash = hash * 31 + Float.floatToIntBits(vertices[offset + j]);
+
+			// Spreading the high bits into the low bits, which select the slot.
+			hash ^= hash >>> 16;
+
+			int slot = hash & (table.length - 1);
+			while(table[slot] != -1 && !isEqual(vertices, offset, packedVertices, table[slot] * this.vertexSize))
+				slot = (slot + 1) & (table.length - 1);
+
+			if(table[slot] == -1)
+			{
+				table[slot] = uniqueCount;
+				System.arraycopy(vertices, offset, packedVertices, uniqueCount * this.vertexSize, this.vertexSize);
+				uniqueCount++;
+			}
+
+			indices[i] = table[slot];
+		}
+
+		return addMesh(Arrays.copyOf(packedVertices, uniqueCount * this.vertexSize), indices);
+	}
+
+	/**
+	 * Returns true if the vertices starting at the offsets have the same bits in all floats.
+	 */
+	private boolean isEqual(float[] vertices, int offset, float[] otherVertices, int otherOffset)
+	{
+		for(int j = 0; j < this.vertexSize; j++)
+			if(Float.floatToIntBits(vertices[offset + j]) != Float.floatToIntBits(otherVertices[otherOffset + j])) return false;
+
+		return true;
+	}
+
+	/**
+	 * Adds an indexed mesh. The indices start at 0 for the first vertex of the mesh.
+	 *
+	 * @return The id of the mesh.
+	 */
+	public int addMesh(float[] vertices, int[] indices)
+	{
+		this.meshVertices.add(vertices);
+		this.meshIndices.add(indices);
+
+		return this.meshVertices.size() - 1;
+	}
+
+	/**
+	 * Uploads all meshes into the shared buffers and creates the VAO. Meshes can't be added afterwards.
+	 */
+	public void build()
+	{
+		int meshCount = this.meshVertices.size();
+
+		this.meshIndexCounts = new int[meshCount];
+		this.meshFirstIndices = new int[meshCount];
+		this.meshBaseVertices = new int[meshCount];
+
+		int vertexCount = 0;
+		int indexCount = 0;
+
+		for(int mesh = 0; mesh < meshCount; mesh++)
+		{
+			this.meshIndexCounts[mesh] = this.meshIndices.get(mesh).length;
+			this.meshFirstIndices[mesh] = indexCount;
+			this.meshBaseVertices[mesh] = vertexCount;
+
+			vertexCount += this.meshVertices.get(mesh).length / this.vertexSize;
+			indexCount += this.meshIndices.get(mesh).length;
+		}
+
+		// The indices of each mesh stay relative to its first vertex, the base vertex of the command adds the offset.
+		FloatBuffer vertexBuffer = MemoryUtil.memAllocFloat(vertexCount * this.vertexSize);
+		IntBuffer indexBuffer = MemoryUtil.memAllocInt(indexCount);
+
+		for(int mesh = 0; mesh < meshCount; mesh++)
+		{
+			vertexBuffer.put(this.meshVertices.get(mesh));
+			indexBuffer.put(this.meshIndices.get(mesh));
+		}
+
+		vertexBuffer.flip();
+		indexBuffer.flip();
+
+		this.vaoId = GL30.glGenVertexArrays();
+		GL30.glBindVertexArray(this.vaoId);
+
+		this.vertexBufferId = GL15.glGenBuffers();
+		GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, this.vertexBufferId);
+		GL15.glBufferData(GL15.GL_ARRAY_BUFFER, vertexBuffer, GL15.GL_STATIC_DRAW);
+
+		int offset = 0;
+		for(int attribute = 0; attribute < this.attributeSizes.length; attribute++)
+		{
+			GL20.glVertexAttribPointer(attribute, this.attributeSizes[attribute], GL11.GL_FLOAT, false, this.vertexSize * 4, offset * 4);
+			GL20.glEnableVertexAttribArray(attribute);
+
+			offset += this.attributeSizes[attribute];
+		}
+
+		// The index buffer binding is part of the VAO.
+		this.indexBufferId = GL15.glGenBuffers();
+		GL15.glBindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, this.indexBufferId);
+		GL15.glBufferData(GL15.GL_ELEMENT_ARRAY_BUFFER, indexBuffer, GL15.GL_STATIC_DRAW);
+
+		GL30.glBindVertexArray(0);
+		GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+
+		MemoryUtil.memFree(vertexBuffer);
+		MemoryUtil.memFree(indexBuffer);
+
+		this.instanceBuffer = new InstanceBuffer(1024);
+		this.instanceBuffer.attach(this.vaoId, this.attributeSizes.length);
+
+		this.commandBufferId = GL15.glGenBuffers();
+		this.commands = MemoryUtil.memAlloc(1024 * COMMAND_SIZE);
+
+		this.meshVertices.clear();
+		this.meshIndices.clear();
+	}
+
+	/**
+	 * Removes the draws of the previous frame.
+	 */
+	public void begin()
+	{
+		Arrays.fill(this.bucketCommandCounts, 0);
+
+		this.instanceBuffer.clear();
+		this.drawCount = 0;
+	}
+
+	/**
+	 * Records a draw of the mesh with the model matrix in the bucket.
+	 */
+	public void draw(int mesh, int bucket, Matrix4fc modelMatrix)
+	{
+		int count = this.bucketCommandCounts[bucket];
+		int[] commands = this.bucketCommands[bucket];
+
+		if((count + 1) * 5 > commands.length)
+			this.bucketCommands[bucket] = commands = Arrays.copyOf(commands, commands.length * 2);
+
+		commands[count * 5] = this.meshIndexCounts[mesh];
+		commands[count * 5 + 1] = 1;
+		commands[count * 5 + 2] = this.meshFirstIndices[mesh];
+		commands[count * 5 + 3] = this.meshBaseVertices[mesh];
+		commands[count * 5 + 4] = this.drawCount;
+
+		this.bucketCommandCounts[bucket] = count + 1;
+
+		this.instanceBuffer.put(modelMatrix);
+		this.drawCount++;
+	}
+
+	/**
+	 * Uploads the commands of all buckets and the model matrices of all draws. This has to be called once after the draws
+	 * of a frame are recorded and before the first bucket is submitted.
+	 */
+	public void upload()
+	{
+		if(this.drawCount * COMMAND_SIZE > this.commands.capacity())
+			this.commands = MemoryUtil.memRealloc(this.commands, Math.max(this.drawCount * COMMAND_SIZE, this.commands.capacity() * 2));
+
+		IntBuffer commandInts = this.commands.asIntBuffer();
+
+		for(int bucket = 0; bucket < this.bucketCommands.length; bucket++)
+		{
+			this.bucketOffsets[bucket] = commandInts.position() / 5;
+			commandInts.put(this.bucketCommands[bucket], 0, this.bucketCommandCounts[bucket] * 5);
+		}
+
+		this.commands.limit(this.drawCount * COMMAND_SIZE);
+
+		GL15.glBindBuffer(GL40.GL_DRAW_INDIRECT_BUFFER, this.commandBufferId);
+		GL15.glBufferData(GL40.GL_DRAW_INDIRECT_BUFFER, this.commands, GL15.GL_STREAM_DRAW);
+		GL15.glBindBuffer(GL40.GL_DRAW_INDIRECT_BUFFER, 0);
+
+		this.commands.clear();
+
+		this.instanceBuffer.upload();
+
+		this.drawCallCount = 0;
+	}
+
+	/**
+	 * Binds the VAO and the command buffer. This has to be called before the buckets are submitted.
+	 */
+	public void bind()
+	{
+		GL30.glBindVertexArray(this.vaoId);
+		GL15.glBindBuffer(GL40.GL_DRAW_INDIRECT_BUFFER, this.commandBufferId);
+	}
+
+	/**
+	 * Draws all meshes of the bucket. The program and the textures of the material have to be bound.
+	 */
+	public void submit(int bucket)
+	{
+		int count = this.bucketCommandCounts[bucket];
+		if(count == 0) return;
+
+		long offset = (long)this.bucketOffsets[bucket] * COMMAND_SIZE;
+
+		if(this.multiDrawIndirect)
+		{
+			ARBMultiDrawIndirect.glMultiDrawElementsIndirect(GL11.GL_TRIANGLES, GL11.GL_UNSIGNED_INT, offset, count, 0);
+			this.drawCallCount++;
+		}
+		else
+		{
+			for(int i = 0; i < count; i++)
+				GL40.glDrawElementsIndirect(GL11.GL_TRIANGLES, GL11.GL_UNSIGNED_INT, offset + (long)i * COMMAND_SIZE);
+
+			this.drawCallCount += count;
+		}
+	}
+
+	/**
+	 * Unbinds the VAO and the command buffer.
+	 */
+	public void unbind()
+	{
+		GL15.glBindBuffer(GL40.GL_DRAW_INDIRECT_BUFFER, 0);
+		GL30.glBindVertexArray(0);
+	}
+
+	/**
+	 * Returns the number of draw calls issued since the last upload.
+	 */
+	public int getDrawCallCount()
+	{
+		return this.drawCallCount;
+	}
+
+	/**
+	 * Returns the number of draws recorded since the last begin().
+	 */
+	public int getDrawCount()
+	{
+		return this.drawCount;
+	}
+
+	public boolean isMultiDrawIndirectSupported()
+	{
+		return this.multiDrawIndirect;
+	}
+
+	public void delete()
+	{
+		GL30.glDeleteVertexArrays(this.vaoId);
+		GL15.glDeleteBuffers(this.vertexBufferId);
+		GL15.glDeleteBuffers(this.indexBufferId);
+		GL15.glDeleteBuffers(this.commandBufferId);
+
+		this.instanceBuffer.delete();
+
+		MemoryUtil.memFree(this.commands);
+	}
+}
@@ -0,0 +1,414 @@
+package Box3DDemo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL12;
+import org.lwjgl.opengl.GL13;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL42;
+
+/**
+ * A texture stored in a simple binary format that can be handed to OpenGL without decoding.
+ *
+ * The file consists of a header followed by the pixel data of all mipmap levels:
+ * <pre>
+ * int    magic        "TEXF"
+ * int    version
+ * int    format       one of the FORMAT_* constants, describes the order of the components or the block compression
+ * int    width        width of the base level in pixels
+ * int    height       height of the base level in pixels
+ * int    layerCount   1 for a 2D texture, more for an array texture
+ * int    levelCount   amount of mipmap levels, 1 if there are no mipmaps
+ * long[] offsets      for each level the offset of its pixel data in the file
+ * long[] sizes        for each level the size of its pixel data in bytes
+ * </pre>
+ * All values are stored in little endian byte order. The pixels of all layers of a level are stored
+ * one after another, so all layers of a level can be uploaded with a single call.
+ *
+ * Block compressed levels contain the blocks written by the BlockCompressor instead of pixels.
+ *
+ * Opening a file maps it into memory with FileChannel.map. The mapped buffers are passed to OpenGL directly,
+ * so the pixel data is never copied into the java heap.
+ */
+public class TextureFile
+{
+	// Identifies a texture file. These are the ASCII characters "TEXF".
+	public static final int MAGIC = 0x46584554;
+
+	// Has to be increased whenever the layout of the file changes. Version 2 added the block compressed formats.
+	public static final int VERSION = 2;
+
+	// The components are stored as the bytes A, B, G, R.
+	public static final int FORMAT_ABGR8 = 0;
+
+	// The components are stored as the bytes B, G, R, A.
+	public static final int FORMAT_BGRA8 = 1;
+
+	// The components are stored as the bytes A, R, G, B.
+	public static final int FORMAT_ARGB8 = 2;
+
+	// The components are stored as the bytes B, G, R.
+	public static final int FORMAT_BGR8 = 3;
+
+	// The levels are stored as BC1 blocks.
+	public static final int FORMAT_BC1 = 4;
+
+	// The levels are stored as BC3 blocks.
+	public static final int FORMAT_BC3 = 5;
+
+	// The levels are stored as BC7 blocks.
+	public static final int FORMAT_BC7 = 6;
+
+	// The size of the fixed part of the header.
+	private static final int HEADER_SIZE = 7 * 4;
+
+	// The width of the base level in pixels.
+	public final int width;
+
+	// The height of the base level in pixels.
+	public final int height;
+
+	// The amount of layers.
+	public final int layerCount;
+
+	// The amount of mipmap levels.
+	public final int levelCount;
+
+	// The order of the components in the file as one of the FORMAT_* constants.
+	public final int format;
+
+	// The mapped content of the file.
+	private final MappedByteBuffer content;
+
+	// The offsets and sizes of the levels in the file.
+	private final long[] levelOffsets;
+	private final long[] levelSizes;
+
+	private TextureFile(MappedByteBuffer content)
+	{
+		this.content = content;
+
+		content.order(ByteOrder.LITTLE_ENDIAN);
+
+		if(content.getInt(0) != MAGIC) throw new IllegalArgumentException("Not a texture file.");
+		if(content.getInt(4) != VERSION) throw new IllegalArgumentException("Unsupported texture file version " + content.getInt(4) + ".");
+
+		this.format = content.getInt(8);
+		if(this.format < FORMAT_ABGR8 || this.format > FORMAT_BC7) throw new IllegalArgumentException("Unsupported texture file format " + this.format + ".");
+
+		this.width = content.getInt(12);
+		this.height = content.getInt(16);
+		this.layerCount = content.getInt(20);
+		this.levelCount = content.getInt(24);
+
+		this.levelOffsets = new long[this.levelCount];
+		this.levelSizes = new long[this.levelCount];
+
+		for(int level = 0; level < this.levelCount; level++)
+		{
+			this.levelOffsets[level] = content.getLong(HEADER_SIZE + level * 8);
+			this.levelSizes[level] = content.getLong(HEADER_SIZE + (this.levelCount + level) * 8);
+		}
+	}
+
+	/**
+	 * Maps the texture file into memory.
+	 */
+	public static TextureFile open(File file) throws IOException
+	{
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			// The mapping stays valid after the channel is closed.
+			MappedByteBuffer content = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			try
+			{
+				return new TextureFile(content);
+			} catch (IllegalArgumentException e)
+			{
+				throw new IOException("Cannot read " + file + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Writes the texture into a file. The levels array contains the mipmap levels of every layer,
+	 * i.e. levels[layer][level]. All layers must have the same size, the same number of levels and the pixel layout of the first layer.
+	 * TextureConverter converts layers with different layouts before writing them.
+	 */
+	public static void write(File file, TextureData[][] levels) throws IOException
+	{
+		int layerCount = levels.length;
+		int levelCount = levels[0].length;
+
+		TextureData base = levels[0][0];
+
+		for(int layer = 0; layer < layerCount; layer++)
+		{
+			if(levels[layer].length != levelCount)
+				throw new IOException("All layers of a texture file must have the same number of mipmap levels.");
+
+			for(int level = 0; level < levelCount; level++)
+			{
+				TextureData data = levels[layer][level];
+
+				if(data.width != levels[0][level].width || data.height != levels[0][level].height)
+					throw new IOException("All layers of a texture file must have the same size, layer " + layer + " is " + data.width + "x" + data.height
+							+ " instead of " + levels[0][level].width + "x" + levels[0][level].height + ".");
+
+				// The header stores a single layout for all layers.
+				if(data.format != base.format || data.type != base.type)
+					throw new IllegalArgumentException("Layer " + layer + " has another pixel layout than the first layer.");
+			}
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + levelCount * 16).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC).putInt(VERSION).putInt(getFormat(base)).putInt(base.width).putInt(base.height).putInt(layerCount).putInt(levelCount);
+
+		long offset = header.capacity();
+		for(int level = 0; level < levelCount; level++)
+		{
+			header.putLong(offset);
+			offset += (long)levels[0][level].pixels.remaining() * layerCount;
+		}
+
+		for(int level = 0; level < levelCount; level++)
+			header.putLong((long)levels[0][level].pixels.remaining() * layerCount);
+
+		header.flip();
+
+		// The data is written into a temporary file first, so an interrupted write never leaves a broken file behind.
+		Path directory = file.getAbsoluteFile().getParentFile().toPath();
+		Path temporaryFile = Files.createTempFile(directory, file.getName(), ".tmp");
+
+		try(FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.WRITE))
+		{
+			writeFully(channel, header);
+
+			for(int level = 0; level < levelCount; level++)
+				for(int layer = 0; layer < layerCount; layer++)
+				{
+					TextureData data = levels[layer][level];
+
+					// Writing a duplicate leaves the position of the pixel buffer untouched.
+					writeFully(channel, data.pixels.duplicate());
+				}
+		} catch (IOException e)
+		{
+			Files.deleteIfExists(temporaryFile);
+			throw e;
+		}
+
+		Files.move(temporaryFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Returns true if the levels are stored as compressed blocks instead of pixels.
+	 */
+	public boolean isCompressed()
+	{
+		return getCompression() != BlockCompressor.NONE;
+	}
+
+	/**
+	 * Returns the block compression of the file as one of the compression constants of the BlockCompressor.
+	 */
+	public int getCompression()
+	{
+		switch(this.format)
+		{
+			case FORMAT_BC1: return BlockCompressor.BC1;
+			case FORMAT_BC3: return BlockCompressor.BC3;
+			case FORMAT_BC7: return BlockCompressor.BC7;
+			default: return BlockCompressor.NONE;
+		}
+	}
+
+	/**
+	 * Returns the OpenGL internal format for the texture. Uncompressed files are stored as GL_RGBA8.
+	 */
+	public int getGLInternalFormat()
+	{
+		return isCompressed() ? BlockCompressor.getGLInternalFormat(getCompression()) : GL11.GL_RGBA8;
+	}
+
+	/**
+	 * Returns the OpenGL pixel format matching the order of the components in the file.
+	 */
+	public int getGLFormat()
+	{
+		switch(this.format)
+		{
+			case FORMAT_ABGR8: return GL11.GL_RGBA;
+			case FORMAT_BGRA8: return GL12.GL_BGRA;
+			case FORMAT_ARGB8: return GL12.GL_BGRA;
+			case FORMAT_BGR8: return GL12.GL_BGR;
+			default: throw new IllegalStateException("Unknown format " + this.format + ".");
+		}
+	}
+
+	/**
+	 * Returns the OpenGL pixel type matching the order of the components in the file.
+	 * The packed types are read as integers in native byte order, so the type depends on the platform.
+	 */
+	public int getGLType()
+	{
+		boolean isLittleEndian = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+		switch(this.format)
+		{
+			case FORMAT_ABGR8: return isLittleEndian ? GL12.GL_UNSIGNED_INT_8_8_8_8 : GL12.GL_UNSIGNED_INT_8_8_8_8_REV;
+			case FORMAT_BGRA8: return GL11.GL_UNSIGNED_BYTE;
+			case FORMAT_ARGB8: return isLittleEndian ? GL12.GL_UNSIGNED_INT_8_8_8_8 : GL12.GL_UNSIGNED_INT_8_8_8_8_REV;
+			case FORMAT_BGR8: return GL11.GL_UNSIGNED_BYTE;
+			default: throw new IllegalStateException("Unknown format " + this.format + ".");
+		}
+	}
+
+	/**
+	 * Returns the row alignment of the pixel data in bytes.
+	 */
+	public int getAlignment()
+	{
+		return this.format == FORMAT_BGR8 ? 1 : 4;
+	}
+
+	/**
+	 * Returns the pixel data of all layers of the mipmap level. The buffer is a view into the mapped file.
+	 */
+	public ByteBuffer getLevel(int level)
+	{
+		ByteBuffer buffer = this.content.duplicate();
+		buffer.position((int)this.levelOffsets[level]);
+		buffer.limit((int)(this.levelOffsets[level] + this.levelSizes[level]));
+
+		return buffer.slice();
+	}
+
+	/**
+	 * Uploads all mipmap levels of the first layer into the 2D texture currently bound to the target.
+	 * Compressed blocks are handed to OpenGL as they are, so they stay compressed in video memory.
+	 */
+	public void upload2D(int target)
+	{
+		GL11.glPixelStorei(GL11.GL_UNPACK_ALIGNMENT, getAlignment());
+
+		for(int level = 0; level < this.levelCount; level++)
+		{
+			ByteBuffer pixels = getLevel(level);
+			pixels.limit(pixels.capacity() / this.layerCount);
+
+			if(isCompressed())
+				GL13.glCompressedTexImage2D(target, level, getGLInternalFormat(), getLevelWidth(level), getLevelHeight(level), 0, pixels);
+			else
+				GL11.glTexImage2D(target, level, getGLInternalFormat(), getLevelWidth(level), getLevelHeight(level), 0, getGLFormat(), getGLType(), pixels);
+		}
+
+		// Without mipmaps the texture would be incomplete if more levels than the stored ones are expected.
+		GL11.glTexParameteri(target, GL12.GL_TEXTURE_MAX_LEVEL, this.levelCount - 1);
+
+		GL11.glPixelStorei(GL11.GL_UNPACK_ALIGNMENT, 4);
+	}
+
+	/**
+	 * Allocates immutable storage for all layers and mipmap levels in the array texture currently bound to
+	 * the target and uploads the pixel data. Every level is uploaded with a single call for all layers.
+	 */
+	public void uploadArray(int target)
+	{
+		GL42.glTexStorage3D(target, this.levelCount, getGLInternalFormat(), this.width, this.height, this.layerCount);
+
+		GL11.glPixelStorei(GL11.GL_UNPACK_ALIGNMENT, getAlignment());
+
+		for(int level = 0; level < this.levelCount; level++)
+		{
+			if(isCompressed())
+				GL13.glCompressedTexSubImage3D(target, level, 0, 0, 0, getLevelWidth(level), getLevelHeight(level), this.layerCount, getGLInternalFormat(), getLevel(level));
+			else
+				GL12.glTexSubImage3D(target, level, 0, 0, 0, getLevelWidth(level), getLevelHeight(level), this.layerCount, getGLFormat(), getGLType(), getLevel(level));
+		}
+
+		GL11.glPixelStorei(GL11.GL_UNPACK_ALIGNMENT, 4);
+	}
+
+	/**
+	 * Returns the width of the mipmap level in pixels.
+	 */
+	public int getLevelWidth(int level)
+	{
+		return Math.max(1, this.width >> level);
+	}
+
+	/**
+	 * Returns the height of the mipmap level in pixels.
+	 */
+	public int getLevelHeight(int level)
+	{
+		return Math.max(1, this.height >> level);
+	}
+
+	/**
+	 * Returns the FORMAT_* constant describing the order of the components of the texture data in memory.
+	 * Compressed texture data holds the OpenGL internal format of its blocks as format.
+	 */
+	static int getFormat(TextureData data)
+	{
+		boolean isLittleEndian = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+		if(data.format == BlockCompressor.getGLInternalFormat(BlockCompressor.BC1)) return FORMAT_BC1;
+		if(data.format == BlockCompressor.getGLInternalFormat(BlockCompressor.BC3)) return FORMAT_BC3;
+		if(data.format == BlockCompressor.getGLInternalFormat(BlockCompressor.BC7)) return FORMAT_BC7;
+
+		if(data.format == GL11.GL_RGBA && data.type == (isLittleEndian ? GL12.GL_UNSIGNED_INT_8_8_8_8 : GL12.GL_UNSIGNED_INT_8_8_8_8_REV)) return FORMAT_ABGR8;
+		if(data.format == GL12.GL_BGRA && data.type == GL11.GL_UNSIGNED_BYTE) return FORMAT_BGRA8;
+		if(data.format == GL12.GL_BGR && data.type == GL11.GL_UNSIGNED_BYTE) return FORMAT_BGR8;
+
+		// Packed ARGB integers are stored as B, G, R, A in little endian and as A, R, G, B in big endian byte order.
+		if(data.format == GL12.GL_BGRA && data.type == GL12.GL_UNSIGNED_INT_8_8_8_8_REV) return isLittleEndian ? FORMAT_BGRA8 : FORMAT_ARGB8;
+
+		throw new IllegalArgumentException("Unsupported pixel layout.");
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException
+	{
+		while(buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	/**
+	 * Returns true if the texture file doesn't exist, is older than the source image or was written with another version of the format.
+	 */
+	public static boolean isOutdated(File source, File textureFile)
+	{
+		return !textureFile.isFile() || textureFile.lastModified() < source.lastModified() || readVersion(textureFile) != VERSION;
+	}
+
+	/**
+	 * Returns the version in the header of the texture file or -1 if the file can't be read or isn't a texture file.
+	 */
+	private static int readVersion(File textureFile)
+	{
+		try(FileChannel channel = FileChannel.open(textureFile.toPath(), StandardOpenOption.READ))
+		{
+			ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+			while(header.hasRemaining() && channel.read(header) != -1);
+
+			if(header.hasRemaining() || header.getInt(0) != MAGIC) return -1;
+
+			return header.getInt(4);
+		} catch (IOException e)
+		{
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package Box3DDemo;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+import javax.imageio.ImageIO;
+
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL12;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * Loads images into off-heap pixel buffers ready for the upload to OpenGL.
+ *
+ * Instead of copying every pixel into an int[] with BufferedImage.getRGB and reordering the components byte by byte,
+ * the loader copies the backing array of the decoded raster in one bulk operation and picks a pixel format and type
+ * that lets OpenGL read the components in the order the decoder produced them.
+ */
+public class TextureLoader
+{
+	/**
+	 * Decodes the image file and converts it into texture data.
+	 */
+	public static TextureData load(File file) throws IOException
+	{
+		BufferedImage image = ImageIO.read(file);
+
+		// ImageIO returns null instead of throwing an exception if no decoder is able to read the file.
+		if(image == null) throw new IOException("Unsupported image format: " + file);
+
+		return load(image);
+	}
+
+	/**
+	 * Converts the decoded image into texture data stored in a newly allocated off-heap buffer.
+	 */
+	public static TextureData load(BufferedImage image)
+	{
+		ByteBuffer buffer = MemoryUtil.memAlloc(getSize(image));
+
+		try
+		{
+			return load(image, buffer);
+		} catch (Throwable e)
+		{
+			// The buffer doesn't reach the caller if the conversion fails, so it has to be freed here.
+			MemoryUtil.memFree(buffer);
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the size in bytes of the pixel data the image is converted to.
+	 */
+	public static int getSize(BufferedImage image)
+	{
+		return image.getWidth() * image.getHeight() * (isPacked(image, BufferedImage.TYPE_3BYTE_BGR, 3) ? 3 : 4);
+	}
+
+	/**
+	 * Converts the decoded image into texture data stored in the given buffer, e.g. the mapped memory of a pixel buffer object.
+	 * The buffer has to provide at least getSize(image) bytes starting at its current position.
+	 * The returned texture data does not own the buffer, so free() must only be called if the buffer was allocated with MemoryUtil.
+	 */
+	public static TextureData load(BufferedImage image, ByteBuffer buffer)
+	{
+		int width = image.getWidth();
+		int height = image.getHeight();
+
+		WritableRaster raster = image.getRaster();
+
+		// Work on a view of the buffer, so the position and limit of the passed buffer stay untouched.
+		ByteBuffer target = buffer.slice().order(ByteOrder.nativeOrder());
+
+		if(isPacked(image, BufferedImage.TYPE_4BYTE_ABGR, 4))
+		{
+			// The components are stored as the bytes A, B, G, R. Read as a packed 32-bit integer in little endian byte order
+			// this is R, G, B, A from the most to the least significant byte, which is what GL_UNSIGNED_INT_8_8_8_8 expects.
+			// In big endian byte order the integer is reversed and GL_UNSIGNED_INT_8_8_8_8_REV reads it correctly.
+			byte[] data = ((DataBufferByte)raster.getDataBuffer()).getData();
+
+			target.put(data).flip();
+
+			int type = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? GL12.GL_UNSIGNED_INT_8_8_8_8 : GL12.GL_UNSIGNED_INT_8_8_8_8_REV;
+
+			return new TextureData(width, height, GL11.GL_RGBA, type, 4, target);
+		}
+
+		if(isPacked(image, BufferedImage.TYPE_3BYTE_BGR, 3))
+		{
+			// The components are stored as the bytes B, G, R. The rows are tightly packed,
+			// so the unpack alignment has to be reduced to a single byte.
+			byte[] data = ((DataBufferByte)raster.getDataBuffer()).getData();
+
+			target.put(data).flip();
+
+			return new TextureData(width, height, GL12.GL_BGR, GL11.GL_UNSIGNED_BYTE, 1, target);
+		}
+
+		if(isPacked(image, BufferedImage.TYPE_INT_ARGB, 1))
+		{
+			// The components are stored as packed ARGB integers. Copying them in native byte order
+			// and interpreting them with GL_UNSIGNED_INT_8_8_8_8_REV as BGRA needs no reordering at all.
+			int[] data = ((DataBufferInt)raster.getDataBuffer()).getData();
+
+			target.asIntBuffer().put(data);
+			target.limit(data.length * 4);
+
+			return new TextureData(width, height, GL12.GL_BGRA, GL12.GL_UNSIGNED_INT_8_8_8_8_REV, 4, target);
+		}
+
+		return loadRowByRow(image, target);
+	}
+
+	/**
+	 * Checks if the image is of the given type and its backing array contains exactly the pixels of the image,
+	 * so it can be copied as a whole. This is not the case if the raster is a view into a larger image.
+	 */
+	private static boolean isPacked(BufferedImage image, int type, int elementsPerPixel)
+	{
+		if(image.getType() != type) return false;
+
+		WritableRaster raster = image.getRaster();
+		if(raster.getParent() != null || raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0) return false;
+
+		return raster.getDataBuffer().getSize() == image.getWidth() * image.getHeight() * elementsPerPixel;
+	}
+
+	/**
+	 * Converts images with uncommon layouts (e.g. palette or grayscale images) by letting java convert them to ARGB.
+	 * Only a single row is converted at a time, so no int[] for the whole image is needed.
+	 */
+	private static TextureData loadRowByRow(BufferedImage image, ByteBuffer target)
+	{
+		int width = image.getWidth();
+		int height = image.getHeight();
+
+		int[] row = new int[width];
+
+		IntBuffer intBuffer = target.asIntBuffer();
+
+		for(int y = 0; y < height; y++)
+		{
+			image.getRGB(0, y, width, 1, row, 0, width);
+			intBuffer.put(row);
+		}
+
+		target.limit(width * height * 4);
+
+		return new TextureData(width, height, GL12.GL_BGRA, GL12.GL_UNSIGNED_INT_8_8_8_8_REV, 4, target);
+	}
+}
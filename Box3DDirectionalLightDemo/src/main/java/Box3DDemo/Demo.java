@@ -1,12 +1,13 @@
 package Box3DDemo;
 
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
-
-import javax.imageio.ImageIO;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.function.Consumer;
 
 import org.joml.Matrix4f;
 import org.joml.Vector3f;
@@ -15,11 +16,12 @@ import org.lwjgl.glfw.GLFW;
 import org.lwjgl.glfw.GLFWErrorCallback;
 import org.lwjgl.opengl.GL;
 import org.lwjgl.opengl.GL11;
-import org.lwjgl.opengl.GL13;
+import org.lwjgl.opengl.GL12;
 import org.lwjgl.opengl.GL15;
 import org.lwjgl.opengl.GL20;
 import org.lwjgl.opengl.GL30;
-import org.lwjgl.opengl.GL32;
+import org.lwjgl.opengl.GL31;
+import org.lwjgl.opengl.GL42;
 import org.lwjgl.system.MemoryUtil;
 
 /**
@@ -40,6 +42,68 @@ public class Demo
 	// The initial height of the window.
 	public static int HEIGHT = 600;
 	
+	// If true the mipmaps of the texture are computed on the cpu and cached on disk, otherwise the driver generates them.
+	public static boolean CPU_MIPMAPS = true;
+	
+	// The directory the computed mipmaps are cached in.
+	public static String MIPMAP_CACHE_DIRECTORY = "mipmapcache";
+	
+	// The directory the shader sources are read from instead of the classpath, if it exists. Changes to the files are applied while the demo is running.
+	public static String SHADER_DIRECTORY = "src/main/resources/shaders";
+	
+	// The directory the linked shader programs are cached in. Programs found in the cache don't have to be compiled again.
+	public static String PROGRAM_BINARY_CACHE_DIRECTORY = "programcache";
+	
+	// The number of cubes. The first ten are placed by hand, the others fill a grid behind them.
+	public static int CUBE_COUNT = 10;
+	
+	// If true all cubes are drawn with a single instanced draw call per pass, otherwise every cube is drawn on its own.
+	public static boolean INSTANCED_RENDERING = true;
+	
+	// If true the normal matrices of the cubes are computed once on the cpu instead of inverting the model matrix for every vertex in the vertex shader.
+	// Cubes that only rotate and scale uniformly skip the normal matrices and transform their normals with the model matrix.
+	public static boolean CPU_NORMAL_MATRICES = true;
+	
+	// If true the ambient light and all other lights are evaluated in a single pass, otherwise every light is added by a pass of its own.
+	public static boolean SINGLE_PASS_LIGHTING = true;
+	
+	// If true the cubes only write their albedo, normal and depth into a G-buffer and the lights are applied per pixel afterwards:
+	// the ambient and directional lights by a triangle covering the screen and every point light by a quad covering its range.
+	// This takes precedence over CLUSTERED_LIGHTING and SINGLE_PASS_LIGHTING.
+	public static boolean DEFERRED_SHADING = false;
+	
+	// If true the point lights are sorted into the clusters of a grid dividing the view frustum every frame and every pixel
+	// only evaluates the lights of its cluster. This takes precedence over SINGLE_PASS_LIGHTING.
+	public static boolean CLUSTERED_LIGHTING = false;
+	
+	// The number of point lights a cluster can hold. Further lights reaching the cluster are ignored by it.
+	public static int MAX_LIGHTS_PER_CLUSTER = 64;
+	
+	// The maximum number of directional lights and of point lights. The shaders are built with light arrays of this size.
+	// The Lights block has to fit into GL_MAX_UNIFORM_BLOCK_SIZE, which is at least 16 KB and holds 255 lights of each type.
+	public static int MAX_LIGHTS = 16;
+	
+	// The number of point lights placed in a circle in front of the camera.
+	public static int POINT_LIGHT_COUNT = 4;
+	
+	// If true the directional light casts shadows, rendered into a shadow map per cascade.
+	public static boolean SHADOWS = true;
+	
+	// The number of cascades the view frustum is split into for the shadows.
+	public static int SHADOW_CASCADES = 4;
+	
+	// The width and height of the shadow map of each cascade in texels.
+	public static int SHADOW_MAP_SIZE = 2048;
+	
+	// The distance from the camera up to which the cubes receive shadows.
+	public static float SHADOW_DISTANCE = 50.0f;
+	
+	// If true every state change is compared against the actual OpenGL state, which finds changes made past the state cache but is slow.
+	public static boolean STATE_CACHE_DEBUG = false;
+	
+	// The radius of the bounding sphere of a cube with an edge length of 1, half of its diagonal sqrt(3).
+	private static final float CUBE_BOUNDING_RADIUS = (float)Math.sqrt(3.0) / 2.0f;
+	
 	public static void main(String[] args) { new Demo().run(); }
 
 	public void run()
@@ -90,6 +154,12 @@ public class Demo
 		// Creating the OpenGL capabilities for this window.
 		GL.createCapabilities();
 		
+		// Let the driver compile the shaders on multiple threads, if it can.
+		ShaderProgram.enableParallelCompile();
+		
+		// The states are changed through the state cache, which skips the calls that would set a state to the value it already has.
+		GLStateCache stateCache = new GLStateCache(STATE_CACHE_DEBUG);
+		
 		/* ===========
 		 *  INIT CODE
 		 * =========== */
@@ -187,255 +257,302 @@ public class Demo
 		// deallocating the temporary buffer for the vertex data.
 		MemoryUtil.memFree(vertexBuffer);
 
-		// Generate an id for the shader program.
-		int ambientLightShaderProgramId = GL20.glCreateProgram();
-		
-		// Generate an id for the vertex shader.
-		int ambientLightVertexShaderId = GL20.glCreateShader(GL20.GL_VERTEX_SHADER);
-		
-		// Pass vertex shader source to the shader.
-		GL20.glShaderSource(ambientLightVertexShaderId, ""
-			+ "#version 400\n"
-			+ "in vec3 coords;\n"
-			+ "in vec2 texCoords;\n"
-			+ "out vec2 pass_texCoords;\n"
-			+ "uniform mat4 T_projection;\n"
-			+ "uniform mat4 T_view;\n"
-			+ "uniform mat4 T_model;\n"
-			+ "void main()\n"
-			+ "{\n"
-			+ "	gl_Position = T_projection * T_view * T_model * vec4(coords, 1.0);\n"
-			+ "	pass_texCoords = texCoords;\n"
-			+ "}"
-			);
-		
-		// Compile the vertex shader and check for errors.
-		GL20.glCompileShader(ambientLightVertexShaderId);
-		if(GL20.glGetShaderi(ambientLightVertexShaderId, GL20.GL_COMPILE_STATUS) == GL11.GL_FALSE)
+		Vector3f[] cubePositions = Arrays.copyOf(new Vector3f[] {
+		        new Vector3f( 0.0f,  0.0f,  0.0f),
+		        new Vector3f( 2.0f,  5.0f, -15.0f),
+		        new Vector3f(-1.5f, -2.2f, -2.5f),
+		        new Vector3f(-3.8f, -2.0f, -12.3f),
+		        new Vector3f( 2.4f, -0.4f, -3.5f),
+		        new Vector3f(-1.7f,  3.0f, -7.5f),
+		        new Vector3f( 1.3f, -2.0f, -2.5f),
+		        new Vector3f( 1.5f,  2.0f, -2.5f),
+		        new Vector3f( 1.5f,  0.2f, -1.5f),
+		        new Vector3f(-1.3f,  1.0f, -1.5f)
+		    }, CUBE_COUNT);
+		
+		// The additional cubes are placed 1.5 units apart in a cube shaped grid starting 20 units away from the camera.
+		int gridSize = (int)Math.ceil(Math.cbrt(CUBE_COUNT));
+		for(int i = 10; i < CUBE_COUNT; i++)
 		{
-			System.err.println(GL20.glGetShaderInfoLog(ambientLightVertexShaderId, 1000));
-			System.exit(-1);
+			cubePositions[i] = new Vector3f(
+					(i % gridSize - gridSize / 2) * 1.5f,
+					(i / gridSize % gridSize - gridSize / 2) * 1.5f,
+					-20.0f - i / (gridSize * gridSize) * 1.5f);
 		}
 		
-		// Generate an id for the fragment shader.
-		int ambientLightFragmentShaderId = GL20.glCreateShader(GL20.GL_FRAGMENT_SHADER);
-		
-		// Pass fragment shader source to the shader.
-		GL20.glShaderSource(ambientLightFragmentShaderId, ""
-			+ "#version 400\n"
-			+ "struct BaseLight {\n"
-			+ " vec3 color;\n"
-			+ " float intensity;\n"
-			+ "};\n"
-			+ "in vec2 pass_texCoords;\n"
-			+ "layout(location=0) out vec4 out_Color;\n"
-			+ "uniform BaseLight ambientLight;\n"
-			+ "uniform sampler2D diffuse;\n"
-			+ "void main()\n"
-			+ "{\n"
-			+ "	out_Color = texture(diffuse, pass_texCoords) * (vec4(ambientLight.color, 1.0) * ambientLight.intensity);\n"
-			+ "}"
-			);
-
-		// Compile the fragment shader and check for errors.
-		GL20.glCompileShader(ambientLightFragmentShaderId);
-		if(GL20.glGetShaderi(ambientLightFragmentShaderId, GL20.GL_COMPILE_STATUS) == GL11.GL_FALSE)
+		// The transforms of the cubes are kept in flat float arrays, with the id of each cube being its index.
+		// The model matrices are computed by the store, 16 floats per cube, and only again for cubes that moved.
+		TransformStore transforms = new TransformStore(cubePositions.length);
+		for(int i = 0; i < cubePositions.length; i++)
+			transforms.setPosition(transforms.create(), cubePositions[i].x, cubePositions[i].y, cubePositions[i].z);
+		
+		transforms.update();
+		float[] modelMatrices = transforms.getWorldMatrices();
+		
+		// The normals have to be transformed by the inverse transpose of the model matrix. Instead of inverting the model matrix
+		// for every vertex, the shaders either use the model matrix itself, if all cubes only rotate and scale uniformly,
+		// or the normal matrices computed once per cube.
+		String normalTransformDefine = null;
+		float[] normalMatrices = null;
+		
+		if(CPU_NORMAL_MATRICES)
 		{
-			System.err.println(GL20.glGetShaderInfoLog(ambientLightFragmentShaderId, 1000));
-			System.exit(-1);
+			if(NormalMatrices.isUniformScale(modelMatrices, cubePositions.length))
+			{
+				normalTransformDefine = "UNIFORM_SCALE";
+			}
+			else
+			{
+				normalTransformDefine = "NORMAL_MATRIX";
+				normalMatrices = new float[cubePositions.length * 9];
+				NormalMatrices.compute(modelMatrices, normalMatrices, cubePositions.length);
+			}
 		}
 		
-		// Attach the vertex and fragment shader to the shader program.
-		GL20.glAttachShader(ambientLightShaderProgramId, ambientLightVertexShaderId);
-		GL20.glAttachShader(ambientLightShaderProgramId, ambientLightFragmentShaderId);
-		
-		// Bind the VAO pointer for vertex positions to the shader input variable "coords".
-		GL20.glBindAttribLocation(ambientLightShaderProgramId, 0, "coords");
-		
-		// Bind the VAO pointer for vertex texture coordinates to the shader input variable "texCoords".
-		GL20.glBindAttribLocation(ambientLightShaderProgramId, 2, "texCoords");
-		
-		// Link the shader program together.
-		GL20.glLinkProgram(ambientLightShaderProgramId);
-		
-		// Validate the shader program.
-		GL20.glValidateProgram(ambientLightShaderProgramId);
-		
-		// Retrieve the locations for the uniform variables in the shader program to set their values later.
-		int ambientLightTextureUniformLocation = GL20.glGetUniformLocation(ambientLightShaderProgramId, "diffuse");
-		int ambientLightProjectionMatrixUniformLocation = GL20.glGetUniformLocation(ambientLightShaderProgramId, "T_projection");
-		int ambientLightViewMatrixUniformLocation = GL20.glGetUniformLocation(ambientLightShaderProgramId, "T_view");
-		int ambientLightModelMatrixUniformLocation = GL20.glGetUniformLocation(ambientLightShaderProgramId, "T_model");
-		int ambientLightColorUniformLocation =  GL20.glGetUniformLocation(ambientLightShaderProgramId, "ambientLight.color");
-		int ambientLightIntensityUniformLocation =  GL20.glGetUniformLocation(ambientLightShaderProgramId, "ambientLight.intensity");
-		
-		// Generate an id for the shader program.
-		int directionalLightShaderProgramId = GL20.glCreateProgram();
-		
-		// Generate an id for the vertex shader.
-		int directionalLightVertexShaderId = GL20.glCreateShader(GL20.GL_VERTEX_SHADER);
-		
-		// Pass vertex shader source to the shader.
-		GL20.glShaderSource(directionalLightVertexShaderId, ""
-			+ "#version 400\n"
-			+ "struct Camera {\n"
-			+ " vec3 position;\n"
-			+ " mat4 T_view;\n"
-			+ "};\n"
-			+ "in vec3 coords;\n"
-			+ "in vec2 texCoords;\n"
-			+ "in vec3 normal;\n"
-			+ "out vec2 pass_texCoords;\n"
-			+ "out Camera pass_camera;\n"
-			+ "out vec3 pass_normal;\n"
-			+ "uniform mat4 T_projection;\n"
-			+ "uniform mat4 T_model;\n"
-			+ "uniform Camera camera;\n"
-			+ "void main()\n"
-			+ "{\n"
-			+ "	gl_Position = T_projection * camera.T_view * T_model * vec4(coords, 1.0);\n"
-			+ "	pass_texCoords = texCoords;\n"
-			+ " pass_camera = camera;\n"
-			+ " pass_normal = mat3(transpose(inverse(T_model))) * normal;\n"
-			+ "}"
-			);
-				
-		// Compile the vertex shader and check for errors.
-		GL20.glCompileShader(directionalLightVertexShaderId);
-		if(GL20.glGetShaderi(directionalLightVertexShaderId, GL20.GL_COMPILE_STATUS) == GL11.GL_FALSE)
+		// The shader sources are read from the shader directory if it exists, so they can be edited while the demo is running.
+		// The structs shared by the shaders are declared once in their own files, which are included where they are needed.
+		File shaderDirectory = new File(SHADER_DIRECTORY);
+		ShaderPreprocessor shaderPreprocessor = new ShaderPreprocessor("shaders", shaderDirectory.isDirectory() ? shaderDirectory : null);
+		shaderPreprocessor.addDefine("MAX_LIGHTS=" + MAX_LIGHTS);
+		shaderPreprocessor.addDefine("SHADOW_CASCADES=" + SHADOW_CASCADES);
+		
+		// All lighting programs darken the first directional light where the shadow map is closer to the light.
+		if(SHADOWS) shaderPreprocessor.addDefine("SHADOWS");
+		
+		// All programs share the binary cache. A program is only compiled if the cache has no binary for its sources and the current driver.
+		ProgramBinaryCache programBinaryCache = new ProgramBinaryCache(new File(PROGRAM_BINARY_CACHE_DIRECTORY));
+		
+		// The ambient, the directional and the point light are permutations of the same light shader. Each light type is switched on by a define,
+		// so each program only contains the code of its light instead of branching at runtime. The FORWARD_LIGHTS permutation evaluates
+		// all lights at once by looping over the light arrays, the CLUSTERED_LIGHTS permutation only over the point lights of the cluster of the pixel.
+		// The attributes are bound to the locations of the pointers in the VAO: positions, normals and texture coordinates.
+		// The model matrices of the instances take the locations 3 to 6, one per column, the normal matrices the locations 7 to 9.
+		ShaderPermutations lightShaderPermutations = new ShaderPermutations(shaderPreprocessor, "light", "light.vertex.glsl", "light.fragment.glsl", programBinaryCache,
+				"coords", "normal", "texCoords", "T_model", null, null, null, "T_normal");
+		
+		// The GEOMETRY permutation writes the surfaces of the cubes into the G-buffer for deferred shading.
+		// The lights are then applied by the permutations of the deferred lighting shader, which read the G-buffer per pixel.
+		ShaderPermutations deferredLightingPermutations = new ShaderPermutations(shaderPreprocessor, "deferred", "deferred.vertex.glsl", "deferred.fragment.glsl", programBinaryCache);
+		
+		// The programs by the index they are referenced with in the sort keys of the render queue, followed by the deferred lighting programs.
+		int ambientLightProgram = 0;
+		int directionalLightProgram = 1;
+		int pointLightProgram = 2;
+		int forwardLightsProgram = 3;
+		int geometryProgram = 4;
+		int clusteredLightsProgram = 5;
+		int deferredLightsProgram = 6;
+		int pointLightQuadsProgram = 7;
+		int shadowCasterProgram = 8;
+		
+		String[] lightShaderDefines = { "AMBIENT_LIGHT", "DIRECTIONAL_LIGHT", "POINT_LIGHT", "FORWARD_LIGHTS", "GEOMETRY", "CLUSTERED_LIGHTS" };
+		ShaderProgram[] shaderPrograms = new ShaderProgram[lightShaderDefines.length + 3];
+		
+		// The program drawing the cubes in the base pass.
+		int baseProgram = DEFERRED_SHADING ? geometryProgram : CLUSTERED_LIGHTING ? clusteredLightsProgram : SINGLE_PASS_LIGHTING ? forwardLightsProgram : ambientLightProgram;
+		
+		// The programs are only submitted here. The driver compiles them while the texture is loaded and they are
+		// picked up by the first frame that finds them finished.
+		long shaderSubmitTime = System.nanoTime();
+		
+		try
 		{
-			System.err.println(GL20.glGetShaderInfoLog(directionalLightVertexShaderId, 1000));
-			System.exit(-1);
-		}
+			// Only the programs of the selected lighting are built.
+			for(int program : baseProgram != ambientLightProgram ? new int[] { baseProgram } : new int[] { ambientLightProgram, directionalLightProgram, pointLightProgram })
+			{
+				List<String> defines = new ArrayList<>();
+				defines.add(lightShaderDefines[program]);
 				
-		// Generate an id for the fragment shader.
-		int directionalLightFragmentShaderId = GL20.glCreateShader(GL20.GL_FRAGMENT_SHADER);
-		
-		// Pass fragment shader source to the shader.
-		GL20.glShaderSource(directionalLightFragmentShaderId, ""
-			+ "#version 400\n"
-			+ "struct Camera {\n"
-			+ " vec3 position;\n"
-			+ " mat4 T_view;\n"
-			+ "};\n"
-			+ "struct BaseLight {\n"
-			+ " vec3 color;\n"
-			+ " float intensity;\n"
-			+ "};\n"
-			+ "struct DirectionalLight {\n"
-			+ " BaseLight base;\n"
-			+ " vec3 direction;\n"
-			+ "};\n"
-			+ "in vec2 pass_texCoords;\n"
-			+ "in Camera pass_camera;\n"
-			+ "in vec3 pass_normal;\n"
-			+ "layout(location=0) out vec4 out_Color;\n"
-			+ "uniform sampler2D diffuse;\n"
-			+ "uniform DirectionalLight directionalLight;\n"
-			+ "void main()\n"
-			+ "{\n"
-			+ " vec3 nrm = normalize(pass_normal);\n"
-			+ " vec3 dirToLight = normalize(-directionalLight.direction);\n"
-			+ " float diffuseFactor = max(dot(nrm, dirToLight), 0.0f);\n"
-			+ "	out_Color = texture(diffuse, pass_texCoords) * (vec4(directionalLight.base.color, 1.0) * directionalLight.base.intensity * diffuseFactor);\n"
-			+ "}"
-			);
-
-		// Compile the fragment shader and check for errors.
-		GL20.glCompileShader(directionalLightFragmentShaderId);
-		if(GL20.glGetShaderi(directionalLightFragmentShaderId, GL20.GL_COMPILE_STATUS) == GL11.GL_FALSE)
+				// With instanced rendering the model matrix is a vertex attribute that changes per instance instead of a uniform.
+				if(INSTANCED_RENDERING) defines.add("INSTANCED");
+				
+				if(normalTransformDefine != null) defines.add(normalTransformDefine);
+				
+				shaderPrograms[program] = lightShaderPermutations.get(defines.toArray(new String[defines.size()]));
+			}
+			
+			if(DEFERRED_SHADING)
+			{
+				shaderPrograms[deferredLightsProgram] = deferredLightingPermutations.get();
+				shaderPrograms[pointLightQuadsProgram] = deferredLightingPermutations.get("POINT_LIGHT_QUADS");
+			}
+			
+			// The casters are always drawn instanced, from an instance buffer holding the casters of the cascades one after another.
+			if(SHADOWS) shaderPrograms[shadowCasterProgram] = lightShaderPermutations.get("SHADOW_CASTER", "INSTANCED");
+		} catch (IOException e)
 		{
-			System.err.println(GL20.glGetShaderInfoLog(directionalLightFragmentShaderId, 1000));
+			e.printStackTrace();
 			System.exit(-1);
 		}
-				
-		// Attach the vertex and fragment shader to the shader program.
-		GL20.glAttachShader(directionalLightShaderProgramId, directionalLightVertexShaderId);
-		GL20.glAttachShader(directionalLightShaderProgramId, directionalLightFragmentShaderId);
-			
-		// Bind the VAO pointer for vertex positions to the shader input variable "coords".
-		GL20.glBindAttribLocation(directionalLightShaderProgramId, 0, "coords");
 		
-		// Bind the VAO pointer for vertex normals to the shader input variable "normal".
-		GL20.glBindAttribLocation(directionalLightShaderProgramId, 1, "normal");
+		int textureId = GL11.glGenTextures();
 		
-		// Bind the VAO pointer for vertex texture coordinates to the shader input variable "texCoords".
-		GL20.glBindAttribLocation(directionalLightShaderProgramId, 2, "texCoords");
+		stateCache.bindTexture(0, GL11.GL_TEXTURE_2D, textureId);
+
+		// Use the mipmaps when the texture gets minified. Mipmaps are smaller versions of the texture. Boxes far away are textured
+		// with the level matching their size on the screen, which avoids aliasing and reads far less texels than the full size texture.
+		GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_LINEAR_MIPMAP_LINEAR);
+		GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_LINEAR);
 		
-		// Link the shader program together.
-		GL20.glLinkProgram(directionalLightShaderProgramId);
+		File textureFile = new File("test.png");
 		
-		// Validate the shader program.
-		GL20.glValidateProgram(directionalLightShaderProgramId);
+		MipmapCache mipmapCache = new MipmapCache(new File(MIPMAP_CACHE_DIRECTORY));
 		
-		// Retrieve the locations for the uniform variables in the shader program to set their values later.
-		int directionalLightTextureUniformLocation = GL20.glGetUniformLocation(directionalLightShaderProgramId, "diffuse");
-		int directionalLightProjectionMatrixUniformLocation = GL20.glGetUniformLocation(directionalLightShaderProgramId, "T_projection");
-		int directionalLightCameraPositionUniformLocation = GL20.glGetUniformLocation(directionalLightShaderProgramId, "camera.position");
-		int directionalLightCameraViewMatrixUniformLocation = GL20.glGetUniformLocation(directionalLightShaderProgramId, "camera.T_view");
-		int directionalLightModelMatrixUniformLocation = GL20.glGetUniformLocation(directionalLightShaderProgramId, "T_model");
-		int directionalLightColorUniformLocation = GL20.glGetUniformLocation(directionalLightShaderProgramId, "directionalLight.base.color");
-		int directionalLightIntensityUniformLocation = GL20.glGetUniformLocation(directionalLightShaderProgramId, "directionalLight.base.intensity");
-		int directionalLightDirectionUniformLocation = GL20.glGetUniformLocation(directionalLightShaderProgramId, "directionalLight.direction");
+		// Reads the image into off-heap buffers. This doesn't use OpenGL, so it also works on the thread reloading changed files.
+		Callable<TextureData[]> textureLoader = () -> {
+			// Read the image together with all its mipmap levels. The levels are computed once and
+			// read from the cache directory on later launches, as long as the image doesn't change.
+			if(CPU_MIPMAPS) return mipmapCache.load(textureFile);
+			
+			// The loader keeps the component order of the decoded image and tells OpenGL how to read it,
+			// so the pixels don't have to be converted one by one.
+			return new TextureData[] { TextureLoader.load(textureFile) };
+		};
+		
+		// Uploads the loaded levels into the texture, replacing its previous content.
+		Consumer<TextureData[]> textureUploader = textureLevels -> {
+			stateCache.bindTexture(0, GL11.GL_TEXTURE_2D, textureId);
+			
+			for(int level = 0; level < textureLevels.length; level++)
+			{
+				textureLevels[level].upload2D(GL11.GL_TEXTURE_2D, level, GL11.GL_RGBA8);
+				textureLevels[level].free();
+			}
+			
+			if(CPU_MIPMAPS)
+			{
+				// A smaller image has fewer levels. The remaining levels of the previous image must not be used.
+				GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL12.GL_TEXTURE_MAX_LEVEL, textureLevels.length - 1);
+			}
+			else
+			{
+				// Let the driver compute the mipmap levels from the base level.
+				GL30.glGenerateMipmap(GL11.GL_TEXTURE_2D);
+			}
+		};
 		
-		// Read the pixel data of an image manually.
-		BufferedImage texture = null;
 		try
 		{
-			texture = ImageIO.read(new File("test.png"));
-		} catch (IOException e)
+			textureUploader.accept(textureLoader.call());
+		} catch (Exception e)
 		{
 			e.printStackTrace();
 			System.exit(-1);
 		}
-
-		int textureWidth = texture.getWidth();
-		int textureHeight = texture.getHeight();
-		
-		int[] pixels = new int[textureWidth * textureHeight];
-		texture.getRGB(0, 0, textureWidth, textureHeight, pixels, 0, textureWidth);
-
-		ByteBuffer buffer = MemoryUtil.memAlloc(textureWidth * textureHeight * 4);
-
-		for(int y = 0; y < textureHeight; y++)
-			for(int x = 0; x < textureWidth; x++)
-			{
-				int pixel = pixels[y * textureWidth + x];
-				buffer.put((byte)((pixel >> 16) & 0xFF)); // Red component
-				buffer.put((byte)((pixel >> 8) & 0xFF)); // Green component
-				buffer.put((byte)(pixel & 0xFF)); // Blue component
-				buffer.put((byte)((pixel >> 24) & 0xFF)); //Alpha component
-			}
-
-		buffer.flip();
-		
-		int textureId = GL11.glGenTextures();
 		
-		GL11.glBindTexture(GL11.GL_TEXTURE_2D, textureId);
+		// Watch the image and the shader sources. Changed files are loaded on a worker thread and swapped in between two frames.
+		// Changed shaders are compiled in the background. If they don't compile, the error is printed and the previous program stays in use.
+		ResourceWatcher resourceWatcher = null;
+		try
+		{
+			resourceWatcher = new ResourceWatcher();
+			
+			resourceWatcher.watch(textureFile, textureLoader, textureUploader);
+			
+			// Any source can be included by any shader, so a change to one of them rebuilds all permutations.
+			File[] shaderFiles = shaderDirectory.listFiles((directory, name) -> name.endsWith(".glsl"));
+			
+			if(shaderFiles != null)
+				for(File shaderFile : shaderFiles)
+				{
+					resourceWatcher.watch(shaderFile, lightShaderPermutations::loadSources, lightShaderPermutations::submit);
+					resourceWatcher.watch(shaderFile, deferredLightingPermutations::loadSources, deferredLightingPermutations::submit);
+				}
+		} catch (IOException e)
+		{
+			e.printStackTrace();
+			System.exit(-1);
+		}
 
-		GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_LINEAR);
-		GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_LINEAR);
-		
-		GL11.glTexImage2D(GL11.GL_TEXTURE_2D, 0, GL11.GL_RGBA8, textureWidth, textureHeight, 0, GL11.GL_RGBA, GL11.GL_UNSIGNED_BYTE, buffer);		
+		InstanceBuffer instanceBuffer = null;
+		if(INSTANCED_RENDERING)
+		{
+			// The model matrices of all cubes are stored in the instance buffer and read by the "T_model" attribute of the shader.
+			// The matrices are only uploaded again if a cube moved.
+			instanceBuffer = new InstanceBuffer(cubePositions.length);
+			instanceBuffer.attach(boxVAOId, 3);
+			
+			transforms.copyWorldMatrices(instanceBuffer);
+			instanceBuffer.upload();
+		}
 		
-		MemoryUtil.memFree(buffer);
-
-		Vector3f[] cubePositions = new Vector3f[] {
-		        new Vector3f( 0.0f,  0.0f,  0.0f),
-		        new Vector3f( 2.0f,  5.0f, -15.0f),
-		        new Vector3f(-1.5f, -2.2f, -2.5f),
-		        new Vector3f(-3.8f, -2.0f, -12.3f),
-		        new Vector3f( 2.4f, -0.4f, -3.5f),
-		        new Vector3f(-1.7f,  3.0f, -7.5f),
-		        new Vector3f( 1.3f, -2.0f, -2.5f),
-		        new Vector3f( 1.5f,  2.0f, -2.5f),
-		        new Vector3f( 1.5f,  0.2f, -1.5f),
-		        new Vector3f(-1.3f,  1.0f, -1.5f)
-		    };
+		// The normal matrices are read by the "T_normal" attribute, 3 columns of 3 floats per instance.
+		InstanceBuffer normalInstanceBuffer = null;
+		if(INSTANCED_RENDERING && normalMatrices != null)
+		{
+			normalInstanceBuffer = new InstanceBuffer(cubePositions.length, 3, 3);
+			normalInstanceBuffer.attach(boxVAOId, 7);
+			
+			for(int i = 0; i < cubePositions.length; i++)
+				normalInstanceBuffer.put(normalMatrices, i * 9);
+			
+			normalInstanceBuffer.upload();
+		}
 		
-		FloatBuffer matrixCarrierBuffer = MemoryUtil.memAllocFloat(16);
+		// The draws of a frame are executed through the render queue. The programs and textures are referenced by their index in the sort key.
+		RenderQueue renderQueue = new RenderQueue((POINT_LIGHT_COUNT + 2) * cubePositions.length);
+		
+		int[] textures = { textureId };
+		
+		// The passes in the order they are drawn. The base pass writes the depth and the ambient light, or all lights with single pass lighting.
+		// The additive light pass adds the light of one light per draw to the pixels written by the base pass.
+		int basePass = 0;
+		int additiveLightPass = 1;
+		
+		// The programs that finished compiling in the current frame.
+		boolean[] shaderProgramReady = new boolean[shaderPrograms.length];
+		
+		// The handles of the uniforms that are set per program, resolved once. All light programs use the same handles.
+		int diffuseUniform = ShaderProgram.getUniformHandle("diffuse");
+		int modelUniform = ShaderProgram.getUniformHandle("T_model");
+		int normalUniform = ShaderProgram.getUniformHandle("T_normal");
+		int lightIndexUniform = ShaderProgram.getUniformHandle("lightIndex");
+		int albedoBufferUniform = ShaderProgram.getUniformHandle("albedoBuffer");
+		int normalBufferUniform = ShaderProgram.getUniformHandle("normalBuffer");
+		int depthBufferUniform = ShaderProgram.getUniformHandle("depthBuffer");
+		int clusterGridUniform = ShaderProgram.getUniformHandle("clusterGrid");
+		int clusterLightIndicesUniform = ShaderProgram.getUniformHandle("clusterLightIndices");
+		int clusterCountUniform = ShaderProgram.getUniformHandle("clusterCount");
+		int clusterScaleUniform = ShaderProgram.getUniformHandle("clusterScale");
+		int clusterBiasUniform = ShaderProgram.getUniformHandle("clusterBias");
+		int shadowMapUniform = ShaderProgram.getUniformHandle("shadowMap");
+		int lightViewProjectionUniform = ShaderProgram.getUniformHandle("T_lightViewProjection");
+		
+		// The camera and the lights are the same for all programs. They are declared as std140 uniform blocks in camera.glsl and lights.glsl
+		// and written into one uniform buffer, which is uploaded once per frame. The offsets follow the order of the members in GLSL.
+		Std140Layout frameLayout = new Std140Layout(GL11.glGetInteger(GL31.GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT));
+		
+		int cameraBlock = frameLayout.beginBlock();
+		int cameraProjectionOffset = frameLayout.addMat4();
+		int cameraViewOffset = frameLayout.addMat4();
+		int cameraPositionOffset = frameLayout.addVec3();
+		int cameraInverseViewProjectionOffset = frameLayout.addMat4();
+		frameLayout.endBlock();
+		
+		LightBlock lightBlock = new LightBlock(frameLayout, MAX_LIGHTS);
+		
+		// The shadow maps of the cascades are layers of one depth texture. The Shadows block holds the matrices to look them up.
+		ShadowCascades shadowCascades = SHADOWS ? new ShadowCascades(frameLayout, SHADOW_CASCADES, SHADOW_MAP_SIZE, SHADOW_DISTANCE, 0.75f) : null;
+		
+		UniformBuffer frameUniformBuffer = new UniformBuffer(frameLayout);
+		
+		// The blocks stay bound to their binding points, the programs read them from there.
+		frameUniformBuffer.bind(cameraBlock, 0);
+		frameUniformBuffer.bind(lightBlock.getBlock(), 1);
+		if(SHADOWS) frameUniformBuffer.bind(shadowCascades.getBlock(), 2);
+		
+		lightShaderPermutations.setUniformBlockBinding("Camera", 0);
+		lightShaderPermutations.setUniformBlockBinding("Lights", 1);
+		lightShaderPermutations.setUniformBlockBinding("Shadows", 2);
+		
+		deferredLightingPermutations.setUniformBlockBinding("Camera", 0);
+		deferredLightingPermutations.setUniformBlockBinding("Lights", 1);
+		deferredLightingPermutations.setUniformBlockBinding("Shadows", 2);
 		
 		Matrix4f projectionMatrix = new Matrix4f().setPerspective((float)Math.toRadians(45.0), (float)WIDTH / (float)HEIGHT, 0.1f, 100.0f);
+		
+		// The deferred lighting reconstructs the positions of the pixels from their depth with the inverse of the camera transformation.
+		Matrix4f inverseViewProjectionMatrix = new Matrix4f();
 
 		Vector3f ambientLightColor = new Vector3f(1.0f, 1.0f, 1.0f);
 		float ambientLightIntensity = 0.3f;
@@ -444,27 +561,76 @@ public class Demo
 		float directionalLightIntensity = 0.8f;
 		Vector3f directionalLightDirection = new Vector3f(1.0f, -1.0f, 0.0f);
 		
-		GL20.glUseProgram(ambientLightShaderProgramId);
+		// The point lights are placed in a circle between the camera and the cubes, each with another color.
+		Vector3f[] pointLightPositions = new Vector3f[POINT_LIGHT_COUNT];
+		Vector3f[] pointLightColors = new Vector3f[POINT_LIGHT_COUNT];
+		float[] pointLightRanges = new float[POINT_LIGHT_COUNT];
+		float pointLightIntensity = 1.0f;
+		float pointLightRange = 6.0f;
 		
-		matrixCarrierBuffer.clear();
-		GL20.glUniformMatrix4fv(ambientLightProjectionMatrixUniformLocation, false, projectionMatrix.get(matrixCarrierBuffer));
-
-		GL20.glUniform3f(ambientLightColorUniformLocation, ambientLightColor.x, ambientLightColor.y, ambientLightColor.z);
-		GL20.glUniform1f(ambientLightIntensityUniformLocation, ambientLightIntensity);
+		Arrays.fill(pointLightRanges, pointLightRange);
 		
-		GL20.glUseProgram(directionalLightShaderProgramId);
+		for(int i = 0; i < POINT_LIGHT_COUNT; i++)
+		{
+			float angle = (float)(2.0 * Math.PI * i / POINT_LIGHT_COUNT);
+			
+			pointLightPositions[i] = new Vector3f((float)Math.cos(angle) * 3.0f, (float)Math.sin(angle) * 3.0f, -3.0f);
+			pointLightColors[i] = new Vector3f(
+					0.5f + 0.5f * (float)Math.cos(angle),
+					0.5f + 0.5f * (float)Math.cos(angle - 2.0 * Math.PI / 3.0),
+					0.5f + 0.5f * (float)Math.cos(angle + 2.0 * Math.PI / 3.0));
+		}
 		
-		matrixCarrierBuffer.clear();
-		GL20.glUniformMatrix4fv(directionalLightProjectionMatrixUniformLocation, false, projectionMatrix.get(matrixCarrierBuffer));
-
-		GL20.glUniform3f(directionalLightColorUniformLocation, directionalLightColor.x, directionalLightColor.y, directionalLightColor.z);
-		GL20.glUniform1f(directionalLightIntensityUniformLocation, directionalLightIntensity);
-		GL20.glUniform3f(directionalLightDirectionUniformLocation, directionalLightDirection.x, directionalLightDirection.y, directionalLightDirection.z);
+		// The size of the framebuffer of the window in pixels, which can differ from the size of the window.
+		int[] framebufferWidth = new int[1];
+		int[] framebufferHeight = new int[1];
+		
+		GBuffer gBuffer = null;
 		
-		GL20.glUseProgram(0);
+		// The screen space passes of deferred shading compute their vertices from gl_VertexID. They don't read any vertex data,
+		// but OpenGL still requires a bound VAO to draw.
+		int emptyVAOId = GL30.glGenVertexArrays();
 		
-		// Setting the default color of the pixels that are not affected by the rendered objects.
-		GL11.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
+		if(DEFERRED_SHADING)
+		{
+			GLFW.glfwGetFramebufferSize(windowId, framebufferWidth, framebufferHeight);
+			gBuffer = new GBuffer(framebufferWidth[0], framebufferHeight[0]);
+		}
+		
+		// The frustum is divided into 16 by 9 tiles on the screen and 24 slices in depth.
+		LightClusters lightClusters = null;
+		if(CLUSTERED_LIGHTING) lightClusters = new LightClusters(projectionMatrix, 16, 9, 24, MAX_LIGHTS_PER_CLUSTER);
+		
+		// The casters of the cascades are drawn from their own instance buffer with a VAO of their own,
+		// which reads the positions of the box vertices and the model matrices of the casters.
+		int shadowVAOId = 0;
+		InstanceBuffer shadowInstanceBuffer = null;
+		
+		if(SHADOWS)
+		{
+			shadowVAOId = GL30.glGenVertexArrays();
+			
+			GL30.glBindVertexArray(shadowVAOId);
+			GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, boxVertexVBOId);
+			GL20.glVertexAttribPointer(0, 3, GL11.GL_FLOAT, false, 8 * 4, 0);
+			GL20.glEnableVertexAttribArray(0);
+			GL30.glBindVertexArray(0);
+			
+			shadowInstanceBuffer = new InstanceBuffer(SHADOW_CASCADES * cubePositions.length);
+			shadowInstanceBuffer.attach(shadowVAOId, 3);
+			
+			// The depths of the casters are pushed away from the light depending on the slope of their faces,
+			// so the lit faces don't shadow themselves because of the limited resolution of the shadow map.
+			GL11.glPolygonOffset(2.0f, 4.0f);
+		}
+		
+		// The setup code changed the bindings without the state cache.
+		stateCache.invalidate();
+		
+		// The camera is updated in place every frame, so the main loop doesn't create any objects.
+		Vector3f cameraPosition = new Vector3f();
+		Matrix4f viewMatrix = new Matrix4f();
+		Vector3f cubePosition = new Vector3f();
 		
 		/* ===========
 		 *  MAIN LOOP
@@ -490,116 +656,417 @@ public class Demo
 			 *  UPDATE CODE
 			 * =============*/
 			
-			Vector3f cameraPosition = new Vector3f(0.0f, 0.0f, 3.0f);
-			Matrix4f viewMatrix = new Matrix4f().translation(-cameraPosition.x, -cameraPosition.y, -cameraPosition.z);
+			// Swap in the files that changed since the last frame.
+			resourceWatcher.update();
+			
+			cameraPosition.set(0.0f, 0.0f, 3.0f);
+			viewMatrix.translation(-cameraPosition.x, -cameraPosition.y, -cameraPosition.z);
+			
+			// The model matrices of the cubes that moved are computed again and uploaded together with their normal matrices.
+			boolean cubesMoved = transforms.update() > 0;
+			if(cubesMoved)
+			{
+				modelMatrices = transforms.getWorldMatrices();
+				
+				if(normalMatrices != null) NormalMatrices.compute(modelMatrices, normalMatrices, transforms.size());
+				
+				if(INSTANCED_RENDERING)
+				{
+					instanceBuffer.clear();
+					transforms.copyWorldMatrices(instanceBuffer);
+					instanceBuffer.upload();
+					
+					if(normalInstanceBuffer != null)
+					{
+						normalInstanceBuffer.clear();
+						normalInstanceBuffer.put(normalMatrices, 0, transforms.size());
+						normalInstanceBuffer.upload();
+					}
+				}
+			}
+			
+			// Writing the values shared by all programs and uploading them with a single call.
+			frameUniformBuffer.putMatrix4f(cameraProjectionOffset, projectionMatrix);
+			frameUniformBuffer.putMatrix4f(cameraViewOffset, viewMatrix);
+			frameUniformBuffer.putVector3f(cameraPositionOffset, cameraPosition);
+			frameUniformBuffer.putMatrix4f(cameraInverseViewProjectionOffset, projectionMatrix.mul(viewMatrix, inverseViewProjectionMatrix).invert());
+			
+			lightBlock.putAmbientLight(frameUniformBuffer, ambientLightColor, ambientLightIntensity);
+			lightBlock.putDirectionalLight(frameUniformBuffer, 0, directionalLightColor, directionalLightIntensity, directionalLightDirection);
+			
+			for(int i = 0; i < POINT_LIGHT_COUNT; i++)
+				lightBlock.putPointLight(frameUniformBuffer, i, pointLightColors[i], pointLightIntensity, pointLightPositions[i], pointLightRange);
+			
+			lightBlock.putLightCounts(frameUniformBuffer, 1, POINT_LIGHT_COUNT);
+			
+			// The cascades are fitted to the camera. The shadow maps are only rendered again if the camera, the light or any cube moved.
+			if(SHADOWS)
+			{
+				shadowCascades.update(projectionMatrix, viewMatrix, directionalLightDirection, transforms.getPositions(), CUBE_BOUNDING_RADIUS, transforms.size(), cubesMoved);
+				shadowCascades.putShadowMatrices(frameUniformBuffer);
+			}
+			
+			frameUniformBuffer.upload();
+			
+			// The lights are binned into the clusters of the current camera on all cores.
+			if(CLUSTERED_LIGHTING) lightClusters.update(viewMatrix, pointLightPositions, pointLightRanges, POINT_LIGHT_COUNT);
 
 			/* ====================
 			 * RENDER CODE
 			 * ==================== */
 
-			// Clearing the pixeldata, the depthdata and the stencildata of the screen.
-			GL11.glClear(GL11.GL_COLOR_BUFFER_BIT | GL11.GL_DEPTH_BUFFER_BIT | GL11.GL_STENCIL_BUFFER_BIT);
-
-			GL11.glEnable(GL11.GL_DEPTH_TEST);
-			GL11.glDepthFunc(GL11.GL_LESS);
+			stateCache.beginFrame();
 			
-			// Binding the VAO that contains the vertex data of our triangle.
-			GL30.glBindVertexArray(boxVAOId);
+			// Nothing is uploaded or bound for the shadow maps in frames all cascades are kept from the previous frame.
+			if(SHADOWS && shaderProgramReady[shadowCasterProgram] && shadowCascades.isAnyDirty())
+			{
+				// The casters of all cascades that have to be rendered again are collected into the instance buffer one cascade after another.
+				shadowInstanceBuffer.clear();
+				
+				for(int cascade = 0; cascade < SHADOW_CASCADES; cascade++)
+				{
+					if(!shadowCascades.isDirty(cascade)) continue;
+					
+					for(int i = 0; i < shadowCascades.getCasterCount(cascade); i++)
+						shadowInstanceBuffer.put(modelMatrices, shadowCascades.getCaster(cascade, i) * 16);
+				}
+				
+				shadowInstanceBuffer.upload();
+				
+				ShaderProgram shadowCasterShaderProgram = shaderPrograms[shadowCasterProgram];
+				stateCache.useProgram(shadowCasterShaderProgram.getId());
+				stateCache.bindVertexArray(shadowVAOId);
+				
+				stateCache.enable(GL11.GL_DEPTH_TEST);
+				stateCache.enable(GL11.GL_POLYGON_OFFSET_FILL);
+				stateCache.disable(GL11.GL_BLEND);
+				stateCache.depthFunc(GL11.GL_LESS);
+				
+				// Every cascade draws its casters with a single instanced draw, starting at its first caster in the instance buffer.
+				int baseInstance = 0;
+				for(int cascade = 0; cascade < SHADOW_CASCADES; cascade++)
+				{
+					if(!shadowCascades.isDirty(cascade)) continue;
+					
+					int casterCount = shadowCascades.getCasterCount(cascade);
+					
+					shadowCascades.beginCascade(stateCache, cascade);
+					
+					shadowCasterShaderProgram.setUniformMatrix4f(lightViewProjectionUniform, shadowCascades.getLightViewProjectionMatrix(cascade));
+					
+					if(casterCount > 0) GL42.glDrawArraysInstancedBaseInstance(GL11.GL_TRIANGLES, 0, 36, casterCount, baseInstance);
+					
+					shadowCascades.endCascade(cascade);
+					
+					baseInstance += casterCount;
+				}
+				
+				stateCache.disable(GL11.GL_POLYGON_OFFSET_FILL);
+			}
 			
-			// Enabling the position pointer "0" for passing the vertex positions to gpu.
-			GL20.glEnableVertexAttribArray(0);
+			// The states are set every frame. The state cache only passes the changes on to OpenGL.
+			GLFW.glfwGetFramebufferSize(windowId, framebufferWidth, framebufferHeight);
+			stateCache.viewport(0, 0, framebufferWidth[0], framebufferHeight[0]);
 			
-			// The ambient light shader does not use the normals.
-			// However disabling the respective pointer is usually not neccessery.
-			GL20.glDisableVertexAttribArray(1);
+			// The G-buffer follows the size of the window. Allocating its textures changes the texture bindings past the state cache.
+			if(DEFERRED_SHADING && gBuffer.resize(framebufferWidth[0], framebufferHeight[0])) stateCache.invalidate();
 			
-			// Enabling the position pointer "1" for passing the vertex texture coordinates to gpu.
-			GL20.glEnableVertexAttribArray(2);
+			// Setting the default color of the pixels that are not affected by the rendered objects.
+			stateCache.clearColor(0.0f, 0.0f, 0.0f, 1.0f);
 			
-			// Starting the shader.
-			GL20.glUseProgram(ambientLightShaderProgramId);
+			// Clearing the pixeldata, the depthdata and the stencildata of the screen.
+			stateCache.bindFramebuffer(GL30.GL_FRAMEBUFFER, 0);
+			GL11.glClear(GL11.GL_COLOR_BUFFER_BIT | GL11.GL_DEPTH_BUFFER_BIT | GL11.GL_STENCIL_BUFFER_BIT);
 			
-			GL13.glActiveTexture(GL13.GL_TEXTURE0);
-			GL11.glBindTexture(GL32.GL_TEXTURE_2D, textureId);
-			GL20.glUniform1i(ambientLightTextureUniformLocation, 0);
+			// With deferred shading the cubes are drawn into the G-buffer instead of the screen.
+			if(DEFERRED_SHADING)
+			{
+				stateCache.bindFramebuffer(GL30.GL_FRAMEBUFFER, gBuffer.getFramebufferId());
+				GL11.glClear(GL11.GL_COLOR_BUFFER_BIT | GL11.GL_DEPTH_BUFFER_BIT);
+			}
 			
-			matrixCarrierBuffer.clear();
-			GL20.glUniformMatrix4fv(ambientLightViewMatrixUniformLocation, false, viewMatrix.get(matrixCarrierBuffer));
-
-			for(int i = 0; i < cubePositions.length; i++)
+			// Picking up the programs the driver finished. Until a program is ready, the passes using it are skipped.
+			boolean allProgramsReady = true;
+			for(int i = 0; i < shaderPrograms.length; i++)
 			{
-				Matrix4f modelMatrix = new Matrix4f().translation(cubePositions[i]);
+				shaderProgramReady[i] = shaderPrograms[i] != null && shaderPrograms[i].update();
 				
-				matrixCarrierBuffer.clear();
-				GL20.glUniformMatrix4fv(ambientLightModelMatrixUniformLocation, false, modelMatrix.get(matrixCarrierBuffer));
+				if(shaderPrograms[i] != null && !shaderProgramReady[i]) allProgramsReady = false;
+			}
+			
+			if(shaderSubmitTime != 0 && allProgramsReady)
+			{
+				System.out.printf("Shader programs ready %.2f ms after submitting them%n", (System.nanoTime() - shaderSubmitTime) / 1e6);
+				shaderSubmitTime = 0;
+			}
+			
+			// Every draw is submitted to the render queue together with a sort key made of its pass, program, texture and distance to the camera.
+			// The cubes are submitted one after another with all of their passes, the way a scene is traversed. The queue sorts the draws
+			// by pass and program and front to back within a pass, so the states are only changed when the key changes.
+			// The additive light passes use the material of the key as the index of their light, so the draws of a light stay together.
+			renderQueue.clear();
+			
+			// The additive light passes only add to the pixels written by the base pass, so without it there is nothing to draw.
+			if(shaderProgramReady[baseProgram])
+			{
+				// With instanced rendering a single item draws all instances of a pass.
+				int itemCount = INSTANCED_RENDERING ? 1 : transforms.size();
+				
+				for(int i = 0; i < itemCount; i++)
+				{
+					int cube = INSTANCED_RENDERING ? -1 : i;
+					
+					// The distance is scaled by the far plane into the range of the key.
+					float depth = INSTANCED_RENDERING ? 0.0f : transforms.getPosition(i, cubePosition).distance(cameraPosition) / 100.0f;
+					
+					if(baseProgram != ambientLightProgram)
+					{
+						renderQueue.submit(RenderQueue.createKey(basePass, baseProgram, 0, 0, depth), cube);
+						continue;
+					}
 					
-				// Drawing the box.
-				GL11.glDrawArrays(GL11.GL_TRIANGLES, 0, 36);
+					renderQueue.submit(RenderQueue.createKey(basePass, ambientLightProgram, 0, 0, depth), cube);
+					
+					if(shaderProgramReady[directionalLightProgram])
+						renderQueue.submit(RenderQueue.createKey(additiveLightPass, directionalLightProgram, 0, 0, depth), cube);
+					
+					if(shaderProgramReady[pointLightProgram])
+						for(int light = 0; light < POINT_LIGHT_COUNT; light++)
+							renderQueue.submit(RenderQueue.createKey(additiveLightPass, pointLightProgram, light, 0, depth), cube);
+				}
 			}
 			
-			GL11.glEnable(GL11.GL_BLEND);
-			GL11.glBlendFunc(GL11.GL_ONE, GL11.GL_ONE);
-			GL11.glDepthFunc(GL11.GL_EQUAL);
+			renderQueue.sort();
 			
-			// Enabling the position pointer "0" for passing the vertex positions to gpu.
-			GL20.glEnableVertexAttribArray(0);
+			stateCache.enable(GL11.GL_DEPTH_TEST);
 			
-			// Enabling the position pointer "1" for passing the vertex normals to gpu.
-			GL20.glEnableVertexAttribArray(1);
+			// Binding the VAO that contains the vertex data of our triangle.
+			stateCache.bindVertexArray(boxVAOId);
 			
-			// Enabling the position pointer "1" for passing the vertex texture coordinates to gpu.
-			GL20.glEnableVertexAttribArray(2);
+			// Enabling the pointers for the vertex positions, normals and texture coordinates.
+			// The ambient light shader does not use the normals, but leaving the pointer enabled is harmless.
+			stateCache.enableVertexAttribArray(0);
+			stateCache.enableVertexAttribArray(1);
+			stateCache.enableVertexAttribArray(2);
 			
-			// Starting the shader.
-			GL20.glUseProgram(directionalLightShaderProgramId);
+			// The clustered lighting reads the light lists of the clusters on the texture units after the one of the diffuse texture.
+			if(CLUSTERED_LIGHTING)
+			{
+				stateCache.bindTexture(1, GL31.GL_TEXTURE_BUFFER, lightClusters.getGridTextureId());
+				stateCache.bindTexture(2, GL31.GL_TEXTURE_BUFFER, lightClusters.getIndexTextureId());
+			}
 			
-			GL13.glActiveTexture(GL13.GL_TEXTURE0);
-			GL11.glBindTexture(GL32.GL_TEXTURE_2D, textureId);
-			GL20.glUniform1i(directionalLightTextureUniformLocation, 0);
+			// The shadow map is read on the texture unit after the ones of all lighting paths.
+			if(SHADOWS) stateCache.bindTexture(4, GL30.GL_TEXTURE_2D_ARRAY, shadowCascades.getTextureId());
 			
-			matrixCarrierBuffer.clear();
-			GL20.glUniform3f(directionalLightCameraPositionUniformLocation, cameraPosition.x, cameraPosition.y, cameraPosition.z);
-			GL20.glUniformMatrix4fv(directionalLightCameraViewMatrixUniformLocation, false, viewMatrix.get(matrixCarrierBuffer));
-
-			for(int i = 0; i < cubePositions.length; i++)
+			int currentPass = -1;
+			int currentProgram = -1;
+			int currentMaterial = -1;
+			int currentTexture = -1;
+			
+			for(int i = 0; i < renderQueue.size(); i++)
 			{
-				Matrix4f modelMatrix = new Matrix4f().translation(cubePositions[i]);
+				long key = renderQueue.getKey(i);
+				
+				int pass = RenderQueue.getPass(key);
+				if(pass != currentPass)
+				{
+					if(pass == basePass)
+					{
+						stateCache.disable(GL11.GL_BLEND);
+						stateCache.depthFunc(GL11.GL_LESS);
+					}
+					else
+					{
+						// The light is added to the light of the pixels already written.
+						stateCache.enable(GL11.GL_BLEND);
+						stateCache.blendFunc(GL11.GL_ONE, GL11.GL_ONE);
+						stateCache.depthFunc(GL11.GL_EQUAL);
+					}
+					
+					currentPass = pass;
+				}
 				
-				matrixCarrierBuffer.clear();
-				GL20.glUniformMatrix4fv(directionalLightModelMatrixUniformLocation, false, modelMatrix.get(matrixCarrierBuffer));
+				int programIndex = RenderQueue.getProgram(key);
+				ShaderProgram program = shaderPrograms[programIndex];
+				if(programIndex != currentProgram)
+				{
+					// Starting the shader.
+					stateCache.useProgram(program.getId());
 					
-				// Drawing the box.
-				GL11.glDrawArrays(GL11.GL_TRIANGLES, 0, 36);
+					// The uniforms are set every frame, as a reloaded program starts without any values.
+					// Values the program already has are not uploaded again.
+					program.setUniform1i(diffuseUniform, 0);
+					program.setUniform1i(shadowMapUniform, 4);
+					
+					if(programIndex == clusteredLightsProgram)
+					{
+						// The cluster of a pixel is found from its position on the screen and the logarithm of its depth.
+						program.setUniform1i(clusterGridUniform, 1);
+						program.setUniform1i(clusterLightIndicesUniform, 2);
+						program.setUniform3f(clusterCountUniform, lightClusters.getCountX(), lightClusters.getCountY(), lightClusters.getCountZ());
+						program.setUniform3f(clusterScaleUniform, (float)lightClusters.getCountX() / framebufferWidth[0],
+								(float)lightClusters.getCountY() / framebufferHeight[0], lightClusters.getSliceScale());
+						program.setUniform3f(clusterBiasUniform, 0.0f, 0.0f, lightClusters.getSliceBias());
+					}
+					
+					currentProgram = programIndex;
+					currentMaterial = -1;
+				}
+				
+				int material = RenderQueue.getMaterial(key);
+				if(material != currentMaterial)
+				{
+					// Programs without the uniform ignore it.
+					program.setUniform1i(lightIndexUniform, material);
+					
+					currentMaterial = material;
+				}
+				
+				int textureIndex = RenderQueue.getTexture(key);
+				if(textureIndex != currentTexture)
+				{
+					stateCache.bindTexture(0, GL11.GL_TEXTURE_2D, textures[textureIndex]);
+					
+					currentTexture = textureIndex;
+				}
+				
+				int cube = renderQueue.getItem(i);
+				if(cube == -1)
+				{
+					// Drawing all boxes at once, each with the model matrix of its instance.
+					GL31.glDrawArraysInstanced(GL11.GL_TRIANGLES, 0, 36, instanceBuffer.getCount());
+				}
+				else
+				{
+					program.setUniformMatrix4f(modelUniform, modelMatrices, cube * 16);
+					
+					if(normalMatrices != null) program.setUniformMatrix3f(normalUniform, normalMatrices, cube * 9);
+					
+					// Drawing the box.
+					GL11.glDrawArrays(GL11.GL_TRIANGLES, 0, 36);
+				}
 			}
 			
-			// Stopping the running shader.
-			GL20.glUseProgram(0);
-			
-			GL11.glDisable(GL11.GL_BLEND);
+			if(DEFERRED_SHADING && shaderProgramReady[geometryProgram] && shaderProgramReady[deferredLightsProgram])
+			{
+				// The lights are drawn onto the screen and read the G-buffer on the texture units after the one of the diffuse texture.
+				stateCache.bindFramebuffer(GL30.GL_FRAMEBUFFER, 0);
+				
+				stateCache.bindTexture(1, GL11.GL_TEXTURE_2D, gBuffer.getAlbedoTextureId());
+				stateCache.bindTexture(2, GL11.GL_TEXTURE_2D, gBuffer.getNormalTextureId());
+				stateCache.bindTexture(3, GL11.GL_TEXTURE_2D, gBuffer.getDepthTextureId());
+				
+				// Every pixel is shaded once per screen space draw covering it, the depth test is not needed.
+				stateCache.disable(GL11.GL_DEPTH_TEST);
+				stateCache.disable(GL11.GL_BLEND);
+				stateCache.bindVertexArray(emptyVAOId);
+				
+				// The ambient and the directional lights reach every pixel. They are applied by a single triangle covering the screen.
+				// Pixels without a cube are discarded and keep the clear color.
+				ShaderProgram deferredLightsShaderProgram = shaderPrograms[deferredLightsProgram];
+				stateCache.useProgram(deferredLightsShaderProgram.getId());
+				
+				deferredLightsShaderProgram.setUniform1i(albedoBufferUniform, 1);
+				deferredLightsShaderProgram.setUniform1i(normalBufferUniform, 2);
+				deferredLightsShaderProgram.setUniform1i(depthBufferUniform, 3);
+				deferredLightsShaderProgram.setUniform1i(shadowMapUniform, 4);
+				
+				GL11.glDrawArrays(GL11.GL_TRIANGLES, 0, 3);
+				
+				if(shaderProgramReady[pointLightQuadsProgram] && POINT_LIGHT_COUNT > 0)
+				{
+					// Every point light is added by a quad covering the projection of the box around its range, one instance per light.
+					// The cost of a light is the number of pixels it covers, regardless of how many cubes are lit by it.
+					stateCache.enable(GL11.GL_BLEND);
+					stateCache.blendFunc(GL11.GL_ONE, GL11.GL_ONE);
+					
+					ShaderProgram pointLightQuadsShaderProgram = shaderPrograms[pointLightQuadsProgram];
+					stateCache.useProgram(pointLightQuadsShaderProgram.getId());
+					
+					pointLightQuadsShaderProgram.setUniform1i(albedoBufferUniform, 1);
+					pointLightQuadsShaderProgram.setUniform1i(normalBufferUniform, 2);
+					pointLightQuadsShaderProgram.setUniform1i(depthBufferUniform, 3);
+					
+					GL31.glDrawArraysInstanced(GL11.GL_TRIANGLE_STRIP, 0, 4, POINT_LIGHT_COUNT);
+				}
+			}
 			
-			GL11.glDisable(GL11.GL_DEPTH_TEST);
+			// The program and the states are left as they are. The next frame starts with the same states and only changes what differs.
 		}
 		
 		/* =====================
 		 * FREE RESOURCES
 		 * ===================== */
 		
-		MemoryUtil.memFree(matrixCarrierBuffer);
-		
 		GL30.glDeleteVertexArrays(boxVAOId);
 		
 		GL30.glDeleteBuffers(boxVertexVBOId);
 		
-		GL20.glDeleteProgram(ambientLightShaderProgramId);
-		GL20.glDeleteShader(ambientLightVertexShaderId);
-		GL20.glDeleteShader(ambientLightFragmentShaderId);
+		if(instanceBuffer != null) instanceBuffer.delete();
+		
+		if(normalInstanceBuffer != null) normalInstanceBuffer.delete();
+		
+		resourceWatcher.close();
+		
+		lightShaderPermutations.delete();
+		
+		deferredLightingPermutations.delete();
+		
+		GL30.glDeleteVertexArrays(emptyVAOId);
+		
+		if(gBuffer != null) gBuffer.delete();
+		
+		if(lightClusters != null) lightClusters.delete();
+		
+		if(SHADOWS)
+		{
+			GL30.glDeleteVertexArrays(shadowVAOId);
+			shadowInstanceBuffer.delete();
+			shadowCascades.delete();
+		}
 		
-		GL20.glDeleteProgram(directionalLightShaderProgramId);
-		GL20.glDeleteShader(directionalLightVertexShaderId);
-		GL20.glDeleteShader(directionalLightFragmentShaderId);
+		frameUniformBuffer.delete();
 		
 		GL11.glDeleteTextures(textureId);
 
 		GLFW.glfwDestroyWindow(windowId);
+		
+		System.out.printf("Program binary cache: %d hits, %d misses, %d rejected, %.0f%% hit rate, %.2f ms compile time saved%n",
+				programBinaryCache.getHitCount(), programBinaryCache.getMissCount(), programBinaryCache.getRejectCount(),
+				programBinaryCache.getHitRate() * 100, programBinaryCache.getSavedTime() / 1e6);
+		
+		System.out.printf("Render queue: %.1f state changes per frame, %.1f avoided by sorting%n",
+				renderQueue.getAverageStateChanges(), renderQueue.getAverageAvoidedStateChanges());
+		
+		System.out.printf("GL state cache: %.1f calls issued, %.1f redundant calls elided per frame%n",
+				stateCache.getAverageIssuedCallCount(), stateCache.getAverageElidedCallCount());
+		
+		if(CLUSTERED_LIGHTING)
+			System.out.printf("Light clusters: %.1f light indices per frame, %.3f ms binning per frame, %d lights dropped by full clusters%n",
+					lightClusters.getAverageLightIndexCount(), lightClusters.getAverageBinningTime() / 1e6, lightClusters.getDroppedLightCount());
+		
+		if(SHADOWS)
+		{
+			for(int cascade = 0; cascade < SHADOW_CASCADES; cascade++)
+				System.out.printf("Shadow cascade %d: rendered in %d frames, cached in %d frames, %.1f casters drawn, %.3f ms gpu time per render%n",
+						cascade, shadowCascades.getRenderedFrameCount(cascade), shadowCascades.getCachedFrameCount(cascade),
+						shadowCascades.getAverageCasterCount(cascade), shadowCascades.getAverageGpuTime(cascade) / 1e6);
+		}
+		
+		if(STATE_CACHE_DEBUG)
+			System.out.printf("GL state cache: %d states out of sync%n", stateCache.getMismatchCount());
+		
+		long uniformUploadCount = 0;
+		long skippedUniformCount = 0;
+		for(ShaderProgram program : shaderPrograms)
+		{
+			if(program == null) continue;
+			
+			uniformUploadCount += program.getUniformUploadCount();
+			skippedUniformCount += program.getSkippedUniformCount();
+		}
+		
+		System.out.printf("Uniforms: %d uploaded, %d redundant uploads skipped%n", uniformUploadCount, skippedUniformCount);
 	}
 }
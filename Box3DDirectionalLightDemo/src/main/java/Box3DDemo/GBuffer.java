@@ -0,0 +1,132 @@
+package Box3DDemo;
+
+import java.nio.ByteBuffer;
+
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL14;
+import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL30;
+
+/**
+ * The framebuffer the geometry pass of deferred shading renders into.
+ *
+ * Instead of lighting the surfaces while the objects are drawn, the geometry pass only stores what the lights need per pixel:
+ * the albedo in the first and the normal in the second color attachment, both written at once by a fragment shader with two outputs,
+ * and the depth, from which the position is reconstructed. The lights are applied afterwards by reading the textures per pixel,
+ * so a light only costs the pixels it covers instead of drawing all objects again.
+ */
+public class GBuffer
+{
+	private final int framebufferId;
+
+	private final int albedoTextureId;
+	private final int normalTextureId;
+	private final int depthTextureId;
+
+	private int width;
+	private int height;
+
+	public GBuffer(int width, int height)
+	{
+		this.framebufferId = GL30.glGenFramebuffers();
+
+		this.albedoTextureId = createTexture();
+		this.normalTextureId = createTexture();
+		this.depthTextureId = createTexture();
+
+		resize(width, height);
+
+		GL30.glBindFramebuffer(GL30.GL_FRAMEBUFFER, this.framebufferId);
+
+		GL30.glFramebufferTexture2D(GL30.GL_FRAMEBUFFER, GL30.GL_COLOR_ATTACHMENT0, GL11.GL_TEXTURE_2D, this.albedoTextureId, 0);
+		GL30.glFramebufferTexture2D(GL30.GL_FRAMEBUFFER, GL30.GL_COLOR_ATTACHMENT1, GL11.GL_TEXTURE_2D, this.normalTextureId, 0);
+		GL30.glFramebufferTexture2D(GL30.GL_FRAMEBUFFER, GL30.GL_DEPTH_ATTACHMENT, GL11.GL_TEXTURE_2D, this.depthTextureId, 0);
+
+		// The outputs 0 and 1 of the fragment shader are written to the two color attachments.
+		GL20.glDrawBuffers(new int[] { GL30.GL_COLOR_ATTACHMENT0, GL30.GL_COLOR_ATTACHMENT1 });
+
+		int status = GL30.glCheckFramebufferStatus(GL30.GL_FRAMEBUFFER);
+
+		GL30.glBindFramebuffer(GL30.GL_FRAMEBUFFER, 0);
+
+		if(status != GL30.GL_FRAMEBUFFER_COMPLETE) throw new IllegalStateException("The G-buffer is incomplete, status " + status + ".");
+	}
+
+	/**
+	 * Reallocates the attachments if the size changed. This changes the texture binding of the active texture unit.
+	 *
+	 * @return True if the size changed.
+	 */
+	public boolean resize(int width, int height)
+	{
+		if(width == this.width && height == this.height) return false;
+
+		this.width = width;
+		this.height = height;
+
+		// The albedo has the precision of the texture, the normals need more than 8 bits per component to stay smooth.
+		GL11.glBindTexture(GL11.GL_TEXTURE_2D, this.albedoTextureId);
+		GL11.glTexImage2D(GL11.GL_TEXTURE_2D, 0, GL11.GL_RGBA8, width, height, 0, GL11.GL_RGBA, GL11.GL_UNSIGNED_BYTE, (ByteBuffer)null);
+
+		GL11.glBindTexture(GL11.GL_TEXTURE_2D, this.normalTextureId);
+		GL11.glTexImage2D(GL11.GL_TEXTURE_2D, 0, GL30.GL_RGBA16F, width, height, 0, GL11.GL_RGBA, GL11.GL_FLOAT, (ByteBuffer)null);
+
+		GL11.glBindTexture(GL11.GL_TEXTURE_2D, this.depthTextureId);
+		GL11.glTexImage2D(GL11.GL_TEXTURE_2D, 0, GL14.GL_DEPTH_COMPONENT24, width, height, 0, GL11.GL_DEPTH_COMPONENT, GL11.GL_FLOAT, (ByteBuffer)null);
+
+		GL11.glBindTexture(GL11.GL_TEXTURE_2D, 0);
+
+		return true;
+	}
+
+	public int getWidth()
+	{
+		return this.width;
+	}
+
+	public int getHeight()
+	{
+		return this.height;
+	}
+
+	public int getFramebufferId()
+	{
+		return this.framebufferId;
+	}
+
+	public int getAlbedoTextureId()
+	{
+		return this.albedoTextureId;
+	}
+
+	public int getNormalTextureId()
+	{
+		return this.normalTextureId;
+	}
+
+	public int getDepthTextureId()
+	{
+		return this.depthTextureId;
+	}
+
+	public void delete()
+	{
+		GL30.glDeleteFramebuffers(this.framebufferId);
+
+		GL11.glDeleteTextures(this.albedoTextureId);
+		GL11.glDeleteTextures(this.normalTextureId);
+		GL11.glDeleteTextures(this.depthTextureId);
+	}
+
+	private static int createTexture()
+	{
+		int textureId = GL11.glGenTextures();
+
+		// The lighting reads exactly one texel per pixel, there are no mipmaps to filter.
+		GL11.glBindTexture(GL11.GL_TEXTURE_2D, textureId);
+		GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_NEAREST);
+		GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_NEAREST);
+
+		return textureId;
+	}
+}
@@ -0,0 +1,507 @@
+package Box3DDemo;
+
+import java.util.Arrays;
+
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL13;
+import org.lwjgl.opengl.GL14;
+import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL31;
+
+/**
+ * A shadowed copy of the OpenGL states the demo changes while rendering.
+ *
+ * Every state change goes through the cache, which remembers the last value set and only calls OpenGL if the new value differs.
+ * The render code can then set all states it needs for a draw without checking what the previous draw left behind, and redundant
+ * calls never reach the driver. States start out unknown, so the first change of each state is always issued.
+ *
+ * The cache only knows about changes made through it. Code that changes the states directly has to call invalidate() afterwards.
+ * In debug mode every change is compared against the state queried with glGet* first. Differences are printed and corrected,
+ * which finds the places that bypass the cache, but the queries stall the pipeline, so debug mode is slow.
+ */
+public class GLStateCache
+{
+	// The value of a state that wasn't set through the cache yet.
+	private static final int UNKNOWN = -1;
+
+	// The capabilities that can be enabled and disabled through the cache.
+	private static final int[] CAPABILITIES = { GL11.GL_DEPTH_TEST, GL11.GL_BLEND, GL11.GL_CULL_FACE, GL11.GL_STENCIL_TEST, GL11.GL_SCISSOR_TEST, GL11.GL_POLYGON_OFFSET_FILL };
+
+	// The texture targets tracked per texture unit and the queries for their bindings.
+	private static final int[] TEXTURE_TARGETS = { GL11.GL_TEXTURE_2D, GL30.GL_TEXTURE_2D_ARRAY, GL31.GL_TEXTURE_BUFFER, GL13.GL_TEXTURE_CUBE_MAP };
+	private static final int[] TEXTURE_BINDINGS = { GL11.GL_TEXTURE_BINDING_2D, GL30.GL_TEXTURE_BINDING_2D_ARRAY, GL31.GL_TEXTURE_BINDING_BUFFER, GL13.GL_TEXTURE_BINDING_CUBE_MAP };
+
+	private final boolean debug;
+
+	private int program;
+	private int vertexArray;
+	private int readFramebuffer;
+	private int drawFramebuffer;
+	private int activeTextureUnit;
+
+	// The texture bound to each target of each unit, indexed by target * unit count + unit.
+	private final int[] textures;
+	private final int textureUnitCount;
+
+	// 1 if the capability at the same index in CAPABILITIES is enabled, 0 if it is disabled.
+	private final int[] capabilities = new int[CAPABILITIES.length];
+
+	private int blendSourceFactor;
+	private int blendDestinationFactor;
+	private int depthFunction;
+	private int depthMask;
+
+	private final int[] viewport = new int[4];
+
+	// The clear color, stored as the bits of the floats so unknown can be told apart from any color.
+	private final int[] clearColor = new int[4];
+	private boolean clearColorIsKnown;
+
+	// The state queried in debug mode, kept so the checks don't allocate.
+	private final int[] actualViewport = new int[4];
+	private final float[] actualClearColor = new float[4];
+
+	// The enabled vertex attribute arrays of each vertex array object as a bit mask, indexed by the id of the VAO.
+	// The arrays are part of the VAO, so they don't change when another VAO is bound. The known mask marks the arrays set through the cache.
+	private long[] enabledAttributes = new long[16];
+	private long[] knownAttributes = new long[16];
+
+	// The calls made and saved since the last call of beginFrame().
+	private int issuedCallCount;
+	private int elidedCallCount;
+
+	// The calls of the last complete frame.
+	private int lastIssuedCallCount;
+	private int lastElidedCallCount;
+
+	// Statistics over all frames.
+	private long totalIssuedCallCount;
+	private long totalElidedCallCount;
+	private int frameCount;
+	private int mismatchCount;
+
+	/**
+	 * Creates a cache with all states unknown. In debug mode the cached states are compared against the actual states.
+	 */
+	public GLStateCache(boolean debug)
+	{
+		this.debug = debug;
+
+		this.textureUnitCount = GL11.glGetInteger(GL20.GL_MAX_COMBINED_TEXTURE_IMAGE_UNITS);
+		this.textures = new int[TEXTURE_TARGETS.length * this.textureUnitCount];
+
+		invalidate();
+	}
+
+	/**
+	 * Forgets all states, so the next change of each state is issued. Call it after changing states without the cache.
+	 */
+	public void invalidate()
+	{
+		this.program = UNKNOWN;
+		this.vertexArray = UNKNOWN;
+		this.readFramebuffer = UNKNOWN;
+		this.drawFramebuffer = UNKNOWN;
+		this.activeTextureUnit = UNKNOWN;
+
+		Arrays.fill(this.textures, UNKNOWN);
+		Arrays.fill(this.capabilities, UNKNOWN);
+
+		this.blendSourceFactor = UNKNOWN;
+		this.blendDestinationFactor = UNKNOWN;
+		this.depthFunction = UNKNOWN;
+		this.depthMask = UNKNOWN;
+
+		Arrays.fill(this.viewport, UNKNOWN);
+		this.clearColorIsKnown = false;
+
+		Arrays.fill(this.knownAttributes, 0);
+	}
+
+	/**
+	 * Starts counting the calls of a new frame.
+	 */
+	public void beginFrame()
+	{
+		this.lastIssuedCallCount = this.issuedCallCount;
+		this.lastElidedCallCount = this.elidedCallCount;
+
+		this.totalIssuedCallCount += this.issuedCallCount;
+		this.totalElidedCallCount += this.elidedCallCount;
+		this.frameCount++;
+
+		this.issuedCallCount = 0;
+		this.elidedCallCount = 0;
+	}
+
+	public void useProgram(int programId)
+	{
+		if(this.debug) this.program = check("program", this.program, GL11.glGetInteger(GL20.GL_CURRENT_PROGRAM));
+
+		if(programId == this.program)
+		{
+			this.elidedCallCount++;
+			return;
+		}
+
+		GL20.glUseProgram(programId);
+
+		this.program = programId;
+		this.issuedCallCount++;
+	}
+
+	public void bindVertexArray(int vaoId)
+	{
+		if(this.debug) this.vertexArray = check("vertex array", this.vertexArray, GL11.glGetInteger(GL30.GL_VERTEX_ARRAY_BINDING));
+
+		if(vaoId == this.vertexArray)
+		{
+			this.elidedCallCount++;
+			return;
+		}
+
+		GL30.glBindVertexArray(vaoId);
+
+		this.vertexArray = vaoId;
+		this.issuedCallCount++;
+	}
+
+	/**
+	 * Binds the framebuffer to GL_READ_FRAMEBUFFER, GL_DRAW_FRAMEBUFFER or both with GL_FRAMEBUFFER.
+	 */
+	public void bindFramebuffer(int target, int framebufferId)
+	{
+		boolean read = target != GL30.GL_DRAW_FRAMEBUFFER;
+		boolean draw = target != GL30.GL_READ_FRAMEBUFFER;
+
+		if(this.debug)
+		{
+			this.readFramebuffer = check("read framebuffer", this.readFramebuffer, GL11.glGetInteger(GL30.GL_READ_FRAMEBUFFER_BINDING));
+			this.drawFramebuffer = check("draw framebuffer", this.drawFramebuffer, GL11.glGetInteger(GL30.GL_DRAW_FRAMEBUFFER_BINDING));
+		}
+
+		if((!read || framebufferId == this.readFramebuffer) && (!draw || framebufferId == this.drawFramebuffer))
+		{
+			this.elidedCallCount++;
+			return;
+		}
+
+		GL30.glBindFramebuffer(target, framebufferId);
+
+		if(read) this.readFramebuffer = framebufferId;
+		if(draw) this.drawFramebuffer = framebufferId;
+		this.issuedCallCount++;
+	}
+
+	/**
+	 * Enables the vertex attribute array of the bound VAO.
+	 */
+	public void enableVertexAttribArray(int index)
+	{
+		setVertexAttribArray(index, true);
+	}
+
+	/**
+	 * Disables the vertex attribute array of the bound VAO.
+	 */
+	public void disableVertexAttribArray(int index)
+	{
+		setVertexAttribArray(index, false);
+	}
+
+	/**
+	 * Makes the texture unit active. The unit is counted from 0, not from GL_TEXTURE0.
+	 */
+	public void activeTexture(int unit)
+	{
+		if(this.debug) this.activeTextureUnit = check("active texture unit", this.activeTextureUnit, GL11.glGetInteger(GL13.GL_ACTIVE_TEXTURE) - GL13.GL_TEXTURE0);
+
+		if(unit == this.activeTextureUnit)
+		{
+			this.elidedCallCount++;
+			return;
+		}
+
+		GL13.glActiveTexture(GL13.GL_TEXTURE0 + unit);
+
+		this.activeTextureUnit = unit;
+		this.issuedCallCount++;
+	}
+
+	/**
+	 * Binds the texture to the target of the texture unit and leaves the unit active, so the texture can be changed afterwards.
+	 */
+	public void bindTexture(int unit, int target, int textureId)
+	{
+		activeTexture(unit);
+
+		int index = getTargetIndex(target) * this.textureUnitCount + unit;
+
+		// The binding can only be queried for the active unit.
+		if(this.debug) this.textures[index] = check("texture of unit " + unit, this.textures[index], GL11.glGetInteger(TEXTURE_BINDINGS[getTargetIndex(target)]));
+
+		if(textureId == this.textures[index])
+		{
+			this.elidedCallCount++;
+			return;
+		}
+
+		GL11.glBindTexture(target, textureId);
+
+		this.textures[index] = textureId;
+		this.issuedCallCount++;
+	}
+
+	public void enable(int capability)
+	{
+		setCapability(capability, true);
+	}
+
+	public void disable(int capability)
+	{
+		setCapability(capability, false);
+	}
+
+	public void blendFunc(int sourceFactor, int destinationFactor)
+	{
+		if(this.debug)
+		{
+			this.blendSourceFactor = check("blend source factor", this.blendSourceFactor, GL11.glGetInteger(GL14.GL_BLEND_SRC_RGB));
+			this.blendDestinationFactor = check("blend destination factor", this.blendDestinationFactor, GL11.glGetInteger(GL14.GL_BLEND_DST_RGB));
+		}
+
+		if(sourceFactor == this.blendSourceFactor && destinationFactor == this.blendDestinationFactor)
+		{
+			this.elidedCallCount++;
+			return;
+		}
+
+		GL11.glBlendFunc(sourceFactor, destinationFactor);
+
+		this.blendSourceFactor = sourceFactor;
+		this.blendDestinationFactor = destinationFactor;
+		this.issuedCallCount++;
+	}
+
+	public void depthFunc(int function)
+	{
+		if(this.debug) this.depthFunction = check("depth function", this.depthFunction, GL11.glGetInteger(GL11.GL_DEPTH_FUNC));
+
+		if(function == this.depthFunction)
+		{
+			this.elidedCallCount++;
+			return;
+		}
+
+		GL11.glDepthFunc(function);
+
+		this.depthFunction = function;
+		this.issuedCallCount++;
+	}
+
+	public void depthMask(boolean write)
+	{
+		if(this.debug) this.depthMask = check("depth mask", this.depthMask, GL11.glGetInteger(GL11.GL_DEPTH_WRITEMASK));
+
+		if((write ? 1 : 0) == this.depthMask)
+		{
+			this.elidedCallCount++;
+			return;
+		}
+
+		GL11.glDepthMask(write);
+
+		this.depthMask = write ? 1 : 0;
+		this.issuedCallCount++;
+	}
+
+	public void viewport(int x, int y, int width, int height)
+	{
+		if(this.debug)
+		{
+			GL11.glGetIntegerv(GL11.GL_VIEWPORT, this.actualViewport);
+
+			for(int i = 0; i < 4; i++)
+				this.viewport[i] = check("viewport", this.viewport[i], this.actualViewport[i]);
+		}
+
+		if(x == this.viewport[0] && y == this.viewport[1] && width == this.viewport[2] && height == this.viewport[3])
+		{
+			this.elidedCallCount++;
+			return;
+		}
+
+		GL11.glViewport(x, y, width, height);
+
+		this.viewport[0] = x;
+		this.viewport[1] = y;
+		this.viewport[2] = width;
+		this.viewport[3] = height;
+		this.issuedCallCount++;
+	}
+
+	public void clearColor(float red, float green, float blue, float alpha)
+	{
+		if(this.debug && this.clearColorIsKnown)
+		{
+			GL11.glGetFloatv(GL11.GL_COLOR_CLEAR_VALUE, this.actualClearColor);
+
+			for(int i = 0; i < 4; i++)
+				this.clearColor[i] = check("clear color", this.clearColor[i], Float.floatToIntBits(this.actualClearColor[i]));
+		}
+
+		if(this.clearColorIsKnown
+				&& Float.floatToIntBits(red) == this.clearColor[0] && Float.floatToIntBits(green) == this.clearColor[1]
+				&& Float.floatToIntBits(blue) == this.clearColor[2] && Float.floatToIntBits(alpha) == this.clearColor[3])
+		{
+			this.elidedCallCount++;
+			return;
+		}
+
+		GL11.glClearColor(red, green, blue, alpha);
+
+		this.clearColor[0] = Float.floatToIntBits(red);
+		this.clearColor[1] = Float.floatToIntBits(green);
+		this.clearColor[2] = Float.floatToIntBits(blue);
+		this.clearColor[3] = Float.floatToIntBits(alpha);
+		this.clearColorIsKnown = true;
+		this.issuedCallCount++;
+	}
+
+	/**
+	 * Returns the number of calls issued to OpenGL in the last frame.
+	 */
+	public int getIssuedCallCount()
+	{
+		return this.lastIssuedCallCount;
+	}
+
+	/**
+	 * Returns the number of redundant calls that were not issued in the last frame.
+	 */
+	public int getElidedCallCount()
+	{
+		return this.lastElidedCallCount;
+	}
+
+	public double getAverageIssuedCallCount()
+	{
+		return this.frameCount == 0 ? 0 : (double)this.totalIssuedCallCount / this.frameCount;
+	}
+
+	public double getAverageElidedCallCount()
+	{
+		return this.frameCount == 0 ? 0 : (double)this.totalElidedCallCount / this.frameCount;
+	}
+
+	/**
+	 * Returns the number of states found to differ from the cached value in debug mode.
+	 */
+	public int getMismatchCount()
+	{
+		return this.mismatchCount;
+	}
+
+	private void setVertexAttribArray(int index, boolean enabled)
+	{
+		if(this.vertexArray == UNKNOWN)
+		{
+			// Without knowing the VAO there is no state to compare with.
+			if(enabled) GL20.glEnableVertexAttribArray(index);
+			else GL20.glDisableVertexAttribArray(index);
+
+			this.issuedCallCount++;
+			return;
+		}
+
+		if(this.vertexArray >= this.enabledAttributes.length)
+		{
+			int capacity = Math.max(this.vertexArray + 1, this.enabledAttributes.length * 2);
+
+			this.enabledAttributes = Arrays.copyOf(this.enabledAttributes, capacity);
+			this.knownAttributes = Arrays.copyOf(this.knownAttributes, capacity);
+		}
+
+		long bit = 1L << index;
+
+		if(this.debug && (this.knownAttributes[this.vertexArray] & bit) != 0)
+		{
+			boolean actual = GL20.glGetVertexAttribi(index, GL20.GL_VERTEX_ATTRIB_ARRAY_ENABLED) == GL11.GL_TRUE;
+			boolean cached = (this.enabledAttributes[this.vertexArray] & bit) != 0;
+
+			if(actual != cached)
+			{
+				reportMismatch("vertex attribute array " + index, cached ? 1 : 0, actual ? 1 : 0);
+				this.enabledAttributes[this.vertexArray] ^= bit;
+			}
+		}
+
+		if((this.knownAttributes[this.vertexArray] & bit) != 0 && ((this.enabledAttributes[this.vertexArray] & bit) != 0) == enabled)
+		{
+			this.elidedCallCount++;
+			return;
+		}
+
+		if(enabled) GL20.glEnableVertexAttribArray(index);
+		else GL20.glDisableVertexAttribArray(index);
+
+		if(enabled) this.enabledAttributes[this.vertexArray] |= bit;
+		else this.enabledAttributes[this.vertexArray] &= ~bit;
+
+		this.knownAttributes[this.vertexArray] |= bit;
+		this.issuedCallCount++;
+	}
+
+	private void setCapability(int capability, boolean enabled)
+	{
+		int index = getCapabilityIndex(capability);
+
+		if(this.debug) this.capabilities[index] = check("capability " + capability, this.capabilities[index], GL11.glIsEnabled(capability) ? 1 : 0);
+
+		if((enabled ? 1 : 0) == this.capabilities[index])
+		{
+			this.elidedCallCount++;
+			return;
+		}
+
+		if(enabled) GL11.glEnable(capability);
+		else GL11.glDisable(capability);
+
+		this.capabilities[index] = enabled ? 1 : 0;
+		this.issuedCallCount++;
+	}
+
+	/**
+	 * Compares the cached with the actual value and returns the actual value. Unknown values are not compared.
+	 */
+	private int check(String state, int cached, int actual)
+	{
+		if(cached != UNKNOWN && cached != actual) reportMismatch(state, cached, actual);
+
+		return cached == UNKNOWN ? UNKNOWN : actual;
+	}
+
+	private void reportMismatch(String state, int cached, int actual)
+	{
+		System.err.printf("GL state cache out of sync: %s is %d, but the cache expected %d%n", state, actual, cached);
+
+		this.mismatchCount++;
+	}
+
+	private static int getCapabilityIndex(int capability)
+	{
+		for(int i = 0; i < CAPABILITIES.length; i++)
+			if(CAPABILITIES[i] == capability) return i;
+
+		throw new IllegalArgumentException("The capability " + capability + " is not tracked by the state cache.");
+	}
+
+	private static int getTargetIndex(int target)
+	{
+		for(int i = 0; i < TEXTURE_TARGETS.length; i++)
+			if(TEXTURE_TARGETS[i] == target) return i;
+
+		throw new IllegalArgumentException("The texture target " + target + " is not tracked by the state cache.");
+	}
+}
@@ -0,0 +1,178 @@
+package Box3DDemo;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+import org.joml.Matrix4fc;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL33;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * A vertex buffer holding one model matrix per instance of a mesh.
+ *
+ * The matrices are read by a matrix vertex attribute, which takes consecutive attribute locations, one per column.
+ * With a divisor of 1 the attribute advances once per instance instead of once per vertex, so all instances of the mesh
+ * are drawn by a single glDrawArraysInstanced call instead of one uniform upload and one draw call per instance.
+ *
+ * The matrices are collected in an off-heap buffer and uploaded together. Buffers that change every frame are uploaded
+ * into new storage each time, so the driver doesn't have to wait for the draws still reading the previous matrices.
+ */
+public class InstanceBuffer
+{
+	// The number of columns of the matrices and the number of floats per column.
+	private final int columns;
+	private final int rows;
+
+	// The size of a matrix in bytes.
+	private final int matrixSize;
+
+	private final int bufferId;
+
+	// The matrices of the instances, written by put() and uploaded by upload().
+	private ByteBuffer data;
+
+	// A view of the data as floats, which copies arrays of floats without converting them one by one.
+	private FloatBuffer floatData;
+
+	// The number of matrices put since the last clear.
+	private int count;
+
+	// The number of matrices uploaded, which is the number of instances to draw.
+	private int uploadedCount;
+
+	/**
+	 * Creates an empty instance buffer for a mat4 attribute. The capacity is the expected number of instances, the buffer grows if necessary.
+	 */
+	public InstanceBuffer(int capacity)
+	{
+		this(capacity, 4, 4);
+	}
+
+	/**
+	 * Creates an empty instance buffer for matrices with the given number of columns and floats per column, like 3 and 3 for a mat3 attribute.
+	 */
+	public InstanceBuffer(int capacity, int columns, int rows)
+	{
+		this.columns = columns;
+		this.rows = rows;
+		this.matrixSize = columns * rows * 4;
+
+		this.bufferId = GL15.glGenBuffers();
+		this.data = MemoryUtil.memAlloc(Math.max(capacity, 1) * this.matrixSize);
+		this.floatData = this.data.asFloatBuffer();
+	}
+
+	/**
+	 * Sets the pointers of the matrix attribute starting at the location to this buffer in the VAO.
+	 */
+	public void attach(int vaoId, int attribute)
+	{
+		GL30.glBindVertexArray(vaoId);
+		GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, this.bufferId);
+
+		for(int column = 0; column < this.columns; column++)
+		{
+			GL20.glVertexAttribPointer(attribute + column, this.rows, GL11.GL_FLOAT, false, this.matrixSize, column * this.rows * 4);
+
+			// Advance the attribute once per instance.
+			GL33.glVertexAttribDivisor(attribute + column, 1);
+
+			// The instance attributes are always used, so they are enabled once here.
+			GL20.glEnableVertexAttribArray(attribute + column);
+		}
+
+		GL30.glBindVertexArray(0);
+		GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+	}
+
+	/**
+	 * Removes all matrices put so far. The uploaded matrices stay in use until the next upload.
+	 */
+	public void clear()
+	{
+		this.count = 0;
+	}
+
+	/**
+	 * Adds the model matrix of the next instance.
+	 */
+	public void put(Matrix4fc matrix)
+	{
+		if(this.columns != 4 || this.rows != 4) throw new IllegalStateException("The instance buffer doesn't hold 4x4 matrices.");
+
+		ensureCapacity(1);
+
+		matrix.get(this.count * this.matrixSize, this.data);
+
+		this.count++;
+	}
+
+	/**
+	 * Adds the matrix of the next instance, read column by column from the array starting at the offset.
+	 */
+	public void put(float[] matrices, int offset)
+	{
+		put(matrices, offset, 1);
+	}
+
+	/**
+	 * Adds the matrices of the next instances, stored one after another in the array starting at the offset.
+	 */
+	public void put(float[] matrices, int offset, int matrixCount)
+	{
+		ensureCapacity(matrixCount);
+
+		int floats = this.columns * this.rows;
+
+		this.floatData.position(this.count * floats);
+		this.floatData.put(matrices, offset, matrixCount * floats);
+
+		this.count += matrixCount;
+	}
+
+	/**
+	 * Uploads the matrices put since the last clear.
+	 */
+	public void upload()
+	{
+		this.data.limit(this.count * this.matrixSize);
+
+		GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, this.bufferId);
+		GL15.glBufferData(GL15.GL_ARRAY_BUFFER, this.data, GL15.GL_STREAM_DRAW);
+		GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+
+		this.data.clear();
+
+		this.uploadedCount = this.count;
+	}
+
+	/**
+	 * Returns the number of uploaded instances.
+	 */
+	public int getCount()
+	{
+		return this.uploadedCount;
+	}
+
+	public void delete()
+	{
+		GL15.glDeleteBuffers(this.bufferId);
+
+		MemoryUtil.memFree(this.data);
+	}
+
+	private void ensureCapacity(int matrixCount)
+	{
+		int size = (this.count + matrixCount) * this.matrixSize;
+
+		if(size > this.data.capacity())
+		{
+			this.data = MemoryUtil.memRealloc(this.data, Math.max(size, this.data.capacity() * 2));
+			this.floatData = this.data.asFloatBuffer();
+		}
+	}
+}
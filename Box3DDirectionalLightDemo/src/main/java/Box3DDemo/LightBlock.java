@@ -0,0 +1,135 @@
+package Box3DDemo;
+
+import org.joml.Vector3fc;
+
+/**
+ * The layout of the Lights uniform block declared in lights.glsl.
+ *
+ * The block holds the ambient light and the arrays of the directional and point lights together with the number of lights
+ * used in each array. The arrays are sized by the MAX_LIGHTS define of the shaders. The shaders only read the lights up to
+ * the counts, so lights can be added and removed every frame without rebuilding the programs.
+ */
+public class LightBlock
+{
+	private final int block;
+
+	private final int maxLights;
+
+	private final int ambientLightColorOffset;
+	private final int ambientLightIntensityOffset;
+
+	private final int directionalLightCountOffset;
+	private final int pointLightCountOffset;
+
+	// The offsets of the members of each light in the arrays.
+	private final int[] directionalLightColorOffsets;
+	private final int[] directionalLightIntensityOffsets;
+	private final int[] directionalLightDirectionOffsets;
+
+	private final int[] pointLightColorOffsets;
+	private final int[] pointLightIntensityOffsets;
+	private final int[] pointLightPositionOffsets;
+	private final int[] pointLightRangeOffsets;
+
+	/**
+	 * Adds the block to the layout. The maximum number of lights has to match the MAX_LIGHTS define of the shaders.
+	 */
+	public LightBlock(Std140Layout layout, int maxLights)
+	{
+		this.maxLights = maxLights;
+
+		this.directionalLightColorOffsets = new int[maxLights];
+		this.directionalLightIntensityOffsets = new int[maxLights];
+		this.directionalLightDirectionOffsets = new int[maxLights];
+
+		this.pointLightColorOffsets = new int[maxLights];
+		this.pointLightIntensityOffsets = new int[maxLights];
+		this.pointLightPositionOffsets = new int[maxLights];
+		this.pointLightRangeOffsets = new int[maxLights];
+
+		this.block = layout.beginBlock();
+
+		layout.beginStruct();
+		this.ambientLightColorOffset = layout.addVec3();
+		this.ambientLightIntensityOffset = layout.addFloat();
+		layout.endStruct();
+
+		this.directionalLightCountOffset = layout.addInt();
+		this.pointLightCountOffset = layout.addInt();
+
+		// An array of structs is laid out like the same number of struct members.
+		for(int i = 0; i < maxLights; i++)
+		{
+			layout.beginStruct();
+			layout.beginStruct();
+			this.directionalLightColorOffsets[i] = layout.addVec3();
+			this.directionalLightIntensityOffsets[i] = layout.addFloat();
+			layout.endStruct();
+			this.directionalLightDirectionOffsets[i] = layout.addVec3();
+			layout.endStruct();
+		}
+
+		for(int i = 0; i < maxLights; i++)
+		{
+			layout.beginStruct();
+			layout.beginStruct();
+			this.pointLightColorOffsets[i] = layout.addVec3();
+			this.pointLightIntensityOffsets[i] = layout.addFloat();
+			layout.endStruct();
+			this.pointLightPositionOffsets[i] = layout.addVec3();
+			this.pointLightRangeOffsets[i] = layout.addFloat();
+			layout.endStruct();
+		}
+
+		layout.endBlock();
+	}
+
+	/**
+	 * Returns the index of the block in the layout.
+	 */
+	public int getBlock()
+	{
+		return this.block;
+	}
+
+	public int getMaxLights()
+	{
+		return this.maxLights;
+	}
+
+	public void putAmbientLight(UniformBuffer buffer, Vector3fc color, float intensity)
+	{
+		buffer.putVector3f(this.ambientLightColorOffset, color);
+		buffer.putFloat(this.ambientLightIntensityOffset, intensity);
+	}
+
+	/**
+	 * Sets the number of directional and point lights the shaders read from the arrays.
+	 */
+	public void putLightCounts(UniformBuffer buffer, int directionalLightCount, int pointLightCount)
+	{
+		if(directionalLightCount > this.maxLights || pointLightCount > this.maxLights)
+			throw new IllegalArgumentException("The lights block holds at most " + this.maxLights + " lights of each type.");
+
+		buffer.putInt(this.directionalLightCountOffset, directionalLightCount);
+		buffer.putInt(this.pointLightCountOffset, pointLightCount);
+	}
+
+	public void putDirectionalLight(UniformBuffer buffer, int index, Vector3fc color, float intensity, Vector3fc direction)
+	{
+		buffer.putVector3f(this.directionalLightColorOffsets[index], color);
+		buffer.putFloat(this.directionalLightIntensityOffsets[index], intensity);
+		buffer.putVector3f(this.directionalLightDirectionOffsets[index], direction);
+	}
+
+	/**
+	 * Sets the point light at the index. The light fades out towards the range and doesn't reach further.
+	 */
+	public void putPointLight(UniformBuffer buffer, int index, Vector3fc color, float intensity, Vector3fc position, float range)
+	{
+		buffer.putVector3f(this.pointLightColorOffsets[index], color);
+		buffer.putFloat(this.pointLightIntensityOffsets[index], intensity);
+		buffer.putVector3f(this.pointLightPositionOffsets[index], position);
+		buffer.putFloat(this.pointLightRangeOffsets[index], range);
+	}
+}
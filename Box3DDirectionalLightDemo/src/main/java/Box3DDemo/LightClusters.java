@@ -0,0 +1,375 @@
+package Box3DDemo;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.joml.Matrix4fc;
+import org.joml.Vector3f;
+import org.joml.Vector3fc;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL31;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * Divides the view frustum into a grid of clusters and finds the point lights reaching each cluster, so a pixel only evaluates
+ * the lights of its cluster instead of all lights.
+ *
+ * The screen is divided into tiles and the depth between the near and the far plane into slices. The slices grow exponentially
+ * with the depth, so the clusters keep roughly the same proportions from near to far. Every frame the lights are transformed into
+ * view space and tested against the bounding boxes of the clusters. The slices are independent of each other and binned in parallel
+ * by the common fork-join pool.
+ *
+ * The result is uploaded into two texture buffers, as shader storage buffers require OpenGL 4.3:
+ * the grid holds the offset and the number of lights of every cluster, the index list the indices of the lights of all clusters
+ * one after another. The indices refer to the point lights of the Lights block.
+ */
+public class LightClusters
+{
+	private final int countX;
+	private final int countY;
+	private final int countZ;
+
+	private final int maxLightsPerCluster;
+
+	// The tangents of half the horizontal and vertical field of view. They scale a position on the screen to view space at depth 1.
+	private final float tanHalfFovX;
+	private final float tanHalfFovY;
+
+	// The depths the slices start at, followed by the far plane.
+	private final float[] sliceDepths;
+
+	// The factor and the offset mapping the logarithm of a depth to its slice.
+	private final float sliceScale;
+	private final float sliceBias;
+
+	// The lights of the current frame in view space.
+	private float[] lightX = new float[0];
+	private float[] lightY = new float[0];
+	private float[] lightZ = new float[0];
+	private float[] lightRange = new float[0];
+	private int lightCount;
+
+	private final Vector3f viewPosition = new Vector3f();
+
+	// The number of lights of each cluster and their indices, maxLightsPerCluster entries reserved per cluster.
+	private final int[] clusterLightCounts;
+	private final int[] clusterLights;
+
+	// The lights that didn't fit into their cluster, counted per slice so the tasks don't share a counter.
+	private final int[] sliceDroppedLights;
+
+	// The content of the texture buffers.
+	private final ByteBuffer gridData;
+	private final ByteBuffer indexData;
+
+	private final int gridBufferId;
+	private final int gridTextureId;
+	private final int indexBufferId;
+	private final int indexTextureId;
+
+	private long frameCount;
+	private long totalBinningTime;
+	private long totalLightIndexCount;
+	private long droppedLightCount;
+
+	/**
+	 * Creates the grid for a symmetric perspective projection, like the ones of Matrix4f.setPerspective(). The texture buffers
+	 * are created on the active texture unit, which changes its texture binding.
+	 *
+	 * @param maxLightsPerCluster The number of lights a cluster can hold. Further lights reaching the cluster are dropped.
+	 */
+	public LightClusters(Matrix4fc projectionMatrix, int countX, int countY, int countZ, int maxLightsPerCluster)
+	{
+		this.countX = countX;
+		this.countY = countY;
+		this.countZ = countZ;
+		this.maxLightsPerCluster = maxLightsPerCluster;
+
+		this.tanHalfFovX = 1.0f / projectionMatrix.m00();
+		this.tanHalfFovY = 1.0f / projectionMatrix.m11();
+
+		float near = projectionMatrix.perspectiveNear();
+		float far = projectionMatrix.perspectiveFar();
+
+		this.sliceDepths = new float[countZ + 1];
+		for(int z = 0; z <= countZ; z++)
+			this.sliceDepths[z] = near * (float)Math.pow(far / near, (double)z / countZ);
+
+		// slice = log(depth / near) / log(far / near) * countZ
+		this.sliceScale = countZ / (float)Math.log(far / near);
+		this.sliceBias = -(float)Math.log(near) * this.sliceScale;
+
+		int clusterCount = countX * countY * countZ;
+
+		this.clusterLightCounts = new int[clusterCount];
+		this.clusterLights = new int[clusterCount * maxLightsPerCluster];
+		this.sliceDroppedLights = new int[countZ];
+
+		// The grid stores an unsigned 32 bit offset and count per cluster, the index list 16 bit indices.
+		this.gridData = MemoryUtil.memAlloc(clusterCount * 8);
+		this.indexData = MemoryUtil.memAlloc(clusterCount * maxLightsPerCluster * 2);
+
+		this.gridBufferId = GL15.glGenBuffers();
+		this.indexBufferId = GL15.glGenBuffers();
+
+		this.gridTextureId = createTextureBuffer(this.gridBufferId, GL30.GL_RG32UI);
+		this.indexTextureId = createTextureBuffer(this.indexBufferId, GL30.GL_R16UI);
+	}
+
+	/**
+	 * Bins the lights into the clusters of the camera and uploads the result.
+	 *
+	 * @param positions The positions of the lights in world space.
+	 * @param ranges The distances the lights reach.
+	 */
+	public void update(Matrix4fc viewMatrix, Vector3fc[] positions, float[] ranges, int lightCount)
+	{
+		long start = System.nanoTime();
+
+		if(this.lightX.length < lightCount)
+		{
+			this.lightX = new float[lightCount];
+			this.lightY = new float[lightCount];
+			this.lightZ = new float[lightCount];
+			this.lightRange = new float[lightCount];
+		}
+
+		for(int i = 0; i < lightCount; i++)
+		{
+			viewMatrix.transformPosition(positions[i].x(), positions[i].y(), positions[i].z(), this.viewPosition);
+
+			this.lightX[i] = this.viewPosition.x;
+			this.lightY[i] = this.viewPosition.y;
+			this.lightZ[i] = this.viewPosition.z;
+			this.lightRange[i] = ranges[i];
+		}
+
+		this.lightCount = lightCount;
+
+		ForkJoinPool.commonPool().invoke(new BinningTask(0, this.countZ));
+
+		// The lists of the clusters are packed one after another. The grid tells each cluster where its list starts.
+		int indexCount = 0;
+		for(int cluster = 0; cluster < this.clusterLightCounts.length; cluster++)
+		{
+			int count = this.clusterLightCounts[cluster];
+
+			this.gridData.putInt(cluster * 8, indexCount);
+			this.gridData.putInt(cluster * 8 + 4, count);
+
+			for(int i = 0; i < count; i++)
+				this.indexData.putShort((indexCount + i) * 2, (short)this.clusterLights[cluster * this.maxLightsPerCluster + i]);
+
+			indexCount += count;
+		}
+
+		for(int z = 0; z < this.countZ; z++)
+			this.droppedLightCount += this.sliceDroppedLights[z];
+
+		// Replacing the whole content lets the driver allocate new storage instead of waiting for the previous frame to finish reading it.
+		GL15.glBindBuffer(GL31.GL_TEXTURE_BUFFER, this.gridBufferId);
+		GL15.glBufferData(GL31.GL_TEXTURE_BUFFER, this.gridData, GL15.GL_STREAM_DRAW);
+
+		// Only the used part of the index list is uploaded. An empty buffer can't be attached, so at least one index is.
+		this.indexData.limit(Math.max(indexCount, 1) * 2);
+		GL15.glBindBuffer(GL31.GL_TEXTURE_BUFFER, this.indexBufferId);
+		GL15.glBufferData(GL31.GL_TEXTURE_BUFFER, this.indexData, GL15.GL_STREAM_DRAW);
+		this.indexData.clear();
+
+		GL15.glBindBuffer(GL31.GL_TEXTURE_BUFFER, 0);
+
+		this.frameCount++;
+		this.totalBinningTime += System.nanoTime() - start;
+		this.totalLightIndexCount += indexCount;
+	}
+
+	private void binSlice(int z)
+	{
+		float sliceNear = this.sliceDepths[z];
+		float sliceFar = this.sliceDepths[z + 1];
+
+		int dropped = 0;
+
+		for(int y = 0; y < this.countY; y++)
+		{
+			// The edges of the tile at depth 1. They move linearly with the depth, so the bounds of the tile over the depth
+			// of the slice are taken from its near and far end.
+			float bottom = (2.0f * y / this.countY - 1.0f) * this.tanHalfFovY;
+			float top = (2.0f * (y + 1) / this.countY - 1.0f) * this.tanHalfFovY;
+
+			float minY = Math.min(bottom * sliceNear, bottom * sliceFar);
+			float maxY = Math.max(top * sliceNear, top * sliceFar);
+
+			for(int x = 0; x < this.countX; x++)
+			{
+				float left = (2.0f * x / this.countX - 1.0f) * this.tanHalfFovX;
+				float right = (2.0f * (x + 1) / this.countX - 1.0f) * this.tanHalfFovX;
+
+				float minX = Math.min(left * sliceNear, left * sliceFar);
+				float maxX = Math.max(right * sliceNear, right * sliceFar);
+
+				int cluster = (z * this.countY + y) * this.countX + x;
+				int offset = cluster * this.maxLightsPerCluster;
+				int count = 0;
+
+				for(int light = 0; light < this.lightCount; light++)
+				{
+					// The camera looks along negative z in view space.
+					float depth = -this.lightZ[light];
+					float range = this.lightRange[light];
+
+					// The distance from the light to the closest point of the bounding box of the cluster.
+					float dx = this.lightX[light] - Math.max(minX, Math.min(this.lightX[light], maxX));
+					float dy = this.lightY[light] - Math.max(minY, Math.min(this.lightY[light], maxY));
+					float dz = depth - Math.max(sliceNear, Math.min(depth, sliceFar));
+
+					if(dx * dx + dy * dy + dz * dz > range * range) continue;
+
+					if(count == this.maxLightsPerCluster)
+					{
+						dropped++;
+						continue;
+					}
+
+					this.clusterLights[offset + count++] = light;
+				}
+
+				this.clusterLightCounts[cluster] = count;
+			}
+		}
+
+		this.sliceDroppedLights[z] = dropped;
+	}
+
+	/**
+	 * Bins a range of slices. Ranges of more than one slice are split in half and binned in parallel.
+	 */
+	private class BinningTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final int firstSlice;
+		private final int endSlice;
+
+		public BinningTask(int firstSlice, int endSlice)
+		{
+			this.firstSlice = firstSlice;
+			this.endSlice = endSlice;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if(this.endSlice - this.firstSlice == 1)
+			{
+				binSlice(this.firstSlice);
+				return;
+			}
+
+			int middleSlice = (this.firstSlice + this.endSlice) / 2;
+
+			invokeAll(new BinningTask(this.firstSlice, middleSlice), new BinningTask(middleSlice, this.endSlice));
+		}
+	}
+
+	public int getCountX()
+	{
+		return this.countX;
+	}
+
+	public int getCountY()
+	{
+		return this.countY;
+	}
+
+	public int getCountZ()
+	{
+		return this.countZ;
+	}
+
+	/**
+	 * Returns the factor the logarithm of the depth of a pixel is multiplied with to get its slice.
+	 */
+	public float getSliceScale()
+	{
+		return this.sliceScale;
+	}
+
+	/**
+	 * Returns the offset added to the scaled logarithm of the depth of a pixel to get its slice.
+	 */
+	public float getSliceBias()
+	{
+		return this.sliceBias;
+	}
+
+	/**
+	 * Returns the texture buffer with the offset into the index list and the number of lights of every cluster.
+	 * The clusters are ordered by slice, then row, then column.
+	 */
+	public int getGridTextureId()
+	{
+		return this.gridTextureId;
+	}
+
+	/**
+	 * Returns the texture buffer with the indices of the lights of all clusters.
+	 */
+	public int getIndexTextureId()
+	{
+		return this.indexTextureId;
+	}
+
+	/**
+	 * Returns the average time needed to bin and upload the lights of a frame in nanoseconds.
+	 */
+	public double getAverageBinningTime()
+	{
+		return this.frameCount == 0 ? 0.0 : (double)this.totalBinningTime / this.frameCount;
+	}
+
+	/**
+	 * Returns the average number of light indices of a frame, which is the number of lights summed over all clusters.
+	 */
+	public double getAverageLightIndexCount()
+	{
+		return this.frameCount == 0 ? 0.0 : (double)this.totalLightIndexCount / this.frameCount;
+	}
+
+	/**
+	 * Returns the number of times a light was dropped because its cluster was full.
+	 */
+	public long getDroppedLightCount()
+	{
+		return this.droppedLightCount;
+	}
+
+	public void delete()
+	{
+		GL11.glDeleteTextures(this.gridTextureId);
+		GL11.glDeleteTextures(this.indexTextureId);
+
+		GL15.glDeleteBuffers(this.gridBufferId);
+		GL15.glDeleteBuffers(this.indexBufferId);
+
+		MemoryUtil.memFree(this.gridData);
+		MemoryUtil.memFree(this.indexData);
+	}
+
+	private static int createTextureBuffer(int bufferId, int internalFormat)
+	{
+		// The buffer only exists once it was bound.
+		GL15.glBindBuffer(GL31.GL_TEXTURE_BUFFER, bufferId);
+		GL15.glBindBuffer(GL31.GL_TEXTURE_BUFFER, 0);
+
+		int textureId = GL11.glGenTextures();
+
+		GL11.glBindTexture(GL31.GL_TEXTURE_BUFFER, textureId);
+		GL31.glTexBuffer(GL31.GL_TEXTURE_BUFFER, internalFormat, bufferId);
+
+		return textureId;
+	}
+}
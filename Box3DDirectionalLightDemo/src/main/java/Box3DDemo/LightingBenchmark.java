@@ -0,0 +1,380 @@
+package Box3DDemo;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.lwjgl.glfw.GLFW;
+import org.lwjgl.glfw.GLFWErrorCallback;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL13;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL31;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * Compares adding every light in a pass of its own against evaluating all lights in a single pass, against clustered lighting
+ * and against deferred shading as the number of lights grows.
+ *
+ * Usage: LightingBenchmark [light count...]
+ *
+ * Every light count is drawn in four ways:
+ * - multi pass: an ambient pass writes the depth, then every point light is added by an instanced draw with GL_EQUAL depth test
+ *   and additive blending, like the demo without single pass lighting. Every light transforms all vertices and shades all visible pixels again.
+ * - single pass: one instanced draw with the FORWARD_LIGHTS program, which loops over all lights in the fragment shader.
+ * - clustered: the lights are binned into the clusters of the frustum on the cpu, then one instanced draw with the CLUSTERED_LIGHTS
+ *   program loops over the lights of the cluster of each pixel. The cpu time includes the binning and the upload of the light lists.
+ * - deferred: one instanced draw into the G-buffer, a triangle covering the screen for the ambient light and one quad per point light.
+ *
+ * The lights are spread randomly through the cube field, so each one only reaches a part of the cubes.
+ * The cpu time is the time needed to submit a frame. The frame time additionally waits for the gpu with glFinish.
+ * The shaders are the ones of the demo, read from the classpath. The window is hidden.
+ */
+public class LightingBenchmark
+{
+	// The frames drawn before measuring, so the JIT compiler and the driver are warmed up.
+	private static final int WARMUP_FRAMES = 10;
+
+	// The frames measured per light count and path.
+	private static final int FRAMES = 100;
+
+	// The number of cubes drawn.
+	private static final int CUBE_COUNT = 1000;
+
+	// The size of the light arrays the shaders are built with. The Lights block can't hold more in 16 KB.
+	private static final int MAX_LIGHTS = 255;
+
+	public static void main(String[] args) throws IOException
+	{
+		int[] lightCounts = args.length > 0 ? new int[args.length] : new int[] { 1, 2, 4, 8, 16, 32, 64, 128, 255 };
+		for(int i = 0; i < args.length; i++)
+			lightCounts[i] = Math.min(Integer.parseInt(args[i]), MAX_LIGHTS);
+
+		GLFWErrorCallback errorCallback = GLFWErrorCallback.createPrint(System.out);
+		GLFW.glfwInit();
+		GLFW.glfwSetErrorCallback(errorCallback);
+
+		GLFW.glfwWindowHint(GLFW.GLFW_CONTEXT_VERSION_MAJOR, 4);
+		GLFW.glfwWindowHint(GLFW.GLFW_CONTEXT_VERSION_MINOR, 2);
+		GLFW.glfwWindowHint(GLFW.GLFW_OPENGL_PROFILE, GLFW.GLFW_OPENGL_CORE_PROFILE);
+		GLFW.glfwWindowHint(GLFW.GLFW_VISIBLE, GLFW.GLFW_FALSE);
+
+		long windowId = GLFW.glfwCreateWindow(800, 600, "LightingBenchmark", 0, 0);
+		if(windowId == 0)
+		{
+			System.err.println("Cannot create window.");
+			System.exit(-1);
+		}
+
+		GLFW.glfwMakeContextCurrent(windowId);
+		GL.createCapabilities();
+
+		int vaoId = GL30.glGenVertexArrays();
+		int vboId = createCube(vaoId);
+
+		InstanceBuffer instanceBuffer = new InstanceBuffer(CUBE_COUNT);
+		instanceBuffer.attach(vaoId, 3);
+
+		Matrix4f modelMatrix = new Matrix4f();
+		int gridSize = (int)Math.ceil(Math.cbrt(CUBE_COUNT));
+		for(int i = 0; i < CUBE_COUNT; i++)
+			instanceBuffer.put(modelMatrix.translation((i % gridSize - gridSize / 2) * 1.5f, (i / gridSize % gridSize - gridSize / 2) * 1.5f, -10.0f - i / (gridSize * gridSize) * 1.5f));
+		instanceBuffer.upload();
+
+		// A white texture, so the result is the light alone.
+		int textureId = GL11.glGenTextures();
+		GL11.glBindTexture(GL11.GL_TEXTURE_2D, textureId);
+		GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_NEAREST);
+		GL11.glTexImage2D(GL11.GL_TEXTURE_2D, 0, GL11.GL_RGBA8, 1, 1, 0, GL11.GL_RGBA, GL11.GL_UNSIGNED_BYTE, new int[] { 0xFFFFFFFF });
+
+		ShaderPreprocessor shaderPreprocessor = new ShaderPreprocessor("shaders", null);
+		shaderPreprocessor.addDefine("MAX_LIGHTS=" + MAX_LIGHTS);
+
+		ShaderPermutations lightShaderPermutations = new ShaderPermutations(shaderPreprocessor, "light", "light.vertex.glsl", "light.fragment.glsl", null, "coords", "normal", "texCoords", "T_model");
+		lightShaderPermutations.setUniformBlockBinding("Camera", 0);
+		lightShaderPermutations.setUniformBlockBinding("Lights", 1);
+
+		ShaderProgram ambientLightProgram = lightShaderPermutations.get("AMBIENT_LIGHT", "INSTANCED");
+		ShaderProgram pointLightProgram = lightShaderPermutations.get("POINT_LIGHT", "INSTANCED");
+		ShaderProgram forwardLightsProgram = lightShaderPermutations.get("FORWARD_LIGHTS", "INSTANCED");
+		ShaderProgram geometryProgram = lightShaderPermutations.get("GEOMETRY", "INSTANCED");
+		ShaderProgram clusteredLightsProgram = lightShaderPermutations.get("CLUSTERED_LIGHTS", "INSTANCED");
+
+		ShaderPermutations deferredLightingPermutations = new ShaderPermutations(shaderPreprocessor, "deferred", "deferred.vertex.glsl", "deferred.fragment.glsl", null);
+		deferredLightingPermutations.setUniformBlockBinding("Camera", 0);
+		deferredLightingPermutations.setUniformBlockBinding("Lights", 1);
+
+		ShaderProgram deferredLightsProgram = deferredLightingPermutations.get();
+		ShaderProgram pointLightQuadsProgram = deferredLightingPermutations.get("POINT_LIGHT_QUADS");
+
+		for(ShaderProgram program : new ShaderProgram[] { ambientLightProgram, pointLightProgram, forwardLightsProgram, geometryProgram, clusteredLightsProgram, deferredLightsProgram, pointLightQuadsProgram })
+		{
+			while(program.isPending()) program.update();
+
+			if(!program.update())
+			{
+				System.err.println("Cannot build the light shaders.");
+				System.exit(-1);
+			}
+
+			program.setUniform1i(ShaderProgram.getUniformHandle("diffuse"), 0);
+			program.setUniform1i(ShaderProgram.getUniformHandle("albedoBuffer"), 1);
+			program.setUniform1i(ShaderProgram.getUniformHandle("normalBuffer"), 2);
+			program.setUniform1i(ShaderProgram.getUniformHandle("depthBuffer"), 3);
+			program.setUniform1i(ShaderProgram.getUniformHandle("clusterGrid"), 4);
+			program.setUniform1i(ShaderProgram.getUniformHandle("clusterLightIndices"), 5);
+		}
+
+		int[] framebufferWidth = new int[1];
+		int[] framebufferHeight = new int[1];
+		GLFW.glfwGetFramebufferSize(windowId, framebufferWidth, framebufferHeight);
+
+		GBuffer gBuffer = new GBuffer(framebufferWidth[0], framebufferHeight[0]);
+
+		Matrix4f projectionMatrix = new Matrix4f().setPerspective((float)Math.toRadians(45.0), 800.0f / 600.0f, 0.1f, 100.0f);
+		Matrix4f viewMatrix = new Matrix4f();
+
+		LightClusters lightClusters = new LightClusters(projectionMatrix, 16, 9, 24, 64);
+
+		clusteredLightsProgram.setUniform3f(ShaderProgram.getUniformHandle("clusterCount"), 16, 9, 24);
+		clusteredLightsProgram.setUniform3f(ShaderProgram.getUniformHandle("clusterScale"), 16.0f / framebufferWidth[0], 9.0f / framebufferHeight[0], lightClusters.getSliceScale());
+		clusteredLightsProgram.setUniform3f(ShaderProgram.getUniformHandle("clusterBias"), 0.0f, 0.0f, lightClusters.getSliceBias());
+
+		GL13.glActiveTexture(GL13.GL_TEXTURE1);
+		GL11.glBindTexture(GL11.GL_TEXTURE_2D, gBuffer.getAlbedoTextureId());
+		GL13.glActiveTexture(GL13.GL_TEXTURE2);
+		GL11.glBindTexture(GL11.GL_TEXTURE_2D, gBuffer.getNormalTextureId());
+		GL13.glActiveTexture(GL13.GL_TEXTURE3);
+		GL11.glBindTexture(GL11.GL_TEXTURE_2D, gBuffer.getDepthTextureId());
+		GL13.glActiveTexture(GL13.GL_TEXTURE4);
+		GL11.glBindTexture(GL31.GL_TEXTURE_BUFFER, lightClusters.getGridTextureId());
+		GL13.glActiveTexture(GL13.GL_TEXTURE5);
+		GL11.glBindTexture(GL31.GL_TEXTURE_BUFFER, lightClusters.getIndexTextureId());
+		GL13.glActiveTexture(GL13.GL_TEXTURE0);
+		GL11.glBindTexture(GL11.GL_TEXTURE_2D, textureId);
+
+		// The screen space passes don't read vertex data, but need a bound VAO.
+		int emptyVaoId = GL30.glGenVertexArrays();
+
+		int lightIndexUniform = ShaderProgram.getUniformHandle("lightIndex");
+
+		Std140Layout frameLayout = new Std140Layout(GL11.glGetInteger(GL31.GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT));
+
+		int cameraBlock = frameLayout.beginBlock();
+		int cameraProjectionOffset = frameLayout.addMat4();
+		int cameraViewOffset = frameLayout.addMat4();
+		int cameraPositionOffset = frameLayout.addVec3();
+		int cameraInverseViewProjectionOffset = frameLayout.addMat4();
+		frameLayout.endBlock();
+
+		LightBlock lightBlock = new LightBlock(frameLayout, MAX_LIGHTS);
+
+		UniformBuffer frameUniformBuffer = new UniformBuffer(frameLayout);
+		frameUniformBuffer.bind(cameraBlock, 0);
+		frameUniformBuffer.bind(lightBlock.getBlock(), 1);
+
+		frameUniformBuffer.putMatrix4f(cameraProjectionOffset, projectionMatrix);
+		frameUniformBuffer.putMatrix4f(cameraViewOffset, viewMatrix);
+		frameUniformBuffer.putMatrix4f(cameraInverseViewProjectionOffset, new Matrix4f(projectionMatrix).invert());
+		frameUniformBuffer.putVector3f(cameraPositionOffset, new Vector3f());
+		lightBlock.putAmbientLight(frameUniformBuffer, new Vector3f(1.0f), 0.1f);
+
+		// The lights are spread through the cube field. The seed is fixed, so every run measures the same lights.
+		Random random = new Random(1);
+		Vector3f[] lightPositions = new Vector3f[MAX_LIGHTS];
+		float[] lightRanges = new float[MAX_LIGHTS];
+		Arrays.fill(lightRanges, 4.0f);
+
+		for(int i = 0; i < MAX_LIGHTS; i++)
+		{
+			lightPositions[i] = new Vector3f(random.nextFloat() * 16.0f - 8.0f, random.nextFloat() * 16.0f - 8.0f, -9.0f - random.nextFloat() * 16.0f);
+
+			lightBlock.putPointLight(frameUniformBuffer, i, new Vector3f(1.0f), 0.5f, lightPositions[i], lightRanges[i]);
+		}
+
+		GL11.glEnable(GL11.GL_DEPTH_TEST);
+		GL11.glBlendFunc(GL11.GL_ONE, GL11.GL_ONE);
+		GL30.glBindVertexArray(vaoId);
+
+		System.out.printf("%8s  %-20s %12s %12s %12s%n", "lights", "path", "draw calls", "cpu time", "frame time");
+
+		for(int lightCount : lightCounts)
+		{
+			lightBlock.putLightCounts(frameUniformBuffer, 0, lightCount);
+			frameUniformBuffer.upload();
+
+			// Multi pass.
+			measure(lightCount, "multi pass", lightCount + 1, () -> {
+				GL11.glDisable(GL11.GL_BLEND);
+				GL11.glDepthFunc(GL11.GL_LESS);
+
+				GL20.glUseProgram(ambientLightProgram.getId());
+				GL31.glDrawArraysInstanced(GL11.GL_TRIANGLES, 0, 36, instanceBuffer.getCount());
+
+				GL11.glEnable(GL11.GL_BLEND);
+				GL11.glDepthFunc(GL11.GL_EQUAL);
+
+				GL20.glUseProgram(pointLightProgram.getId());
+				for(int light = 0; light < lightCount; light++)
+				{
+					pointLightProgram.setUniform1i(lightIndexUniform, light);
+					GL31.glDrawArraysInstanced(GL11.GL_TRIANGLES, 0, 36, instanceBuffer.getCount());
+				}
+			});
+
+			// Single pass.
+			measure(lightCount, "single pass", 1, () -> {
+				GL11.glDisable(GL11.GL_BLEND);
+				GL11.glDepthFunc(GL11.GL_LESS);
+
+				GL20.glUseProgram(forwardLightsProgram.getId());
+				GL31.glDrawArraysInstanced(GL11.GL_TRIANGLES, 0, 36, instanceBuffer.getCount());
+			});
+
+			// Clustered.
+			measure(lightCount, "clustered", 1, () -> {
+				lightClusters.update(viewMatrix, lightPositions, lightRanges, lightCount);
+
+				GL11.glDisable(GL11.GL_BLEND);
+				GL11.glDepthFunc(GL11.GL_LESS);
+
+				GL20.glUseProgram(clusteredLightsProgram.getId());
+				GL31.glDrawArraysInstanced(GL11.GL_TRIANGLES, 0, 36, instanceBuffer.getCount());
+			});
+
+			// Deferred.
+			measure(lightCount, "deferred", 3, () -> {
+				GL11.glDisable(GL11.GL_BLEND);
+				GL11.glDepthFunc(GL11.GL_LESS);
+
+				GL30.glBindFramebuffer(GL30.GL_FRAMEBUFFER, gBuffer.getFramebufferId());
+				GL11.glClear(GL11.GL_COLOR_BUFFER_BIT | GL11.GL_DEPTH_BUFFER_BIT);
+
+				GL20.glUseProgram(geometryProgram.getId());
+				GL31.glDrawArraysInstanced(GL11.GL_TRIANGLES, 0, 36, instanceBuffer.getCount());
+
+				GL30.glBindFramebuffer(GL30.GL_FRAMEBUFFER, 0);
+				GL11.glDisable(GL11.GL_DEPTH_TEST);
+				GL30.glBindVertexArray(emptyVaoId);
+
+				GL20.glUseProgram(deferredLightsProgram.getId());
+				GL11.glDrawArrays(GL11.GL_TRIANGLES, 0, 3);
+
+				GL11.glEnable(GL11.GL_BLEND);
+
+				GL20.glUseProgram(pointLightQuadsProgram.getId());
+				GL31.glDrawArraysInstanced(GL11.GL_TRIANGLE_STRIP, 0, 4, lightCount);
+
+				GL11.glEnable(GL11.GL_DEPTH_TEST);
+				GL30.glBindVertexArray(vaoId);
+			});
+		}
+
+		GL20.glUseProgram(0);
+		GL30.glBindVertexArray(0);
+
+		lightShaderPermutations.delete();
+		deferredLightingPermutations.delete();
+		gBuffer.delete();
+		lightClusters.delete();
+		GL30.glDeleteVertexArrays(emptyVaoId);
+		frameUniformBuffer.delete();
+		instanceBuffer.delete();
+		GL11.glDeleteTextures(textureId);
+		GL15.glDeleteBuffers(vboId);
+		GL30.glDeleteVertexArrays(vaoId);
+
+		GLFW.glfwDestroyWindow(windowId);
+		GLFW.glfwTerminate();
+	}
+
+	private static void measure(int lightCount, String path, int drawCalls, Runnable frame)
+	{
+		long cpuTime = 0;
+		long frameTime = 0;
+
+		for(int i = 0; i < WARMUP_FRAMES + FRAMES; i++)
+		{
+			GL11.glClear(GL11.GL_COLOR_BUFFER_BIT | GL11.GL_DEPTH_BUFFER_BIT);
+
+			long start = System.nanoTime();
+
+			frame.run();
+
+			long submitted = System.nanoTime();
+
+			GL11.glFinish();
+
+			long finished = System.nanoTime();
+
+			if(i >= WARMUP_FRAMES)
+			{
+				cpuTime += submitted - start;
+				frameTime += finished - start;
+			}
+		}
+
+		System.out.printf("%8d  %-20s %12d %9.3f ms %9.3f ms%n", lightCount, path, drawCalls, cpuTime / 1e6 / FRAMES, frameTime / 1e6 / FRAMES);
+	}
+
+	/**
+	 * Creates the vertex buffer with the positions, normals and texture coordinates of the 36 vertices of a cube
+	 * and sets the pointers "0", "1" and "2" of the VAO to it, like the demo.
+	 */
+	static int createCube(int vaoId)
+	{
+		FloatBuffer vertexBuffer = MemoryUtil.memAllocFloat(36 * 8);
+
+		// The corners of the faces, two triangles per face, and the axis and direction of their normals.
+		int[][] faces = {
+			{ 0, 2, 3, 1 }, { 4, 5, 7, 6 }, { 0, 4, 6, 2 }, { 1, 3, 7, 5 }, { 0, 1, 5, 4 }, { 2, 6, 7, 3 }
+		};
+		int[] normalAxes = { 2, 2, 0, 0, 1, 1 };
+		float[] normalSigns = { -1.0f, 1.0f, -1.0f, 1.0f, -1.0f, 1.0f };
+
+		// The texture coordinates of the four corners of a face.
+		float[][] texCoords = { { 0.0f, 0.0f }, { 0.0f, 1.0f }, { 1.0f, 1.0f }, { 1.0f, 0.0f } };
+
+		for(int face = 0; face < faces.length; face++)
+		{
+			for(int corner : new int[] { 0, 1, 2, 2, 3, 0 })
+			{
+				int vertex = faces[face][corner];
+
+				vertexBuffer.put((vertex & 1) - 0.5f).put(((vertex >> 1) & 1) - 0.5f).put(((vertex >> 2) & 1) - 0.5f);
+
+				for(int axis = 0; axis < 3; axis++)
+					vertexBuffer.put(axis == normalAxes[face] ? normalSigns[face] : 0.0f);
+
+				vertexBuffer.put(texCoords[corner][0]).put(texCoords[corner][1]);
+			}
+		}
+
+		vertexBuffer.flip();
+
+		GL30.glBindVertexArray(vaoId);
+
+		int vboId = GL15.glGenBuffers();
+		GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, vboId);
+		GL15.glBufferData(GL15.GL_ARRAY_BUFFER, vertexBuffer, GL15.GL_STATIC_DRAW);
+
+		GL20.glVertexAttribPointer(0, 3, GL11.GL_FLOAT, false, 8 * 4, 0);
+		GL20.glVertexAttribPointer(1, 3, GL11.GL_FLOAT, false, 8 * 4, 3 * 4);
+		GL20.glVertexAttribPointer(2, 2, GL11.GL_FLOAT, false, 8 * 4, 6 * 4);
+		GL20.glEnableVertexAttribArray(0);
+		GL20.glEnableVertexAttribArray(1);
+		GL20.glEnableVertexAttribArray(2);
+
+		GL30.glBindVertexArray(0);
+
+		MemoryUtil.memFree(vertexBuffer);
+
+		return vboId;
+	}
+}
@@ -0,0 +1,119 @@
+package Box3DDemo;
+
+/**
+ * Computes the matrices transforming the normals of objects from their model matrices.
+ *
+ * A normal stays perpendicular to its surface only if it is transformed by the inverse transpose of the upper 3x3 part of
+ * the model matrix. Computing it in the vertex shader repeats the inversion for every vertex of every frame. Here it is computed
+ * once per object for a whole batch of objects stored in flat float arrays, with plain arithmetic in a single loop the JIT
+ * compiler can keep in registers.
+ *
+ * If the upper 3x3 part only rotates and scales uniformly, the normals are transformed correctly by the model matrix itself,
+ * up to their length, which is normalized by the shaders anyway. Such objects skip the inversion and copy their model matrix.
+ */
+public class NormalMatrices
+{
+	// The relative tolerance for columns to count as orthogonal and of equal length.
+	private static final float UNIFORM_SCALE_TOLERANCE = 1e-5f;
+
+	/**
+	 * Computes the normal matrices of the objects.
+	 *
+	 * @param modelMatrices The model matrices, 16 floats per object in column-major order.
+	 * @param normalMatrices Receives the normal matrices, 9 floats per object in column-major order.
+	 * @return The number of objects with uniform scale, which copied their model matrix.
+	 */
+	public static int compute(float[] modelMatrices, float[] normalMatrices, int count)
+	{
+		int uniformScaleCount = 0;
+
+		for(int i = 0, m = 0, n = 0; i < count; i++, m += 16, n += 9)
+		{
+			// The columns of the upper 3x3 part.
+			float c0x = modelMatrices[m];
+			float c0y = modelMatrices[m + 1];
+			float c0z = modelMatrices[m + 2];
+			float c1x = modelMatrices[m + 4];
+			float c1y = modelMatrices[m + 5];
+			float c1z = modelMatrices[m + 6];
+			float c2x = modelMatrices[m + 8];
+			float c2y = modelMatrices[m + 9];
+			float c2z = modelMatrices[m + 10];
+
+			if(isUniformScale(c0x, c0y, c0z, c1x, c1y, c1z, c2x, c2y, c2z))
+			{
+				normalMatrices[n] = c0x;
+				normalMatrices[n + 1] = c0y;
+				normalMatrices[n + 2] = c0z;
+				normalMatrices[n + 3] = c1x;
+				normalMatrices[n + 4] = c1y;
+				normalMatrices[n + 5] = c1z;
+				normalMatrices[n + 6] = c2x;
+				normalMatrices[n + 7] = c2y;
+				normalMatrices[n + 8] = c2z;
+
+				uniformScaleCount++;
+				continue;
+			}
+
+			// The rows of the inverse are the cross products of the other two columns divided by the determinant,
+			// so they are the columns of the inverse transpose.
+			float n0x = c1y * c2z - c1z * c2y;
+			float n0y = c1z * c2x - c1x * c2z;
+			float n0z = c1x * c2y - c1y * c2x;
+			float n1x = c2y * c0z - c2z * c0y;
+			float n1y = c2z * c0x - c2x * c0z;
+			float n1z = c2x * c0y - c2y * c0x;
+			float n2x = c0y * c1z - c0z * c1y;
+			float n2y = c0z * c1x - c0x * c1z;
+			float n2z = c0x * c1y - c0y * c1x;
+
+			float inverseDeterminant = 1.0f / (c0x * n0x + c0y * n0y + c0z * n0z);
+
+			normalMatrices[n] = n0x * inverseDeterminant;
+			normalMatrices[n + 1] = n0y * inverseDeterminant;
+			normalMatrices[n + 2] = n0z * inverseDeterminant;
+			normalMatrices[n + 3] = n1x * inverseDeterminant;
+			normalMatrices[n + 4] = n1y * inverseDeterminant;
+			normalMatrices[n + 5] = n1z * inverseDeterminant;
+			normalMatrices[n + 6] = n2x * inverseDeterminant;
+			normalMatrices[n + 7] = n2y * inverseDeterminant;
+			normalMatrices[n + 8] = n2z * inverseDeterminant;
+		}
+
+		return uniformScaleCount;
+	}
+
+	/**
+	 * Returns true if all model matrices only rotate, translate and scale uniformly.
+	 * Objects with such matrices can transform their normals with the model matrix instead of a normal matrix.
+	 */
+	public static boolean isUniformScale(float[] modelMatrices, int count)
+	{
+		for(int i = 0, m = 0; i < count; i++, m += 16)
+		{
+			if(!isUniformScale(modelMatrices[m], modelMatrices[m + 1], modelMatrices[m + 2],
+					modelMatrices[m + 4], modelMatrices[m + 5], modelMatrices[m + 6],
+					modelMatrices[m + 8], modelMatrices[m + 9], modelMatrices[m + 10])) return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Returns true if the columns are orthogonal to each other and have the same length.
+	 */
+	private static boolean isUniformScale(float c0x, float c0y, float c0z, float c1x, float c1y, float c1z, float c2x, float c2y, float c2z)
+	{
+		float length0 = c0x * c0x + c0y * c0y + c0z * c0z;
+		float length1 = c1x * c1x + c1y * c1y + c1z * c1z;
+		float length2 = c2x * c2x + c2y * c2y + c2z * c2z;
+
+		float tolerance = length0 * UNIFORM_SCALE_TOLERANCE;
+
+		return Math.abs(length1 - length0) <= tolerance && Math.abs(length2 - length0) <= tolerance
+				&& Math.abs(c0x * c1x + c0y * c1y + c0z * c1z) <= tolerance
+				&& Math.abs(c0x * c2x + c0y * c2y + c0z * c2z) <= tolerance
+				&& Math.abs(c1x * c2x + c1y * c2y + c1z * c2z) <= tolerance;
+	}
+}
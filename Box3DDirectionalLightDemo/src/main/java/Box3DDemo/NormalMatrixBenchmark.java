@@ -0,0 +1,257 @@
+package Box3DDemo;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.lwjgl.glfw.GLFW;
+import org.lwjgl.glfw.GLFWErrorCallback;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL31;
+import org.lwjgl.opengl.GL33;
+
+/**
+ * Compares inverting the model matrix for every vertex in the vertex shader against normal matrices computed on the cpu.
+ *
+ * Usage: NormalMatrixBenchmark [cube count]
+ *
+ * The cubes are drawn with a single instanced draw of the FORWARD_LIGHTS program in four ways:
+ * - gpu inverse: the vertex shader computes mat3(transpose(inverse(T_model))) per vertex.
+ * - cpu normal matrices: the normal matrices are computed every frame by NormalMatrices, uploaded and read as an instance attribute.
+ * - cpu uniform scale: the same with uniformly scaled cubes, which copy their model matrix instead of inverting it.
+ * - model matrix: the uniformly scaled cubes transform their normals with the model matrix, nothing is computed or uploaded.
+ *
+ * The first two ways draw cubes with non-uniform scale, the last two cubes with uniform scale. The cpu time is the time needed
+ * to compute and upload the normal matrices of a frame, as if all cubes moved every frame. The gpu time is measured with a timer
+ * query around the draw. The shaders are the ones of the demo, read from the classpath. The window is hidden.
+ */
+public class NormalMatrixBenchmark
+{
+	// The frames drawn before measuring, so the JIT compiler and the driver are warmed up.
+	private static final int WARMUP_FRAMES = 10;
+
+	// The frames measured per way.
+	private static final int FRAMES = 100;
+
+	public static void main(String[] args) throws IOException
+	{
+		int cubeCount = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+		GLFWErrorCallback errorCallback = GLFWErrorCallback.createPrint(System.out);
+		GLFW.glfwInit();
+		GLFW.glfwSetErrorCallback(errorCallback);
+
+		GLFW.glfwWindowHint(GLFW.GLFW_CONTEXT_VERSION_MAJOR, 4);
+		GLFW.glfwWindowHint(GLFW.GLFW_CONTEXT_VERSION_MINOR, 2);
+		GLFW.glfwWindowHint(GLFW.GLFW_OPENGL_PROFILE, GLFW.GLFW_OPENGL_CORE_PROFILE);
+		GLFW.glfwWindowHint(GLFW.GLFW_VISIBLE, GLFW.GLFW_FALSE);
+
+		long windowId = GLFW.glfwCreateWindow(800, 600, "NormalMatrixBenchmark", 0, 0);
+		if(windowId == 0)
+		{
+			System.err.println("Cannot create window.");
+			System.exit(-1);
+		}
+
+		GLFW.glfwMakeContextCurrent(windowId);
+		GL.createCapabilities();
+
+		// The cubes are spread over a field in front of the camera, each rotated randomly. The seed is fixed, so every run draws the same cubes.
+		float[] nonUniformModelMatrices = new float[cubeCount * 16];
+		float[] uniformModelMatrices = new float[cubeCount * 16];
+
+		Random random = new Random(1);
+		Matrix4f modelMatrix = new Matrix4f();
+		for(int i = 0; i < cubeCount; i++)
+		{
+			float x = random.nextFloat() * 40.0f - 20.0f;
+			float y = random.nextFloat() * 30.0f - 15.0f;
+			float z = -20.0f - random.nextFloat() * 40.0f;
+			float angle = random.nextFloat() * (float)Math.PI * 2.0f;
+			Vector3f axis = new Vector3f(random.nextFloat() - 0.5f, random.nextFloat() - 0.5f, random.nextFloat() - 0.5f).normalize();
+
+			modelMatrix.translation(x, y, z).rotate(angle, axis).scale(0.2f + random.nextFloat() * 0.3f, 0.2f + random.nextFloat() * 0.3f, 0.2f + random.nextFloat() * 0.3f);
+			modelMatrix.get(nonUniformModelMatrices, i * 16);
+
+			modelMatrix.translation(x, y, z).rotate(angle, axis).scale(0.2f + random.nextFloat() * 0.3f);
+			modelMatrix.get(uniformModelMatrices, i * 16);
+		}
+
+		float[] normalMatrices = new float[cubeCount * 9];
+
+		// A VAO per set of cubes, with the model matrices on the locations 3 to 6 and the normal matrices on the locations 7 to 9.
+		int nonUniformVaoId = GL30.glGenVertexArrays();
+		int uniformVaoId = GL30.glGenVertexArrays();
+
+		int nonUniformVboId = LightingBenchmark.createCube(nonUniformVaoId);
+		int uniformVboId = LightingBenchmark.createCube(uniformVaoId);
+
+		InstanceBuffer nonUniformInstanceBuffer = createInstanceBuffer(nonUniformVaoId, nonUniformModelMatrices, cubeCount);
+		InstanceBuffer uniformInstanceBuffer = createInstanceBuffer(uniformVaoId, uniformModelMatrices, cubeCount);
+
+		InstanceBuffer nonUniformNormalBuffer = new InstanceBuffer(cubeCount, 3, 3);
+		nonUniformNormalBuffer.attach(nonUniformVaoId, 7);
+
+		InstanceBuffer uniformNormalBuffer = new InstanceBuffer(cubeCount, 3, 3);
+		uniformNormalBuffer.attach(uniformVaoId, 7);
+
+		// A white texture, so the result is the light alone.
+		int textureId = GL11.glGenTextures();
+		GL11.glBindTexture(GL11.GL_TEXTURE_2D, textureId);
+		GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_NEAREST);
+		GL11.glTexImage2D(GL11.GL_TEXTURE_2D, 0, GL11.GL_RGBA8, 1, 1, 0, GL11.GL_RGBA, GL11.GL_UNSIGNED_BYTE, new int[] { 0xFFFFFFFF });
+
+		ShaderPreprocessor shaderPreprocessor = new ShaderPreprocessor("shaders", null);
+		shaderPreprocessor.addDefine("MAX_LIGHTS=1");
+
+		ShaderPermutations lightShaderPermutations = new ShaderPermutations(shaderPreprocessor, "light", "light.vertex.glsl", "light.fragment.glsl", null,
+				"coords", "normal", "texCoords", "T_model", null, null, null, "T_normal");
+		lightShaderPermutations.setUniformBlockBinding("Camera", 0);
+		lightShaderPermutations.setUniformBlockBinding("Lights", 1);
+
+		ShaderProgram gpuInverseProgram = lightShaderPermutations.get("FORWARD_LIGHTS", "INSTANCED");
+		ShaderProgram normalMatrixProgram = lightShaderPermutations.get("FORWARD_LIGHTS", "INSTANCED", "NORMAL_MATRIX");
+		ShaderProgram uniformScaleProgram = lightShaderPermutations.get("FORWARD_LIGHTS", "INSTANCED", "UNIFORM_SCALE");
+
+		for(ShaderProgram program : new ShaderProgram[] { gpuInverseProgram, normalMatrixProgram, uniformScaleProgram })
+		{
+			while(program.isPending()) program.update();
+
+			if(!program.update())
+			{
+				System.err.println("Cannot build the light shaders.");
+				System.exit(-1);
+			}
+
+			program.setUniform1i(ShaderProgram.getUniformHandle("diffuse"), 0);
+		}
+
+		Std140Layout frameLayout = new Std140Layout(GL11.glGetInteger(GL31.GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT));
+
+		int cameraBlock = frameLayout.beginBlock();
+		int cameraProjectionOffset = frameLayout.addMat4();
+		int cameraViewOffset = frameLayout.addMat4();
+		int cameraPositionOffset = frameLayout.addVec3();
+		int cameraInverseViewProjectionOffset = frameLayout.addMat4();
+		frameLayout.endBlock();
+
+		LightBlock lightBlock = new LightBlock(frameLayout, 1);
+
+		UniformBuffer frameUniformBuffer = new UniformBuffer(frameLayout);
+		frameUniformBuffer.bind(cameraBlock, 0);
+		frameUniformBuffer.bind(lightBlock.getBlock(), 1);
+
+		Matrix4f projectionMatrix = new Matrix4f().setPerspective((float)Math.toRadians(45.0), 800.0f / 600.0f, 0.1f, 100.0f);
+
+		frameUniformBuffer.putMatrix4f(cameraProjectionOffset, projectionMatrix);
+		frameUniformBuffer.putMatrix4f(cameraViewOffset, new Matrix4f());
+		frameUniformBuffer.putMatrix4f(cameraInverseViewProjectionOffset, new Matrix4f(projectionMatrix).invert());
+		frameUniformBuffer.putVector3f(cameraPositionOffset, new Vector3f());
+		lightBlock.putAmbientLight(frameUniformBuffer, new Vector3f(1.0f), 0.1f);
+		lightBlock.putDirectionalLight(frameUniformBuffer, 0, new Vector3f(1.0f), 0.8f, new Vector3f(1.0f, -1.0f, -1.0f));
+		lightBlock.putLightCounts(frameUniformBuffer, 1, 0);
+		frameUniformBuffer.upload();
+
+		GL11.glEnable(GL11.GL_DEPTH_TEST);
+
+		int queryId = GL15.glGenQueries();
+
+		System.out.printf("%8s  %-20s %12s %12s %12s%n", "cubes", "way", "inverted", "cpu time", "gpu time");
+
+		measure(cubeCount, "gpu inverse", cubeCount, queryId, gpuInverseProgram, nonUniformVaoId, () -> {});
+
+		measure(cubeCount, "cpu normal matrices", cubeCount - NormalMatrices.compute(nonUniformModelMatrices, normalMatrices, cubeCount),
+				queryId, normalMatrixProgram, nonUniformVaoId, () -> uploadNormalMatrices(nonUniformModelMatrices, normalMatrices, nonUniformNormalBuffer, cubeCount));
+
+		measure(cubeCount, "cpu uniform scale", cubeCount - NormalMatrices.compute(uniformModelMatrices, normalMatrices, cubeCount),
+				queryId, normalMatrixProgram, uniformVaoId, () -> uploadNormalMatrices(uniformModelMatrices, normalMatrices, uniformNormalBuffer, cubeCount));
+
+		measure(cubeCount, "model matrix", 0, queryId, uniformScaleProgram, uniformVaoId, () -> {});
+
+		GL20.glUseProgram(0);
+		GL30.glBindVertexArray(0);
+
+		GL15.glDeleteQueries(queryId);
+		lightShaderPermutations.delete();
+		frameUniformBuffer.delete();
+		nonUniformInstanceBuffer.delete();
+		uniformInstanceBuffer.delete();
+		nonUniformNormalBuffer.delete();
+		uniformNormalBuffer.delete();
+		GL11.glDeleteTextures(textureId);
+		GL15.glDeleteBuffers(nonUniformVboId);
+		GL15.glDeleteBuffers(uniformVboId);
+		GL30.glDeleteVertexArrays(nonUniformVaoId);
+		GL30.glDeleteVertexArrays(uniformVaoId);
+
+		GLFW.glfwDestroyWindow(windowId);
+		GLFW.glfwTerminate();
+	}
+
+	/**
+	 * Draws the frames of a way. The update runs on the cpu before every draw.
+	 *
+	 * @param invertedCount The number of cubes whose normal matrix is computed by inverting their model matrix.
+	 */
+	private static void measure(int cubeCount, String way, int invertedCount, int queryId, ShaderProgram program, int vaoId, Runnable update)
+	{
+		long cpuTime = 0;
+		long gpuTime = 0;
+
+		GL20.glUseProgram(program.getId());
+		GL30.glBindVertexArray(vaoId);
+
+		for(int i = 0; i < WARMUP_FRAMES + FRAMES; i++)
+		{
+			GL11.glClear(GL11.GL_COLOR_BUFFER_BIT | GL11.GL_DEPTH_BUFFER_BIT);
+
+			long start = System.nanoTime();
+
+			update.run();
+
+			long updated = System.nanoTime();
+
+			GL15.glBeginQuery(GL33.GL_TIME_ELAPSED, queryId);
+			GL31.glDrawArraysInstanced(GL11.GL_TRIANGLES, 0, 36, cubeCount);
+			GL15.glEndQuery(GL33.GL_TIME_ELAPSED);
+
+			// Reading the result waits until the gpu finished the draw.
+			long drawTime = GL33.glGetQueryObjecti64(queryId, GL15.GL_QUERY_RESULT);
+
+			if(i >= WARMUP_FRAMES)
+			{
+				cpuTime += updated - start;
+				gpuTime += drawTime;
+			}
+		}
+
+		System.out.printf("%8d  %-20s %12d %9.3f ms %9.3f ms%n", cubeCount, way, invertedCount, cpuTime / 1e6 / FRAMES, gpuTime / 1e6 / FRAMES);
+	}
+
+	private static void uploadNormalMatrices(float[] modelMatrices, float[] normalMatrices, InstanceBuffer normalBuffer, int cubeCount)
+	{
+		NormalMatrices.compute(modelMatrices, normalMatrices, cubeCount);
+
+		normalBuffer.clear();
+		for(int i = 0; i < cubeCount; i++)
+			normalBuffer.put(normalMatrices, i * 9);
+		normalBuffer.upload();
+	}
+
+	private static InstanceBuffer createInstanceBuffer(int vaoId, float[] modelMatrices, int cubeCount)
+	{
+		InstanceBuffer instanceBuffer = new InstanceBuffer(cubeCount);
+		instanceBuffer.attach(vaoId, 3);
+
+		for(int i = 0; i < cubeCount; i++)
+			instanceBuffer.put(modelMatrices, i * 16);
+		instanceBuffer.upload();
+
+		return instanceBuffer;
+	}
+}
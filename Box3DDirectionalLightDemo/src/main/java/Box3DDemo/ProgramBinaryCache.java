@@ -0,0 +1,279 @@
+package Box3DDemo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL41;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * Keeps linked shader programs in a cache directory on disk, so later launches don't have to compile and link them again.
+ *
+ * After a program got linked, the driver hands out its compiled form with glGetProgramBinary. The binary can be loaded into
+ * a new program with glProgramBinary, which is much faster than compiling the sources. The binary is only valid for the
+ * driver that created it. Therefore the cache files are named after the SHA-256 hash of the sources together with
+ * the vendor, renderer and version of the driver. The driver may still reject a binary, e.g. after an update that didn't
+ * change the version string. Then the program is compiled as usual and the cache file is replaced.
+ */
+public class ProgramBinaryCache
+{
+	// Identifies a cache file. These are the ASCII characters "PBIN".
+	private static final int MAGIC = 0x5042494E;
+
+	// Has to be increased whenever the layout of the cache files changes.
+	private static final int VERSION = 1;
+
+	// The size of the file header: magic, version, binary format, compile time and binary length.
+	private static final int HEADER_SIZE = 3 * 4 + 8 + 4;
+
+	// The directory the cache files are stored in.
+	private final File directory;
+
+	// Identifies the driver the binaries were created by.
+	private final String driver;
+
+	// False if the driver doesn't support any binary format.
+	private final boolean isSupported;
+
+	// Statistics.
+	private int hitCount;
+	private int missCount;
+	private int rejectCount;
+	private long savedTime;
+
+	/**
+	 * Creates a cache for the driver of the current OpenGL context. This has to be called on the OpenGL thread.
+	 */
+	public ProgramBinaryCache(File directory)
+	{
+		this.directory = directory;
+		this.driver = GL11.glGetString(GL11.GL_VENDOR) + "\n" + GL11.glGetString(GL11.GL_RENDERER) + "\n" + GL11.glGetString(GL11.GL_VERSION);
+		this.isSupported = GL11.glGetInteger(GL41.GL_NUM_PROGRAM_BINARY_FORMATS) > 0;
+	}
+
+	/**
+	 * Returns the key of a program built from the given sources and settings on the current driver.
+	 */
+	public String getKey(String... sources)
+	{
+		try
+		{
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
+			digest.update(this.driver.getBytes(StandardCharsets.UTF_8));
+
+			for(String source : sources)
+			{
+				// The separator keeps moving text from one source to the next from producing the same hash.
+				digest.update((byte)0);
+				digest.update(String.valueOf(source).getBytes(StandardCharsets.UTF_8));
+			}
+
+			StringBuilder builder = new StringBuilder(64);
+			for(byte b : digest.digest())
+				builder.append(String.format("%02x", b));
+
+			return builder.toString();
+		} catch (NoSuchAlgorithmException e)
+		{
+			// Every java platform is required to support SHA-256.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Loads the cached binary of the key into the program. This has to be called on the OpenGL thread.
+	 *
+	 * @return True if the program is linked and ready to use, false if it has to be compiled.
+	 */
+	public boolean load(int programId, String key)
+	{
+		File cacheFile = new File(this.directory, key + ".bin");
+
+		if(!this.isSupported || !cacheFile.isFile())
+		{
+			this.missCount++;
+			return false;
+		}
+
+		long start = System.nanoTime();
+
+		try(FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ))
+		{
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+			if(readFully(channel, header) && header.getInt(0) == MAGIC && header.getInt(4) == VERSION)
+			{
+				int binaryFormat = header.getInt(8);
+				long compileTime = header.getLong(12);
+
+				int length = header.getInt(20);
+
+				// A length that doesn't match the file means the file is broken.
+				ByteBuffer binary = length == channel.size() - HEADER_SIZE ? MemoryUtil.memAlloc(length) : null;
+				try
+				{
+					if(binary != null && readFully(channel, binary))
+					{
+						binary.flip();
+
+						GL41.glProgramBinary(programId, binaryFormat, binary);
+
+						if(GL20.glGetProgrami(programId, GL20.GL_LINK_STATUS) == GL11.GL_TRUE)
+						{
+							this.hitCount++;
+							this.savedTime += Math.max(0, compileTime - (System.nanoTime() - start));
+
+							return true;
+						}
+					}
+				}
+				finally
+				{
+					if(binary != null) MemoryUtil.memFree(binary);
+				}
+			}
+		} catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+
+		// The binary is broken or the driver doesn't accept it anymore. It gets replaced after the program is compiled.
+		this.missCount++;
+		this.rejectCount++;
+
+		return false;
+	}
+
+	/**
+	 * Stores the binary of the linked program under the key. The program must have been linked with
+	 * GL_PROGRAM_BINARY_RETRIEVABLE_HINT set. The compile time is stored to report the time saved by later hits.
+	 * This has to be called on the OpenGL thread.
+	 */
+	public void save(int programId, String key, long compileTime)
+	{
+		if(!this.isSupported) return;
+
+		int length = GL20.glGetProgrami(programId, GL41.GL_PROGRAM_BINARY_LENGTH);
+		if(length <= 0) return;
+
+		ByteBuffer binary = MemoryUtil.memAlloc(length);
+		int[] binaryLength = new int[1];
+		int[] binaryFormat = new int[1];
+
+		try
+		{
+			GL41.glGetProgramBinary(programId, binaryLength, binaryFormat, binary);
+			binary.limit(binaryLength[0]);
+
+			write(new File(this.directory, key + ".bin"), binaryFormat[0], compileTime, binary);
+		} catch (IOException e)
+		{
+			// A cache that can't be written only costs time on the next launch.
+			e.printStackTrace();
+		}
+		finally
+		{
+			MemoryUtil.memFree(binary);
+		}
+	}
+
+	/**
+	 * Returns true if the driver supports program binaries at all.
+	 */
+	public boolean isSupported()
+	{
+		return this.isSupported;
+	}
+
+	/**
+	 * Returns how often a program was loaded from the cache.
+	 */
+	public int getHitCount()
+	{
+		return this.hitCount;
+	}
+
+	/**
+	 * Returns how often a program had to be compiled, including rejected binaries.
+	 */
+	public int getMissCount()
+	{
+		return this.missCount;
+	}
+
+	/**
+	 * Returns how often a cached binary was rejected by the driver.
+	 */
+	public int getRejectCount()
+	{
+		return this.rejectCount;
+	}
+
+	/**
+	 * Returns the ratio of hits to all loads.
+	 */
+	public double getHitRate()
+	{
+		int loadCount = this.hitCount + this.missCount;
+
+		return loadCount == 0 ? 0 : (double)this.hitCount / loadCount;
+	}
+
+	/**
+	 * Returns the time in nanoseconds saved by loading binaries instead of compiling the programs,
+	 * based on the compile times measured when the binaries were stored.
+	 */
+	public long getSavedTime()
+	{
+		return this.savedTime;
+	}
+
+	/**
+	 * Writes the binary into the cache file. The data is written into a temporary file first,
+	 * so an interrupted write never leaves a broken cache file behind.
+	 */
+	private void write(File cacheFile, int binaryFormat, long compileTime, ByteBuffer binary) throws IOException
+	{
+		Files.createDirectories(this.directory.toPath());
+
+		Path temporaryFile = Files.createTempFile(this.directory.toPath(), cacheFile.getName(), ".tmp");
+
+		try(FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.WRITE))
+		{
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putInt(VERSION).putInt(binaryFormat).putLong(compileTime).putInt(binary.remaining());
+			header.flip();
+			writeFully(channel, header);
+
+			writeFully(channel, binary);
+		}
+
+		Files.move(temporaryFile, cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static boolean readFully(FileChannel channel, ByteBuffer buffer) throws IOException
+	{
+		while(buffer.hasRemaining())
+			if(channel.read(buffer) < 0) return false;
+
+		return true;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException
+	{
+		while(buffer.hasRemaining())
+			channel.write(buffer);
+	}
+}
@@ -0,0 +1,253 @@
+package Box3DDemo;
+
+import java.util.Arrays;
+
+/**
+ * Collects the draws of a frame and orders them to minimize the state changes between them.
+ *
+ * Every draw is submitted with a 64-bit sort key and an item, e.g. the index of the object to draw. From the highest to the
+ * lowest bits, the key holds the pass, the program, the material, the texture and the depth of the draw:
+ *
+ *   | pass (4) | program (12) | material (12) | texture (12) | depth (24) |
+ *
+ * Sorting the keys groups the draws by pass first, so the passes run in order, and by program, material and texture within
+ * a pass, so each of them is only bound once per group. Within a group the draws are ordered front to back, which lets the
+ * depth test discard hidden fragments early.
+ *
+ * The keys are sorted with a radix sort on the primitive arrays, so sorting neither boxes the keys nor compares objects.
+ */
+public class RenderQueue
+{
+	private static final int PASS_SHIFT = 60;
+	private static final int PROGRAM_SHIFT = 48;
+	private static final int MATERIAL_SHIFT = 36;
+	private static final int TEXTURE_SHIFT = 24;
+
+	private static final long ID_MASK = 0xFFF;
+	private static final long DEPTH_MASK = 0xFFFFFF;
+
+	// The state bits of the key, everything except the depth.
+	private static final long STATE_MASK = ~DEPTH_MASK;
+
+	// The sort keys and the items of the submitted draws.
+	private long[] keys;
+	private int[] items;
+
+	// The second set of arrays the radix sort moves the draws into.
+	private long[] sortedKeys;
+	private int[] sortedItems;
+
+	// The number of keys per byte value in the current pass of the radix sort, kept so sorting allocates nothing.
+	private final int[] counts = new int[256];
+
+	private int size;
+
+	// The number of times the pass, program, material or texture changes between two draws.
+	private int stateChanges;
+	private int unsortedStateChanges;
+
+	// Statistics over all frames.
+	private long totalStateChanges;
+	private long totalUnsortedStateChanges;
+	private int sortCount;
+
+	public RenderQueue(int capacity)
+	{
+		this.keys = new long[capacity];
+		this.items = new int[capacity];
+		this.sortedKeys = new long[capacity];
+		this.sortedItems = new int[capacity];
+	}
+
+	/**
+	 * Creates the sort key of a draw. The ids have to be below 4096, the pass below 16.
+	 * The depth is the distance of the draw to the camera in the range 0 to 1.
+	 */
+	public static long createKey(int pass, int program, int material, int texture, float depth)
+	{
+		long quantizedDepth = (long)(Math.min(Math.max(depth, 0.0f), 1.0f) * DEPTH_MASK);
+
+		return (long)pass << PASS_SHIFT
+				| (program & ID_MASK) << PROGRAM_SHIFT
+				| (material & ID_MASK) << MATERIAL_SHIFT
+				| (texture & ID_MASK) << TEXTURE_SHIFT
+				| quantizedDepth;
+	}
+
+	public static int getPass(long key)
+	{
+		return (int)(key >>> PASS_SHIFT);
+	}
+
+	public static int getProgram(long key)
+	{
+		return (int)(key >>> PROGRAM_SHIFT & ID_MASK);
+	}
+
+	public static int getMaterial(long key)
+	{
+		return (int)(key >>> MATERIAL_SHIFT & ID_MASK);
+	}
+
+	public static int getTexture(long key)
+	{
+		return (int)(key >>> TEXTURE_SHIFT & ID_MASK);
+	}
+
+	/**
+	 * Removes all draws.
+	 */
+	public void clear()
+	{
+		this.size = 0;
+	}
+
+	/**
+	 * Adds a draw of the item with the sort key.
+	 */
+	public void submit(long key, int item)
+	{
+		if(this.size == this.keys.length)
+		{
+			int capacity = Math.max(this.size * 2, 16);
+
+			this.keys = Arrays.copyOf(this.keys, capacity);
+			this.items = Arrays.copyOf(this.items, capacity);
+			this.sortedKeys = new long[capacity];
+			this.sortedItems = new int[capacity];
+		}
+
+		this.keys[this.size] = key;
+		this.items[this.size] = item;
+		this.size++;
+	}
+
+	/**
+	 * Sorts the draws by their keys. Draws with equal keys keep the order they were submitted in.
+	 */
+	public void sort()
+	{
+		this.unsortedStateChanges = countStateChanges();
+
+		// A least significant digit radix sort, one byte per pass. Bytes that are the same in all keys are skipped.
+		for(int shift = 0; shift < 64; shift += 8)
+		{
+			int[] counts = this.counts;
+			Arrays.fill(counts, 0);
+
+			for(int i = 0; i < this.size; i++)
+				counts[(int)(this.keys[i] >>> shift) & 0xFF]++;
+
+			if(this.size == 0 || counts[(int)(this.keys[0] >>> shift) & 0xFF] == this.size) continue;
+
+			// Turn the counts into the first position of each byte value.
+			int position = 0;
+			for(int value = 0; value < 256; value++)
+			{
+				int count = counts[value];
+				counts[value] = position;
+				position += count;
+			}
+
+			for(int i = 0; i < this.size; i++)
+			{
+				int target = counts[(int)(this.keys[i] >>> shift) & 0xFF]++;
+
+				this.sortedKeys[target] = this.keys[i];
+				this.sortedItems[target] = this.items[i];
+			}
+
+			long[] keys = this.keys;
+			this.keys = this.sortedKeys;
+			this.sortedKeys = keys;
+
+			int[] items = this.items;
+			this.items = this.sortedItems;
+			this.sortedItems = items;
+		}
+
+		this.stateChanges = countStateChanges();
+
+		this.totalStateChanges += this.stateChanges;
+		this.totalUnsortedStateChanges += this.unsortedStateChanges;
+		this.sortCount++;
+	}
+
+	public int size()
+	{
+		return this.size;
+	}
+
+	public long getKey(int index)
+	{
+		return this.keys[index];
+	}
+
+	public int getItem(int index)
+	{
+		return this.items[index];
+	}
+
+	/**
+	 * Returns the number of state changes needed to execute the draws of the last sort in sorted order.
+	 */
+	public int getStateChanges()
+	{
+		return this.stateChanges;
+	}
+
+	/**
+	 * Returns the number of state changes the last sort saved compared to executing the draws in the order they were submitted.
+	 */
+	public int getAvoidedStateChanges()
+	{
+		return this.unsortedStateChanges - this.stateChanges;
+	}
+
+	/**
+	 * Returns the average number of state changes per sort.
+	 */
+	public double getAverageStateChanges()
+	{
+		return this.sortCount == 0 ? 0 : (double)this.totalStateChanges / this.sortCount;
+	}
+
+	/**
+	 * Returns the average number of state changes saved per sort.
+	 */
+	public double getAverageAvoidedStateChanges()
+	{
+		return this.sortCount == 0 ? 0 : (double)(this.totalUnsortedStateChanges - this.totalStateChanges) / this.sortCount;
+	}
+
+	/**
+	 * Counts the changes of the pass, the program, the material and the texture between the draws in their current order.
+	 * The first draw sets all of them.
+	 */
+	private int countStateChanges()
+	{
+		int changes = 0;
+		long previous = -1;
+
+		for(int i = 0; i < this.size; i++)
+		{
+			long state = this.keys[i] & STATE_MASK;
+
+			if(i == 0)
+			{
+				changes += 4;
+			}
+			else if(state != previous)
+			{
+				if(getPass(state) != getPass(previous)) changes++;
+				if(getProgram(state) != getProgram(previous)) changes++;
+				if(getMaterial(state) != getMaterial(previous)) changes++;
+				if(getTexture(state) != getTexture(previous)) changes++;
+			}
+
+			previous = state;
+		}
+
+		return changes;
+	}
+}
@@ -0,0 +1,207 @@
+package Box3DDemo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Watches files for changes and reloads them while the application is running.
+ *
+ * A background thread waits for events of a WatchService. When a watched file changes, its loader is run on a worker thread,
+ * e.g. to read a shader source or to decode an image. The result is handed to the applier on the OpenGL thread
+ * the next time update() is called, so the resources are only swapped between two frames.
+ *
+ * Editors often write a file several times when saving it. Therefore a file is only reloaded after no further change
+ * has been reported for a short delay.
+ */
+public class ResourceWatcher
+{
+	// The time in milliseconds a file has to stay unchanged before it is reloaded.
+	private static final long RELOAD_DELAY = 100;
+
+	private final WatchService watchService;
+
+	// The thread waiting for the file system events.
+	private final Thread watchThread;
+
+	// The worker running the loaders. A single thread loads the files one after another in the order they changed.
+	private final ScheduledExecutorService loader;
+
+	// The watched directories. Each directory is only registered once with the watch service.
+	private final Set<Path> directories = new HashSet<>();
+
+	// The reloads registered for each watched file.
+	private final Map<Path, List<Reload<?>>> reloads = new ConcurrentHashMap<>();
+
+	// The scheduled reloads of the files that changed recently.
+	private final Map<Path, ScheduledFuture<?>> scheduledReloads = new ConcurrentHashMap<>();
+
+	// The appliers of the loaded resources waiting for the OpenGL thread.
+	private final Queue<Runnable> pendingAppliers = new ConcurrentLinkedQueue<>();
+
+	public ResourceWatcher() throws IOException
+	{
+		this.watchService = FileSystems.getDefault().newWatchService();
+
+		this.loader = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "ResourceLoader");
+
+			// The loader must not keep the application alive after the main loop ended.
+			thread.setDaemon(true);
+
+			return thread;
+		});
+
+		this.watchThread = new Thread(this::watch, "ResourceWatcher");
+		this.watchThread.setDaemon(true);
+		this.watchThread.start();
+	}
+
+	/**
+	 * Reloads a resource whenever the file changes. The loader is called on a worker thread and must not use OpenGL.
+	 * Its result is passed to the applier on the OpenGL thread during update(). If the loader fails, the error is printed
+	 * and the applier is not called, so the old resource stays in use.
+	 */
+	public <T> void watch(File file, Callable<T> loader, Consumer<T> applier) throws IOException
+	{
+		Path path = file.toPath().toAbsolutePath().normalize();
+		Path directory = path.getParent();
+
+		synchronized(this.directories)
+		{
+			if(this.directories.add(directory))
+				directory.register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		}
+
+		this.reloads.computeIfAbsent(path, key -> new ArrayList<>()).add(new Reload<>(loader, applier));
+	}
+
+	/**
+	 * Applies the resources reloaded since the last call. This has to be called on the OpenGL thread once per frame.
+	 *
+	 * @return The amount of applied resources.
+	 */
+	public int update()
+	{
+		int count = 0;
+
+		Runnable applier;
+		while((applier = this.pendingAppliers.poll()) != null)
+		{
+			applier.run();
+			count++;
+		}
+
+		return count;
+	}
+
+	/**
+	 * Stops watching the files.
+	 */
+	public void close()
+	{
+		try
+		{
+			this.watchService.close();
+		} catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+
+		this.loader.shutdownNow();
+	}
+
+	/**
+	 * Waits for file system events until the watch service is closed.
+	 */
+	private void watch()
+	{
+		try
+		{
+			while(true)
+			{
+				WatchKey key = this.watchService.take();
+				Path directory = (Path)key.watchable();
+
+				for(WatchEvent<?> event : key.pollEvents())
+				{
+					// An overflow means events got lost, the context is not a file name then.
+					if(event.kind() == StandardWatchEventKinds.OVERFLOW) continue;
+
+					Path path = directory.resolve((Path)event.context());
+
+					if(this.reloads.containsKey(path)) schedule(path);
+				}
+
+				key.reset();
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e)
+		{
+			// The watcher got closed.
+		}
+	}
+
+	/**
+	 * Schedules the reload of the file after the delay. A reload scheduled by an earlier event of the same file is canceled.
+	 */
+	private void schedule(Path path)
+	{
+		ScheduledFuture<?> reload = this.loader.schedule(() -> {
+			this.scheduledReloads.remove(path);
+
+			for(Reload<?> entry : this.reloads.get(path))
+				entry.load(path);
+		}, RELOAD_DELAY, TimeUnit.MILLISECONDS);
+
+		ScheduledFuture<?> previousReload = this.scheduledReloads.put(path, reload);
+		if(previousReload != null) previousReload.cancel(false);
+	}
+
+	/**
+	 * The loader and applier of a watched file.
+	 */
+	private class Reload<T>
+	{
+		private final Callable<T> loader;
+		private final Consumer<T> applier;
+
+		public Reload(Callable<T> loader, Consumer<T> applier)
+		{
+			this.loader = loader;
+			this.applier = applier;
+		}
+
+		public void load(Path path)
+		{
+			try
+			{
+				T resource = this.loader.call();
+
+				pendingAppliers.add(() -> this.applier.accept(resource));
+			} catch (Exception e)
+			{
+				System.err.println("Cannot reload " + path + ": " + e);
+			}
+		}
+	}
+}
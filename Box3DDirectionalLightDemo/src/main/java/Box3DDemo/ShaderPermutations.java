@@ -0,0 +1,138 @@
+package Box3DDemo;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The variants of one shader program that are built from the same sources with different sets of defines.
+ *
+ * Features like an additional light are switched on with #ifdef in the sources instead of branching on a uniform at runtime.
+ * Every set of defines gets its own specialized program, which is created the first time it is requested and reused afterwards.
+ * The order of the defines doesn't matter.
+ */
+public class ShaderPermutations
+{
+	private final ShaderPreprocessor preprocessor;
+
+	private final String name;
+	private final String vertexShaderName;
+	private final String fragmentShaderName;
+
+	private final ProgramBinaryCache binaryCache;
+	private final String[] attributes;
+
+	// The programs by their sorted defines. The define sets are also read by the thread reloading the sources.
+	private final Map<String, ShaderProgram> programs = new HashMap<>();
+	private final Map<String, String[]> defineSets = new ConcurrentHashMap<>();
+
+	// The binding points of the uniform blocks by name, set on every permutation.
+	private final Map<String, Integer> uniformBlockBindings = new HashMap<>();
+
+	/**
+	 * Creates the permutations of the program built from the named vertex and fragment shader.
+	 * The binary cache can be null, the attributes are bound like in ShaderProgram.
+	 */
+	public ShaderPermutations(ShaderPreprocessor preprocessor, String name, String vertexShaderName, String fragmentShaderName, ProgramBinaryCache binaryCache, String... attributes)
+	{
+		this.preprocessor = preprocessor;
+		this.name = name;
+		this.vertexShaderName = vertexShaderName;
+		this.fragmentShaderName = fragmentShaderName;
+		this.binaryCache = binaryCache;
+		this.attributes = attributes;
+	}
+
+	/**
+	 * Returns the program built with the defines. A new permutation is submitted to the driver and might not be ready yet,
+	 * see ShaderProgram.update(). This has to be called on the OpenGL thread.
+	 */
+	public ShaderProgram get(String... defines) throws IOException
+	{
+		String[] sortedDefines = new TreeSet<>(Arrays.asList(defines)).toArray(new String[0]);
+		String key = String.join(" ", sortedDefines);
+
+		ShaderProgram program = this.programs.get(key);
+
+		if(program == null)
+		{
+			String[] sources = process(sortedDefines);
+
+			program = new ShaderProgram(this.name + "[" + key + "]", this.binaryCache, this.attributes);
+			program.submit(sources[0], sources[1]);
+
+			for(Map.Entry<String, Integer> binding : this.uniformBlockBindings.entrySet())
+				program.setUniformBlockBinding(binding.getKey(), binding.getValue());
+
+			this.programs.put(key, program);
+			this.defineSets.put(key, sortedDefines);
+		}
+
+		return program;
+	}
+
+	/**
+	 * Binds the uniform block of all permutations, including the ones created later, to the binding point.
+	 */
+	public void setUniformBlockBinding(String name, int binding)
+	{
+		this.uniformBlockBindings.put(name, binding);
+
+		for(ShaderProgram program : this.programs.values())
+			program.setUniformBlockBinding(name, binding);
+	}
+
+	/**
+	 * Reads the sources of all permutations created so far. This doesn't use OpenGL and can be called on any thread.
+	 */
+	public Map<String, String[]> loadSources() throws IOException
+	{
+		Map<String, String[]> sources = new HashMap<>();
+
+		for(Map.Entry<String, String[]> defineSet : this.defineSets.entrySet())
+			sources.put(defineSet.getKey(), process(defineSet.getValue()));
+
+		return sources;
+	}
+
+	/**
+	 * Rebuilds the permutations from the sources returned by loadSources(). Every permutation keeps its current program
+	 * until the new one is ready. This has to be called on the OpenGL thread.
+	 */
+	public void submit(Map<String, String[]> sources)
+	{
+		for(Map.Entry<String, String[]> source : sources.entrySet())
+			this.programs.get(source.getKey()).submit(source.getValue()[0], source.getValue()[1]);
+	}
+
+	/**
+	 * Returns the number of permutations created so far.
+	 */
+	public int getPermutationCount()
+	{
+		return this.programs.size();
+	}
+
+	/**
+	 * Deletes the programs of all permutations.
+	 */
+	public void delete()
+	{
+		for(ShaderProgram program : this.programs.values())
+			program.delete();
+
+		this.programs.clear();
+		this.defineSets.clear();
+	}
+
+	private String[] process(String[] defines) throws IOException
+	{
+		return new String[] {
+			this.preprocessor.process(this.vertexShaderName, Arrays.asList(defines)),
+			this.preprocessor.process(this.fragmentShaderName, Arrays.asList(defines))
+		};
+	}
+}
@@ -0,0 +1,143 @@
+package Box3DDemo;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads GLSL sources and resolves the parts OpenGL doesn't understand itself.
+ *
+ * A line like #include "lights.glsl" is replaced by the content of the named file. Every file is only included once per shader,
+ * so shared structs can be included by several files without being declared twice. The given defines are inserted right after
+ * the #version line, which has to stay the first line of a shader. Defines added with addDefine() are inserted into every shader
+ * before them, e.g. array sizes that have to match the application.
+ *
+ * The sources are read from the classpath. If a source directory is given and contains the file, it is read from there instead,
+ * so changes can be applied without rebuilding the application.
+ *
+ * #line directives keep the line numbers in the error logs of the driver correct. The source string number of a line is the
+ * position of its file in the order the files were first included, the main file has number 0.
+ */
+public class ShaderPreprocessor
+{
+	private static final Pattern INCLUDE = Pattern.compile("\\s*#include\\s+\"([^\"]+)\"\\s*");
+	private static final Pattern VERSION = Pattern.compile("\\s*#version\\s.*");
+
+	// The classpath directory of the sources.
+	private final String resourceDirectory;
+
+	// The directory the sources are read from if they exist in it or null to always use the classpath.
+	private final File sourceDirectory;
+
+	// The defines inserted into every shader. They are also read by the thread reloading the sources.
+	private final List<String> defines = new CopyOnWriteArrayList<>();
+
+	public ShaderPreprocessor(String resourceDirectory, File sourceDirectory)
+	{
+		this.resourceDirectory = resourceDirectory;
+		this.sourceDirectory = sourceDirectory;
+	}
+
+	/**
+	 * Adds a define to every shader processed from now on. A define is either a name or a name and a value separated by "=".
+	 */
+	public void addDefine(String define)
+	{
+		this.defines.add(define);
+	}
+
+	/**
+	 * Returns the source of the shader with all includes resolved and the defines inserted.
+	 * A define is either a name or a name and a value separated by "=". This doesn't use OpenGL and can be called on any thread.
+	 */
+	public String process(String name, Collection<String> defines) throws IOException
+	{
+		StringBuilder source = new StringBuilder();
+		List<String> files = new ArrayList<>();
+
+		List<String> allDefines = new ArrayList<>(this.defines);
+		allDefines.addAll(defines);
+
+		include(name, allDefines, files, source);
+
+		return source.toString();
+	}
+
+	private void include(String name, Collection<String> defines, List<String> files, StringBuilder source) throws IOException
+	{
+		int fileNumber = files.size();
+		files.add(name);
+
+		// The defines are inserted before the first line if the shader doesn't start with a version.
+		boolean definesPending = defines != null;
+
+		if(fileNumber != 0) source.append("#line 1 ").append(fileNumber).append('\n');
+
+		try(BufferedReader reader = new BufferedReader(new InputStreamReader(open(name), StandardCharsets.UTF_8)))
+		{
+			int lineNumber = 0;
+
+			String line;
+			while((line = reader.readLine()) != null)
+			{
+				lineNumber++;
+
+				if(definesPending)
+				{
+					definesPending = false;
+
+					boolean isVersion = VERSION.matcher(line).matches();
+					if(isVersion) source.append(line).append('\n');
+
+					for(String define : defines)
+						source.append("#define ").append(define.replace('=', ' ')).append('\n');
+
+					source.append("#line ").append(isVersion ? lineNumber + 1 : lineNumber).append(" 0\n");
+
+					if(isVersion) continue;
+				}
+
+				Matcher include = INCLUDE.matcher(line);
+
+				if(include.matches())
+				{
+					// Files that were already included are left out, there is nothing to declare twice.
+					if(!files.contains(include.group(1)))
+					{
+						include(include.group(1), null, files, source);
+						source.append("#line ").append(lineNumber + 1).append(' ').append(fileNumber).append('\n');
+					}
+				}
+				else
+				{
+					source.append(line).append('\n');
+				}
+			}
+		}
+	}
+
+	private InputStream open(String name) throws IOException
+	{
+		if(this.sourceDirectory != null)
+		{
+			File file = new File(this.sourceDirectory, name);
+			if(file.isFile()) return new FileInputStream(file);
+		}
+
+		InputStream stream = ShaderPreprocessor.class.getResourceAsStream("/" + this.resourceDirectory + "/" + name);
+
+		if(stream == null) throw new IOException("Cannot find shader source " + name + ".");
+
+		return stream;
+	}
+}
@@ -0,0 +1,691 @@
+package Box3DDemo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.joml.Matrix4fc;
+
+import org.lwjgl.opengl.ARBParallelShaderCompile;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL31;
+import org.lwjgl.opengl.GL41;
+import org.lwjgl.opengl.GLCapabilities;
+import org.lwjgl.opengl.KHRParallelShaderCompile;
+import org.lwjgl.system.MemoryStack;
+
+/**
+ * A shader program built from a vertex and a fragment shader that can be rebuilt from new sources at any time.
+ *
+ * If compiling or linking the new sources fails, the error log is printed and the old program stays in use.
+ * Programs can be submitted to the driver without waiting for the compiler and are swapped in by update() once they are finished.
+ * With a ProgramBinaryCache, programs built from the same sources before are loaded from the cache instead of being compiled.
+ *
+ * The active uniforms, attributes and uniform blocks are reflected once when a program is linked. Uniforms are set through handles
+ * from getUniformHandle(), which stay valid when the program is rebuilt and are shared by all programs. The typed setters remember
+ * the last value of every uniform and skip the upload if it didn't change.
+ */
+public class ShaderProgram
+{
+	// A name for error messages.
+	private final String name;
+
+	// The names of the vertex attributes, the index in the array is the location they are bound to.
+	private final String[] attributes;
+
+	// The cache for the linked programs or null if every program is compiled.
+	private final ProgramBinaryCache binaryCache;
+
+	// The id of the current program or 0 if no program was built successfully yet.
+	private int programId;
+
+	// The reflected interface of the current program by name: uniform locations, attribute locations and uniform block indices.
+	private final Map<String, Integer> uniformLocations = new HashMap<>();
+	private final Map<String, Integer> attributeLocations = new HashMap<>();
+	private final Map<String, Integer> uniformBlockIndices = new HashMap<>();
+
+	// The binding points of the uniform blocks by name, applied to every new program.
+	private final Map<String, Integer> uniformBlockBindings = new HashMap<>();
+
+	// The location of the uniform of each handle in the current program, -1 if the program doesn't use it.
+	private int[] handleLocations = new int[0];
+
+	// The last value uploaded for each handle, MAX_UNIFORM_SIZE floats per handle. Integers are stored with their bits.
+	private float[] uniformValues = new float[0];
+
+	// True if the value of the handle was uploaded to the current program.
+	private boolean[] uniformIsSet = new boolean[0];
+
+	// The matrix to compare with the stored value before uploading it.
+	private final float[] matrixValues = new float[16];
+	private final float[] matrix3Values = new float[9];
+
+	// Statistics.
+	private long uniformUploadCount;
+	private long skippedUniformCount;
+
+	// The program handed to the driver by submit() and its shaders, 0 if nothing is compiling.
+	private int pendingProgramId;
+	private int pendingVertexShaderId;
+	private int pendingFragmentShaderId;
+
+	// The binary cache key of the submitted program, the time it was submitted and the time the compile and link calls took.
+	private String pendingKey;
+	private long pendingStartTime;
+	private long pendingSubmitTime;
+
+	// True if the driver compiles on its own threads and the completion can be polled.
+	private static boolean parallelCompile;
+
+	// The largest uniform the setters store, a 4x4 matrix.
+	private static final int MAX_UNIFORM_SIZE = 16;
+
+	// The handles of the uniform names, shared by all programs.
+	private static final Map<String, Integer> uniformHandles = new HashMap<>();
+	private static final List<String> uniformHandleNames = new ArrayList<>();
+
+	/**
+	 * Creates an empty shader program. The attributes are bound to the location matching their index, null entries are skipped.
+	 */
+	public ShaderProgram(String name, String... attributes)
+	{
+		this(name, null, attributes);
+	}
+
+	/**
+	 * Creates an empty shader program that stores its linked programs in the binary cache.
+	 * The attributes are bound to the location matching their index, null entries are skipped.
+	 */
+	public ShaderProgram(String name, ProgramBinaryCache binaryCache, String... attributes)
+	{
+		this.name = name;
+		this.binaryCache = binaryCache;
+		this.attributes = attributes;
+	}
+
+	/**
+	 * Reads the sources of a vertex and a fragment shader from files. This doesn't use OpenGL and can be called on any thread.
+	 */
+	public static String[] readSources(File vertexShaderFile, File fragmentShaderFile) throws IOException
+	{
+		return new String[] {
+			new String(Files.readAllBytes(vertexShaderFile.toPath()), StandardCharsets.UTF_8),
+			new String(Files.readAllBytes(fragmentShaderFile.toPath()), StandardCharsets.UTF_8)
+		};
+	}
+
+	/**
+	 * Lets the driver compile shaders on its own threads, if it supports GL_KHR_parallel_shader_compile or GL_ARB_parallel_shader_compile.
+	 * Without this, programs submitted with submit() still compile in order on the driver thread. This has to be called once per context.
+	 *
+	 * @return True if the completion of submitted programs can be polled without blocking.
+	 */
+	public static boolean enableParallelCompile()
+	{
+		GLCapabilities capabilities = GL.getCapabilities();
+
+		if(capabilities.GL_KHR_parallel_shader_compile)
+		{
+			// The maximum value lets the driver pick the number of threads.
+			KHRParallelShaderCompile.glMaxShaderCompilerThreadsKHR(0xFFFFFFFF);
+			parallelCompile = true;
+		}
+		else if(capabilities.GL_ARB_parallel_shader_compile)
+		{
+			ARBParallelShaderCompile.glMaxShaderCompilerThreadsARB(0xFFFFFFFF);
+			parallelCompile = true;
+		}
+
+		return parallelCompile;
+	}
+
+	/**
+	 * Builds the program from the sources of a vertex and a fragment shader and replaces the current program with it.
+	 * Blocks until the driver finished compiling. On failure the current program is kept. This has to be called on the OpenGL thread.
+	 *
+	 * @return True if the new program is in use.
+	 */
+	public boolean build(String vertexShaderSource, String fragmentShaderSource)
+	{
+		// A program loaded from the binary cache is in use right away.
+		if(!submit(vertexShaderSource, fragmentShaderSource)) return true;
+
+		return finish(0L);
+	}
+
+	/**
+	 * Hands the sources of a vertex and a fragment shader to the driver without waiting for the result. The current program stays in use
+	 * until update() finds the new one finished, so startup work can continue while the driver compiles. A program that is still
+	 * compiling is dropped. This has to be called on the OpenGL thread.
+	 *
+	 * @return True if the program is compiling, false if it was loaded from the binary cache and is already in use.
+	 */
+	public boolean submit(String vertexShaderSource, String fragmentShaderSource)
+	{
+		discard();
+
+		String key = null;
+
+		if(this.binaryCache != null)
+		{
+			// The attribute locations are part of the binary, so they are part of the key as well.
+			key = this.binaryCache.getKey(vertexShaderSource, fragmentShaderSource, Arrays.toString(this.attributes));
+
+			int programId = GL20.glCreateProgram();
+
+			if(this.binaryCache.load(programId, key))
+			{
+				replace(programId);
+				return false;
+			}
+
+			GL20.glDeleteProgram(programId);
+		}
+
+		this.pendingKey = key;
+		this.pendingStartTime = System.nanoTime();
+
+		// The status of the shaders isn't queried here, as that would wait for the compiler. A failed shader makes linking fail,
+		// the logs are printed once the program is finished.
+		this.pendingVertexShaderId = compile(GL20.GL_VERTEX_SHADER, vertexShaderSource);
+		this.pendingFragmentShaderId = compile(GL20.GL_FRAGMENT_SHADER, fragmentShaderSource);
+
+		int programId = GL20.glCreateProgram();
+
+		GL20.glAttachShader(programId, this.pendingVertexShaderId);
+		GL20.glAttachShader(programId, this.pendingFragmentShaderId);
+
+		for(int location = 0; location < this.attributes.length; location++)
+			if(this.attributes[location] != null)
+				GL20.glBindAttribLocation(programId, location, this.attributes[location]);
+
+		// Without the hint the driver doesn't have to keep the binary around after linking.
+		if(this.binaryCache != null) GL41.glProgramParameteri(programId, GL41.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL11.GL_TRUE);
+
+		GL20.glLinkProgram(programId);
+
+		this.pendingProgramId = programId;
+		this.pendingSubmitTime = System.nanoTime() - this.pendingStartTime;
+
+		return true;
+	}
+
+	/**
+	 * Swaps in the submitted program if the driver finished it. This has to be called before the program is used in a frame.
+	 * Without parallel compile support the completion can't be polled, so the first call waits for the driver.
+	 *
+	 * @return True if there is a program that can be used, false if draws with it have to be skipped.
+	 */
+	public boolean update()
+	{
+		if(this.pendingProgramId != 0)
+		{
+			if(!parallelCompile)
+				finish(0L);
+			else if(GL20.glGetProgrami(this.pendingProgramId, KHRParallelShaderCompile.GL_COMPLETION_STATUS_KHR) == GL11.GL_TRUE)
+				finish(System.nanoTime());
+		}
+
+		return this.programId != 0;
+	}
+
+	/**
+	 * Returns true if a submitted program is still being compiled.
+	 */
+	public boolean isPending()
+	{
+		return this.pendingProgramId != 0;
+	}
+
+	/**
+	 * Returns the id of the current program.
+	 */
+	public int getId()
+	{
+		return this.programId;
+	}
+
+	/**
+	 * Returns the handle of the uniform with the name, e.g. "directionalLight.base.color". The handle can be passed to the setters
+	 * of every program. A program that doesn't use the uniform ignores it.
+	 */
+	public static int getUniformHandle(String name)
+	{
+		Integer handle = uniformHandles.get(name);
+
+		if(handle == null)
+		{
+			handle = uniformHandleNames.size();
+
+			uniformHandles.put(name, handle);
+			uniformHandleNames.add(name);
+		}
+
+		return handle;
+	}
+
+	/**
+	 * Returns the location of the uniform variable in the current program or -1 if the program doesn't use it.
+	 */
+	public int getUniformLocation(String name)
+	{
+		return this.uniformLocations.getOrDefault(name, -1);
+	}
+
+	/**
+	 * Returns the location of the vertex attribute in the current program or -1 if the program doesn't use it.
+	 */
+	public int getAttributeLocation(String name)
+	{
+		return this.attributeLocations.getOrDefault(name, -1);
+	}
+
+	/**
+	 * Returns the index of the uniform block in the current program or -1 (GL_INVALID_INDEX) if the program doesn't use it.
+	 */
+	public int getUniformBlockIndex(String name)
+	{
+		return this.uniformBlockIndices.getOrDefault(name, -1);
+	}
+
+	/**
+	 * Lets the uniform block read its values from the uniform buffer bound to the binding point.
+	 * The binding is kept when the program is rebuilt. Programs that don't use the block ignore it.
+	 */
+	public void setUniformBlockBinding(String name, int binding)
+	{
+		this.uniformBlockBindings.put(name, binding);
+
+		int index = getUniformBlockIndex(name);
+		if(index != -1) GL31.glUniformBlockBinding(this.programId, index, binding);
+	}
+
+	public void setUniform1i(int handle, int value)
+	{
+		int location = getLocation(handle);
+		if(location == -1) return;
+
+		int offset = handle * MAX_UNIFORM_SIZE;
+
+		if(this.uniformIsSet[handle] && isEqual(offset, Float.intBitsToFloat(value)))
+		{
+			this.skippedUniformCount++;
+			return;
+		}
+
+		this.uniformValues[offset] = Float.intBitsToFloat(value);
+		this.uniformIsSet[handle] = true;
+		this.uniformUploadCount++;
+
+		GL41.glProgramUniform1i(this.programId, location, value);
+	}
+
+	public void setUniform1f(int handle, float value)
+	{
+		int location = getLocation(handle);
+		if(location == -1) return;
+
+		int offset = handle * MAX_UNIFORM_SIZE;
+
+		if(this.uniformIsSet[handle] && isEqual(offset, value))
+		{
+			this.skippedUniformCount++;
+			return;
+		}
+
+		this.uniformValues[offset] = value;
+		this.uniformIsSet[handle] = true;
+		this.uniformUploadCount++;
+
+		GL41.glProgramUniform1f(this.programId, location, value);
+	}
+
+	public void setUniform3f(int handle, float x, float y, float z)
+	{
+		int location = getLocation(handle);
+		if(location == -1) return;
+
+		int offset = handle * MAX_UNIFORM_SIZE;
+
+		if(this.uniformIsSet[handle] && isEqual(offset, x) && isEqual(offset + 1, y) && isEqual(offset + 2, z))
+		{
+			this.skippedUniformCount++;
+			return;
+		}
+
+		this.uniformValues[offset] = x;
+		this.uniformValues[offset + 1] = y;
+		this.uniformValues[offset + 2] = z;
+		this.uniformIsSet[handle] = true;
+		this.uniformUploadCount++;
+
+		GL41.glProgramUniform3f(this.programId, location, x, y, z);
+	}
+
+	public void setUniformMatrix4f(int handle, Matrix4fc matrix)
+	{
+		int location = getLocation(handle);
+		if(location == -1) return;
+
+		int offset = handle * MAX_UNIFORM_SIZE;
+
+		matrix.get(this.matrixValues);
+
+		if(this.uniformIsSet[handle])
+		{
+			boolean isEqual = true;
+			for(int i = 0; i < 16 && isEqual; i++)
+				isEqual = isEqual(offset + i, this.matrixValues[i]);
+
+			if(isEqual)
+			{
+				this.skippedUniformCount++;
+				return;
+			}
+		}
+
+		System.arraycopy(this.matrixValues, 0, this.uniformValues, offset, 16);
+		this.uniformIsSet[handle] = true;
+		this.uniformUploadCount++;
+
+		GL41.glProgramUniformMatrix4fv(this.programId, location, false, this.matrixValues);
+	}
+
+	/**
+	 * Sets a mat4 uniform to the 16 floats of the array starting at the offset, in column-major order.
+	 */
+	public void setUniformMatrix4f(int handle, float[] matrices, int matrixOffset)
+	{
+		int location = getLocation(handle);
+		if(location == -1) return;
+
+		int offset = handle * MAX_UNIFORM_SIZE;
+
+		if(this.uniformIsSet[handle])
+		{
+			boolean isEqual = true;
+			for(int i = 0; i < 16 && isEqual; i++)
+				isEqual = isEqual(offset + i, matrices[matrixOffset + i]);
+
+			if(isEqual)
+			{
+				this.skippedUniformCount++;
+				return;
+			}
+		}
+
+		System.arraycopy(matrices, matrixOffset, this.matrixValues, 0, 16);
+		System.arraycopy(matrices, matrixOffset, this.uniformValues, offset, 16);
+		this.uniformIsSet[handle] = true;
+		this.uniformUploadCount++;
+
+		GL41.glProgramUniformMatrix4fv(this.programId, location, false, this.matrixValues);
+	}
+
+	/**
+	 * Sets a mat3 uniform to the 9 floats of the array starting at the offset, in column-major order.
+	 */
+	public void setUniformMatrix3f(int handle, float[] matrices, int matrixOffset)
+	{
+		int location = getLocation(handle);
+		if(location == -1) return;
+
+		int offset = handle * MAX_UNIFORM_SIZE;
+
+		if(this.uniformIsSet[handle])
+		{
+			boolean isEqual = true;
+			for(int i = 0; i < 9 && isEqual; i++)
+				isEqual = isEqual(offset + i, matrices[matrixOffset + i]);
+
+			if(isEqual)
+			{
+				this.skippedUniformCount++;
+				return;
+			}
+		}
+
+		System.arraycopy(matrices, matrixOffset, this.matrix3Values, 0, 9);
+		System.arraycopy(matrices, matrixOffset, this.uniformValues, offset, 9);
+		this.uniformIsSet[handle] = true;
+		this.uniformUploadCount++;
+
+		GL41.glProgramUniformMatrix3fv(this.programId, location, false, this.matrix3Values);
+	}
+
+	/**
+	 * Returns the number of uniform values uploaded by the setters.
+	 */
+	public long getUniformUploadCount()
+	{
+		return this.uniformUploadCount;
+	}
+
+	/**
+	 * Returns the number of setter calls that were skipped because the uniform already had the value.
+	 */
+	public long getSkippedUniformCount()
+	{
+		return this.skippedUniformCount;
+	}
+
+	/**
+	 * Deletes the current program.
+	 */
+	public void delete()
+	{
+		discard();
+
+		GL20.glDeleteProgram(this.programId);
+
+		this.programId = 0;
+
+		reflect();
+	}
+
+	/**
+	 * Replaces the current program with the new one.
+	 */
+	private void replace(int programId)
+	{
+		if(this.programId != 0) GL20.glDeleteProgram(this.programId);
+
+		this.programId = programId;
+
+		reflect();
+	}
+
+	/**
+	 * Reads the active uniforms, attributes and uniform blocks of the current program and resolves the locations of the handles.
+	 * The new program starts without any uniform values, so all stored values are forgotten.
+	 */
+	private void reflect()
+	{
+		this.uniformLocations.clear();
+		this.attributeLocations.clear();
+		this.uniformBlockIndices.clear();
+
+		if(this.programId != 0)
+		{
+			try(MemoryStack stack = MemoryStack.stackPush())
+			{
+				IntBuffer size = stack.mallocInt(1);
+				IntBuffer type = stack.mallocInt(1);
+
+				int uniformCount = GL20.glGetProgrami(this.programId, GL20.GL_ACTIVE_UNIFORMS);
+				for(int i = 0; i < uniformCount; i++)
+				{
+					String name = GL20.glGetActiveUniform(this.programId, i, size, type);
+					int location = GL20.glGetUniformLocation(this.programId, name);
+
+					// Uniforms in uniform blocks don't have a location.
+					if(location == -1) continue;
+
+					this.uniformLocations.put(name, location);
+
+					// Arrays are reported by their first element. The other elements are added one by one,
+					// as their locations don't have to follow each other.
+					if(name.endsWith("[0]"))
+					{
+						String arrayName = name.substring(0, name.length() - 3);
+						this.uniformLocations.put(arrayName, location);
+
+						for(int element = 1; element < size.get(0); element++)
+							this.uniformLocations.put(arrayName + "[" + element + "]", GL20.glGetUniformLocation(this.programId, arrayName + "[" + element + "]"));
+					}
+				}
+
+				int attributeCount = GL20.glGetProgrami(this.programId, GL20.GL_ACTIVE_ATTRIBUTES);
+				for(int i = 0; i < attributeCount; i++)
+				{
+					String name = GL20.glGetActiveAttrib(this.programId, i, size, type);
+					this.attributeLocations.put(name, GL20.glGetAttribLocation(this.programId, name));
+				}
+
+				int uniformBlockCount = GL20.glGetProgrami(this.programId, GL31.GL_ACTIVE_UNIFORM_BLOCKS);
+				for(int i = 0; i < uniformBlockCount; i++)
+					this.uniformBlockIndices.put(GL31.glGetActiveUniformBlockName(this.programId, i), i);
+			}
+
+			// A new program starts with all blocks bound to binding point 0.
+			for(Map.Entry<String, Integer> binding : this.uniformBlockBindings.entrySet())
+			{
+				int index = getUniformBlockIndex(binding.getKey());
+				if(index != -1) GL31.glUniformBlockBinding(this.programId, index, binding.getValue());
+			}
+		}
+
+		this.handleLocations = new int[0];
+		Arrays.fill(this.uniformIsSet, false);
+	}
+
+	/**
+	 * Returns the location of the uniform of the handle in the current program.
+	 * Handles created after the last call are resolved first.
+	 */
+	private int getLocation(int handle)
+	{
+		if(handle >= this.handleLocations.length)
+		{
+			int handleCount = uniformHandleNames.size();
+			int resolvedCount = this.handleLocations.length;
+
+			this.handleLocations = Arrays.copyOf(this.handleLocations, handleCount);
+			if(this.uniformIsSet.length < handleCount)
+			{
+				this.uniformIsSet = Arrays.copyOf(this.uniformIsSet, handleCount);
+				this.uniformValues = Arrays.copyOf(this.uniformValues, handleCount * MAX_UNIFORM_SIZE);
+			}
+
+			for(int i = resolvedCount; i < handleCount; i++)
+				this.handleLocations[i] = getUniformLocation(uniformHandleNames.get(i));
+		}
+
+		return this.handleLocations[handle];
+	}
+
+	/**
+	 * Compares the bits, so -0 and 0 are different values and NaN is equal to itself.
+	 */
+	private boolean isEqual(int offset, float value)
+	{
+		return Float.floatToRawIntBits(this.uniformValues[offset]) == Float.floatToRawIntBits(value);
+	}
+
+	/**
+	 * Checks the result of the submitted program and replaces the current program with it if linking succeeded.
+	 * This waits for the driver if the program isn't finished yet.
+	 *
+	 * @param completionTime The time the completion status was first polled as finished or 0 if it wasn't polled.
+	 */
+	private boolean finish(long completionTime)
+	{
+		int programId = this.pendingProgramId;
+
+		long waitStartTime = System.nanoTime();
+		boolean linked = GL20.glGetProgrami(programId, GL20.GL_LINK_STATUS) == GL11.GL_TRUE;
+
+		if(linked)
+		{
+			// A polled program compiled in the background from its submission until it was found finished. Otherwise the driver
+			// compiled it during the calls of submit() and the link status query, which waits for it. Only these times are
+			// stored, so the work the demo did in between doesn't count as time saved by the cache.
+			long compileTime = completionTime != 0L ? completionTime - this.pendingStartTime : this.pendingSubmitTime + System.nanoTime() - waitStartTime;
+
+			if(this.binaryCache != null) this.binaryCache.save(programId, this.pendingKey, compileTime);
+
+			// The shaders are only needed for linking. They are deleted as soon as the program is deleted.
+			GL20.glDetachShader(programId, this.pendingVertexShaderId);
+			GL20.glDetachShader(programId, this.pendingFragmentShaderId);
+
+			this.pendingProgramId = 0;
+
+			replace(programId);
+		}
+		else
+		{
+			// A shader that didn't compile is the more useful message, the link log would only repeat it.
+			boolean vertexShaderFailed = printCompileLog(this.pendingVertexShaderId, "vertex");
+			boolean fragmentShaderFailed = printCompileLog(this.pendingFragmentShaderId, "fragment");
+
+			if(!vertexShaderFailed && !fragmentShaderFailed)
+			{
+				System.err.println("Cannot link shader program " + this.name + ":");
+				System.err.println(GL20.glGetProgramInfoLog(programId, 1000));
+			}
+		}
+
+		discard();
+
+		return linked;
+	}
+
+	/**
+	 * Deletes the submitted program and its shaders, if there are any.
+	 */
+	private void discard()
+	{
+		if(this.pendingProgramId != 0) GL20.glDeleteProgram(this.pendingProgramId);
+		if(this.pendingVertexShaderId != 0) GL20.glDeleteShader(this.pendingVertexShaderId);
+		if(this.pendingFragmentShaderId != 0) GL20.glDeleteShader(this.pendingFragmentShaderId);
+
+		this.pendingProgramId = 0;
+		this.pendingVertexShaderId = 0;
+		this.pendingFragmentShaderId = 0;
+		this.pendingKey = null;
+	}
+
+	private int compile(int type, String source)
+	{
+		int shaderId = GL20.glCreateShader(type);
+
+		GL20.glShaderSource(shaderId, source);
+		GL20.glCompileShader(shaderId);
+
+		return shaderId;
+	}
+
+	/**
+	 * Prints the log of the shader if it didn't compile.
+	 *
+	 * @return True if the shader didn't compile.
+	 */
+	private boolean printCompileLog(int shaderId, String type)
+	{
+		if(GL20.glGetShaderi(shaderId, GL20.GL_COMPILE_STATUS) == GL11.GL_TRUE) return false;
+
+		System.err.println("Cannot compile " + type + " shader of " + this.name + ":");
+		System.err.println(GL20.glGetShaderInfoLog(shaderId, 1000));
+
+		return true;
+	}
+}
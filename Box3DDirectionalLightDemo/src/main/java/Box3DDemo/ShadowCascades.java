@@ -0,0 +1,460 @@
+package Box3DDemo;
+
+import java.util.Arrays;
+
+import org.joml.Matrix4f;
+import org.joml.Matrix4fc;
+import org.joml.Vector3f;
+import org.joml.Vector3fc;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL14;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL33;
+import org.lwjgl.opengl.GL42;
+
+/**
+ * Cascaded shadow maps for a directional light and the layout of the Shadows uniform block declared in shadows.glsl.
+ *
+ * The view frustum up to the shadow distance is split in depth into cascades. Each cascade is rendered from the light
+ * into its own layer of a depth texture array, with an orthographic projection fitted around the bounding sphere of its part
+ * of the frustum. Near cascades cover a small area, so the texels of their shadow map are small where the camera looks closely.
+ * The size of the sphere doesn't change when the camera turns, and its center is moved in steps of whole texels, so the
+ * edges of the shadows don't shimmer while the camera moves.
+ *
+ * Only the casters whose bounding spheres reach a cascade are drawn into it. A cascade is only rendered again if its projection,
+ * the light or the casters changed. Otherwise the shadow map of the previous frame is still valid and kept.
+ */
+public class ShadowCascades
+{
+	private final int cascadeCount;
+	private final int resolution;
+
+	private final float shadowDistance;
+	private final float splitLambda;
+
+	private final int textureId;
+	private final int framebufferId;
+
+	private final int block;
+	private final int[] shadowMatrixOffsets;
+
+	// The projection the casters are rendered with and the matrix mapping a world position to the coordinates in the shadow map.
+	private final Matrix4f[] lightViewProjectionMatrices;
+	private final Matrix4f[] shadowMatrices;
+
+	// The rotation of the light, the same for all cascades, and its direction the last time the cascades were fitted.
+	private final Matrix4f lightViewMatrix = new Matrix4f();
+	private final Vector3f lightDirection = new Vector3f();
+
+	// True if the shadow map of a cascade has to be rendered again.
+	private final boolean[] dirty;
+
+	// The indices of the casters reaching each cascade.
+	private int[][] casters;
+	private final int[] casterCounts;
+
+	// The casters of the current frame in the space of the light.
+	private float[] casterX = new float[0];
+	private float[] casterY = new float[0];
+	private float[] casterZ = new float[0];
+
+	private final Matrix4f inverseViewMatrix = new Matrix4f();
+	private final Matrix4f lightViewProjectionMatrix = new Matrix4f();
+	private final Vector3f center = new Vector3f();
+	private final Vector3f corner = new Vector3f();
+	private final Vector3f[] corners = new Vector3f[8];
+
+	// A timer query per cascade measuring the time the gpu spends on its shadow map. Its result is read in a later frame.
+	// A query is pending until its result was read and active between beginCascade() and endCascade().
+	private final int[] queryIds;
+	private final boolean[] queryPending;
+	private final boolean[] queryActive;
+
+	// Statistics per cascade over all frames.
+	private final long[] renderedFrameCounts;
+	private final long[] cachedFrameCounts;
+	private final long[] drawnCasterCounts;
+	private final long[] gpuTimes;
+	private final long[] timedFrameCounts;
+
+	/**
+	 * Creates the shadow map and adds the Shadows block to the layout. The number of cascades has to match the SHADOW_CASCADES
+	 * define of the shaders. The texture and the framebuffer are bound while they are set up, which changes their bindings.
+	 *
+	 * @param resolution The width and height of the shadow map of each cascade in texels.
+	 * @param shadowDistance The distance from the camera up to which shadows are rendered.
+	 * @param splitLambda How the cascades are split between 0, where all cascades have the same depth, and 1, where each cascade
+	 * reaches a fixed factor further than the previous one.
+	 */
+	public ShadowCascades(Std140Layout layout, int cascadeCount, int resolution, float shadowDistance, float splitLambda)
+	{
+		this.cascadeCount = cascadeCount;
+		this.resolution = resolution;
+		this.shadowDistance = shadowDistance;
+		this.splitLambda = splitLambda;
+
+		this.lightViewProjectionMatrices = new Matrix4f[cascadeCount];
+		this.shadowMatrices = new Matrix4f[cascadeCount];
+		this.dirty = new boolean[cascadeCount];
+		this.casters = new int[cascadeCount][0];
+		this.casterCounts = new int[cascadeCount];
+
+		for(int i = 0; i < cascadeCount; i++)
+		{
+			this.lightViewProjectionMatrices[i] = new Matrix4f();
+			this.shadowMatrices[i] = new Matrix4f();
+			this.dirty[i] = true;
+		}
+
+		for(int i = 0; i < this.corners.length; i++)
+			this.corners[i] = new Vector3f();
+
+		this.shadowMatrixOffsets = new int[cascadeCount];
+
+		this.block = layout.beginBlock();
+		for(int i = 0; i < cascadeCount; i++)
+			this.shadowMatrixOffsets[i] = layout.addMat4();
+		layout.endBlock();
+
+		this.textureId = GL11.glGenTextures();
+
+		GL11.glBindTexture(GL30.GL_TEXTURE_2D_ARRAY, this.textureId);
+		GL42.glTexStorage3D(GL30.GL_TEXTURE_2D_ARRAY, 1, GL14.GL_DEPTH_COMPONENT24, resolution, resolution, cascadeCount);
+
+		// The texture is read by a shadow sampler, which compares the depths and filters the results of the four closest texels,
+		// so the edges of the shadows are smoothed.
+		GL11.glTexParameteri(GL30.GL_TEXTURE_2D_ARRAY, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_LINEAR);
+		GL11.glTexParameteri(GL30.GL_TEXTURE_2D_ARRAY, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_LINEAR);
+		GL11.glTexParameteri(GL30.GL_TEXTURE_2D_ARRAY, GL11.GL_TEXTURE_WRAP_S, GL15.GL_CLAMP_TO_EDGE);
+		GL11.glTexParameteri(GL30.GL_TEXTURE_2D_ARRAY, GL11.GL_TEXTURE_WRAP_T, GL15.GL_CLAMP_TO_EDGE);
+		GL11.glTexParameteri(GL30.GL_TEXTURE_2D_ARRAY, GL14.GL_TEXTURE_COMPARE_MODE, GL30.GL_COMPARE_REF_TO_TEXTURE);
+		GL11.glTexParameteri(GL30.GL_TEXTURE_2D_ARRAY, GL14.GL_TEXTURE_COMPARE_FUNC, GL11.GL_LEQUAL);
+
+		GL11.glBindTexture(GL30.GL_TEXTURE_2D_ARRAY, 0);
+
+		// The cascades are rendered into the same framebuffer, with the layer of the cascade attached.
+		this.framebufferId = GL30.glGenFramebuffers();
+
+		GL30.glBindFramebuffer(GL30.GL_FRAMEBUFFER, this.framebufferId);
+		GL30.glFramebufferTextureLayer(GL30.GL_FRAMEBUFFER, GL30.GL_DEPTH_ATTACHMENT, this.textureId, 0, 0);
+
+		// There is no color to write.
+		GL11.glDrawBuffer(GL11.GL_NONE);
+		GL11.glReadBuffer(GL11.GL_NONE);
+
+		int status = GL30.glCheckFramebufferStatus(GL30.GL_FRAMEBUFFER);
+
+		GL30.glBindFramebuffer(GL30.GL_FRAMEBUFFER, 0);
+
+		if(status != GL30.GL_FRAMEBUFFER_COMPLETE) throw new IllegalStateException("The shadow map framebuffer is incomplete, status " + status + ".");
+
+		this.queryIds = new int[cascadeCount];
+		GL15.glGenQueries(this.queryIds);
+		this.queryPending = new boolean[cascadeCount];
+		this.queryActive = new boolean[cascadeCount];
+
+		this.renderedFrameCounts = new long[cascadeCount];
+		this.cachedFrameCounts = new long[cascadeCount];
+		this.drawnCasterCounts = new long[cascadeCount];
+		this.gpuTimes = new long[cascadeCount];
+		this.timedFrameCounts = new long[cascadeCount];
+	}
+
+	/**
+	 * Returns the index of the block in the layout.
+	 */
+	public int getBlock()
+	{
+		return this.block;
+	}
+
+	/**
+	 * Fits the cascades to the camera, finds the casters of each cascade and marks the cascades that have to be rendered again.
+	 * The casters are given by their bounding spheres.
+	 *
+	 * @param projectionMatrix A symmetric perspective projection, like the ones of Matrix4f.setPerspective().
+	 * @param casterPositions The centers of the casters, 3 floats per caster.
+	 * @param castersMoved True if any caster moved since the last frame.
+	 */
+	public void update(Matrix4fc projectionMatrix, Matrix4fc viewMatrix, Vector3fc lightDirection, float[] casterPositions, float casterRadius, int casterCount, boolean castersMoved)
+	{
+		readQueries(false);
+
+		boolean lightMoved = !this.lightDirection.equals(lightDirection);
+
+		if(lightMoved)
+		{
+			this.lightDirection.set(lightDirection);
+
+			// The light looks along its direction. The up vector only has to differ from the direction.
+			boolean vertical = Math.abs(lightDirection.y()) > 0.99f * lightDirection.length();
+			this.lightViewMatrix.setLookAlong(lightDirection.x(), lightDirection.y(), lightDirection.z(), 0.0f, vertical ? 0.0f : 1.0f, vertical ? 1.0f : 0.0f);
+		}
+
+		if(this.casterX.length < casterCount)
+		{
+			this.casterX = new float[casterCount];
+			this.casterY = new float[casterCount];
+			this.casterZ = new float[casterCount];
+		}
+
+		for(int i = 0; i < casterCount; i++)
+		{
+			this.corner.set(casterPositions[i * 3], casterPositions[i * 3 + 1], casterPositions[i * 3 + 2]);
+			this.lightViewMatrix.transformPosition(this.corner);
+
+			this.casterX[i] = this.corner.x;
+			this.casterY[i] = this.corner.y;
+			this.casterZ[i] = this.corner.z;
+		}
+
+		viewMatrix.invertAffine(this.inverseViewMatrix);
+
+		float tanHalfFovX = 1.0f / projectionMatrix.m00();
+		float tanHalfFovY = 1.0f / projectionMatrix.m11();
+
+		float near = projectionMatrix.perspectiveNear();
+		float far = Math.min(this.shadowDistance, projectionMatrix.perspectiveFar());
+
+		float splitNear = near;
+
+		for(int cascade = 0; cascade < this.cascadeCount; cascade++)
+		{
+			// The practical split scheme blends a logarithmic split, which matches the resolution of the cascades to the perspective,
+			// with a uniform split, which keeps the near cascades from getting too thin.
+			float fraction = (float)(cascade + 1) / this.cascadeCount;
+			float splitFar = this.splitLambda * near * (float)Math.pow(far / near, fraction) + (1.0f - this.splitLambda) * (near + (far - near) * fraction);
+
+			// The corners of the part of the frustum in world space and their center.
+			this.center.zero();
+			for(int i = 0; i < 8; i++)
+			{
+				float depth = (i & 4) == 0 ? splitNear : splitFar;
+
+				this.inverseViewMatrix.transformPosition(
+						((i & 1) == 0 ? -1.0f : 1.0f) * tanHalfFovX * depth,
+						((i & 2) == 0 ? -1.0f : 1.0f) * tanHalfFovY * depth,
+						-depth, this.corners[i]);
+
+				this.center.add(this.corners[i]);
+			}
+			this.center.div(8.0f);
+
+			// The radius only depends on the shape of the part of the frustum. It is rounded up so rounding errors don't change it.
+			float radius = 0.0f;
+			for(int i = 0; i < 8; i++)
+				radius = Math.max(radius, this.center.distance(this.corners[i]));
+			radius = (float)Math.ceil(radius * 16.0f) / 16.0f;
+
+			// Moving the center in the plane of the shadow map by whole texels, so every texel keeps covering the same area.
+			this.lightViewMatrix.transformPosition(this.center);
+
+			float texelSize = 2.0f * radius / this.resolution;
+			float centerX = (float)Math.floor(this.center.x / texelSize) * texelSize;
+			float centerY = (float)Math.floor(this.center.y / texelSize) * texelSize;
+			float centerZ = this.center.z;
+
+			// A caster shadows the cascade if it overlaps the sphere seen from the light and isn't behind it. The closest caster
+			// towards the light sets the near plane, so casters outside the sphere still throw their shadows into it.
+			float nearZ = centerZ + radius;
+			int count = 0;
+
+			for(int i = 0; i < casterCount; i++)
+			{
+				if(Math.abs(this.casterX[i] - centerX) > radius + casterRadius) continue;
+				if(Math.abs(this.casterY[i] - centerY) > radius + casterRadius) continue;
+				if(this.casterZ[i] + casterRadius < centerZ - radius) continue;
+
+				if(count == this.casters[cascade].length)
+					this.casters[cascade] = Arrays.copyOf(this.casters[cascade], Math.max(count * 2, 16));
+
+				this.casters[cascade][count++] = i;
+
+				nearZ = Math.max(nearZ, this.casterZ[i] + casterRadius);
+			}
+
+			this.casterCounts[cascade] = count;
+
+			// The light looks along negative z in its space, the planes are given as distances along the direction of the light.
+			this.lightViewProjectionMatrix.setOrtho(centerX - radius, centerX + radius, centerY - radius, centerY + radius, -nearZ, -(centerZ - radius))
+				.mul(this.lightViewMatrix);
+
+			if(lightMoved || castersMoved || !this.lightViewProjectionMatrix.equals(this.lightViewProjectionMatrices[cascade]))
+			{
+				this.lightViewProjectionMatrices[cascade].set(this.lightViewProjectionMatrix);
+
+				// The shadow matrix maps the positions from the range -1 to 1 of the projection to the range 0 to 1 of the texture.
+				this.shadowMatrices[cascade].translation(0.5f, 0.5f, 0.5f).scale(0.5f).mul(this.lightViewProjectionMatrix);
+
+				this.dirty[cascade] = true;
+			}
+
+			if(!this.dirty[cascade]) this.cachedFrameCounts[cascade]++;
+
+			splitNear = splitFar;
+		}
+	}
+
+	/**
+	 * Writes the shadow matrices of the cascades into the Shadows block.
+	 */
+	public void putShadowMatrices(UniformBuffer buffer)
+	{
+		for(int i = 0; i < this.cascadeCount; i++)
+			buffer.putMatrix4f(this.shadowMatrixOffsets[i], this.shadowMatrices[i]);
+	}
+
+	/**
+	 * Returns true if the shadow map of the cascade has to be rendered again.
+	 */
+	public boolean isDirty(int cascade)
+	{
+		return this.dirty[cascade];
+	}
+
+	/**
+	 * Returns true if the shadow map of any cascade has to be rendered again.
+	 */
+	public boolean isAnyDirty()
+	{
+		for(int i = 0; i < this.cascadeCount; i++)
+			if(this.dirty[i]) return true;
+
+		return false;
+	}
+
+	/**
+	 * Binds the layer of the cascade as the depth buffer and clears it. The casters are then drawn with the light view projection
+	 * of the cascade until endCascade() is called.
+	 */
+	public void beginCascade(GLStateCache stateCache, int cascade)
+	{
+		stateCache.bindFramebuffer(GL30.GL_FRAMEBUFFER, this.framebufferId);
+		GL30.glFramebufferTextureLayer(GL30.GL_FRAMEBUFFER, GL30.GL_DEPTH_ATTACHMENT, this.textureId, 0, cascade);
+
+		stateCache.viewport(0, 0, this.resolution, this.resolution);
+		stateCache.depthMask(true);
+
+		// The previous query of the cascade has to be finished before it is used again. Waiting for it would stall the cpu until the gpu
+		// caught up, every frame the cascade is rendered again. Instead the cascade isn't timed in frames its previous result isn't available yet.
+		if(this.queryPending[cascade]) readQuery(cascade, false);
+
+		this.queryActive[cascade] = !this.queryPending[cascade];
+		if(this.queryActive[cascade]) GL15.glBeginQuery(GL33.GL_TIME_ELAPSED, this.queryIds[cascade]);
+
+		GL11.glClear(GL11.GL_DEPTH_BUFFER_BIT);
+	}
+
+	public void endCascade(int cascade)
+	{
+		if(this.queryActive[cascade])
+		{
+			GL15.glEndQuery(GL33.GL_TIME_ELAPSED);
+
+			this.queryActive[cascade] = false;
+			this.queryPending[cascade] = true;
+		}
+
+		this.dirty[cascade] = false;
+
+		this.renderedFrameCounts[cascade]++;
+		this.drawnCasterCounts[cascade] += this.casterCounts[cascade];
+	}
+
+	public int getCascadeCount()
+	{
+		return this.cascadeCount;
+	}
+
+	public Matrix4fc getLightViewProjectionMatrix(int cascade)
+	{
+		return this.lightViewProjectionMatrices[cascade];
+	}
+
+	/**
+	 * Returns the number of casters reaching the cascade in the current frame.
+	 */
+	public int getCasterCount(int cascade)
+	{
+		return this.casterCounts[cascade];
+	}
+
+	/**
+	 * Returns the index of a caster reaching the cascade, in the order the casters were given to update().
+	 */
+	public int getCaster(int cascade, int index)
+	{
+		return this.casters[cascade][index];
+	}
+
+	public int getTextureId()
+	{
+		return this.textureId;
+	}
+
+	/**
+	 * Returns the number of frames the cascade was rendered in.
+	 */
+	public long getRenderedFrameCount(int cascade)
+	{
+		return this.renderedFrameCounts[cascade];
+	}
+
+	/**
+	 * Returns the number of frames the cascade was kept from the previous frame.
+	 */
+	public long getCachedFrameCount(int cascade)
+	{
+		return this.cachedFrameCounts[cascade];
+	}
+
+	/**
+	 * Returns the average number of casters drawn when the cascade was rendered.
+	 */
+	public double getAverageCasterCount(int cascade)
+	{
+		return this.renderedFrameCounts[cascade] == 0 ? 0.0 : (double)this.drawnCasterCounts[cascade] / this.renderedFrameCounts[cascade];
+	}
+
+	/**
+	 * Returns the average time the gpu needed to render the cascade in nanoseconds, over the frames it was timed in.
+	 */
+	public double getAverageGpuTime(int cascade)
+	{
+		return this.timedFrameCounts[cascade] == 0 ? 0.0 : (double)this.gpuTimes[cascade] / this.timedFrameCounts[cascade];
+	}
+
+	/**
+	 * Deletes the shadow map. The results of the queries still pending are waited for, so the statistics are complete.
+	 */
+	public void delete()
+	{
+		readQueries(true);
+
+		GL15.glDeleteQueries(this.queryIds);
+
+		GL30.glDeleteFramebuffers(this.framebufferId);
+
+		GL11.glDeleteTextures(this.textureId);
+	}
+
+	private void readQueries(boolean wait)
+	{
+		for(int i = 0; i < this.cascadeCount; i++)
+			if(this.queryPending[i]) readQuery(i, wait);
+	}
+
+	/**
+	 * Adds the result of the query of the cascade to the statistics. Without waiting the result is only read if it is available.
+	 */
+	private void readQuery(int cascade, boolean wait)
+	{
+		if(!wait && GL15.glGetQueryObjecti(this.queryIds[cascade], GL15.GL_QUERY_RESULT_AVAILABLE) == GL11.GL_FALSE) return;
+
+		this.gpuTimes[cascade] += GL33.glGetQueryObjecti64(this.queryIds[cascade], GL15.GL_QUERY_RESULT);
+		this.timedFrameCounts[cascade]++;
+
+		this.queryPending[cascade] = false;
+	}
+}
@@ -0,0 +1,148 @@
+package Box3DDemo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Computes the offsets of the members of uniform blocks declared with layout(std140) in GLSL.
+ *
+ * std140 fixes the layout independently of the driver: scalars are aligned to 4 bytes, vec3 and vec4 to 16 bytes and structs,
+ * arrays and matrices to 16 bytes per element or column. A vec3 leaves room for a following float.
+ *
+ * Several blocks can be laid out one after another in the same buffer. Each block starts at a multiple of the
+ * GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT of the driver, so it can be bound on its own with glBindBufferRange.
+ * The members have to be added in the order they are declared in GLSL. The returned offsets are relative to the start of the buffer.
+ */
+public class Std140Layout
+{
+	// The alignment of the start of each block.
+	private final int blockAlignment;
+
+	// The offsets and sizes of the blocks.
+	private final List<int[]> blocks = new ArrayList<>();
+
+	private int size;
+
+	public Std140Layout(int blockAlignment)
+	{
+		this.blockAlignment = blockAlignment;
+	}
+
+	/**
+	 * Starts a new block.
+	 *
+	 * @return The index of the block.
+	 */
+	public int beginBlock()
+	{
+		align(this.blockAlignment);
+
+		this.blocks.add(new int[] { this.size, 0 });
+
+		return this.blocks.size() - 1;
+	}
+
+	/**
+	 * Ends the current block. The size of a block is a multiple of 16 bytes.
+	 */
+	public void endBlock()
+	{
+		align(16);
+
+		int[] block = this.blocks.get(this.blocks.size() - 1);
+		block[1] = this.size - block[0];
+	}
+
+	/**
+	 * Starts a struct member. The members of the struct are added next.
+	 *
+	 * @return The offset of the struct.
+	 */
+	public int beginStruct()
+	{
+		return align(16);
+	}
+
+	/**
+	 * Ends a struct member. The next member starts after the struct, padded to 16 bytes.
+	 */
+	public void endStruct()
+	{
+		align(16);
+	}
+
+	public int addFloat()
+	{
+		return add(4, 4);
+	}
+
+	public int addInt()
+	{
+		return add(4, 4);
+	}
+
+	public int addVec3()
+	{
+		return add(16, 12);
+	}
+
+	public int addVec4()
+	{
+		return add(16, 16);
+	}
+
+	public int addMat4()
+	{
+		return add(16, 64);
+	}
+
+	/**
+	 * Adds an array of floats. Every element takes 16 bytes, the offset of element i is the returned offset plus 16 * i.
+	 */
+	public int addFloatArray(int length)
+	{
+		return add(16, length * 16);
+	}
+
+	/**
+	 * Adds an array of vec4. The offset of element i is the returned offset plus 16 * i.
+	 */
+	public int addVec4Array(int length)
+	{
+		return add(16, length * 16);
+	}
+
+	public int getBlockOffset(int block)
+	{
+		return this.blocks.get(block)[0];
+	}
+
+	public int getBlockSize(int block)
+	{
+		return this.blocks.get(block)[1];
+	}
+
+	/**
+	 * Returns the size of the whole buffer in bytes.
+	 */
+	public int getSize()
+	{
+		return this.size;
+	}
+
+	private int add(int alignment, int size)
+	{
+		int offset = align(alignment);
+
+		this.size += size;
+
+		return offset;
+	}
+
+	private int align(int alignment)
+	{
+		this.size = (this.size + alignment - 1) / alignment * alignment;
+
+		return this.size;
+	}
+}
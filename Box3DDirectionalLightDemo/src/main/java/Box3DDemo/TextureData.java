@@ -0,0 +1,74 @@
+package Box3DDemo;
+
+import java.nio.ByteBuffer;
+
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL12;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * Holds the pixel data of an image in an off-heap buffer together with the information
+ * OpenGL needs to interpret it.
+ *
+ * The pixels are not necessarily stored in RGBA order. Instead the pixel format and type
+ * describe the layout of the buffer, so OpenGL can read the data as it came out of the decoder.
+ */
+public class TextureData
+{
+	// The width of the image in pixels.
+	public final int width;
+
+	// The height of the image in pixels.
+	public final int height;
+
+	// The OpenGL pixel format describing the order of the components (e.g. GL_RGBA or GL_BGRA).
+	public final int format;
+
+	// The OpenGL pixel type describing how the components are packed (e.g. GL_UNSIGNED_BYTE).
+	public final int type;
+
+	// The alignment of the rows in the buffer in bytes. This is passed to GL_UNPACK_ALIGNMENT on upload.
+	public final int alignment;
+
+	// The pixel data. The buffer is allocated with MemoryUtil and has to be released with free().
+	public final ByteBuffer pixels;
+
+	public TextureData(int width, int height, int format, int type, int alignment, ByteBuffer pixels)
+	{
+		this.width = width;
+		this.height = height;
+		this.format = format;
+		this.type = type;
+		this.alignment = alignment;
+		this.pixels = pixels;
+	}
+
+	/**
+	 * Uploads the pixels as the given mipmap level of the 2D texture currently bound to the target.
+	 */
+	public void upload2D(int target, int level, int internalFormat)
+	{
+		GL11.glPixelStorei(GL11.GL_UNPACK_ALIGNMENT, this.alignment);
+		GL11.glTexImage2D(target, level, internalFormat, this.width, this.height, 0, this.format, this.type, this.pixels);
+		GL11.glPixelStorei(GL11.GL_UNPACK_ALIGNMENT, 4);
+	}
+
+	/**
+	 * Uploads the pixels into a single layer of the array texture currently bound to the target.
+	 * The storage for the texture has to be allocated beforehand.
+	 */
+	public void uploadLayer(int target, int level, int layer)
+	{
+		GL11.glPixelStorei(GL11.GL_UNPACK_ALIGNMENT, this.alignment);
+		GL12.glTexSubImage3D(target, level, 0, 0, layer, this.width, this.height, 1, this.format, this.type, this.pixels);
+		GL11.glPixelStorei(GL11.GL_UNPACK_ALIGNMENT, 4);
+	}
+
+	/**
+	 * Releases the off-heap pixel buffer.
+	 */
+	public void free()
+	{
+		MemoryUtil.memFree(this.pixels);
+	}
+}
@@ -0,0 +1,145 @@
+package Box3DDemo;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import org.joml.Matrix4f;
+import org.joml.Quaternionf;
+import org.joml.Vector3f;
+
+/**
+ * Compares computing the world matrices of moving entities with new JOML objects per entity against the TransformStore.
+ *
+ * Usage: TransformBenchmark [entity count]
+ *
+ * Every frame the entities move, their world matrices are computed and copied into an upload buffer, in three ways:
+ * - objects: a new Vector3f, Quaternionf and Matrix4f per entity, like the demo created them for every cube and frame.
+ * - store: all entities are updated in the TransformStore, which copies its matrices into the buffer at once.
+ * - store 10% moved: only every tenth entity moves, the store only computes the matrices of those.
+ *
+ * The time is the wall clock time of a frame. The allocated bytes are read from the thread allocation counter of the JVM
+ * before and after the measured frames, so they include everything the frames allocated, also objects the garbage collector
+ * already collected again. Nothing is rendered, so the benchmark runs without a window.
+ */
+public class TransformBenchmark
+{
+	// The frames run before measuring, so the JIT compiler has compiled the frame code.
+	private static final int WARMUP_FRAMES = 2000;
+
+	// The frames measured per way.
+	private static final int FRAMES = 2000;
+
+	public static void main(String[] args)
+	{
+		int entityCount = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+		com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		if(!threadBean.isThreadAllocatedMemorySupported())
+		{
+			System.err.println("The JVM doesn't count the allocated memory of threads.");
+			System.exit(-1);
+		}
+
+		threadBean.setThreadAllocatedMemoryEnabled(true);
+
+		// The entities start at random positions with random rotation axes. The seed is fixed, so every run moves the same entities.
+		float[] startPositions = new float[entityCount * 3];
+		float[] axes = new float[entityCount * 3];
+
+		Random random = new Random(1);
+		Vector3f axis = new Vector3f();
+		for(int i = 0; i < entityCount; i++)
+		{
+			startPositions[i * 3] = random.nextFloat() * 40.0f - 20.0f;
+			startPositions[i * 3 + 1] = random.nextFloat() * 30.0f - 15.0f;
+			startPositions[i * 3 + 2] = -20.0f - random.nextFloat() * 40.0f;
+
+			axis.set(random.nextFloat() - 0.5f, random.nextFloat() - 0.5f, random.nextFloat() - 0.5f).normalize();
+			axes[i * 3] = axis.x;
+			axes[i * 3 + 1] = axis.y;
+			axes[i * 3 + 2] = axis.z;
+		}
+
+		// The upload buffer the matrices are copied into, like the off-heap data of an InstanceBuffer.
+		FloatBuffer uploadBuffer = ByteBuffer.allocateDirect(entityCount * 16 * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+
+		TransformStore transforms = new TransformStore(entityCount);
+		for(int i = 0; i < entityCount; i++)
+			transforms.create();
+
+		System.out.printf("%8s  %-18s %12s %16s %14s%n", "entities", "way", "frame time", "allocated/frame", "matrices/frame");
+
+		for(int way = 0; way < 3; way++)
+		{
+			int moveStride = way == 2 ? 10 : 1;
+
+			for(int frame = 0; frame < WARMUP_FRAMES; frame++)
+				runFrame(way, frame, moveStride, entityCount, startPositions, axes, transforms, uploadBuffer);
+
+			long updatedBefore = transforms.getUpdatedMatrixCount();
+			long allocatedBefore = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+			long start = System.nanoTime();
+
+			float checksum = 0.0f;
+			for(int frame = 0; frame < FRAMES; frame++)
+				checksum += runFrame(way, WARMUP_FRAMES + frame, moveStride, entityCount, startPositions, axes, transforms, uploadBuffer);
+
+			long time = System.nanoTime() - start;
+			long allocated = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocatedBefore;
+
+			long matrixCount = way == 0 ? (long)entityCount * FRAMES : transforms.getUpdatedMatrixCount() - updatedBefore;
+
+			// The checksum is printed, so the JIT compiler can't drop the computed matrices.
+			String name = way == 0 ? "objects" : way == 1 ? "store" : "store 10% moved";
+			System.out.printf("%8d  %-18s %9.3f ms %10d bytes %14d   (checksum %.1f)%n",
+					entityCount, name, time / 1e6 / FRAMES, allocated / FRAMES, matrixCount / FRAMES, checksum);
+		}
+	}
+
+	/**
+	 * Moves the entities to their positions at the frame, computes their world matrices and copies them into the buffer.
+	 *
+	 * @return The translation of the last matrix, read back from the buffer.
+	 */
+	private static float runFrame(int way, int frame, int moveStride, int entityCount, float[] startPositions, float[] axes,
+			TransformStore transforms, FloatBuffer uploadBuffer)
+	{
+		float angle = frame * 0.01f;
+		float offset = (float)Math.sin(angle);
+
+		uploadBuffer.clear();
+
+		if(way == 0)
+		{
+			for(int i = 0; i < entityCount; i++)
+			{
+				Vector3f position = new Vector3f(startPositions[i * 3] + offset, startPositions[i * 3 + 1], startPositions[i * 3 + 2]);
+				Quaternionf rotation = new Quaternionf().rotationAxis(angle, axes[i * 3], axes[i * 3 + 1], axes[i * 3 + 2]);
+				Matrix4f modelMatrix = new Matrix4f().translationRotateScale(position, rotation, 1.0f);
+
+				modelMatrix.get(i * 16, uploadBuffer);
+			}
+		}
+		else
+		{
+			// The rotation around the axis as a quaternion: the axis scaled by the sine and the cosine of half the angle.
+			float sin = (float)Math.sin(angle * 0.5f);
+			float cos = (float)Math.cos(angle * 0.5f);
+
+			for(int i = frame % moveStride; i < entityCount; i += moveStride)
+			{
+				transforms.setPosition(i, startPositions[i * 3] + offset, startPositions[i * 3 + 1], startPositions[i * 3 + 2]);
+				transforms.setRotation(i, axes[i * 3] * sin, axes[i * 3 + 1] * sin, axes[i * 3 + 2] * sin, cos);
+			}
+
+			transforms.update();
+
+			uploadBuffer.put(transforms.getWorldMatrices(), 0, entityCount * 16);
+		}
+
+		return uploadBuffer.get((entityCount - 1) * 16 + 12);
+	}
+}
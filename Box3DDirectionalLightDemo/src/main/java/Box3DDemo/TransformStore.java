@@ -0,0 +1,234 @@
+package Box3DDemo;
+
+import java.util.Arrays;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+/**
+ * The positions, rotations, scales and world matrices of many entities, stored in flat float arrays indexed by the id of the entity.
+ *
+ * Every component of all entities lies in one array, so updating the matrices walks through memory in order and doesn't create
+ * any objects. The world matrix of an entity is only computed again if its position, rotation or scale changed since the last
+ * update. The world matrices are stored in column-major order, 16 floats per entity, so they can be copied into upload buffers
+ * or passed to NormalMatrices as they are. Apart from growing the arrays when entities are created, nothing is allocated.
+ */
+public class TransformStore
+{
+	// 3 floats per entity.
+	private float[] positions;
+
+	// The rotations as unit quaternions, x, y, z and w per entity.
+	private float[] rotations;
+
+	// 3 floats per entity.
+	private float[] scales;
+
+	// 16 floats per entity.
+	private float[] worldMatrices;
+
+	// True if the world matrix of the entity doesn't match its components.
+	private boolean[] dirty;
+
+	private int count;
+
+	private long updatedMatrixCount;
+
+	/**
+	 * Creates an empty store. The capacity is the expected number of entities, the arrays grow if necessary.
+	 */
+	public TransformStore(int capacity)
+	{
+		capacity = Math.max(capacity, 1);
+
+		this.positions = new float[capacity * 3];
+		this.rotations = new float[capacity * 4];
+		this.scales = new float[capacity * 3];
+		this.worldMatrices = new float[capacity * 16];
+		this.dirty = new boolean[capacity];
+	}
+
+	/**
+	 * Adds an entity at the origin without rotation and with a scale of 1.
+	 *
+	 * @return The id of the entity, which is the number of entities created before it.
+	 */
+	public int create()
+	{
+		if(this.count == this.dirty.length)
+		{
+			int capacity = this.count * 2;
+
+			this.positions = Arrays.copyOf(this.positions, capacity * 3);
+			this.rotations = Arrays.copyOf(this.rotations, capacity * 4);
+			this.scales = Arrays.copyOf(this.scales, capacity * 3);
+			this.worldMatrices = Arrays.copyOf(this.worldMatrices, capacity * 16);
+			this.dirty = Arrays.copyOf(this.dirty, capacity);
+		}
+
+		int id = this.count++;
+
+		setPosition(id, 0.0f, 0.0f, 0.0f);
+		setRotation(id, 0.0f, 0.0f, 0.0f, 1.0f);
+		setScale(id, 1.0f, 1.0f, 1.0f);
+
+		return id;
+	}
+
+	/**
+	 * Returns the number of entities.
+	 */
+	public int size()
+	{
+		return this.count;
+	}
+
+	public void setPosition(int id, float x, float y, float z)
+	{
+		this.positions[id * 3] = x;
+		this.positions[id * 3 + 1] = y;
+		this.positions[id * 3 + 2] = z;
+
+		this.dirty[id] = true;
+	}
+
+	/**
+	 * Sets the rotation to the quaternion, which has to have a length of 1.
+	 */
+	public void setRotation(int id, float x, float y, float z, float w)
+	{
+		this.rotations[id * 4] = x;
+		this.rotations[id * 4 + 1] = y;
+		this.rotations[id * 4 + 2] = z;
+		this.rotations[id * 4 + 3] = w;
+
+		this.dirty[id] = true;
+	}
+
+	public void setScale(int id, float x, float y, float z)
+	{
+		this.scales[id * 3] = x;
+		this.scales[id * 3 + 1] = y;
+		this.scales[id * 3 + 2] = z;
+
+		this.dirty[id] = true;
+	}
+
+	/**
+	 * Returns the positions of all entities, 3 floats per entity. The array is replaced when the store grows.
+	 */
+	public float[] getPositions()
+	{
+		return this.positions;
+	}
+
+	public Vector3f getPosition(int id, Vector3f dest)
+	{
+		return dest.set(this.positions[id * 3], this.positions[id * 3 + 1], this.positions[id * 3 + 2]);
+	}
+
+	/**
+	 * Returns true if the components of the entity changed since the last update.
+	 */
+	public boolean isDirty(int id)
+	{
+		return this.dirty[id];
+	}
+
+	/**
+	 * Computes the world matrices of the entities that changed since the last update.
+	 *
+	 * @return The number of matrices computed.
+	 */
+	public int update()
+	{
+		int updated = 0;
+
+		for(int i = 0; i < this.count; i++)
+		{
+			if(!this.dirty[i]) continue;
+
+			int p = i * 3;
+			int r = i * 4;
+			int m = i * 16;
+
+			float qx = this.rotations[r];
+			float qy = this.rotations[r + 1];
+			float qz = this.rotations[r + 2];
+			float qw = this.rotations[r + 3];
+
+			float sx = this.scales[p];
+			float sy = this.scales[p + 1];
+			float sz = this.scales[p + 2];
+
+			// The columns of the rotation matrix of the quaternion, each scaled by the scale along its axis,
+			// followed by the position. This is translation * rotation * scale without creating a matrix for each of them.
+			float xx = qx * qx;
+			float yy = qy * qy;
+			float zz = qz * qz;
+			float xy = qx * qy;
+			float xz = qx * qz;
+			float yz = qy * qz;
+			float wx = qw * qx;
+			float wy = qw * qy;
+			float wz = qw * qz;
+
+			this.worldMatrices[m] = (1.0f - 2.0f * (yy + zz)) * sx;
+			this.worldMatrices[m + 1] = 2.0f * (xy + wz) * sx;
+			this.worldMatrices[m + 2] = 2.0f * (xz - wy) * sx;
+			this.worldMatrices[m + 3] = 0.0f;
+
+			this.worldMatrices[m + 4] = 2.0f * (xy - wz) * sy;
+			this.worldMatrices[m + 5] = (1.0f - 2.0f * (xx + zz)) * sy;
+			this.worldMatrices[m + 6] = 2.0f * (yz + wx) * sy;
+			this.worldMatrices[m + 7] = 0.0f;
+
+			this.worldMatrices[m + 8] = 2.0f * (xz + wy) * sz;
+			this.worldMatrices[m + 9] = 2.0f * (yz - wx) * sz;
+			this.worldMatrices[m + 10] = (1.0f - 2.0f * (xx + yy)) * sz;
+			this.worldMatrices[m + 11] = 0.0f;
+
+			this.worldMatrices[m + 12] = this.positions[p];
+			this.worldMatrices[m + 13] = this.positions[p + 1];
+			this.worldMatrices[m + 14] = this.positions[p + 2];
+			this.worldMatrices[m + 15] = 1.0f;
+
+			this.dirty[i] = false;
+			updated++;
+		}
+
+		this.updatedMatrixCount += updated;
+
+		return updated;
+	}
+
+	/**
+	 * Returns the world matrices of all entities, 16 floats per entity in column-major order, as of the last update.
+	 * The array is replaced when the store grows.
+	 */
+	public float[] getWorldMatrices()
+	{
+		return this.worldMatrices;
+	}
+
+	public Matrix4f getWorldMatrix(int id, Matrix4f dest)
+	{
+		return dest.set(this.worldMatrices, id * 16);
+	}
+
+	/**
+	 * Adds the world matrices of all entities to the instance buffer, in the order of their ids.
+	 */
+	public void copyWorldMatrices(InstanceBuffer buffer)
+	{
+		buffer.put(this.worldMatrices, 0, this.count);
+	}
+
+	/**
+	 * Returns the number of world matrices computed by all updates.
+	 */
+	public long getUpdatedMatrixCount()
+	{
+		return this.updatedMatrixCount;
+	}
+}
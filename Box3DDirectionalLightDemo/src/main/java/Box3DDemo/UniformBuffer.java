@@ -0,0 +1,86 @@
+package Box3DDemo;
+
+import java.nio.ByteBuffer;
+
+import org.joml.Matrix4fc;
+import org.joml.Vector3fc;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL31;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * A uniform buffer object holding the blocks of a Std140Layout.
+ *
+ * The values are written into an off-heap copy of the buffer and uploaded together with a single glBufferSubData call.
+ * Every program that declares a block reads it from the binding point the block is bound to, so values shared by several
+ * programs, like the camera, are only uploaded once instead of once per program.
+ */
+public class UniformBuffer
+{
+	private final Std140Layout layout;
+
+	private final int bufferId;
+
+	// The content of the buffer, written by the put methods and uploaded by upload().
+	private final ByteBuffer data;
+
+	public UniformBuffer(Std140Layout layout)
+	{
+		this.layout = layout;
+
+		this.data = MemoryUtil.memCalloc(layout.getSize());
+
+		this.bufferId = GL15.glGenBuffers();
+
+		// The content changes every frame.
+		GL15.glBindBuffer(GL31.GL_UNIFORM_BUFFER, this.bufferId);
+		GL15.glBufferData(GL31.GL_UNIFORM_BUFFER, this.data, GL15.GL_DYNAMIC_DRAW);
+		GL15.glBindBuffer(GL31.GL_UNIFORM_BUFFER, 0);
+	}
+
+	public void putFloat(int offset, float value)
+	{
+		this.data.putFloat(offset, value);
+	}
+
+	public void putInt(int offset, int value)
+	{
+		this.data.putInt(offset, value);
+	}
+
+	public void putVector3f(int offset, Vector3fc vector)
+	{
+		vector.get(offset, this.data);
+	}
+
+	public void putMatrix4f(int offset, Matrix4fc matrix)
+	{
+		matrix.get(offset, this.data);
+	}
+
+	/**
+	 * Uploads the whole buffer. Draws issued before still read the previous content.
+	 */
+	public void upload()
+	{
+		GL15.glBindBuffer(GL31.GL_UNIFORM_BUFFER, this.bufferId);
+		GL15.glBufferSubData(GL31.GL_UNIFORM_BUFFER, 0, this.data);
+		GL15.glBindBuffer(GL31.GL_UNIFORM_BUFFER, 0);
+	}
+
+	/**
+	 * Binds the block of the layout to the uniform buffer binding point.
+	 */
+	public void bind(int block, int binding)
+	{
+		GL30.glBindBufferRange(GL31.GL_UNIFORM_BUFFER, binding, this.bufferId, this.layout.getBlockOffset(block), this.layout.getBlockSize(block));
+	}
+
+	public void delete()
+	{
+		GL15.glDeleteBuffers(this.bufferId);
+
+		MemoryUtil.memFree(this.data);
+	}
+}
@@ -0,0 +1,6 @@
+layout(std140) uniform Camera {
+	mat4 T_projection;
+	mat4 T_view;
+	vec3 position;
+	mat4 T_inverseViewProjection;
+} camera;
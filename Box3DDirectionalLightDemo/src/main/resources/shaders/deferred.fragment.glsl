@@ -0,0 +1,39 @@
+#version 400
+#include "camera.glsl"
+#include "lights.glsl"
+#if defined(SHADOWS) && !defined(POINT_LIGHT_QUADS)
+#define SHADOWED
+#include "shadows.glsl"
+#endif
+#ifdef POINT_LIGHT_QUADS
+flat in int pass_lightIndex;
+#endif
+layout(location=0) out vec4 out_Color;
+uniform sampler2D albedoBuffer;
+uniform sampler2D normalBuffer;
+uniform sampler2D depthBuffer;
+void main()
+{
+	ivec2 pixel = ivec2(gl_FragCoord.xy);
+	float depth = texelFetch(depthBuffer, pixel, 0).r;
+	if(depth == 1.0) discard;
+	vec4 albedo = texelFetch(albedoBuffer, pixel, 0);
+	vec3 nrm = normalize(texelFetch(normalBuffer, pixel, 0).xyz);
+	vec3 ndcPosition = vec3(gl_FragCoord.xy / vec2(textureSize(depthBuffer, 0)), depth) * 2.0 - 1.0;
+	vec4 worldPosition = camera.T_inverseViewProjection * vec4(ndcPosition, 1.0);
+	vec3 position = worldPosition.xyz / worldPosition.w;
+	vec3 light = vec3(0.0);
+#ifdef POINT_LIGHT_QUADS
+	light += computePointLight(pointLights[pass_lightIndex], position, nrm);
+#else
+#ifdef SHADOWED
+	float shadow = computeShadow(position);
+#else
+	float shadow = 1.0;
+#endif
+	light += ambientLight.color * ambientLight.intensity;
+	for(int i = 0; i < directionalLightCount; i++)
+		light += computeDirectionalLight(directionalLights[i], nrm) * (i == 0 ? shadow : 1.0);
+#endif
+	out_Color = albedo * vec4(light, 1.0);
+}
@@ -0,0 +1,41 @@
+#version 400
+#include "camera.glsl"
+#include "lights.glsl"
+#ifdef POINT_LIGHT_QUADS
+flat out int pass_lightIndex;
+#endif
+void main()
+{
+#ifdef POINT_LIGHT_QUADS
+	PointLight light = pointLights[gl_InstanceID];
+	vec2 minimum = vec2(1.0);
+	vec2 maximum = vec2(-1.0);
+	bool behindCamera = false;
+	for(int i = 0; i < 8; i++)
+	{
+		vec3 corner = light.position + (vec3(i & 1, (i >> 1) & 1, (i >> 2) & 1) * 2.0 - 1.0) * light.range;
+		vec4 clipPosition = camera.T_projection * camera.T_view * vec4(corner, 1.0);
+		if(clipPosition.w <= 0.0)
+		{
+			behindCamera = true;
+		}
+		else
+		{
+			minimum = min(minimum, clipPosition.xy / clipPosition.w);
+			maximum = max(maximum, clipPosition.xy / clipPosition.w);
+		}
+	}
+	if(behindCamera)
+	{
+		minimum = vec2(-1.0);
+		maximum = vec2(1.0);
+	}
+	minimum = clamp(minimum, -1.0, 1.0);
+	maximum = clamp(maximum, -1.0, 1.0);
+	gl_Position = vec4(mix(minimum, maximum, vec2(gl_VertexID & 1, (gl_VertexID >> 1) & 1)), 0.0, 1.0);
+	pass_lightIndex = gl_InstanceID;
+#else
+	vec2 position = vec2((gl_VertexID << 1) & 2, gl_VertexID & 2);
+	gl_Position = vec4(position * 2.0 - 1.0, 0.0, 1.0);
+#endif
+}
@@ -0,0 +1,73 @@
+#version 400
+#include "lights.glsl"
+#if defined(DIRECTIONAL_LIGHT) || defined(POINT_LIGHT) || defined(FORWARD_LIGHTS) || defined(CLUSTERED_LIGHTS) || defined(GEOMETRY)
+#define LIT
+#endif
+#if defined(SHADOWS) && (defined(DIRECTIONAL_LIGHT) || defined(FORWARD_LIGHTS) || defined(CLUSTERED_LIGHTS))
+#define SHADOWED
+#include "shadows.glsl"
+#endif
+in vec2 pass_texCoords;
+#ifdef LIT
+in vec3 pass_normal;
+in vec3 pass_position;
+#endif
+#ifdef GEOMETRY
+layout(location=0) out vec4 out_Albedo;
+layout(location=1) out vec4 out_Normal;
+#else
+layout(location=0) out vec4 out_Color;
+#endif
+uniform sampler2D diffuse;
+#if defined(DIRECTIONAL_LIGHT) || defined(POINT_LIGHT)
+uniform int lightIndex;
+#endif
+#ifdef CLUSTERED_LIGHTS
+in float pass_viewDepth;
+uniform usamplerBuffer clusterGrid;
+uniform usamplerBuffer clusterLightIndices;
+uniform vec3 clusterCount;
+uniform vec3 clusterScale;
+uniform vec3 clusterBias;
+#endif
+void main()
+{
+#ifdef GEOMETRY
+	out_Albedo = texture(diffuse, pass_texCoords);
+	out_Normal = vec4(normalize(pass_normal), 0.0);
+#elif !defined(SHADOW_CASTER)
+	vec3 light = vec3(0.0);
+#if defined(AMBIENT_LIGHT) || defined(FORWARD_LIGHTS) || defined(CLUSTERED_LIGHTS)
+	light += ambientLight.color * ambientLight.intensity;
+#endif
+#ifdef LIT
+	vec3 nrm = normalize(pass_normal);
+#endif
+#ifdef SHADOWED
+	float shadow = computeShadow(pass_position);
+#else
+	float shadow = 1.0;
+#endif
+#ifdef DIRECTIONAL_LIGHT
+	light += computeDirectionalLight(directionalLights[lightIndex], nrm) * (lightIndex == 0 ? shadow : 1.0);
+#endif
+#ifdef POINT_LIGHT
+	light += computePointLight(pointLights[lightIndex], pass_position, nrm);
+#endif
+#ifdef FORWARD_LIGHTS
+	for(int i = 0; i < directionalLightCount; i++)
+		light += computeDirectionalLight(directionalLights[i], nrm) * (i == 0 ? shadow : 1.0);
+	for(int i = 0; i < pointLightCount; i++)
+		light += computePointLight(pointLights[i], pass_position, nrm);
+#endif
+#ifdef CLUSTERED_LIGHTS
+	for(int i = 0; i < directionalLightCount; i++)
+		light += computeDirectionalLight(directionalLights[i], nrm) * (i == 0 ? shadow : 1.0);
+	ivec3 cluster = clamp(ivec3(vec3(gl_FragCoord.xy, log(pass_viewDepth)) * clusterScale + clusterBias), ivec3(0), ivec3(clusterCount) - 1);
+	uvec2 clusterLights = texelFetch(clusterGrid, (cluster.z * int(clusterCount.y) + cluster.y) * int(clusterCount.x) + cluster.x).xy;
+	for(uint i = 0u; i < clusterLights.y; i++)
+		light += computePointLight(pointLights[texelFetch(clusterLightIndices, int(clusterLights.x + i)).x], pass_position, nrm);
+#endif
+	out_Color = texture(diffuse, pass_texCoords) * vec4(light, 1.0);
+#endif
+}
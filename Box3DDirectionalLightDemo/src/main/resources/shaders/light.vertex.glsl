@@ -0,0 +1,54 @@
+#version 400
+#include "camera.glsl"
+#if defined(DIRECTIONAL_LIGHT) || defined(POINT_LIGHT) || defined(FORWARD_LIGHTS) || defined(CLUSTERED_LIGHTS) || defined(GEOMETRY)
+#define LIT
+#endif
+in vec3 coords;
+in vec2 texCoords;
+out vec2 pass_texCoords;
+#ifdef LIT
+in vec3 normal;
+out vec3 pass_normal;
+out vec3 pass_position;
+#ifdef NORMAL_MATRIX
+#ifdef INSTANCED
+in mat3 T_normal;
+#else
+uniform mat3 T_normal;
+#endif
+#endif
+#endif
+#ifdef CLUSTERED_LIGHTS
+out float pass_viewDepth;
+#endif
+#ifdef INSTANCED
+in mat4 T_model;
+#else
+uniform mat4 T_model;
+#endif
+#ifdef SHADOW_CASTER
+uniform mat4 T_lightViewProjection;
+#endif
+void main()
+{
+	vec4 worldPosition = T_model * vec4(coords, 1.0);
+#ifdef SHADOW_CASTER
+	gl_Position = T_lightViewProjection * worldPosition;
+#else
+	gl_Position = camera.T_projection * camera.T_view * worldPosition;
+#endif
+	pass_texCoords = texCoords;
+#ifdef LIT
+#if defined(NORMAL_MATRIX)
+	pass_normal = T_normal * normal;
+#elif defined(UNIFORM_SCALE)
+	pass_normal = mat3(T_model) * normal;
+#else
+	pass_normal = mat3(transpose(inverse(T_model))) * normal;
+#endif
+	pass_position = worldPosition.xyz;
+#endif
+#ifdef CLUSTERED_LIGHTS
+	pass_viewDepth = -(camera.T_view * worldPosition).z;
+#endif
+}
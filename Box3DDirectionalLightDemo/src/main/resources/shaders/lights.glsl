@@ -0,0 +1,34 @@
+struct BaseLight {
+	vec3 color;
+	float intensity;
+};
+struct DirectionalLight {
+	BaseLight base;
+	vec3 direction;
+};
+struct PointLight {
+	BaseLight base;
+	vec3 position;
+	float range;
+};
+layout(std140) uniform Lights {
+	BaseLight ambientLight;
+	int directionalLightCount;
+	int pointLightCount;
+	DirectionalLight directionalLights[MAX_LIGHTS];
+	PointLight pointLights[MAX_LIGHTS];
+};
+vec3 computeDirectionalLight(DirectionalLight light, vec3 normal)
+{
+	vec3 dirToLight = normalize(-light.direction);
+	float diffuseFactor = max(dot(normal, dirToLight), 0.0f);
+	return light.base.color * light.base.intensity * diffuseFactor;
+}
+vec3 computePointLight(PointLight light, vec3 position, vec3 normal)
+{
+	vec3 toLight = light.position - position;
+	float distanceToLight = length(toLight);
+	float diffuseFactor = max(dot(normal, toLight / distanceToLight), 0.0f);
+	float attenuation = clamp(1.0 - distanceToLight / light.range, 0.0, 1.0);
+	return light.base.color * light.base.intensity * diffuseFactor * attenuation * attenuation;
+}
@@ -0,0 +1,14 @@
+layout(std140) uniform Shadows {
+	mat4 T_shadows[SHADOW_CASCADES];
+};
+uniform sampler2DArrayShadow shadowMap;
+float computeShadow(vec3 position)
+{
+	for(int i = 0; i < SHADOW_CASCADES; i++)
+	{
+		vec3 shadowCoords = (T_shadows[i] * vec4(position, 1.0)).xyz;
+		if(all(greaterThan(shadowCoords, vec3(0.0))) && all(lessThan(shadowCoords, vec3(1.0))))
+			return texture(shadowMap, vec4(shadowCoords.xy, float(i), shadowCoords.z));
+	}
+	return 1.0;
+}
@@ -1,13 +1,8 @@
 package TexturedTriangleTextureArrayDemo;
 
-import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 
-import javax.imageio.ImageIO;
-
 import org.lwjgl.glfw.GLFW;
 import org.lwjgl.glfw.GLFWErrorCallback;
 import org.lwjgl.opengl.GL;
@@ -27,6 +22,12 @@ public class Demo
 	// The initial height of the window.
 	public static int HEIGHT = 600;
 	
+	// The maximum amount of pixel data in bytes uploaded to the gpu per frame.
+	public static long TEXTURE_UPLOAD_BUDGET = 16 * 1024 * 1024;
+	
+	// The maximum amount of video memory used by textures in bytes. Least recently used textures are deleted to stay below it.
+	public static long TEXTURE_MEMORY_BUDGET = 64 * 1024 * 1024;
+	
 	public static void main(String[] args) { new Demo().run(); }
 
 	public void run()
@@ -208,89 +209,16 @@ public class Demo
 		// Retrieve the locations for the uniform variables in the shader program to set their values later.
 		int textureUniformLocation = GL20.glGetUniformLocation(shaderProgramId, "diffuse");
 
-		BufferedImage texture1 = null;
-		try
-		{
-			texture1 = ImageIO.read(new File("test1.png"));
-		} catch (IOException e)
-		{
-			e.printStackTrace();
-			System.exit(-1);
-		}
-
-		int texture1Width = texture1.getWidth();
-		int texture1Height = texture1.getHeight();
+		// Decode the images on worker threads, one per cpu core. The decoded pixel data is uploaded
+		// by the main loop, so the window shows up before all the images are loaded.
+		TextureLoadQueue textureLoadQueue = new TextureLoadQueue(Runtime.getRuntime().availableProcessors(), 4);
 		
-		int[] pixels1 = new int[texture1Width * texture1Height];
-		texture1.getRGB(0, 0, texture1Width, texture1Height, pixels1, 0, texture1Width);
-
-		int textureId1 = GL11.glGenTextures();
+		// The residency manager loads the textures through the queue the first time they are bound
+		// and deletes the least recently used ones again if they don't fit into the memory budget.
+		TextureResidencyManager textureResidencyManager = new TextureResidencyManager(textureLoadQueue, TEXTURE_MEMORY_BUDGET, true);
 		
-		GL11.glBindTexture(GL11.GL_TEXTURE_2D, textureId1);
-
-		GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_LINEAR);
-		GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_LINEAR);
-
-		ByteBuffer buffer1 = MemoryUtil.memAlloc(texture1Width * texture1Height * 4);
-
-		for(int y = 0; y < texture1Height; y++)
-			for(int x = 0; x < texture1Width; x++)
-			{
-				int pixel = pixels1[y * texture1Width + x];
-				
-				buffer1.put((byte)((pixel >> 16) & 0xFF)); // Red component
-				buffer1.put((byte)((pixel >> 8) & 0xFF)); // Green component
-				buffer1.put((byte)(pixel & 0xFF)); // Blue component
-				buffer1.put((byte)((pixel >> 24) & 0xFF)); //Alpha component
-			}
-
-		buffer1.flip();
-		
-		GL11.glTexImage2D(GL11.GL_TEXTURE_2D, 0, GL11.GL_RGBA8, texture1Width, texture1Height, 0, GL11.GL_RGBA, GL11.GL_UNSIGNED_BYTE, buffer1);
-		
-		MemoryUtil.memFree(buffer1);
-
-		BufferedImage texture2 = null;
-		try
-		{
-			texture2 = ImageIO.read(new File("test2.png"));
-		} catch (IOException e)
-		{
-			e.printStackTrace();
-			System.exit(-1);
-		}
-
-		int texture2Width = texture2.getWidth();
-		int texture2Height = texture2.getHeight();
-		
-		int[] pixels2 = new int[texture2Width * texture2Height];
-		texture2.getRGB(0, 0, texture2Width, texture2Height, pixels2, 0, texture2Width);
-
-		int textureId2 = GL11.glGenTextures();
-		
-		GL11.glBindTexture(GL11.GL_TEXTURE_2D, textureId2);
-
-		GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_LINEAR);
-		GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_LINEAR);
-
-		ByteBuffer buffer2 = MemoryUtil.memAlloc(texture2Width * texture2Height * 4);
-
-		for(int y = 0; y < texture2Height; y++)
-			for(int x = 0; x < texture2Width; x++)
-			{
-				int pixel = pixels2[y * texture2Width + x];
-				
-				buffer2.put((byte)((pixel >> 16) & 0xFF)); // Red component
-				buffer2.put((byte)((pixel >> 8) & 0xFF)); // Green component
-				buffer2.put((byte)(pixel & 0xFF)); // Blue component
-				buffer2.put((byte)((pixel >> 24) & 0xFF)); //Alpha component
-			}
-
-		buffer2.flip();
-		
-		GL11.glTexImage2D(GL11.GL_TEXTURE_2D, 0, GL11.GL_RGBA8, texture2Width, texture2Height, 0, GL11.GL_RGBA, GL11.GL_UNSIGNED_BYTE, buffer2);
-		
-		MemoryUtil.memFree(buffer2);
+		ManagedTexture texture1 = textureResidencyManager.register(new File("test1.png"));
+		ManagedTexture texture2 = textureResidencyManager.register(new File("test2.png"));
 		
 		/* ===========
 		 *  MAIN LOOP
@@ -316,7 +244,8 @@ public class Demo
 			 *  UPDATE CODE
 			 * =============*/
 			
-			// For this demo there is no update code.
+			// Upload the images that finished decoding since the last frame, but not more than the budget allows.
+			textureResidencyManager.update(TEXTURE_UPLOAD_BUDGET);
 			
 			/* ====================
 			 * RENDER CODE
@@ -335,6 +264,9 @@ public class Demo
 			// Clearing the pixeldata, the depthdata and the stencildata of the screen.
 			GL11.glClear(GL11.GL_COLOR_BUFFER_BIT | GL11.GL_DEPTH_BUFFER_BIT | GL11.GL_STENCIL_BUFFER_BIT);
 			
+			// While a texture is not resident the texture 0 is bound instead. It is incomplete and sampled as black.
+			// Therefore the triangles can already be drawn while the images are still loading.
+			
 			// Binding the VAO that contains the vertex data of our triangle.
 			GL30.glBindVertexArray(triangleVAOId);
 			
@@ -348,7 +280,7 @@ public class Demo
 			GL20.glUseProgram(shaderProgramId);
 			
 			GL13.glActiveTexture(GL13.GL_TEXTURE0);
-			GL11.glBindTexture(GL30.GL_TEXTURE_2D, textureId1);
+			textureResidencyManager.bind(texture1);
 			GL20.glUniform1i(textureUniformLocation, 0);
 			
 			// Drawing the triangle.
@@ -364,7 +296,7 @@ public class Demo
 			GL11.glBlendFunc(GL11.GL_ONE, GL11.GL_ONE);
 			
 			GL13.glActiveTexture(GL13.GL_TEXTURE0);
-			GL11.glBindTexture(GL30.GL_TEXTURE_2D, textureId2);
+			textureResidencyManager.bind(texture2);
 			GL20.glUniform1i(textureUniformLocation, 0);
 			
 			// Drawing the triangle.
@@ -391,8 +323,14 @@ public class Demo
 		GL20.glDeleteShader(vertexShaderId);
 		GL20.glDeleteShader(fragmentShaderId);
 		
-		GL11.glDeleteTextures(textureId1);
-		GL11.glDeleteTextures(textureId2);
+		// Printing the statistics of the texture residency.
+		System.out.printf("Texture binds: %d hits, %d misses. %d loads, %d evictions, peak texture memory %.1f MB.%n",
+			textureResidencyManager.getHitCount(), textureResidencyManager.getMissCount(), textureResidencyManager.getLoadCount(),
+			textureResidencyManager.getEvictionCount(), textureResidencyManager.getPeakResidentBytes() / (1024.0 * 1024.0));
+		
+		textureLoadQueue.close();
+		
+		textureResidencyManager.delete();
 		
 		GLFW.glfwDestroyWindow(windowId);
 	}
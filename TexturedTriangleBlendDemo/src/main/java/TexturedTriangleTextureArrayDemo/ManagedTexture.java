@@ -0,0 +1,56 @@
+package TexturedTriangleTextureArrayDemo;
+
+import java.io.File;
+
+/**
+ * A texture whose video memory is managed by a TextureResidencyManager.
+ *
+ * The texture only exists on the gpu while it is resident. The manager loads it from its file the first time
+ * it is bound and may delete it again to make room for other textures.
+ */
+public class ManagedTexture
+{
+	// The image file the texture is loaded from.
+	public final File file;
+
+	// The id of the texture or 0 if the texture is not resident.
+	int textureId;
+
+	// The estimated size of the texture in video memory in bytes, known after the first load.
+	long size;
+
+	// True while the image is being decoded or waiting for the upload.
+	boolean isLoading;
+
+	// The frame the texture was bound in the last time.
+	long lastBoundFrame = -1;
+
+	ManagedTexture(File file)
+	{
+		this.file = file;
+	}
+
+	/**
+	 * Returns true if the texture is in video memory and can be sampled.
+	 */
+	public boolean isResident()
+	{
+		return this.textureId != 0;
+	}
+
+	/**
+	 * Returns the id of the texture or 0 if it isn't resident.
+	 */
+	public int getTextureId()
+	{
+		return this.textureId;
+	}
+
+	/**
+	 * Returns the estimated size of the texture in video memory in bytes or 0 if it has never been loaded.
+	 */
+	public long getSize()
+	{
+		return this.size;
+	}
+}
@@ -0,0 +1,162 @@
+package TexturedTriangleTextureArrayDemo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Decodes images on a pool of worker threads and hands the finished pixel data to the OpenGL thread.
+ *
+ * OpenGL calls are only allowed on the thread the context is current on. Therefore the workers only decode the images
+ * and put the results into a bounded queue, while the render loop calls upload() once per frame to move a limited
+ * amount of pixel data to the gpu. This way the window stays responsive while the textures are still loading.
+ */
+public class TextureLoadQueue
+{
+	// The worker threads decoding the images.
+	private final ExecutorService executor;
+
+	// The decoded images waiting for the upload. Workers block if the queue is full, which limits the amount of
+	// decoded pixel data held in memory at the same time.
+	private final BlockingQueue<LoadedTexture> loadedTextures;
+
+	// The amount of submitted images that have not been uploaded yet. This is only accessed by the OpenGL thread.
+	private int pendingCount;
+
+	public TextureLoadQueue(int threadCount, int capacity)
+	{
+		this.executor = Executors.newFixedThreadPool(threadCount, runnable -> {
+			Thread thread = new Thread(runnable, "TextureLoader");
+
+			// The workers must not keep the application alive after the main loop ended.
+			thread.setDaemon(true);
+
+			return thread;
+		});
+
+		this.loadedTextures = new ArrayBlockingQueue<>(capacity);
+	}
+
+	/**
+	 * Schedules the image file for decoding. Once decoded, the uploader is called on the OpenGL thread
+	 * during upload() and receives the pixel data. The pixel data is freed after the uploader returns.
+	 */
+	public void submit(File file, Consumer<TextureData> uploader)
+	{
+		this.pendingCount++;
+
+		this.executor.execute(() -> {
+			LoadedTexture loadedTexture;
+			try
+			{
+				loadedTexture = new LoadedTexture(file, TextureLoader.load(file), null, uploader);
+			} catch (Throwable e)
+			{
+				// Every submitted image has to reach the queue, including the ones that failed for any reason,
+				// otherwise the pending count never gets back to 0.
+				loadedTexture = new LoadedTexture(file, null, e, uploader);
+			}
+
+			try
+			{
+				this.loadedTextures.put(loadedTexture);
+			} catch (InterruptedException e)
+			{
+				// The queue got closed while waiting for free space.
+				if(loadedTexture.data != null) loadedTexture.data.free();
+
+				Thread.currentThread().interrupt();
+			}
+		});
+	}
+
+	/**
+	 * Uploads decoded images until the budget in bytes is used up or no decoded image is waiting.
+	 * At least one image is uploaded if available, even if it is larger than the budget.
+	 * This has to be called on the OpenGL thread.
+	 *
+	 * @return The amount of uploaded images.
+	 */
+	public int upload(long byteBudget)
+	{
+		int uploadedCount = 0;
+		long uploadedBytes = 0;
+
+		LoadedTexture loadedTexture;
+		while(uploadedBytes < byteBudget && (loadedTexture = this.loadedTextures.poll()) != null)
+		{
+			this.pendingCount--;
+
+			if(loadedTexture.error instanceof IOException) throw new UncheckedIOException("Cannot load texture " + loadedTexture.file, (IOException)loadedTexture.error);
+			if(loadedTexture.error != null) throw new IllegalStateException("Cannot load texture " + loadedTexture.file, loadedTexture.error);
+
+			uploadedBytes += loadedTexture.data.pixels.remaining();
+
+			try
+			{
+				loadedTexture.uploader.accept(loadedTexture.data);
+			}
+			finally
+			{
+				loadedTexture.data.free();
+			}
+
+			uploadedCount++;
+		}
+
+		return uploadedCount;
+	}
+
+	/**
+	 * Returns true if all submitted images have been uploaded.
+	 */
+	public boolean isDone()
+	{
+		return this.pendingCount == 0;
+	}
+
+	/**
+	 * Stops the workers and frees the pixel data of the images that have not been uploaded.
+	 */
+	public void close()
+	{
+		this.executor.shutdownNow();
+
+		try
+		{
+			this.executor.awaitTermination(1, TimeUnit.SECONDS);
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		LoadedTexture loadedTexture;
+		while((loadedTexture = this.loadedTextures.poll()) != null)
+			if(loadedTexture.data != null) loadedTexture.data.free();
+	}
+
+	/**
+	 * The result of decoding a single image.
+	 */
+	private static class LoadedTexture
+	{
+		public final File file;
+		public final TextureData data;
+		public final Throwable error;
+		public final Consumer<TextureData> uploader;
+
+		public LoadedTexture(File file, TextureData data, Throwable error, Consumer<TextureData> uploader)
+		{
+			this.file = file;
+			this.data = data;
+			this.error = error;
+			this.uploader = uploader;
+		}
+	}
+}
@@ -0,0 +1,250 @@
+package TexturedTriangleTextureArrayDemo;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL42;
+
+/**
+ * Keeps the video memory used by textures below a budget.
+ *
+ * Textures are registered with their image file and only loaded when they are bound for the first time.
+ * Loading goes through a TextureLoadQueue, so binding a texture that isn't resident never blocks the render loop.
+ * The draw call has to be skipped or done with a placeholder until the texture arrived.
+ *
+ * The driver doesn't report how much memory a texture takes, so the size is estimated from its dimensions,
+ * mipmap levels and layers. Before a new texture is uploaded, the least recently bound textures are deleted
+ * until the new one fits into the budget. Textures bound during the current frame are never evicted, as the
+ * frame still needs them. If nothing else can be evicted, the budget is exceeded rather than stalling the frame.
+ * An evicted texture is simply loaded again the next time it is bound.
+ */
+public class TextureResidencyManager
+{
+	// The bytes per pixel of the internal format GL_RGBA8.
+	private static final int BYTES_PER_PIXEL = 4;
+
+	// The queue decoding the images on worker threads.
+	private final TextureLoadQueue loadQueue;
+
+	// The maximum amount of video memory for all resident textures in bytes.
+	private final long budget;
+
+	// True if the textures get a complete mipmap chain.
+	private final boolean generateMipmaps;
+
+	// The resident textures ordered from least to most recently bound.
+	private final LinkedHashSet<ManagedTexture> residentTextures = new LinkedHashSet<>();
+
+	// The estimated video memory used by the resident textures in bytes.
+	private long residentBytes;
+
+	// The number of the current frame, increased in update().
+	private long frame;
+
+	// Statistics.
+	private long hitCount;
+	private long missCount;
+	private long loadCount;
+	private long evictionCount;
+	private long peakResidentBytes;
+
+	public TextureResidencyManager(TextureLoadQueue loadQueue, long budget, boolean generateMipmaps)
+	{
+		this.loadQueue = loadQueue;
+		this.budget = budget;
+		this.generateMipmaps = generateMipmaps;
+	}
+
+	/**
+	 * Returns the estimated size of a texture in video memory in bytes. Every mipmap level is a quarter of the previous one,
+	 * so a complete mipmap chain adds about a third to the size of the base level.
+	 */
+	public static long estimateSize(int width, int height, int layerCount, int levelCount, int bytesPerPixel)
+	{
+		long size = 0;
+
+		for(int level = 0; level < levelCount; level++)
+			size += (long)Math.max(1, width >> level) * Math.max(1, height >> level) * layerCount * bytesPerPixel;
+
+		return size;
+	}
+
+	/**
+	 * Registers the image file as a texture. Nothing is loaded until the texture is bound.
+	 */
+	public ManagedTexture register(File file)
+	{
+		return new ManagedTexture(file);
+	}
+
+	/**
+	 * Binds the texture to GL_TEXTURE_2D of the active texture unit if it is resident and marks it as recently used.
+	 * Otherwise the texture is requested, 0 is bound and false is returned. This has to be called on the OpenGL thread.
+	 */
+	public boolean bind(ManagedTexture texture)
+	{
+		texture.lastBoundFrame = this.frame;
+
+		if(texture.isResident())
+		{
+			// Moving the texture to the end of the set keeps the set ordered by the last use.
+			this.residentTextures.remove(texture);
+			this.residentTextures.add(texture);
+
+			this.hitCount++;
+
+			GL11.glBindTexture(GL11.GL_TEXTURE_2D, texture.textureId);
+
+			return true;
+		}
+
+		this.missCount++;
+
+		if(!texture.isLoading)
+		{
+			texture.isLoading = true;
+			this.loadCount++;
+
+			this.loadQueue.submit(texture.file, data -> upload(texture, data));
+		}
+
+		GL11.glBindTexture(GL11.GL_TEXTURE_2D, 0);
+
+		return false;
+	}
+
+	/**
+	 * Uploads the images that finished decoding within the byte budget and starts the next frame.
+	 * This has to be called on the OpenGL thread once per frame.
+	 */
+	public void update(long uploadBudget)
+	{
+		this.loadQueue.upload(uploadBudget);
+
+		this.frame++;
+	}
+
+	/**
+	 * Creates the texture from the decoded image after making room for it. Called on the OpenGL thread by the load queue.
+	 */
+	private void upload(ManagedTexture texture, TextureData data)
+	{
+		int levelCount = this.generateMipmaps ? 32 - Integer.numberOfLeadingZeros(Math.max(data.width, data.height)) : 1;
+
+		texture.size = estimateSize(data.width, data.height, 1, levelCount, BYTES_PER_PIXEL);
+		texture.isLoading = false;
+
+		evict(texture.size);
+
+		texture.textureId = GL11.glGenTextures();
+
+		GL11.glBindTexture(GL11.GL_TEXTURE_2D, texture.textureId);
+
+		GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, this.generateMipmaps ? GL11.GL_LINEAR_MIPMAP_LINEAR : GL11.GL_LINEAR);
+		GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_LINEAR);
+
+		// Immutable storage has a fixed size, so the estimate matches what the texture really needs.
+		GL42.glTexStorage2D(GL11.GL_TEXTURE_2D, levelCount, GL11.GL_RGBA8, data.width, data.height);
+
+		GL11.glPixelStorei(GL11.GL_UNPACK_ALIGNMENT, data.alignment);
+		GL11.glTexSubImage2D(GL11.GL_TEXTURE_2D, 0, 0, 0, data.width, data.height, data.format, data.type, data.pixels);
+		GL11.glPixelStorei(GL11.GL_UNPACK_ALIGNMENT, 4);
+
+		if(this.generateMipmaps) GL30.glGenerateMipmap(GL11.GL_TEXTURE_2D);
+
+		GL11.glBindTexture(GL11.GL_TEXTURE_2D, 0);
+
+		this.residentTextures.add(texture);
+		this.residentBytes += texture.size;
+		this.peakResidentBytes = Math.max(this.peakResidentBytes, this.residentBytes);
+	}
+
+	/**
+	 * Deletes the least recently bound textures until the given amount of bytes fits into the budget.
+	 */
+	private void evict(long requiredBytes)
+	{
+		Iterator<ManagedTexture> iterator = this.residentTextures.iterator();
+
+		while(this.residentBytes + requiredBytes > this.budget && iterator.hasNext())
+		{
+			ManagedTexture texture = iterator.next();
+
+			if(texture.lastBoundFrame == this.frame) continue;
+
+			GL11.glDeleteTextures(texture.textureId);
+			texture.textureId = 0;
+
+			this.residentBytes -= texture.size;
+			this.evictionCount++;
+
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * Returns the estimated video memory used by the resident textures in bytes.
+	 */
+	public long getResidentBytes()
+	{
+		return this.residentBytes;
+	}
+
+	/**
+	 * Returns the highest estimated video memory used by the resident textures so far in bytes.
+	 */
+	public long getPeakResidentBytes()
+	{
+		return this.peakResidentBytes;
+	}
+
+	/**
+	 * Returns the amount of binds of resident textures.
+	 */
+	public long getHitCount()
+	{
+		return this.hitCount;
+	}
+
+	/**
+	 * Returns the amount of binds of textures that were not resident.
+	 */
+	public long getMissCount()
+	{
+		return this.missCount;
+	}
+
+	/**
+	 * Returns the amount of times a texture was requested from its file, including reloads after an eviction.
+	 */
+	public long getLoadCount()
+	{
+		return this.loadCount;
+	}
+
+	/**
+	 * Returns the amount of textures deleted to stay within the budget.
+	 */
+	public long getEvictionCount()
+	{
+		return this.evictionCount;
+	}
+
+	/**
+	 * Deletes all resident textures.
+	 */
+	public void delete()
+	{
+		for(ManagedTexture texture : this.residentTextures)
+		{
+			GL11.glDeleteTextures(texture.textureId);
+			texture.textureId = 0;
+		}
+
+		this.residentTextures.clear();
+		this.residentBytes = 0;
+	}
+}
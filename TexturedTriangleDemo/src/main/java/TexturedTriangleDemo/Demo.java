@@ -1,13 +1,9 @@
 package TexturedTriangleDemo;
 
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 
-import javax.imageio.ImageIO;
-
 import org.lwjgl.glfw.GLFW;
 import org.lwjgl.glfw.GLFWErrorCallback;
 import org.lwjgl.opengl.GL;
@@ -28,6 +24,12 @@ public class Demo
 	// The initial height of the window.
 	public static int HEIGHT = 600;
 	
+	// The width and height of the texture atlas pages in pixels.
+	public static int ATLAS_PAGE_SIZE = 2048;
+	
+	// The amount of mipmap levels of the texture atlas pages. More levels need wider gutters around the images.
+	public static int ATLAS_LEVEL_COUNT = 4;
+	
 	public static void main(String[] args) { new Demo().run(); }
 
 	public void run()
@@ -139,10 +141,11 @@ public class Demo
 			+ "in vec2 coords;\n"
 			+ "in vec2 texCoords;\n"
 			+ "out vec2 pass_texCoords;\n"
+			+ "uniform vec4 atlasRegion;\n"
 			+ "void main()\n"
 			+ "{\n"
 			+ "	gl_Position = vec4(vec3(coords, 1.0), 1.0);\n"
-			+ "	pass_texCoords = texCoords;\n"
+			+ "	pass_texCoords = atlasRegion.xy + texCoords * atlasRegion.zw;\n"
 			+ "}"
 			);
 		
@@ -209,48 +212,33 @@ public class Demo
 		
 		// Retrieve the locations for the uniform variables in the shader program to set their values later.
 		int textureUniformLocation = GL20.glGetUniformLocation(shaderProgramId, "diffuse");
+		int atlasRegionUniformLocation = GL20.glGetUniformLocation(shaderProgramId, "atlasRegion");
 		
-		BufferedImage texture = null;
+		// Convert the image into the binary texture format once. Later launches map the converted file into memory
+		// and pass the pixel data to OpenGL directly, so the png file doesn't have to be decoded again.
+		TextureFile texture = null;
 		try
 		{
-			texture = ImageIO.read(new File("test.png"));
+			File textureFile = new File("test.tex");
+			
+			TextureConverter.convertIfOutdated(new File("test.png"), textureFile, false);
+			
+			texture = TextureFile.open(textureFile);
 		} catch (IOException e)
 		{
 			e.printStackTrace();
 			System.exit(-1);
 		}
 
-		int textureWidth = texture.getWidth();
-		int textureHeight = texture.getHeight();
-		
-		int[] pixels = new int[textureWidth * textureHeight];
-		texture.getRGB(0, 0, textureWidth, textureHeight, pixels, 0, textureWidth);
-
-		int textureId = GL11.glGenTextures();
-		
-		GL11.glBindTexture(GL11.GL_TEXTURE_2D, textureId);
-
-		GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_LINEAR);
-		GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_LINEAR);
-
-		ByteBuffer buffer = MemoryUtil.memAlloc(textureWidth * textureHeight * 4);
-
-		for(int y = 0; y < textureHeight; y++)
-			for(int x = 0; x < textureWidth; x++)
-			{
-				int pixel = pixels[y * textureWidth + x];
-				
-				buffer.put((byte)((pixel >> 16) & 0xFF)); // Red component
-				buffer.put((byte)((pixel >> 8) & 0xFF)); // Green component
-				buffer.put((byte)(pixel & 0xFF)); // Blue component
-				buffer.put((byte)((pixel >> 24) & 0xFF)); //Alpha component
-			}
-
-		buffer.flip();
+		// Put the image into a page of a texture atlas. All images added to the atlas share a few large textures,
+		// so many sprites can be drawn without binding a texture for each of them. The vertex shader maps the
+		// texture coordinates of the triangle to the area of the image in the page.
+		TextureAtlas textureAtlas = new TextureAtlas(ATLAS_PAGE_SIZE, ATLAS_LEVEL_COUNT);
 		
-		GL11.glTexImage2D(GL11.GL_TEXTURE_2D, 0, GL11.GL_RGBA8, textureWidth, textureHeight, 0, GL11.GL_RGBA, GL11.GL_UNSIGNED_BYTE, buffer);
+		TextureAtlasRegion textureRegion = textureAtlas.add(texture.getTextureData(0));
 		
-		MemoryUtil.memFree(buffer);
+		// Compute the mipmap levels of the pages once after adding the images.
+		textureAtlas.update();
 		
 		/* ===========
 		 *  MAIN LOOP
@@ -308,8 +296,9 @@ public class Demo
 			GL20.glUseProgram(shaderProgramId);
 			
 			GL13.glActiveTexture(GL13.GL_TEXTURE0);
-			GL11.glBindTexture(GL32.GL_TEXTURE_2D, textureId);
+			GL11.glBindTexture(GL32.GL_TEXTURE_2D, textureRegion.textureId);
 			GL20.glUniform1i(textureUniformLocation, 0);
+			GL20.glUniform4f(atlasRegionUniformLocation, textureRegion.u0, textureRegion.v0, textureRegion.u1 - textureRegion.u0, textureRegion.v1 - textureRegion.v0);
 			
 			// Drawing the triangle.
 			GL11.glDrawArrays(GL11.GL_TRIANGLES, 0, 3);
@@ -332,7 +321,7 @@ public class Demo
 		GL20.glDeleteShader(vertexShaderId);
 		GL20.glDeleteShader(fragmentShaderId);
 		
-		GL11.glDeleteTextures(textureId);
+		textureAtlas.delete();
 
 		GLFW.glfwDestroyWindow(windowId);
 	}
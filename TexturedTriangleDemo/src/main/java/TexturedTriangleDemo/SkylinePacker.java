@@ -0,0 +1,173 @@
+package TexturedTriangleDemo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Packs rectangles into a fixed size area with the skyline bottom-left algorithm.
+ *
+ * The skyline is the upper outline of all rectangles placed so far, stored as a list of horizontal segments from left to right.
+ * A new rectangle is placed on top of the skyline at the position where its top edge ends up lowest. Space below the skyline
+ * is never reused, which wastes a little area but keeps every insertion cheap and allows adding rectangles at any time
+ * without moving the ones already placed.
+ *
+ * All sizes are rounded up to a multiple of the alignment. As the skyline starts at 0, every position is aligned as well.
+ */
+public class SkylinePacker
+{
+	// The size of the area in pixels.
+	public final int width;
+	public final int height;
+
+	// Sizes and positions are multiples of this.
+	public final int alignment;
+
+	// The segments of the skyline from left to right. Each segment covers the x range up to the next one.
+	private final List<Segment> skyline = new ArrayList<>();
+
+	// The summed area of all placed rectangles, including the alignment.
+	private long usedArea;
+
+	public SkylinePacker(int width, int height, int alignment)
+	{
+		this.width = width;
+		this.height = height;
+		this.alignment = alignment;
+
+		this.skyline.add(new Segment(0, 0, width));
+	}
+
+	/**
+	 * Places a rectangle and returns its position as {x, y} or null if it doesn't fit anymore.
+	 */
+	public int[] insert(int width, int height)
+	{
+		width = align(width);
+		height = align(height);
+
+		int bestIndex = -1;
+		int bestX = 0;
+		int bestY = Integer.MAX_VALUE;
+
+		for(int i = 0; i < this.skyline.size(); i++)
+		{
+			int x = this.skyline.get(i).x;
+			int y = fit(i, width, height);
+
+			// Prefer the lowest position and on a tie the leftmost one.
+			if(y >= 0 && y < bestY)
+			{
+				bestIndex = i;
+				bestX = x;
+				bestY = y;
+			}
+		}
+
+		if(bestIndex < 0) return null;
+
+		addSegment(bestIndex, bestX, bestY + height, width);
+
+		this.usedArea += (long)width * height;
+
+		return new int[] { bestX, bestY };
+	}
+
+	/**
+	 * Returns the ratio of the area covered by rectangles to the whole area.
+	 */
+	public double getOccupancy()
+	{
+		return (double)this.usedArea / ((long)this.width * this.height);
+	}
+
+	/**
+	 * Returns the y coordinate a rectangle starting at the segment would be placed at or -1 if it doesn't fit there.
+	 */
+	private int fit(int index, int width, int height)
+	{
+		int x = this.skyline.get(index).x;
+		if(x + width > this.width) return -1;
+
+		// The rectangle rests on the highest segment below it.
+		int y = 0;
+		int remaining = width;
+
+		for(int i = index; remaining > 0; i++)
+		{
+			Segment segment = this.skyline.get(i);
+
+			y = Math.max(y, segment.y);
+			if(y + height > this.height) return -1;
+
+			remaining -= segment.width;
+		}
+
+		return y;
+	}
+
+	/**
+	 * Inserts a new segment for the top edge of a placed rectangle and shortens or removes the segments below it.
+	 */
+	private void addSegment(int index, int x, int y, int width)
+	{
+		this.skyline.add(index, new Segment(x, y, width));
+
+		int end = x + width;
+
+		for(int i = index + 1; i < this.skyline.size(); )
+		{
+			Segment segment = this.skyline.get(i);
+
+			if(segment.x >= end) break;
+
+			int segmentEnd = segment.x + segment.width;
+
+			if(segmentEnd <= end)
+			{
+				this.skyline.remove(i);
+			}
+			else
+			{
+				segment.width = segmentEnd - end;
+				segment.x = end;
+				break;
+			}
+		}
+
+		// Neighbouring segments at the same height are merged to keep the skyline short.
+		for(int i = 0; i < this.skyline.size() - 1; )
+		{
+			Segment segment = this.skyline.get(i);
+			Segment next = this.skyline.get(i + 1);
+
+			if(segment.y == next.y)
+			{
+				segment.width += next.width;
+				this.skyline.remove(i + 1);
+			}
+			else
+			{
+				i++;
+			}
+		}
+	}
+
+	private int align(int value)
+	{
+		return (value + this.alignment - 1) / this.alignment * this.alignment;
+	}
+
+	private static class Segment
+	{
+		public int x;
+		public int y;
+		public int width;
+
+		public Segment(int x, int y, int width)
+		{
+			this.x = x;
+			this.y = y;
+			this.width = width;
+		}
+	}
+}
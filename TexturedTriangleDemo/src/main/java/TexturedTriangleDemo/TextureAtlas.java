@@ -0,0 +1,200 @@
+package TexturedTriangleDemo;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL42;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * Packs many small images into a few large textures, called pages, so they can be drawn without switching textures.
+ *
+ * The images are placed with a SkylinePacker. Images can be added at any time. A new image goes into the first page
+ * with enough space left and a new page is only created if none has room for it. Images already placed never move.
+ *
+ * Bilinear filtering and mipmapping read texels around the sampled position, which would mix in the neighbouring images.
+ * Therefore every image is surrounded by a gutter filled with copies of its border pixels. At mipmap level n a texel covers
+ * 2^n pixels of the page, so the positions and sizes of the images are aligned to 2^(levelCount - 1) pixels and the gutter
+ * has the same width. That way the smallest level still never mixes two images into one texel.
+ */
+public class TextureAtlas
+{
+	// The width and height of a page in pixels.
+	public final int pageSize;
+
+	// The amount of mipmap levels of a page.
+	public final int levelCount;
+
+	// The width of the border around every image in pixels.
+	public final int gutter;
+
+	// All pages created so far.
+	private final List<Page> pages = new ArrayList<>();
+
+	public TextureAtlas(int pageSize, int levelCount)
+	{
+		this.pageSize = pageSize;
+		this.levelCount = levelCount;
+		this.gutter = 1 << (levelCount - 1);
+	}
+
+	/**
+	 * Copies the image into a page of the atlas and returns its area in the page. This has to be called on the OpenGL thread.
+	 * The mipmap levels of the page are updated in the next call of update().
+	 */
+	public TextureAtlasRegion add(TextureData data)
+	{
+		int paddedWidth = data.width + 2 * this.gutter;
+		int paddedHeight = data.height + 2 * this.gutter;
+
+		// The packer rounds the sizes up to the gutter width, so an image that fits a page without that rounding can still be too large.
+		int alignedWidth = (paddedWidth + this.gutter - 1) / this.gutter * this.gutter;
+		int alignedHeight = (paddedHeight + this.gutter - 1) / this.gutter * this.gutter;
+
+		if(alignedWidth > this.pageSize || alignedHeight > this.pageSize)
+			throw new IllegalArgumentException("The image of " + data.width + "x" + data.height + " pixels takes " + alignedWidth + "x" + alignedHeight
+					+ " pixels with its gutter and doesn't fit an atlas page of " + this.pageSize + "x" + this.pageSize + " pixels.");
+
+		Page page = null;
+		int[] position = null;
+
+		for(int i = 0; i < this.pages.size() && position == null; i++)
+		{
+			page = this.pages.get(i);
+			position = page.packer.insert(paddedWidth, paddedHeight);
+		}
+
+		if(position == null)
+		{
+			page = createPage();
+			position = page.packer.insert(paddedWidth, paddedHeight);
+
+			if(position == null) throw new IllegalStateException("The image of " + data.width + "x" + data.height + " pixels doesn't fit an empty atlas page.");
+		}
+
+		ByteBuffer pixels = addGutter(data, paddedWidth, paddedHeight);
+
+		GL11.glBindTexture(GL11.GL_TEXTURE_2D, page.textureId);
+
+		GL11.glPixelStorei(GL11.GL_UNPACK_ALIGNMENT, data.alignment);
+		GL11.glTexSubImage2D(GL11.GL_TEXTURE_2D, 0, position[0], position[1], paddedWidth, paddedHeight, data.format, data.type, pixels);
+		GL11.glPixelStorei(GL11.GL_UNPACK_ALIGNMENT, 4);
+
+		GL11.glBindTexture(GL11.GL_TEXTURE_2D, 0);
+
+		MemoryUtil.memFree(pixels);
+
+		page.isDirty = true;
+
+		return new TextureAtlasRegion(page.textureId, this.pageSize, position[0] + this.gutter, position[1] + this.gutter, data.width, data.height);
+	}
+
+	/**
+	 * Recomputes the mipmap levels of the pages images have been added to. This has to be called on the OpenGL thread
+	 * before drawing with the new images. Adding many images before calling this computes the levels only once.
+	 */
+	public void update()
+	{
+		for(Page page : this.pages)
+		{
+			if(page.isDirty && this.levelCount > 1)
+			{
+				GL11.glBindTexture(GL11.GL_TEXTURE_2D, page.textureId);
+				GL30.glGenerateMipmap(GL11.GL_TEXTURE_2D);
+			}
+
+			page.isDirty = false;
+		}
+
+		GL11.glBindTexture(GL11.GL_TEXTURE_2D, 0);
+	}
+
+	/**
+	 * Returns the amount of pages.
+	 */
+	public int getPageCount()
+	{
+		return this.pages.size();
+	}
+
+	/**
+	 * Returns the ratio of the area covered by images, including their gutters, to the area of all pages.
+	 */
+	public double getOccupancy()
+	{
+		double occupancy = 0;
+		for(Page page : this.pages)
+			occupancy += page.packer.getOccupancy();
+
+		return this.pages.isEmpty() ? 0 : occupancy / this.pages.size();
+	}
+
+	/**
+	 * Deletes the textures of all pages.
+	 */
+	public void delete()
+	{
+		for(Page page : this.pages)
+			GL11.glDeleteTextures(page.textureId);
+
+		this.pages.clear();
+	}
+
+	private Page createPage()
+	{
+		Page page = new Page();
+		page.textureId = GL11.glGenTextures();
+		page.packer = new SkylinePacker(this.pageSize, this.pageSize, this.gutter);
+
+		GL11.glBindTexture(GL11.GL_TEXTURE_2D, page.textureId);
+
+		GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, this.levelCount > 1 ? GL11.GL_LINEAR_MIPMAP_LINEAR : GL11.GL_LINEAR);
+		GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_LINEAR);
+
+		GL42.glTexStorage2D(GL11.GL_TEXTURE_2D, this.levelCount, GL11.GL_RGBA8, this.pageSize, this.pageSize);
+
+		this.pages.add(page);
+
+		return page;
+	}
+
+	/**
+	 * Copies the image into the center of a larger buffer and fills the border around it with the nearest pixels of the image.
+	 * The returned buffer is allocated with MemoryUtil and has to be freed.
+	 */
+	private ByteBuffer addGutter(TextureData data, int paddedWidth, int paddedHeight)
+	{
+		int bytesPerPixel = data.pixels.remaining() / (data.width * data.height);
+
+		ByteBuffer source = data.pixels;
+		ByteBuffer target = MemoryUtil.memAlloc(paddedWidth * paddedHeight * bytesPerPixel);
+
+		for(int y = 0; y < paddedHeight; y++)
+		{
+			int sourceY = Math.min(Math.max(y - this.gutter, 0), data.height - 1);
+
+			for(int x = 0; x < paddedWidth; x++)
+			{
+				int sourceX = Math.min(Math.max(x - this.gutter, 0), data.width - 1);
+
+				int sourceIndex = source.position() + (sourceY * data.width + sourceX) * bytesPerPixel;
+				int targetIndex = (y * paddedWidth + x) * bytesPerPixel;
+
+				for(int c = 0; c < bytesPerPixel; c++)
+					target.put(targetIndex + c, source.get(sourceIndex + c));
+			}
+		}
+
+		return target;
+	}
+
+	private static class Page
+	{
+		public int textureId;
+		public SkylinePacker packer;
+		public boolean isDirty;
+	}
+}
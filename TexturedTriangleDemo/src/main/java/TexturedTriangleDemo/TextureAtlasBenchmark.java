@@ -0,0 +1,83 @@
+package TexturedTriangleDemo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the time to pack images of random size into atlas pages and how much of the pages they cover.
+ *
+ * Usage: TextureAtlasBenchmark [pageSize] [levelCount] [minSize] [maxSize]
+ *
+ * No OpenGL context is needed. Only the packing is measured, the pages are filled the same way the TextureAtlas does,
+ * i.e. each image goes into the first page with enough space left. The occupancy includes the gutters around the images.
+ */
+public class TextureAtlasBenchmark
+{
+	private static final int[] IMAGE_COUNTS = { 100, 1000, 10000, 100000 };
+
+	public static void main(String[] args)
+	{
+		int pageSize = args.length > 0 ? Integer.parseInt(args[0]) : 2048;
+		int levelCount = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		int minSize = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+		int maxSize = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+
+		int gutter = 1 << (levelCount - 1);
+
+		System.out.printf("Page size %d, %d mipmap levels, gutter %d, image sizes %d to %d pixels%n", pageSize, levelCount, gutter, minSize, maxSize);
+		System.out.printf("%10s %12s %12s %8s %10s%n", "images", "total", "per image", "pages", "occupancy");
+
+		for(int imageCount : IMAGE_COUNTS)
+		{
+			// The same seed gives every run the same images.
+			Random random = new Random(imageCount);
+
+			int[] widths = new int[imageCount];
+			int[] heights = new int[imageCount];
+			for(int i = 0; i < imageCount; i++)
+			{
+				widths[i] = minSize + random.nextInt(maxSize - minSize + 1) + 2 * gutter;
+				heights[i] = minSize + random.nextInt(maxSize - minSize + 1) + 2 * gutter;
+			}
+
+			// Warm up the JIT compiler with a run that isn't measured.
+			pack(widths, heights, pageSize, gutter);
+
+			long start = System.nanoTime();
+
+			List<SkylinePacker> pages = pack(widths, heights, pageSize, gutter);
+
+			long time = System.nanoTime() - start;
+
+			double occupancy = 0;
+			for(SkylinePacker page : pages)
+				occupancy += page.getOccupancy();
+
+			System.out.printf("%10d %9.2f ms %9.2f us %8d %9.1f%%%n", imageCount, time / 1e6, time / 1e3 / imageCount, pages.size(), occupancy / pages.size() * 100);
+		}
+	}
+
+	private static List<SkylinePacker> pack(int[] widths, int[] heights, int pageSize, int alignment)
+	{
+		List<SkylinePacker> pages = new ArrayList<>();
+
+		for(int i = 0; i < widths.length; i++)
+		{
+			int[] position = null;
+
+			for(int page = 0; page < pages.size() && position == null; page++)
+				position = pages.get(page).insert(widths[i], heights[i]);
+
+			if(position == null)
+			{
+				SkylinePacker page = new SkylinePacker(pageSize, pageSize, alignment);
+				pages.add(page);
+
+				page.insert(widths[i], heights[i]);
+			}
+		}
+
+		return pages;
+	}
+}
@@ -0,0 +1,52 @@
+package TexturedTriangleDemo;
+
+/**
+ * The area of an image inside a page of a TextureAtlas.
+ */
+public class TextureAtlasRegion
+{
+	// The id of the texture of the atlas page containing the image.
+	public final int textureId;
+
+	// The position and size of the image in the page in pixels, without the gutter.
+	public final int x;
+	public final int y;
+	public final int width;
+	public final int height;
+
+	// The texture coordinates of the corners of the image in the page.
+	public final float u0;
+	public final float v0;
+	public final float u1;
+	public final float v1;
+
+	public TextureAtlasRegion(int textureId, int pageSize, int x, int y, int width, int height)
+	{
+		this.textureId = textureId;
+		this.x = x;
+		this.y = y;
+		this.width = width;
+		this.height = height;
+
+		this.u0 = (float)x / pageSize;
+		this.v0 = (float)y / pageSize;
+		this.u1 = (float)(x + width) / pageSize;
+		this.v1 = (float)(y + height) / pageSize;
+	}
+
+	/**
+	 * Maps a texture coordinate of the image in the range 0 to 1 to the matching coordinate in the atlas page.
+	 */
+	public float getU(float u)
+	{
+		return this.u0 + u * (this.u1 - this.u0);
+	}
+
+	/**
+	 * Maps a texture coordinate of the image in the range 0 to 1 to the matching coordinate in the atlas page.
+	 */
+	public float getV(float v)
+	{
+		return this.v0 + v * (this.v1 - this.v0);
+	}
+}
@@ -0,0 +1,241 @@
+package TexturedTriangleDemo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL12;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * Converts images into the binary texture format read by TextureFile.
+ *
+ * Usage: TextureConverter [-mipmaps] [-bc1|-bc3|-bc7] [-validate] output.tex input1.png [input2.png ...]
+ *
+ * Every input image becomes a layer of the texture, so all of them must have the same size.
+ * If the decoder returns the images in different pixel layouts, all of them are converted to BGRA.
+ * With -mipmaps the complete mipmap chain of every layer is computed and stored as well.
+ * With -bc1, -bc3 or -bc7 all levels are block compressed. Compressing takes much longer than loading the texture,
+ * which is why it is done once here instead of at runtime.
+ * With -validate the stored levels are decompressed again and compared against the source images.
+ */
+public class TextureConverter
+{
+	public static void main(String[] args)
+	{
+		boolean generateMipmaps = false;
+		boolean validate = false;
+		int compression = BlockCompressor.NONE;
+
+		int firstArgument = 0;
+		for(; firstArgument < args.length && args[firstArgument].startsWith("-"); firstArgument++)
+		{
+			switch(args[firstArgument])
+			{
+				case "-mipmaps": generateMipmaps = true; break;
+				case "-validate": validate = true; break;
+				case "-bc1": compression = BlockCompressor.BC1; break;
+				case "-bc3": compression = BlockCompressor.BC3; break;
+				case "-bc7": compression = BlockCompressor.BC7; break;
+				default:
+					System.err.println("Unknown option " + args[firstArgument]);
+					System.exit(-1);
+			}
+		}
+
+		if(args.length - firstArgument < 2)
+		{
+			System.err.println("Usage: TextureConverter [-mipmaps] [-bc1|-bc3|-bc7] [-validate] output.tex input1.png [input2.png ...]");
+			System.exit(-1);
+		}
+
+		File output = new File(args[firstArgument]);
+
+		File[] inputs = new File[args.length - firstArgument - 1];
+		for(int i = 0; i < inputs.length; i++)
+			inputs[i] = new File(args[firstArgument + 1 + i]);
+
+		try
+		{
+			long start = System.nanoTime();
+
+			convert(inputs, output, generateMipmaps, compression);
+
+			System.out.printf("Converted %d image(s) into %s in %.1f ms.%n", inputs.length, output, (System.nanoTime() - start) / 1e6);
+
+			if(validate) validate(inputs, output);
+		} catch (IOException e)
+		{
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+
+	/**
+	 * Decodes the images and writes them as layers into the texture file.
+	 */
+	public static void convert(File[] inputs, File output, boolean generateMipmaps) throws IOException
+	{
+		convert(inputs, output, generateMipmaps, BlockCompressor.NONE);
+	}
+
+	/**
+	 * Decodes the images, compresses them with one of the compressions of the BlockCompressor
+	 * and writes them as layers into the texture file.
+	 */
+	public static void convert(File[] inputs, File output, boolean generateMipmaps, int compression) throws IOException
+	{
+		TextureData[][] levels = new TextureData[inputs.length][];
+
+		try
+		{
+			for(int layer = 0; layer < inputs.length; layer++)
+				levels[layer] = new TextureData[] { TextureLoader.load(inputs[layer]) };
+
+			// The decoder keeps the layout of each image, e.g. 16 bit images come out as BGRA while 8 bit images come out as ABGR.
+			// A texture file has a single layout for all layers, so the layers are converted if they differ.
+			if(!hasSameLayout(levels))
+			{
+				for(TextureData[] layer : levels)
+				{
+					TextureData decoded = layer[0];
+
+					layer[0] = toBGRA8(decoded);
+
+					decoded.free();
+				}
+			}
+
+			if(generateMipmaps)
+				for(int layer = 0; layer < levels.length; layer++)
+					levels[layer] = MipmapGenerator.generate(levels[layer][0]);
+
+			if(compression != BlockCompressor.NONE)
+			{
+				for(TextureData[] layer : levels)
+					for(int level = 0; level < layer.length; level++)
+					{
+						TextureData uncompressed = layer[level];
+
+						layer[level] = BlockCompressor.compress(uncompressed, compression);
+
+						uncompressed.free();
+					}
+			}
+
+			TextureFile.write(output, levels);
+		}
+		finally
+		{
+			free(levels);
+		}
+	}
+
+	/**
+	 * Converts the image into the texture file if the texture file doesn't exist yet or is older than the image.
+	 */
+	public static void convertIfOutdated(File input, File output, boolean generateMipmaps) throws IOException
+	{
+		convertIfOutdated(new File[] { input }, output, generateMipmaps, BlockCompressor.NONE);
+	}
+
+	/**
+	 * Converts the images into the texture file if the texture file doesn't exist yet or is older than any of the images.
+	 */
+	public static void convertIfOutdated(File[] inputs, File output, boolean generateMipmaps, int compression) throws IOException
+	{
+		for(File input : inputs)
+		{
+			if(TextureFile.isOutdated(input, output))
+			{
+				convert(inputs, output, generateMipmaps, compression);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Decompresses every level of the texture file and prints its peak signal-to-noise ratio against the source images.
+	 */
+	public static void validate(File[] inputs, File output) throws IOException
+	{
+		TextureFile textureFile = TextureFile.open(output);
+
+		if(!textureFile.isCompressed())
+		{
+			System.out.println(output + " is not compressed, nothing to validate.");
+			return;
+		}
+
+		for(int layer = 0; layer < inputs.length; layer++)
+		{
+			TextureData[] levels = loadLevels(inputs[layer], textureFile.levelCount > 1);
+
+			try
+			{
+				for(int level = 0; level < textureFile.levelCount; level++)
+				{
+					int width = textureFile.getLevelWidth(level);
+					int height = textureFile.getLevelHeight(level);
+
+					// The blocks of all layers of a level are stored one after another.
+					int layerSize = BlockCompressor.getSize(width, height, textureFile.getCompression());
+
+					ByteBuffer blocks = textureFile.getLevel(level);
+					blocks.position(layer * layerSize).limit((layer + 1) * layerSize);
+
+					int[] decompressed = BlockDecompressor.decompress(blocks.slice(), width, height, textureFile.getCompression());
+
+					System.out.printf("Layer %d, level %d (%dx%d): PSNR %.2f dB%n", layer, level, width, height,
+							BlockDecompressor.getPSNR(BlockCompressor.toARGB(levels[level]), decompressed));
+				}
+			}
+			finally
+			{
+				free(new TextureData[][] { levels });
+			}
+		}
+	}
+
+	/**
+	 * Returns true if the base levels of all layers are stored in the same pixel layout.
+	 */
+	private static boolean hasSameLayout(TextureData[][] levels)
+	{
+		for(TextureData[] layer : levels)
+			if(TextureFile.getFormat(layer[0]) != TextureFile.getFormat(levels[0][0])) return false;
+
+		return true;
+	}
+
+	/**
+	 * Copies the pixels into a new buffer with the components stored as the bytes B, G, R, A.
+	 */
+	private static TextureData toBGRA8(TextureData data)
+	{
+		int[] argb = BlockCompressor.toARGB(data);
+
+		// Stored in little endian byte order, the ARGB ints become the bytes B, G, R, A.
+		ByteBuffer pixels = MemoryUtil.memAlloc(argb.length * 4);
+		pixels.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().put(argb);
+
+		return new TextureData(data.width, data.height, GL12.GL_BGRA, GL11.GL_UNSIGNED_BYTE, 4, pixels);
+	}
+
+	private static TextureData[] loadLevels(File input, boolean generateMipmaps) throws IOException
+	{
+		TextureData base = TextureLoader.load(input);
+
+		return generateMipmaps ? MipmapGenerator.generate(base) : new TextureData[] { base };
+	}
+
+	private static void free(TextureData[][] levels)
+	{
+		for(TextureData[] layer : levels)
+			if(layer != null)
+				for(TextureData level : layer)
+					level.free();
+	}
+}
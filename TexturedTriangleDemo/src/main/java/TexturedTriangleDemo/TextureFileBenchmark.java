@@ -0,0 +1,88 @@
+package TexturedTriangleDemo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Compares loading a texture from a png file with ImageIO against mapping the converted binary texture file.
+ *
+ * Usage: TextureFileBenchmark [image.png] [iterations]
+ *
+ * The first load of each path is reported separately as cold start. It includes class loading and, if the files
+ * are not in the page cache of the operating system, reading them from the disk. For a real cold start measurement
+ * the page cache has to be dropped before running the benchmark (e.g. "echo 3 > /proc/sys/vm/drop_caches" on linux).
+ * The warm start time is the average of the following loads.
+ *
+ * No OpenGL context is needed. The copy into the driver is the same for both paths and therefore not measured.
+ * To make the comparison fair, every page of the mapped file is read once, as the upload would do.
+ */
+public class TextureFileBenchmark
+{
+	// The size of a memory page in bytes. Reading a single byte of every page forces the whole file into memory.
+	private static final int PAGE_SIZE = 4096;
+
+	public static void main(String[] args) throws IOException
+	{
+		File image = new File(args.length > 0 ? args[0] : "test.png");
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+		File textureFile = File.createTempFile("benchmark", ".tex");
+		textureFile.deleteOnExit();
+
+		TextureConverter.convert(new File[] { image }, textureFile, false);
+
+		System.out.println("Image: " + image + " (" + image.length() + " bytes), texture file: " + textureFile.length() + " bytes");
+
+		long imageIOCold = loadImageIO(image);
+		long textureFileCold = loadTextureFile(textureFile);
+
+		long imageIOWarm = 0;
+		long textureFileWarm = 0;
+
+		for(int i = 0; i < iterations; i++)
+		{
+			imageIOWarm += loadImageIO(image);
+			textureFileWarm += loadTextureFile(textureFile);
+		}
+
+		System.out.printf("                 %12s %12s%n", "cold", "warm");
+		System.out.printf("ImageIO:         %9.2f ms %9.2f ms%n", imageIOCold / 1e6, imageIOWarm / 1e6 / iterations);
+		System.out.printf("TextureFile:     %9.2f ms %9.2f ms%n", textureFileCold / 1e6, textureFileWarm / 1e6 / iterations);
+	}
+
+	private static long loadImageIO(File image) throws IOException
+	{
+		long start = System.nanoTime();
+
+		TextureData data = TextureLoader.load(image);
+
+		long time = System.nanoTime() - start;
+
+		data.free();
+
+		return time;
+	}
+
+	private static long loadTextureFile(File file) throws IOException
+	{
+		long start = System.nanoTime();
+
+		TextureFile textureFile = TextureFile.open(file);
+
+		int checksum = 0;
+		for(int level = 0; level < textureFile.levelCount; level++)
+		{
+			ByteBuffer pixels = textureFile.getLevel(level);
+			for(int i = 0; i < pixels.limit(); i += PAGE_SIZE)
+				checksum += pixels.get(i);
+		}
+
+		long time = System.nanoTime() - start;
+
+		// Using the checksum keeps the JIT compiler from removing the reads.
+		if(checksum == Integer.MIN_VALUE) System.out.println();
+
+		return time;
+	}
+}
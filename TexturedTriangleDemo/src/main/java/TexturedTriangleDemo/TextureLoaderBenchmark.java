@@ -0,0 +1,96 @@
+package TexturedTriangleDemo;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * Compares the conversion of a decoded image into uploadable pixel data between the per-pixel loop
+ * the demos used before and the bulk copy of the TextureLoader.
+ *
+ * No OpenGL context is needed, as only the CPU side of the texture loading is measured.
+ * The size of the generated test image can be passed as the first argument (default 4096).
+ */
+public class TextureLoaderBenchmark
+{
+	// The amount of untimed runs to let the JIT compiler optimize both code paths.
+	public static int WARMUP_ITERATIONS = 5;
+
+	// The amount of timed runs.
+	public static int ITERATIONS = 10;
+
+	public static void main(String[] args)
+	{
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 4096;
+
+		// ImageIO decodes RGBA PNGs into TYPE_4BYTE_ABGR images, so that is the layout tested here.
+		BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_4BYTE_ABGR);
+
+		Random random = new Random(0);
+		for(int y = 0; y < size; y++)
+			for(int x = 0; x < size; x++)
+				image.setRGB(x, y, random.nextInt());
+
+		System.out.println("Image size: " + size + "x" + size);
+
+		for(int i = 0; i < WARMUP_ITERATIONS; i++)
+		{
+			MemoryUtil.memFree(loadPerPixel(image));
+			TextureLoader.load(image).free();
+		}
+
+		long perPixelTime = 0;
+		long bulkTime = 0;
+
+		for(int i = 0; i < ITERATIONS; i++)
+		{
+			long start = System.nanoTime();
+			ByteBuffer buffer = loadPerPixel(image);
+			perPixelTime += System.nanoTime() - start;
+			MemoryUtil.memFree(buffer);
+
+			start = System.nanoTime();
+			TextureData data = TextureLoader.load(image);
+			bulkTime += System.nanoTime() - start;
+			data.free();
+		}
+
+		double perPixelMillis = perPixelTime / 1e6 / ITERATIONS;
+		double bulkMillis = bulkTime / 1e6 / ITERATIONS;
+
+		System.out.printf("Per-pixel loop:  %8.2f ms%n", perPixelMillis);
+		System.out.printf("TextureLoader:   %8.2f ms%n", bulkMillis);
+		System.out.printf("Speedup:         %8.2fx%n", perPixelMillis / bulkMillis);
+	}
+
+	/**
+	 * The conversion the demos used before the TextureLoader existed.
+	 */
+	private static ByteBuffer loadPerPixel(BufferedImage texture)
+	{
+		int textureWidth = texture.getWidth();
+		int textureHeight = texture.getHeight();
+
+		int[] pixels = new int[textureWidth * textureHeight];
+		texture.getRGB(0, 0, textureWidth, textureHeight, pixels, 0, textureWidth);
+
+		ByteBuffer buffer = MemoryUtil.memAlloc(textureWidth * textureHeight * 4);
+
+		for(int y = 0; y < textureHeight; y++)
+			for(int x = 0; x < textureWidth; x++)
+			{
+				int pixel = pixels[y * textureWidth + x];
+
+				buffer.put((byte)((pixel >> 16) & 0xFF)); // Red component
+				buffer.put((byte)((pixel >> 8) & 0xFF)); // Green component
+				buffer.put((byte)(pixel & 0xFF)); // Blue component
+				buffer.put((byte)((pixel >> 24) & 0xFF)); //Alpha component
+			}
+
+		buffer.flip();
+
+		return buffer;
+	}
+}
@@ -0,0 +1,211 @@
+package TexturedTriangleTextureArrayDemo;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decompresses the blocks written by the BlockCompressor back into pixels on the cpu.
+ *
+ * The gpu does this while sampling, so this class is only needed to check the quality of the compression.
+ * BC7 blocks are only supported in mode 6, the mode used by the BlockCompressor.
+ */
+public class BlockDecompressor
+{
+	/**
+	 * Decompresses the blocks into packed ARGB integers.
+	 */
+	public static int[] decompress(ByteBuffer blocks, int width, int height, int compression)
+	{
+		int blocksX = (width + 3) / 4;
+		int blocksY = (height + 3) / 4;
+		int blockSize = BlockCompressor.getBlockSize(compression);
+
+		int[] pixels = new int[width * height];
+		int[] block = new int[16];
+
+		for(int blockY = 0; blockY < blocksY; blockY++)
+			for(int blockX = 0; blockX < blocksX; blockX++)
+			{
+				int offset = (blockY * blocksX + blockX) * blockSize;
+
+				switch(compression)
+				{
+					case BlockCompressor.BC1:
+						decodeColorBlock(blocks, offset, block);
+						break;
+					case BlockCompressor.BC3:
+						decodeColorBlock(blocks, offset + 8, block);
+						decodeAlphaBlock(blocks, offset, block);
+						break;
+					case BlockCompressor.BC7:
+						decodeBC7Block(blocks, offset, block);
+						break;
+					default:
+						throw new IllegalArgumentException("Unknown compression " + compression + ".");
+				}
+
+				// Pixels of the padded blocks outside the image are dropped.
+				for(int by = 0; by < 4 && blockY * 4 + by < height; by++)
+					for(int bx = 0; bx < 4 && blockX * 4 + bx < width; bx++)
+						pixels[(blockY * 4 + by) * width + blockX * 4 + bx] = block[by * 4 + bx];
+			}
+
+		return pixels;
+	}
+
+	/**
+	 * Returns the peak signal-to-noise ratio between two images in decibel over the red, green, blue and alpha components.
+	 * Higher is better, identical images return positive infinity.
+	 */
+	public static double getPSNR(int[] original, int[] decompressed)
+	{
+		double squaredError = 0;
+
+		for(int i = 0; i < original.length; i++)
+			for(int c = 0; c < 4; c++)
+			{
+				int difference = BlockCompressor.component(original[i], c) - BlockCompressor.component(decompressed[i], c);
+				squaredError += difference * difference;
+			}
+
+		double meanSquaredError = squaredError / (original.length * 4.0);
+
+		return 10 * Math.log10(255 * 255 / meanSquaredError);
+	}
+
+	/**
+	 * Decodes a BC1 block. The alpha of all pixels is set to 255, except for the transparent color of the three color mode.
+	 */
+	private static void decodeColorBlock(ByteBuffer blocks, int offset, int[] block)
+	{
+		int color0 = (blocks.get(offset) & 0xFF) | (blocks.get(offset + 1) & 0xFF) << 8;
+		int color1 = (blocks.get(offset + 2) & 0xFF) | (blocks.get(offset + 3) & 0xFF) << 8;
+
+		int indices = (blocks.get(offset + 4) & 0xFF) | (blocks.get(offset + 5) & 0xFF) << 8
+				| (blocks.get(offset + 6) & 0xFF) << 16 | (blocks.get(offset + 7) & 0xFF) << 24;
+
+		int[] palette = new int[4];
+
+		if(color0 > color1)
+		{
+			int[][] colors = BlockCompressor.colorPalette(color0, color1);
+
+			for(int i = 0; i < 4; i++)
+				palette[i] = 0xFF << 24 | colors[i][0] << 16 | colors[i][1] << 8 | colors[i][2];
+		}
+		else
+		{
+			int[] c0 = BlockCompressor.fromRGB565(color0);
+			int[] c1 = BlockCompressor.fromRGB565(color1);
+
+			// Three color mode: the third color is the average of the endpoints, the fourth one is transparent black.
+			palette[0] = 0xFF << 24 | c0[0] << 16 | c0[1] << 8 | c0[2];
+			palette[1] = 0xFF << 24 | c1[0] << 16 | c1[1] << 8 | c1[2];
+			palette[2] = 0xFF << 24 | ((c0[0] + c1[0]) / 2) << 16 | ((c0[1] + c1[1]) / 2) << 8 | ((c0[2] + c1[2]) / 2);
+			palette[3] = 0;
+		}
+
+		for(int i = 0; i < 16; i++)
+			block[i] = palette[(indices >>> (i * 2)) & 3];
+	}
+
+	/**
+	 * Decodes the alpha block of BC3 and replaces the alpha of the already decoded colors.
+	 */
+	private static void decodeAlphaBlock(ByteBuffer blocks, int offset, int[] block)
+	{
+		int alpha0 = blocks.get(offset) & 0xFF;
+		int alpha1 = blocks.get(offset + 1) & 0xFF;
+
+		long indices = 0;
+		for(int i = 0; i < 6; i++)
+			indices |= (long)(blocks.get(offset + 2 + i) & 0xFF) << (i * 8);
+
+		int[] palette;
+
+		if(alpha0 > alpha1)
+		{
+			palette = BlockCompressor.alphaPalette(alpha0, alpha1);
+		}
+		else
+		{
+			// Six interpolated values plus fully transparent and fully opaque.
+			palette = new int[8];
+			palette[0] = alpha0;
+			palette[1] = alpha1;
+
+			for(int i = 1; i < 5; i++)
+				palette[i + 1] = ((5 - i) * alpha0 + i * alpha1) / 5;
+
+			palette[6] = 0;
+			palette[7] = 255;
+		}
+
+		for(int i = 0; i < 16; i++)
+			block[i] = palette[(int)(indices >>> (i * 3)) & 7] << 24 | (block[i] & 0xFFFFFF);
+	}
+
+	/**
+	 * Decodes a BC7 block in mode 6.
+	 */
+	private static void decodeBC7Block(ByteBuffer blocks, int offset, int[] block)
+	{
+		BitReader reader = new BitReader(blocks, offset);
+
+		if(reader.read(7) != 1 << 6) throw new UnsupportedOperationException("Only mode 6 BC7 blocks are supported.");
+
+		int[] endpoint0 = new int[4];
+		int[] endpoint1 = new int[4];
+
+		for(int c = 0; c < 4; c++)
+		{
+			endpoint0[c] = reader.read(7) << 1;
+			endpoint1[c] = reader.read(7) << 1;
+		}
+
+		int pBit0 = reader.read(1);
+		int pBit1 = reader.read(1);
+
+		for(int c = 0; c < 4; c++)
+		{
+			endpoint0[c] |= pBit0;
+			endpoint1[c] |= pBit1;
+		}
+
+		for(int i = 0; i < 16; i++)
+		{
+			int weight = BlockCompressor.BC7_WEIGHTS[reader.read(i == 0 ? 3 : 4)];
+
+			int[] color = new int[4];
+			for(int c = 0; c < 4; c++)
+				color[c] = ((64 - weight) * endpoint0[c] + weight * endpoint1[c] + 32) >> 6;
+
+			block[i] = color[3] << 24 | color[0] << 16 | color[1] << 8 | color[2];
+		}
+	}
+
+	/**
+	 * Reads values bit by bit from a block, starting with the lowest bit of the first byte.
+	 */
+	private static class BitReader
+	{
+		private final ByteBuffer blocks;
+		private final int offset;
+		private int position;
+
+		public BitReader(ByteBuffer blocks, int offset)
+		{
+			this.blocks = blocks;
+			this.offset = offset;
+		}
+
+		public int read(int bitCount)
+		{
+			int value = 0;
+
+			for(int i = 0; i < bitCount; i++, this.position++)
+				value |= ((this.blocks.get(this.offset + this.position / 8) >> (this.position % 8)) & 1) << i;
+
+			return value;
+		}
+	}
+}
@@ -1,23 +1,17 @@
 package TexturedTriangleTextureArrayDemo;
 
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 
-import javax.imageio.ImageIO;
-
 import org.lwjgl.glfw.GLFW;
 import org.lwjgl.glfw.GLFWErrorCallback;
 import org.lwjgl.opengl.GL;
 import org.lwjgl.opengl.GL11;
-import org.lwjgl.opengl.GL12;
 import org.lwjgl.opengl.GL13;
 import org.lwjgl.opengl.GL15;
 import org.lwjgl.opengl.GL20;
 import org.lwjgl.opengl.GL30;
-import org.lwjgl.opengl.GL42;
 import org.lwjgl.system.MemoryUtil;
 
 public class Demo
@@ -28,6 +22,20 @@ public class Demo
 	// The initial height of the window.
 	public static int HEIGHT = 600;
 	
+	// The maximum amount of pixel data in bytes uploaded to the gpu per frame.
+	public static long TEXTURE_UPLOAD_BUDGET = 16 * 1024 * 1024;
+	
+	// The amount of pixel buffer objects used for streaming textures to the gpu.
+	public static int STREAMING_BUFFER_COUNT = 4;
+	
+	// The size of a single pixel buffer object in bytes. Larger images are uploaded from client memory.
+	public static int STREAMING_BUFFER_SIZE = 16 * 1024 * 1024;
+	
+	// The block compression of the layers as one of the constants of the BlockCompressor.
+	// NONE streams the images through the pixel buffer objects into the GL_RGBA8 array texture built by the TextureArrayBuilder.
+	// The other compressions convert the images into a texture file once and upload all layers of it with a single call.
+	public static int TEXTURE_COMPRESSION = BlockCompressor.NONE;
+	
 	public static void main(String[] args) { new Demo().run(); }
 
 	public void run()
@@ -141,10 +149,12 @@ public class Demo
 				+ "layout(location=0) out vec4 out_Color;\n"
 				+ "uniform sampler2DArray diffuse;\n"
 				+ "uniform int framePos;\n"
+				+ "uniform int firstLayer;\n"
+				+ "uniform int secondLayer;\n"
 				+ "void main()\n"
 				+ "{\n"
-				+ "	vec4 color0 = texture(diffuse, vec3(pass_texCoords, 0));\n"
-				+ "	vec4 color1 = texture(diffuse, vec3(pass_texCoords, 1));\n"
+				+ "	vec4 color0 = texture(diffuse, vec3(pass_texCoords, firstLayer));\n"
+				+ "	vec4 color1 = texture(diffuse, vec3(pass_texCoords, secondLayer));\n"
 				+ "	out_Color = mix(color0, color1, pass_texCoords.x);\n"
 				+ "}"
 				);
@@ -168,85 +178,72 @@ public class Demo
 		GL20.glValidateProgram(shaderProgramId);
 		
 		int textureUniformLocation = GL20.glGetUniformLocation(shaderProgramId, "diffuse");
+		int firstLayerUniformLocation = GL20.glGetUniformLocation(shaderProgramId, "firstLayer");
+		int secondLayerUniformLocation = GL20.glGetUniformLocation(shaderProgramId, "secondLayer");
 		
-		int textureId = GL11.glGenTextures();
+		int textureId = 0;
+		int firstLayer = 0;
+		int secondLayer = 1;
 		
-		GL11.glBindTexture(GL30.GL_TEXTURE_2D_ARRAY, textureId);
-
-		GL11.glTexParameteri(GL30.GL_TEXTURE_2D_ARRAY, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_LINEAR);
-		GL11.glTexParameteri(GL30.GL_TEXTURE_2D_ARRAY, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_LINEAR);
+		TextureStreamer textureStreamer = null;
+		TextureArrayBuilder textureArrayBuilder = null;
 		
-		GL42.glTexStorage3D(GL30.GL_TEXTURE_2D_ARRAY, 1, GL11.GL_RGBA8, 512, 512, 2);
-
-		BufferedImage texture1 = null;
-		try
+		if(TEXTURE_COMPRESSION != BlockCompressor.NONE)
 		{
-			texture1 = ImageIO.read(new File("test1.png"));
-		} catch (IOException e)
-		{
-			e.printStackTrace();
-			System.exit(-1);
-		}
-
-		int texture1Width = texture1.getWidth();
-		int texture1Height = texture1.getHeight();
-		
-		int[] pixelsTexture1 = new int[texture1Width * texture1Height];
-		texture1.getRGB(0, 0, texture1Width, texture1Height, pixelsTexture1, 0, texture1Width);
-		
-		ByteBuffer textureBuffer1 = MemoryUtil.memAlloc(texture1Width * texture1Height * 4);
-
-		for(int y = 0; y < texture1Height; y++)
-			for(int x = 0; x < texture1Width; x++)
+			textureId = GL11.glGenTextures();
+			
+			GL11.glBindTexture(GL30.GL_TEXTURE_2D_ARRAY, textureId);
+			
+			GL11.glTexParameteri(GL30.GL_TEXTURE_2D_ARRAY, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_LINEAR);
+			GL11.glTexParameteri(GL30.GL_TEXTURE_2D_ARRAY, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_LINEAR);
+			
+			// Compress both images as layers into a texture file once. The compressed layers need only a quarter (BC3, BC7)
+			// or an eighth (BC1) of the video memory of GL_RGBA8 and all layers are uploaded with a single call.
+			TextureFile texture = null;
+			try
 			{
-				int pixel = pixelsTexture1[y * texture1Width + x];
+				File textureFile = new File("textures." + BlockCompressor.getName(TEXTURE_COMPRESSION) + ".tex");
+				
+				TextureConverter.convertIfOutdated(new File[] { new File("test1.png"), new File("test2.png") }, textureFile, false, TEXTURE_COMPRESSION);
 				
-				textureBuffer1.put((byte)((pixel >> 16) & 0xFF)); // Red component
-				textureBuffer1.put((byte)((pixel >> 8) & 0xFF)); // Green component
-				textureBuffer1.put((byte)(pixel & 0xFF)); // Blue component
-				textureBuffer1.put((byte)((pixel >> 24) & 0xFF)); //Alpha component
+				texture = TextureFile.open(textureFile);
+			} catch (IOException e)
+			{
+				e.printStackTrace();
+				System.exit(-1);
 			}
-
-		textureBuffer1.flip();
-		
-		GL12.glTexSubImage3D(GL30.GL_TEXTURE_2D_ARRAY, 0, 0, 0, 0, 512, 512, 1, GL11.GL_RGBA, GL11.GL_UNSIGNED_BYTE, textureBuffer1);
-		
-		MemoryUtil.memFree(textureBuffer1);
-
-		BufferedImage texture2 = null;
-		try
-		{
-			texture2 = ImageIO.read(new File("test2.png"));
-		} catch (IOException e)
-		{
-			e.printStackTrace();
-			System.exit(-1);
+			
+			texture.uploadArray(GL30.GL_TEXTURE_2D_ARRAY);
 		}
-
-		int texture2Width = texture1.getWidth();
-		int texture2Height = texture1.getHeight();
-		
-		int[] pixelsTexture2 = new int[texture2Width * texture2Height];
-		texture2.getRGB(0, 0, texture2Width, texture2Height, pixelsTexture2, 0, texture2Width);
-		
-		ByteBuffer textureBuffer2 = MemoryUtil.memAlloc(texture2Width * texture2Height * 4);
-
-		for(int y = 0; y < texture2Height; y++)
-			for(int x = 0; x < texture2Width; x++)
+		else
+		{
+			// Decode the images on worker threads, one per cpu core. The workers write the pixel data directly into
+			// pixel buffer objects and the main loop copies it into the layers on the gpu without waiting for the transfer.
+			// Therefore the window shows up before all the images are loaded.
+			textureStreamer = new TextureStreamer(Runtime.getRuntime().availableProcessors(), STREAMING_BUFFER_COUNT, STREAMING_BUFFER_SIZE);
+			
+			// The builder reads the size of the images and puts images of the same size into the layers of the same array texture.
+			// Both images have the same size, so they end up in one array and the triangle only needs a single texture bind.
+			textureArrayBuilder = new TextureArrayBuilder(textureStreamer, true);
+			
+			TextureArrayHandle firstTexture = null;
+			TextureArrayHandle secondTexture = null;
+			try
 			{
-				int pixel = pixelsTexture2[y * texture2Width + x];
-				
-				textureBuffer2.put((byte)((pixel >> 16) & 0xFF)); // Red component
-				textureBuffer2.put((byte)((pixel >> 8) & 0xFF)); // Green component
-				textureBuffer2.put((byte)(pixel & 0xFF)); // Blue component
-				textureBuffer2.put((byte)((pixel >> 24) & 0xFF)); //Alpha component
+				firstTexture = textureArrayBuilder.add(new File("test1.png"));
+				secondTexture = textureArrayBuilder.add(new File("test2.png"));
+			} catch (IOException e)
+			{
+				e.printStackTrace();
+				System.exit(-1);
 			}
-
-		textureBuffer2.flip();
-		
-		GL12.glTexSubImage3D(GL30.GL_TEXTURE_2D_ARRAY, 0, 0, 0, 1, 512, 512, 1, GL11.GL_RGBA, GL11.GL_UNSIGNED_BYTE, textureBuffer2);
-		
-		MemoryUtil.memFree(textureBuffer2);
+			
+			textureArrayBuilder.build();
+			
+			textureId = firstTexture.getArrayId();
+			firstLayer = firstTexture.getLayer();
+			secondLayer = secondTexture.getLayer();
+		}
 		
 		/* ===========
 		 *  MAIN LOOP
@@ -278,33 +275,41 @@ public class Demo
 			 *  UPDATE CODE
 			 * =============*/
 			
-			// For this demo there is no update code.
+			// Upload the images that finished decoding since the last frame, but not more than the budget allows.
+			if(textureArrayBuilder != null) textureArrayBuilder.update(TEXTURE_UPLOAD_BUDGET);
 			
 			/* ====================
 			 * RENDER CODE
 			 * ==================== */
 			
-			// Binding the VAO that contains the vertex data of our triangle.
-			GL30.glBindVertexArray(triangleVAOId);
-			
-			// Enabling the position pointer "0" for streaming the vertex data of the triangle to gpu.
-			GL20.glEnableVertexAttribArray(0);
-			
-			// Enabling the position pointer "1" for streaming the texture coordinate data of the triangle to gpu.
-			GL20.glEnableVertexAttribArray(1);
-			
-			// Starting the shader.
-			GL20.glUseProgram(shaderProgramId);
-			
-			GL13.glActiveTexture(GL13.GL_TEXTURE0);
-			GL11.glBindTexture(GL30.GL_TEXTURE_2D_ARRAY, textureId);
-			GL20.glUniform1i(textureUniformLocation, 0);
-			
-			// Drawing the triangle.
-			GL11.glDrawArrays(GL11.GL_TRIANGLE_STRIP, 0, 3);
-			
-			// Stopping the running shader.
-			GL20.glUseProgram(0);
+			// The content of the layers is undefined until the images are uploaded.
+			// Therefore the triangle is only drawn after all images are loaded.
+			if(textureArrayBuilder == null || textureArrayBuilder.isDone())
+			{
+				// Binding the VAO that contains the vertex data of our triangle.
+				GL30.glBindVertexArray(triangleVAOId);
+				
+				// Enabling the position pointer "0" for streaming the vertex data of the triangle to gpu.
+				GL20.glEnableVertexAttribArray(0);
+				
+				// Enabling the position pointer "1" for streaming the texture coordinate data of the triangle to gpu.
+				GL20.glEnableVertexAttribArray(1);
+				
+				// Starting the shader.
+				GL20.glUseProgram(shaderProgramId);
+				
+				GL13.glActiveTexture(GL13.GL_TEXTURE0);
+				GL11.glBindTexture(GL30.GL_TEXTURE_2D_ARRAY, textureId);
+				GL20.glUniform1i(textureUniformLocation, 0);
+				GL20.glUniform1i(firstLayerUniformLocation, firstLayer);
+				GL20.glUniform1i(secondLayerUniformLocation, secondLayer);
+				
+				// Drawing the triangle.
+				GL11.glDrawArrays(GL11.GL_TRIANGLE_STRIP, 0, 3);
+				
+				// Stopping the running shader.
+				GL20.glUseProgram(0);
+			}
 		}
 		
 		/* =====================
@@ -317,7 +322,22 @@ public class Demo
 		GL20.glDeleteProgram(shaderProgramId);
 		GL20.glDeleteShader(vertexShaderId);
 		GL20.glDeleteShader(fragmentShaderId);
-		GL11.glDeleteTextures(textureId);
+		
+		if(textureStreamer != null)
+		{
+			// Printing the statistics of the texture streaming.
+			System.out.printf("Streamed %d textures (%d bytes) at %.1f MB/s, %d stalls, %d uploads from client memory.%n",
+				textureStreamer.getUploadedCount(), textureStreamer.getUploadedBytes(), textureStreamer.getThroughput() / (1024 * 1024),
+				textureStreamer.getStallCount(), textureStreamer.getFallbackCount());
+			
+			textureStreamer.close();
+			
+			textureArrayBuilder.delete();
+		}
+		else
+		{
+			GL11.glDeleteTextures(textureId);
+		}
 
 		GLFW.glfwDestroyWindow(windowId);
 	}
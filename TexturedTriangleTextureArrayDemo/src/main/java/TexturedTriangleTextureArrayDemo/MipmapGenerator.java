@@ -0,0 +1,96 @@
+package TexturedTriangleTextureArrayDemo;
+
+import java.nio.ByteBuffer;
+import java.util.stream.IntStream;
+
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * Computes the complete mipmap chain of a texture on the cpu.
+ *
+ * Each level is half the size of the previous one and is calculated with a box filter, i.e. every pixel is the average of
+ * the 2x2 pixels it covers in the previous level. The components of all formats produced by the TextureLoader are single bytes,
+ * so averaging byte by byte averages the components no matter in which order they are stored.
+ */
+public class MipmapGenerator
+{
+	// Levels with fewer rows than this are computed on the calling thread, as splitting them up costs more than it saves.
+	private static final int PARALLEL_THRESHOLD = 64;
+
+	/**
+	 * Returns the amount of mipmap levels of a complete chain for a texture of the given size, including the base level.
+	 */
+	public static int getLevelCount(int width, int height)
+	{
+		return 32 - Integer.numberOfLeadingZeros(Math.max(width, height));
+	}
+
+	/**
+	 * Computes all the mipmap levels of the texture. The first element of the returned array is the passed base level.
+	 * All other levels are allocated with MemoryUtil and have to be freed.
+	 */
+	public static TextureData[] generate(TextureData base)
+	{
+		int bytesPerPixel = base.pixels.remaining() / (base.width * base.height);
+
+		TextureData[] levels = new TextureData[getLevelCount(base.width, base.height)];
+		levels[0] = base;
+
+		for(int level = 1; level < levels.length; level++)
+		{
+			TextureData source = levels[level - 1];
+
+			int width = Math.max(1, source.width / 2);
+			int height = Math.max(1, source.height / 2);
+
+			ByteBuffer pixels = MemoryUtil.memAlloc(width * height * bytesPerPixel);
+
+			IntStream rows = IntStream.range(0, height);
+			if(height >= PARALLEL_THRESHOLD) rows = rows.parallel();
+
+			rows.forEach(y -> downsampleRow(source, pixels, width, y, bytesPerPixel));
+
+			levels[level] = new TextureData(width, height, base.format, base.type, base.alignment, pixels);
+		}
+
+		return levels;
+	}
+
+	/**
+	 * Computes a single row of the smaller level from the two corresponding rows of the source level.
+	 * If the source has an odd size, the last row or column is reused instead of reading past the image.
+	 */
+	private static void downsampleRow(TextureData source, ByteBuffer target, int targetWidth, int y, int bytesPerPixel)
+	{
+		ByteBuffer sourcePixels = source.pixels;
+
+		int sourceRowSize = source.width * bytesPerPixel;
+
+		int y0 = Math.min(y * 2, source.height - 1);
+		int y1 = Math.min(y * 2 + 1, source.height - 1);
+
+		for(int x = 0; x < targetWidth; x++)
+		{
+			int x0 = Math.min(x * 2, source.width - 1);
+			int x1 = Math.min(x * 2 + 1, source.width - 1);
+
+			int topLeft = y0 * sourceRowSize + x0 * bytesPerPixel;
+			int topRight = y0 * sourceRowSize + x1 * bytesPerPixel;
+			int bottomLeft = y1 * sourceRowSize + x0 * bytesPerPixel;
+			int bottomRight = y1 * sourceRowSize + x1 * bytesPerPixel;
+
+			int targetIndex = (y * targetWidth + x) * bytesPerPixel;
+
+			for(int c = 0; c < bytesPerPixel; c++)
+			{
+				int sum = (sourcePixels.get(topLeft + c) & 0xFF)
+						+ (sourcePixels.get(topRight + c) & 0xFF)
+						+ (sourcePixels.get(bottomLeft + c) & 0xFF)
+						+ (sourcePixels.get(bottomRight + c) & 0xFF);
+
+				// Adding 2 rounds to the nearest value instead of always rounding down.
+				target.put(targetIndex + c, (byte)((sum + 2) >> 2));
+			}
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package TexturedTriangleTextureArrayDemo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL42;
+
+/**
+ * Packs any number of images into the layers of GL_TEXTURE_2D_ARRAY textures.
+ *
+ * Every layer of an array texture has the same size and internal format. Therefore the images are grouped by their size
+ * and by whether they have an alpha channel, and each group becomes one array texture. Only the headers of the images are
+ * read when they are added, so the groups and layers are known before anything is decoded.
+ *
+ * build() allocates immutable storage including all mipmap levels for every group and hands the images to a TextureStreamer.
+ * The streamer decodes them on its worker threads, and only as many images as it has pixel buffer objects are held in memory
+ * at once. Once all layers are uploaded, update() lets the driver compute the mipmap levels of the arrays.
+ */
+public class TextureArrayBuilder
+{
+	// The streamer decoding and uploading the images.
+	private final TextureStreamer streamer;
+
+	// True if the arrays get a complete mipmap chain.
+	private final boolean generateMipmaps;
+
+	// The images added since the last build, grouped by size and internal format.
+	private final Map<List<Integer>, Group> pendingGroups = new LinkedHashMap<>();
+
+	// The arrays whose mipmap levels are computed once their layers are uploaded.
+	private final List<Group> uploadingGroups = new ArrayList<>();
+
+	// The ids of all array textures created by this builder.
+	private final List<Integer> arrayIds = new ArrayList<>();
+
+	public TextureArrayBuilder(TextureStreamer streamer, boolean generateMipmaps)
+	{
+		this.streamer = streamer;
+		this.generateMipmaps = generateMipmaps;
+	}
+
+	/**
+	 * Adds the image file to the array matching its size and format. Only the header of the image is read here.
+	 * The returned handle gets its array id when build() is called.
+	 */
+	public TextureArrayHandle add(File file) throws IOException
+	{
+		int width;
+		int height;
+		boolean hasAlpha;
+
+		try(ImageInputStream input = ImageIO.createImageInputStream(file))
+		{
+			if(input == null) throw new IOException("Cannot read " + file);
+
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+			if(!readers.hasNext()) throw new IOException("Unsupported image format: " + file);
+
+			ImageReader reader = readers.next();
+			try
+			{
+				reader.setInput(input, true, true);
+
+				width = reader.getWidth(0);
+				height = reader.getHeight(0);
+
+				// Without a raw type the decoder might produce any layout, so alpha has to be kept to be safe.
+				ImageTypeSpecifier type = reader.getRawImageType(0);
+				hasAlpha = type == null || type.getColorModel().hasAlpha();
+			}
+			finally
+			{
+				reader.dispose();
+			}
+		}
+
+		int internalFormat = hasAlpha ? GL11.GL_RGBA8 : GL11.GL_RGB8;
+
+		Group group = this.pendingGroups.computeIfAbsent(Arrays.asList(width, height, internalFormat), key -> new Group(width, height, internalFormat));
+
+		TextureArrayHandle handle = new TextureArrayHandle(width, height, group.files.size());
+
+		group.files.add(file);
+		group.handles.add(handle);
+
+		return handle;
+	}
+
+	/**
+	 * Creates an array texture for each group of images added since the last build and submits the images to the streamer.
+	 * This has to be called on the OpenGL thread. The layers are filled while update() is called once per frame.
+	 */
+	public void build()
+	{
+		for(Group group : this.pendingGroups.values())
+		{
+			int levelCount = this.generateMipmaps ? MipmapGenerator.getLevelCount(group.width, group.height) : 1;
+
+			group.arrayId = GL11.glGenTextures();
+			this.arrayIds.add(group.arrayId);
+
+			GL11.glBindTexture(GL30.GL_TEXTURE_2D_ARRAY, group.arrayId);
+
+			GL11.glTexParameteri(GL30.GL_TEXTURE_2D_ARRAY, GL11.GL_TEXTURE_MIN_FILTER, this.generateMipmaps ? GL11.GL_LINEAR_MIPMAP_LINEAR : GL11.GL_LINEAR);
+			GL11.glTexParameteri(GL30.GL_TEXTURE_2D_ARRAY, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_LINEAR);
+
+			// Immutable storage can't be resized or reallocated, so the driver can skip checking the completeness of the texture on every bind.
+			GL42.glTexStorage3D(GL30.GL_TEXTURE_2D_ARRAY, levelCount, group.internalFormat, group.width, group.height, group.files.size());
+
+			for(int layer = 0; layer < group.files.size(); layer++)
+			{
+				group.handles.get(layer).arrayId = group.arrayId;
+
+				this.streamer.submit(group.files.get(layer), GL30.GL_TEXTURE_2D_ARRAY, group.arrayId, 0, layer);
+			}
+
+			if(this.generateMipmaps) this.uploadingGroups.add(group);
+		}
+
+		GL11.glBindTexture(GL30.GL_TEXTURE_2D_ARRAY, 0);
+
+		this.pendingGroups.clear();
+	}
+
+	/**
+	 * Uploads decoded images within the budget in bytes and computes the mipmap levels of the arrays once all of their layers
+	 * are uploaded. This has to be called on the OpenGL thread once per frame.
+	 */
+	public void update(long byteBudget)
+	{
+		this.streamer.update(byteBudget);
+
+		// The streamer doesn't report single images, so the mipmaps are computed when everything submitted so far is uploaded.
+		if(this.streamer.isDone() && !this.uploadingGroups.isEmpty())
+		{
+			for(Group group : this.uploadingGroups)
+			{
+				GL11.glBindTexture(GL30.GL_TEXTURE_2D_ARRAY, group.arrayId);
+				GL30.glGenerateMipmap(GL30.GL_TEXTURE_2D_ARRAY);
+			}
+
+			GL11.glBindTexture(GL30.GL_TEXTURE_2D_ARRAY, 0);
+
+			this.uploadingGroups.clear();
+		}
+	}
+
+	/**
+	 * Returns true if all built arrays are completely uploaded, including their mipmap levels.
+	 */
+	public boolean isDone()
+	{
+		return this.streamer.isDone() && this.uploadingGroups.isEmpty();
+	}
+
+	/**
+	 * Returns the amount of array textures created so far.
+	 */
+	public int getArrayCount()
+	{
+		return this.arrayIds.size();
+	}
+
+	/**
+	 * Deletes all array textures created by this builder.
+	 */
+	public void delete()
+	{
+		for(int arrayId : this.arrayIds)
+			GL11.glDeleteTextures(arrayId);
+
+		this.arrayIds.clear();
+	}
+
+	/**
+	 * The images sharing an array texture.
+	 */
+	private static class Group
+	{
+		public final int width;
+		public final int height;
+		public final int internalFormat;
+
+		public final List<File> files = new ArrayList<>();
+		public final List<TextureArrayHandle> handles = new ArrayList<>();
+
+		public int arrayId;
+
+		public Group(int width, int height, int internalFormat)
+		{
+			this.width = width;
+			this.height = height;
+			this.internalFormat = internalFormat;
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package TexturedTriangleTextureArrayDemo;
+
+/**
+ * Refers to an image packed into a layer of an array texture by the TextureArrayBuilder.
+ *
+ * All images of the same size share one array texture, so materials using them only have to bind the array once
+ * and select the image with the layer in the shader.
+ */
+public class TextureArrayHandle
+{
+	// The width of the image in pixels.
+	public final int width;
+
+	// The height of the image in pixels.
+	public final int height;
+
+	// The layer of the array texture containing the image.
+	public final int layer;
+
+	// The id of the array texture. It is 0 until the builder allocated the array.
+	int arrayId;
+
+	TextureArrayHandle(int width, int height, int layer)
+	{
+		this.width = width;
+		this.height = height;
+		this.layer = layer;
+	}
+
+	/**
+	 * Returns the id of the GL_TEXTURE_2D_ARRAY texture containing the image or 0 if TextureArrayBuilder.build() hasn't been called yet.
+	 */
+	public int getArrayId()
+	{
+		return this.arrayId;
+	}
+
+	/**
+	 * Returns the layer of the array texture containing the image.
+	 */
+	public int getLayer()
+	{
+		return this.layer;
+	}
+}
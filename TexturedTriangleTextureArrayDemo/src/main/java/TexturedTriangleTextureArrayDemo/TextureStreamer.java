@@ -0,0 +1,417 @@
+package TexturedTriangleTextureArrayDemo;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL12;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL21;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL32;
+import org.lwjgl.opengl.GL44;
+
+/**
+ * Streams images into existing textures through a ring of pixel buffer objects (PBO).
+ *
+ * If glTexSubImage is called with a buffer in client memory, the driver has to copy the data before the call returns.
+ * With a PBO bound to GL_PIXEL_UNPACK_BUFFER the copy into the texture is done asynchronously by the gpu instead.
+ *
+ * Worker threads decode the images and write the pixels directly into the mapped memory of a free PBO.
+ * The render loop calls update() once per frame to issue the uploads from the filled PBOs and places a fence
+ * after each of them. A PBO is only handed out to the workers again after its fence got signaled, so neither
+ * the workers nor the render loop ever wait for the gpu.
+ *
+ * If OpenGL 4.4 or ARB_buffer_storage is available the PBOs are persistently mapped. Otherwise each PBO is mapped
+ * while it is free and unmapped right before the upload.
+ */
+public class TextureStreamer
+{
+	// The size of a single PBO in bytes. Images larger than this are uploaded from client memory.
+	private final int slotSize;
+
+	// True if the PBOs stay mapped during the uploads.
+	private final boolean isPersistent;
+
+	// All PBOs of the ring.
+	private final Slot[] slots;
+
+	// The PBOs that are mapped and can be filled by the workers.
+	private final BlockingQueue<Slot> freeSlots;
+
+	// The decoded images waiting for the upload.
+	private final BlockingQueue<Upload> readyUploads = new LinkedBlockingQueue<>();
+
+	// The uploads the gpu might still be reading the PBOs for. This is only accessed by the OpenGL thread.
+	private final List<Upload> inFlightUploads = new ArrayList<>();
+
+	// The worker threads decoding the images.
+	private final ExecutorService executor;
+
+	// The amount of submitted images that have not been uploaded yet. This is only accessed by the OpenGL thread.
+	private int pendingCount;
+
+	// Statistics.
+	private final AtomicLong stallCount = new AtomicLong();
+	private long uploadedBytes;
+	private long uploadedCount;
+	private long fallbackCount;
+	private long firstSubmitTime;
+	private long lastCompletionTime;
+
+	public TextureStreamer(int threadCount, int slotCount, int slotSize)
+	{
+		this.slotSize = slotSize;
+		this.isPersistent = GL.getCapabilities().OpenGL44 || GL.getCapabilities().GL_ARB_buffer_storage;
+
+		this.slots = new Slot[slotCount];
+		this.freeSlots = new ArrayBlockingQueue<>(slotCount);
+
+		for(int i = 0; i < slotCount; i++)
+		{
+			Slot slot = new Slot();
+			slot.bufferId = GL15.glGenBuffers();
+
+			GL15.glBindBuffer(GL21.GL_PIXEL_UNPACK_BUFFER, slot.bufferId);
+
+			if(this.isPersistent)
+			{
+				// Immutable storage that stays mapped for the whole lifetime of the PBO.
+				// Coherent mapping makes the writes of the workers visible to the gpu without explicit flushing.
+				int flags = GL30.GL_MAP_WRITE_BIT | GL44.GL_MAP_PERSISTENT_BIT | GL44.GL_MAP_COHERENT_BIT;
+
+				GL44.glBufferStorage(GL21.GL_PIXEL_UNPACK_BUFFER, slotSize, flags);
+				slot.memory = GL30.glMapBufferRange(GL21.GL_PIXEL_UNPACK_BUFFER, 0, slotSize, flags);
+			}
+			else
+			{
+				GL15.glBufferData(GL21.GL_PIXEL_UNPACK_BUFFER, slotSize, GL15.GL_STREAM_DRAW);
+				map(slot);
+			}
+
+			this.slots[i] = slot;
+			this.freeSlots.add(slot);
+		}
+
+		GL15.glBindBuffer(GL21.GL_PIXEL_UNPACK_BUFFER, 0);
+
+		this.executor = Executors.newFixedThreadPool(threadCount, runnable -> {
+			Thread thread = new Thread(runnable, "TextureStreamer");
+
+			// The workers must not keep the application alive after the main loop ended.
+			thread.setDaemon(true);
+
+			return thread;
+		});
+	}
+
+	/**
+	 * Schedules the image file for decoding and uploading into a layer of the given texture.
+	 * The storage of the texture has to be allocated beforehand, e.g. with glTexStorage3D.
+	 * For GL_TEXTURE_2D textures the layer is ignored.
+	 */
+	public void submit(File file, int target, int textureId, int level, int layer)
+	{
+		if(this.pendingCount == 0 && this.uploadedCount == 0) this.firstSubmitTime = System.nanoTime();
+
+		this.pendingCount++;
+
+		this.executor.execute(() -> {
+			Upload upload = new Upload(file, target, textureId, level, layer);
+
+			try
+			{
+				BufferedImage image = ImageIO.read(file);
+
+				// ImageIO returns null instead of throwing an exception if no decoder is able to read the file.
+				if(image == null) throw new IOException("Unsupported image format: " + file);
+
+				if(TextureLoader.getSize(image) <= this.slotSize)
+				{
+					// Wait for a free PBO. If there is none available right away the workers are faster than the uploads.
+					Slot slot = this.freeSlots.poll();
+					if(slot == null)
+					{
+						this.stallCount.incrementAndGet();
+						slot = this.freeSlots.take();
+					}
+
+					upload.slot = slot;
+					upload.data = TextureLoader.load(image, slot.memory);
+				}
+				else
+				{
+					upload.data = TextureLoader.load(image);
+				}
+			} catch (Throwable e)
+			{
+				upload.error = e;
+
+				// The PBO of a failed upload is handed back right away. The pixel data lived in the PBO, so there is nothing to free.
+				if(upload.slot != null)
+				{
+					this.freeSlots.add(upload.slot);
+					upload.slot = null;
+					upload.data = null;
+				}
+
+				// The streamer got closed while waiting for a free PBO.
+				if(e instanceof InterruptedException) Thread.currentThread().interrupt();
+			}
+
+			// Every submitted image has to reach the OpenGL thread, including the ones that failed for any reason,
+			// otherwise the pending count never gets back to 0.
+			this.readyUploads.add(upload);
+		});
+	}
+
+	/**
+	 * Recycles the PBOs the gpu finished reading from and issues the uploads of decoded images
+	 * until the budget in bytes is used up. At least one image is uploaded if available.
+	 * This has to be called on the OpenGL thread once per frame.
+	 *
+	 * @return The amount of uploaded images.
+	 */
+	public int update(long byteBudget)
+	{
+		// Check the fences without waiting. The PBOs of finished uploads can be filled again.
+		for(Iterator<Upload> iterator = this.inFlightUploads.iterator(); iterator.hasNext();)
+		{
+			Upload upload = iterator.next();
+
+			int status = GL32.glClientWaitSync(upload.fence, 0, 0);
+			if(status != GL32.GL_ALREADY_SIGNALED && status != GL32.GL_CONDITION_SATISFIED) continue;
+
+			GL32.glDeleteSync(upload.fence);
+
+			if(!this.isPersistent)
+			{
+				GL15.glBindBuffer(GL21.GL_PIXEL_UNPACK_BUFFER, upload.slot.bufferId);
+				map(upload.slot);
+			}
+
+			this.freeSlots.add(upload.slot);
+			this.lastCompletionTime = System.nanoTime();
+
+			iterator.remove();
+		}
+
+		GL15.glBindBuffer(GL21.GL_PIXEL_UNPACK_BUFFER, 0);
+
+		int uploadCount = 0;
+		long uploadBytes = 0;
+
+		Upload upload;
+		while(uploadBytes < byteBudget && (upload = this.readyUploads.poll()) != null)
+		{
+			this.pendingCount--;
+
+			if(upload.error instanceof IOException) throw new UncheckedIOException("Cannot load texture " + upload.file, (IOException)upload.error);
+			if(upload.error != null) throw new IllegalStateException("Cannot load texture " + upload.file, upload.error);
+
+			long size = upload.data.pixels.remaining();
+
+			GL11.glBindTexture(upload.target, upload.textureId);
+			GL11.glPixelStorei(GL11.GL_UNPACK_ALIGNMENT, upload.data.alignment);
+
+			if(upload.slot != null)
+			{
+				GL15.glBindBuffer(GL21.GL_PIXEL_UNPACK_BUFFER, upload.slot.bufferId);
+
+				if(!this.isPersistent) GL15.glUnmapBuffer(GL21.GL_PIXEL_UNPACK_BUFFER);
+
+				// With a PBO bound the last parameter is an offset into the PBO instead of a pointer to client memory.
+				texSubImage(upload, 0L);
+
+				GL15.glBindBuffer(GL21.GL_PIXEL_UNPACK_BUFFER, 0);
+
+				upload.fence = GL32.glFenceSync(GL32.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+				this.inFlightUploads.add(upload);
+			}
+			else
+			{
+				texSubImage(upload, upload.data.pixels);
+				upload.data.free();
+
+				this.fallbackCount++;
+				this.lastCompletionTime = System.nanoTime();
+			}
+
+			GL11.glPixelStorei(GL11.GL_UNPACK_ALIGNMENT, 4);
+
+			uploadBytes += size;
+			uploadCount++;
+		}
+
+		this.uploadedBytes += uploadBytes;
+		this.uploadedCount += uploadCount;
+
+		return uploadCount;
+	}
+
+	/**
+	 * Returns true if all submitted images have been uploaded.
+	 */
+	public boolean isDone()
+	{
+		return this.pendingCount == 0;
+	}
+
+	/**
+	 * Returns the amount of bytes uploaded so far.
+	 */
+	public long getUploadedBytes()
+	{
+		return this.uploadedBytes;
+	}
+
+	/**
+	 * Returns the amount of images uploaded so far.
+	 */
+	public long getUploadedCount()
+	{
+		return this.uploadedCount;
+	}
+
+	/**
+	 * Returns how often a worker had to wait for a free PBO.
+	 */
+	public long getStallCount()
+	{
+		return this.stallCount.get();
+	}
+
+	/**
+	 * Returns the amount of images that were too large for a PBO and got uploaded from client memory.
+	 */
+	public long getFallbackCount()
+	{
+		return this.fallbackCount;
+	}
+
+	/**
+	 * Returns the upload throughput in bytes per second, measured from the first submitted image
+	 * to the last completed upload.
+	 */
+	public double getThroughput()
+	{
+		long duration = this.lastCompletionTime - this.firstSubmitTime;
+		if(duration <= 0) return 0.0;
+
+		return this.uploadedBytes / (duration / 1e9);
+	}
+
+	/**
+	 * Stops the workers and deletes the PBOs. This has to be called on the OpenGL thread.
+	 */
+	public void close()
+	{
+		this.executor.shutdownNow();
+
+		try
+		{
+			this.executor.awaitTermination(1, TimeUnit.SECONDS);
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		Upload upload;
+		while((upload = this.readyUploads.poll()) != null)
+			if(upload.slot == null && upload.data != null) upload.data.free();
+
+		for(Upload inFlightUpload : this.inFlightUploads)
+			GL32.glDeleteSync(inFlightUpload.fence);
+
+		// Deleting a buffer also unmaps it.
+		for(Slot slot : this.slots)
+			GL15.glDeleteBuffers(slot.bufferId);
+	}
+
+	/**
+	 * Maps the PBO currently bound to GL_PIXEL_UNPACK_BUFFER for writing. The previous content is discarded.
+	 * Since the PBO is only mapped after its fence got signaled, the driver doesn't have to synchronize.
+	 */
+	private void map(Slot slot)
+	{
+		int flags = GL30.GL_MAP_WRITE_BIT | GL30.GL_MAP_INVALIDATE_BUFFER_BIT | GL30.GL_MAP_UNSYNCHRONIZED_BIT;
+
+		slot.memory = GL30.glMapBufferRange(GL21.GL_PIXEL_UNPACK_BUFFER, 0, this.slotSize, flags, slot.memory);
+	}
+
+	private static void texSubImage(Upload upload, long offset)
+	{
+		TextureData data = upload.data;
+
+		if(upload.target == GL11.GL_TEXTURE_2D)
+			GL11.glTexSubImage2D(upload.target, upload.level, 0, 0, data.width, data.height, data.format, data.type, offset);
+		else
+			GL12.glTexSubImage3D(upload.target, upload.level, 0, 0, upload.layer, data.width, data.height, 1, data.format, data.type, offset);
+	}
+
+	private static void texSubImage(Upload upload, ByteBuffer pixels)
+	{
+		TextureData data = upload.data;
+
+		if(upload.target == GL11.GL_TEXTURE_2D)
+			GL11.glTexSubImage2D(upload.target, upload.level, 0, 0, data.width, data.height, data.format, data.type, pixels);
+		else
+			GL12.glTexSubImage3D(upload.target, upload.level, 0, 0, upload.layer, data.width, data.height, 1, data.format, data.type, pixels);
+	}
+
+	/**
+	 * A single PBO of the ring.
+	 */
+	private static class Slot
+	{
+		public int bufferId;
+
+		// The mapped memory of the PBO. Workers write the decoded pixels into this buffer.
+		public ByteBuffer memory;
+	}
+
+	/**
+	 * A single image on its way to the texture.
+	 */
+	private static class Upload
+	{
+		public final File file;
+		public final int target;
+		public final int textureId;
+		public final int level;
+		public final int layer;
+
+		// The PBO holding the pixel data or null if the image is uploaded from client memory.
+		public Slot slot;
+		public TextureData data;
+		public Throwable error;
+
+		// The fence signaled when the gpu finished reading from the PBO.
+		public long fence;
+
+		public Upload(File file, int target, int textureId, int level, int layer)
+		{
+			this.file = file;
+			this.target = target;
+			this.textureId = textureId;
+			this.level = level;
+			this.layer = layer;
+		}
+	}
+}